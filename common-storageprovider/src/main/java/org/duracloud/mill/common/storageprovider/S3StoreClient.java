@@ -0,0 +1,95 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.common.storageprovider;
+
+import java.util.Objects;
+
+import com.amazonaws.services.s3.AmazonS3;
+import org.duracloud.s3storage.S3StorageProvider;
+import org.duracloud.storage.domain.StorageProviderType;
+
+/**
+ * Direct access to the S3 API of a store which is reached through it (Amazon
+ * S3 or Swift), for operations which the StorageProvider interface does not
+ * offer, such as multipart uploads.
+ *
+ * Calls made through the client are rate limited along with the store's
+ * storage providers, but not audited: callers are responsible for recording
+ * the changes they make.
+ *
+ * @author Daniel Bernstein
+ */
+public class S3StoreClient {
+
+    private StorageProviderType providerType;
+    private String accessKey;
+    private String location;
+    private AmazonS3 client;
+    private S3StorageProvider provider;
+
+    /**
+     * @param providerType the type of the store
+     * @param accessKey    the access key with which the client signs requests
+     * @param location     the region or endpoint of the store; null for the
+     *                     provider's default
+     * @param client       the S3 client of the store
+     * @param provider     the store's provider, which maps spaces to buckets
+     */
+    public S3StoreClient(StorageProviderType providerType,
+                         String accessKey,
+                         String location,
+                         AmazonS3 client,
+                         S3StorageProvider provider) {
+        this.providerType = providerType;
+        this.accessKey = accessKey;
+        this.location = location;
+        this.client = client;
+        this.provider = provider;
+    }
+
+    /**
+     * Indicates whether content can be copied from this store to the other
+     * within the provider (CopyObject), without passing through the caller:
+     * both stores must be of the same type, in the same region or at the same
+     * endpoint, and reached with the same access key, so that the
+     * destination's credentials can read the source.
+     *
+     * @param dest
+     * @return true if the destination can copy content from this store
+     */
+    public boolean isCopyableTo(S3StoreClient dest) {
+        return providerType.equals(dest.providerType) &&
+               accessKey != null && accessKey.equals(dest.accessKey) &&
+               Objects.equals(location, dest.location);
+    }
+
+    public StorageProviderType getProviderType() {
+        return providerType;
+    }
+
+    public AmazonS3 getClient() {
+        return client;
+    }
+
+    /**
+     * @param otherClient
+     * @return a client for the same store which makes its calls through the
+     * given S3 client, for example one which is rate limited
+     */
+    public S3StoreClient withClient(AmazonS3 otherClient) {
+        return new S3StoreClient(providerType, accessKey, location, otherClient, provider);
+    }
+
+    /**
+     * @param spaceId
+     * @return the name of the bucket holding the space
+     */
+    public String getBucketName(String spaceId) {
+        return provider.getBucketName(spaceId);
+    }
+}
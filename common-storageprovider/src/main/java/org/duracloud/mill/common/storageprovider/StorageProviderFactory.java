@@ -7,26 +7,103 @@
  */
 package org.duracloud.mill.common.storageprovider;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.s3.AmazonS3;
+import org.apache.commons.lang3.StringUtils;
 import org.duracloud.audit.provider.AuditStorageProvider;
 import org.duracloud.common.queue.TaskQueue;
 import org.duracloud.common.util.UserUtil;
 import org.duracloud.glacierstorage.GlacierStorageProvider;
 import org.duracloud.mill.credentials.StorageProviderCredentials;
 import org.duracloud.mill.util.SimpleUserUtil;
+import org.duracloud.s3storage.S3ProviderUtil;
 import org.duracloud.s3storage.S3StorageProvider;
 import org.duracloud.snapshotstorage.ChronopolisStorageProvider;
+import org.duracloud.storage.domain.StorageAccount.OPTS;
 import org.duracloud.storage.domain.StorageProviderType;
 import org.duracloud.storage.provider.StorageProvider;
 import org.duracloud.swiftstorage.SwiftStorageProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * The class knows how to create a <code>StorageProvider</code> based on a set of credentials.
  *
+ * Each StorageProvider holds its own HTTP client and connection pool. When
+ * created with a cache size the factory hands out a shared StorageProvider
+ * per account and store rather than a new one per call, so that connections
+ * are reused across tasks. A cached provider is replaced as soon as the
+ * credentials presented for its store change, and is dropped once it has been
+ * idle for the idle timeout or when the cache is full and it is the least
+ * recently used. S3 clients (see {@link #getS3StoreClient}) are cached in the
+ * same way.
+ *
+ * Cached providers and S3 clients are built on the S3 client which
+ * {@link S3ProviderUtil} keeps for each set of credentials. That client is
+ * shared with every other user of the same credentials, so dropping a cached
+ * provider never shuts it down.
+ *
  * @author Daniel Bernstein
  * Date: Nov 6, 2013
  */
 public class StorageProviderFactory {
 
+    private static Logger log = LoggerFactory.getLogger(StorageProviderFactory.class);
+
+    public static final int DEFAULT_MAX_CACHED_PROVIDERS = 100;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 15 * 60 * 1000;
+
+    /*
+     * How often, at most, idle providers are looked for when the cache is not
+     * full.
+     */
+    private static final long EVICTION_INTERVAL_MS = 60 * 1000;
+
+    private int maxCachedProviders;
+    private long idleTimeoutMs;
+    private ConcurrentMap<String, CachedProvider> cache = new ConcurrentHashMap<>();
+    private ConcurrentMap<String, CachedS3StoreClient> s3Clients = new ConcurrentHashMap<>();
+    private AtomicLong nextEviction = new AtomicLong();
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong invalidations = new AtomicLong();
+    private AtomicLong evictions = new AtomicLong();
+    private UserUtil userUtil = new SimpleUserUtil();
+    private StorageProviderRateLimiter rateLimiter;
+
+    /**
+     * Creates a factory which creates a new StorageProvider on every call.
+     */
+    public StorageProviderFactory() {
+        this(0, 0);
+    }
+
+    /**
+     * @param maxCachedProviders the most StorageProviders to keep; 0 disables
+     *                           caching
+     * @param idleTimeoutMs      how long an unused StorageProvider is kept
+     */
+    public StorageProviderFactory(int maxCachedProviders, long idleTimeoutMs) {
+        this.maxCachedProviders = maxCachedProviders;
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * @param rateLimiter limits the calls made by the StorageProviders this
+     *                    factory creates
+     */
+    public void setRateLimiter(StorageProviderRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
     /**
      * Creates a StorageProvider which captures events and passes them to the
      * audit queue.
@@ -39,8 +116,7 @@ public class StorageProviderFactory {
     public StorageProvider createWithAudit(StorageProviderCredentials credentials,
                                            String accountSubdomain,
                                            TaskQueue auditQueue) {
-        UserUtil userUtil = new SimpleUserUtil();
-        StorageProvider storageprovider = create(credentials);
+        StorageProvider storageprovider = create(credentials, accountSubdomain);
         StorageProvider auditProvider =
             new AuditStorageProvider(storageprovider,
                                      accountSubdomain,
@@ -52,12 +128,68 @@ public class StorageProviderFactory {
     }
 
     /**
-     * Creates a StorageProvider
+     * Creates a StorageProvider, or returns the cached one for the store if
+     * caching is enabled.
      *
      * @param credentials
      * @return
      */
     public StorageProvider create(StorageProviderCredentials credentials) {
+        return create(credentials, null);
+    }
+
+    /**
+     * Creates a StorageProvider, or returns the cached one for the store if
+     * caching is enabled, whose calls count against the rate limit of the
+     * given account.
+     *
+     * @param credentials
+     * @param accountSubdomain
+     * @return
+     */
+    public StorageProvider create(StorageProviderCredentials credentials, String accountSubdomain) {
+        StorageProvider provider = getProvider(credentials, accountSubdomain);
+        if (rateLimiter != null) {
+            provider = rateLimiter.wrap(provider, credentials, accountSubdomain);
+        }
+        return provider;
+    }
+
+    private StorageProvider getProvider(StorageProviderCredentials credentials, String accountSubdomain) {
+        if (maxCachedProviders <= 0) {
+            return createProvider(credentials);
+        }
+
+        String key = getKey(credentials, accountSubdomain);
+        String fingerprint = fingerprint(credentials);
+        CachedProvider cached = cache.compute(key, (k, existing) -> {
+            CachedProvider entry = existing;
+            if (existing != null && existing.fingerprint.equals(fingerprint)) {
+                hits.incrementAndGet();
+            } else {
+                if (existing != null) {
+                    log.info("credentials changed for {}: replacing cached storage provider", k);
+                    invalidations.incrementAndGet();
+                }
+                misses.incrementAndGet();
+                entry = new CachedProvider(fingerprint, createProvider(credentials, getS3Client(credentials)));
+            }
+            entry.lastAccess = System.currentTimeMillis();
+            return entry;
+        });
+
+        evict();
+        return cached.provider;
+    }
+
+    /**
+     * Creates a new StorageProvider, whose S3 client is shared with others
+     * created with the same credentials.
+     *
+     * @param credentials
+     * @return
+     */
+    protected StorageProvider createProvider(StorageProviderCredentials credentials) {
 
         StorageProviderType storageProviderType = credentials.getProviderType();
 
@@ -82,4 +214,300 @@ public class StorageProviderFactory {
                                    + " is not a supported storage provider type");
     }
 
+    /**
+     * Creates a new StorageProvider on the given S3 client.
+     *
+     * @param credentials
+     * @param client      returned by {@link #getS3Client}
+     * @return
+     */
+    protected StorageProvider createProvider(StorageProviderCredentials credentials, AmazonS3 client) {
+        StorageProviderType storageProviderType = credentials.getProviderType();
+
+        if (storageProviderType.equals(StorageProviderType.AMAZON_S3)) {
+            return new S3StorageProvider(client, credentials.getAccessKey(), credentials.getOptions());
+        } else if (storageProviderType.equals(StorageProviderType.AMAZON_GLACIER)) {
+            return new GlacierStorageProvider(client, credentials.getAccessKey());
+        } else if (storageProviderType.equals(StorageProviderType.CHRONOPOLIS)) {
+            return new ChronopolisStorageProvider(client, credentials.getAccessKey(), credentials.getOptions());
+        } else if (storageProviderType.equals(StorageProviderType.SWIFT_S3)) {
+            return new SwiftStorageProvider(client, credentials.getAccessKey());
+        }
+        throw new RuntimeException(storageProviderType
+                                   + " is not a supported storage provider type");
+    }
+
+    /**
+     * Returns the S3 client which the storage providers themselves use for
+     * the credentials: {@link S3ProviderUtil} creates one for each set of
+     * credentials and shares it, so it must not be shut down.
+     *
+     * @param credentials
+     * @return
+     */
+    protected AmazonS3 getS3Client(StorageProviderCredentials credentials) {
+        return S3ProviderUtil.getAmazonS3Client(credentials.getAccessKey(),
+                                                credentials.getSecretKey(),
+                                                credentials.getOptions());
+    }
+
+    /**
+     * Returns a client for the S3 API of the store, if it is reached through
+     * it.
+     *
+     * @param credentials
+     * @return the client, or null if the store is not reached through the S3
+     * API
+     */
+    public S3StoreClient getS3StoreClient(StorageProviderCredentials credentials) {
+        return getS3StoreClient(credentials, null);
+    }
+
+    /**
+     * Returns a client for the S3 API of the store, if it is reached through
+     * it, whose calls count against the rate limit of the given account.
+     * Clients are cached like StorageProviders, since each holds its own
+     * connection pool.
+     *
+     * @param credentials
+     * @param accountSubdomain
+     * @return the client, or null if the store is not reached through the S3
+     * API
+     */
+    public S3StoreClient getS3StoreClient(StorageProviderCredentials credentials, String accountSubdomain) {
+        StorageProviderType type = credentials.getProviderType();
+        if (!type.equals(StorageProviderType.AMAZON_S3) && !type.equals(StorageProviderType.SWIFT_S3)) {
+            return null;
+        }
+
+        S3StoreClient client = getCachedS3StoreClient(credentials, accountSubdomain);
+        if (rateLimiter != null) {
+            client = client.withClient(rateLimiter.wrap(client.getClient(), credentials, accountSubdomain));
+        }
+        return client;
+    }
+
+    private S3StoreClient getCachedS3StoreClient(StorageProviderCredentials credentials, String accountSubdomain) {
+        if (maxCachedProviders <= 0) {
+            return createS3StoreClient(credentials, getS3Client(credentials));
+        }
+
+        String key = getKey(credentials, accountSubdomain);
+        String fingerprint = fingerprint(credentials);
+        CachedS3StoreClient cached = s3Clients.compute(key, (k, existing) -> {
+            CachedS3StoreClient entry = existing;
+            if (existing == null || !existing.fingerprint.equals(fingerprint)) {
+                entry = new CachedS3StoreClient(fingerprint,
+                                                createS3StoreClient(credentials, getS3Client(credentials)));
+            }
+            entry.lastAccess = System.currentTimeMillis();
+            return entry;
+        });
+
+        evict();
+        return cached.client;
+    }
+
+    /**
+     * Creates a new S3StoreClient for an Amazon S3 or Swift store.
+     *
+     * @param credentials
+     * @param client      the S3 client of the store
+     * @return
+     */
+    protected S3StoreClient createS3StoreClient(StorageProviderCredentials credentials, AmazonS3 client) {
+        S3StorageProvider provider;
+        if (credentials.getProviderType().equals(StorageProviderType.SWIFT_S3)) {
+            provider = new SwiftStorageProvider(client, credentials.getAccessKey());
+        } else {
+            provider = new S3StorageProvider(client, credentials.getAccessKey(), credentials.getOptions());
+        }
+        return new S3StoreClient(credentials.getProviderType(),
+                                 credentials.getAccessKey(),
+                                 getLocation(credentials),
+                                 client,
+                                 provider);
+    }
+
+    /*
+     * Returns the region of an Amazon S3 store or the endpoint of a Swift
+     * store, or null if the provider's default is used.
+     */
+    private String getLocation(StorageProviderCredentials credentials) {
+        Map<String, String> options = credentials.getOptions();
+        if (options == null) {
+            return null;
+        }
+
+        String location;
+        if (credentials.getProviderType().equals(StorageProviderType.SWIFT_S3)) {
+            location = options.get(OPTS.SWIFT_S3_ENDPOINT.name());
+        } else {
+            location = options.get(OPTS.AWS_REGION.name());
+        }
+        return StringUtils.isBlank(location) ? null : location;
+    }
+
+    /*
+     * The cache key: a store is cached separately for each account, since
+     * each account may present its own credentials for it.
+     */
+    private String getKey(StorageProviderCredentials credentials, String accountSubdomain) {
+        return accountSubdomain + ":" + credentials.getProviderType() + ":" + credentials.getProviderId();
+    }
+
+    /*
+     * Drops providers and S3 clients which have been idle for longer than the
+     * idle timeout and, while either cache is over its limit, the least
+     * recently used.
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        long next = nextEviction.get();
+        boolean full = cache.size() > maxCachedProviders || s3Clients.size() > maxCachedProviders;
+        long interval = Math.min(EVICTION_INTERVAL_MS, idleTimeoutMs);
+        if (!full && (now < next || !nextEviction.compareAndSet(next, now + interval))) {
+            return;
+        }
+
+        evictions.addAndGet(evict(cache, now));
+        evict(s3Clients, now);
+    }
+
+    /*
+     * Returns the number of entries dropped.
+     */
+    private int evict(ConcurrentMap<String, ? extends CachedEntry> entries, long now) {
+        int evicted = 0;
+        for (Map.Entry<String, ? extends CachedEntry> entry : entries.entrySet()) {
+            //removed only if it has not been replaced in the meantime
+            if (now - entry.getValue().lastAccess > idleTimeoutMs &&
+                entries.remove(entry.getKey(), entry.getValue())) {
+                evicted++;
+            }
+        }
+
+        while (entries.size() > maxCachedProviders) {
+            Map.Entry<String, ? extends CachedEntry> eldest = null;
+            long eldestAccess = Long.MAX_VALUE;
+            for (Map.Entry<String, ? extends CachedEntry> entry : entries.entrySet()) {
+                if (entry.getValue().lastAccess < eldestAccess) {
+                    eldest = entry;
+                    eldestAccess = entry.getValue().lastAccess;
+                }
+            }
+            if (eldest == null || !entries.remove(eldest.getKey(), eldest.getValue())) {
+                break;
+            }
+            evicted++;
+        }
+        return evicted;
+    }
+
+    /*
+     * A digest of everything used to build the provider, so that changed
+     * credentials are noticed without keeping the secret in the cache key.
+     */
+    private String fingerprint(StorageProviderCredentials credentials) {
+        StringBuilder value = new StringBuilder();
+        value.append(credentials.getAccessKey()).append('\n')
+             .append(credentials.getSecretKey()).append('\n');
+        if (credentials.getOptions() != null) {
+            value.append(new TreeMap<>(credentials.getOptions()));
+        }
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                                         .digest(value.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the number of calls served by a cached provider
+     */
+    public long getCacheHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of calls which created a provider while caching is
+     * enabled
+     */
+    public long getCacheMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the fraction of calls served by a cached provider, or 0 before
+     * any call
+     */
+    public double getCacheHitRatio() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return the number of cached providers replaced because their
+     * credentials changed
+     */
+    public long getCacheInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * @return the number of cached providers dropped because they were idle
+     * or the cache was full
+     */
+    public long getCacheEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of providers currently cached
+     */
+    public int getCachedCount() {
+        return cache.size();
+    }
+
+    /**
+     * @return the number of S3 clients currently cached
+     */
+    public int getCachedS3ClientCount() {
+        return s3Clients.size();
+    }
+
+    private static class CachedEntry {
+        protected String fingerprint;
+        protected volatile long lastAccess = System.currentTimeMillis();
+
+        CachedEntry(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private static class CachedS3StoreClient extends CachedEntry {
+        private S3StoreClient client;
+
+        CachedS3StoreClient(String fingerprint, S3StoreClient client) {
+            super(fingerprint);
+            this.client = client;
+        }
+    }
+
+    private static class CachedProvider extends CachedEntry {
+        private StorageProvider provider;
+
+        CachedProvider(String fingerprint, StorageProvider provider) {
+            super(fingerprint);
+            this.provider = provider;
+        }
+    }
 }
@@ -0,0 +1,233 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.common.storageprovider;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+import com.amazonaws.services.s3.AmazonS3;
+import org.apache.commons.lang3.StringUtils;
+import org.duracloud.mill.credentials.StorageProviderCredentials;
+import org.duracloud.storage.domain.StorageAccount.OPTS;
+import org.duracloud.storage.domain.StorageProviderType;
+import org.duracloud.storage.provider.StorageProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the rate of calls made to storage providers, so that a large
+ * duplication or bit integrity run does not get the whole fleet throttled by
+ * a provider.
+ *
+ * Limits are set per storage provider type and apply to each location of
+ * that type (every Swift endpoint and every Amazon S3 region has its own
+ * limit), and optionally to each account separately. Calls which the provider
+ * throttles lower the rate of their {@link TokenBucket} until calls succeed
+ * again.
+ *
+ * @author Daniel Bernstein
+ */
+public class StorageProviderRateLimiter {
+
+    private static Logger log = LoggerFactory.getLogger(StorageProviderRateLimiter.class);
+
+    private static final String DEFAULT_LOCATION = "default";
+
+    /*
+     * Fragments of the messages and error codes with which S3 and Swift
+     * report throttling.
+     */
+    private static final String[] THROTTLE_MARKERS = {
+        "SlowDown", "Throttl", "TooManyRequests", "Too Many Requests", "Rate exceeded",
+        "RequestLimitExceeded", "Status Code: 429", "Status Code: 503"
+    };
+
+    private Map<StorageProviderType, Double> limits;
+    private boolean perAccount;
+    private ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private BiConsumer<String, TokenBucket> bucketListener = (key, bucket) -> { };
+
+    /**
+     * @param limits     permits per second by storage provider type; types
+     *                   which are not listed are not limited
+     * @param perAccount whether each account gets its own limit
+     */
+    public StorageProviderRateLimiter(Map<StorageProviderType, Double> limits, boolean perAccount) {
+        this.limits = limits.isEmpty() ? Collections.emptyMap() : new EnumMap<>(limits);
+        this.perAccount = perAccount;
+    }
+
+    /**
+     * @param listener called with the key and bucket of each new limit, for
+     *                 example to publish its state as metrics
+     */
+    public void setBucketListener(BiConsumer<String, TokenBucket> listener) {
+        this.bucketListener = listener;
+    }
+
+    /**
+     * @return true if any storage provider type is limited
+     */
+    public boolean isEnabled() {
+        return !limits.isEmpty();
+    }
+
+    /**
+     * Wraps a storage provider so that each of its calls first waits for the
+     * limit which applies to it.
+     *
+     * @param provider    the storage provider
+     * @param credentials the credentials the storage provider was created
+     *                    with
+     * @param account     the account subdomain; may be null
+     * @return the wrapped storage provider, or the provider itself if its
+     * type is not limited
+     */
+    public StorageProvider wrap(StorageProvider provider,
+                                StorageProviderCredentials credentials,
+                                String account) {
+        return wrap(StorageProvider.class, provider, credentials, account);
+    }
+
+    /**
+     * Wraps the S3 client of a store so that each of its calls first waits
+     * for the limit which applies to the store, shared with the store's
+     * storage providers.
+     *
+     * @param client      the S3 client
+     * @param credentials the credentials the client was created with
+     * @param account     the account subdomain; may be null
+     * @return the wrapped client, or the client itself if its store's type is
+     * not limited
+     */
+    public AmazonS3 wrap(AmazonS3 client, StorageProviderCredentials credentials, String account) {
+        return wrap(AmazonS3.class, client, credentials, account);
+    }
+
+    private <T> T wrap(Class<T> type, T target, StorageProviderCredentials credentials, String account) {
+        Double limit = limits.get(credentials.getProviderType());
+        if (limit == null) {
+            return target;
+        }
+
+        String key = getKey(credentials, account);
+        TokenBucket bucket = buckets.computeIfAbsent(key, k -> {
+            log.info("limiting calls to {} to {} per second", k, limit);
+            TokenBucket newBucket = new TokenBucket(limit);
+            bucketListener.accept(k, newBucket);
+            return newBucket;
+        });
+
+        InvocationHandler handler = (proxy, method, args) -> invoke(target, bucket, key, method, args);
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+
+    private Object invoke(Object target, TokenBucket bucket, String key, Method method, Object[] args)
+        throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return method.invoke(target, args);
+        }
+
+        try {
+            bucket.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted waiting for the rate limit of " + key, e);
+        }
+
+        try {
+            Object result = method.invoke(target, args);
+            bucket.succeeded();
+            return result;
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (isThrottled(cause)) {
+                bucket.throttled();
+                log.warn("{} throttled by {}: lowering rate to {} per second",
+                         method.getName(), key, bucket.getRate());
+            }
+            throw cause;
+        }
+    }
+
+    /*
+     * The bucket key: the provider type, the store's location (the endpoint
+     * of a Swift store, the region of an Amazon S3 store) and, if limited
+     * per account, the account.
+     */
+    private String getKey(StorageProviderCredentials credentials, String account) {
+        String location = null;
+        Map<String, String> options = credentials.getOptions();
+        if (options != null) {
+            if (credentials.getProviderType().equals(StorageProviderType.SWIFT_S3)) {
+                location = options.get(OPTS.SWIFT_S3_ENDPOINT.name());
+            } else {
+                location = options.get(OPTS.AWS_REGION.name());
+            }
+        }
+
+        StringBuilder key = new StringBuilder(credentials.getProviderType().name());
+        key.append("/").append(StringUtils.isBlank(location) ? DEFAULT_LOCATION : location);
+        if (perAccount && account != null) {
+            key.append("/").append(account);
+        }
+        return key.toString();
+    }
+
+    /**
+     * @param e
+     * @return true if the exception or one of its causes reports that the
+     * provider throttled the call
+     */
+    static boolean isThrottled(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            String message = t.getMessage();
+            if (message != null) {
+                for (String marker : THROTTLE_MARKERS) {
+                    if (message.contains(marker)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a comma separated list of TYPE:permits-per-second pairs, for
+     * example AMAZON_S3:500,SWIFT_S3:100.
+     *
+     * @param config the limits; may be blank
+     * @return the limits by storage provider type
+     */
+    public static Map<StorageProviderType, Double> parseLimits(String config) {
+        Map<StorageProviderType, Double> limits = new EnumMap<>(StorageProviderType.class);
+        if (StringUtils.isBlank(config)) {
+            return limits;
+        }
+
+        for (String entry : config.split(",")) {
+            String[] pair = entry.trim().split(":");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException(
+                    "storage provider rate limit entry must be of the form TYPE:permits-per-second: " + entry);
+            }
+            StorageProviderType type = StorageProviderType.valueOf(pair[0].trim().toUpperCase());
+            limits.put(type, Double.valueOf(pair[1].trim()));
+        }
+        return limits;
+    }
+}
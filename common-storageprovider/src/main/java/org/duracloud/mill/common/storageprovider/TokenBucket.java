@@ -0,0 +1,172 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.common.storageprovider;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A token bucket which limits calls to a rate which adapts to throttling.
+ *
+ * The bucket refills at the current rate and holds at most one second's
+ * worth of tokens at the configured rate, so short bursts are allowed. Each
+ * throttled call halves the current rate (down to a floor of 1% of the
+ * configured rate); while calls succeed the rate climbs back by 10% of the
+ * configured rate per second.
+ *
+ * A caller which finds the bucket empty reserves the next token and sleeps
+ * until it is due, so waiting callers are served in the order they arrived.
+ *
+ * @author Daniel Bernstein
+ */
+public class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private double maxRate;
+    private double minRate;
+    private double capacity;
+
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+    private long lastRateChange;
+
+    private AtomicLong acquired = new AtomicLong();
+    private AtomicLong throttled = new AtomicLong();
+    private AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * @param permitsPerSecond the configured rate
+     */
+    public TokenBucket(double permitsPerSecond) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permits per second must be greater than 0: " + permitsPerSecond);
+        }
+        this.maxRate = permitsPerSecond;
+        this.minRate = permitsPerSecond / 100;
+        this.capacity = Math.max(1, permitsPerSecond);
+        this.rate = permitsPerSecond;
+        this.tokens = this.capacity;
+        this.lastRefill = nanoTime();
+        this.lastRateChange = this.lastRefill;
+    }
+
+    /**
+     * Takes a token, waiting for one if the bucket is empty.
+     *
+     * @throws InterruptedException
+     */
+    public void acquire() throws InterruptedException {
+        long wait;
+        lock.lock();
+        try {
+            refill(nanoTime());
+            tokens--;
+            wait = tokens >= 0 ? 0 : (long) (-tokens / rate * NANOS_PER_SECOND);
+        } finally {
+            lock.unlock();
+        }
+
+        acquired.incrementAndGet();
+        if (wait > 0) {
+            waitNanos.addAndGet(wait);
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Lowers the rate after the provider has throttled a call.
+     */
+    public void throttled() {
+        lock.lock();
+        try {
+            long now = nanoTime();
+            refill(now);
+            rate = Math.max(minRate, rate / 2);
+            lastRateChange = now;
+            throttled.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Raises a lowered rate back toward the configured rate once a second
+     * has passed since it last changed.
+     */
+    public void succeeded() {
+        lock.lock();
+        try {
+            if (rate >= maxRate) {
+                return;
+            }
+
+            long now = nanoTime();
+            if (now - lastRateChange >= NANOS_PER_SECOND) {
+                refill(now);
+                rate = Math.min(maxRate, rate + maxRate / 10);
+                lastRateChange = now;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(capacity, tokens + (double) (now - lastRefill) / NANOS_PER_SECOND * rate);
+        lastRefill = now;
+    }
+
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @return the configured rate in permits per second
+     */
+    public double getMaxRate() {
+        return maxRate;
+    }
+
+    /**
+     * @return the current rate in permits per second
+     */
+    public double getRate() {
+        lock.lock();
+        try {
+            return rate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of tokens taken
+     */
+    public long getAcquiredCount() {
+        return acquired.get();
+    }
+
+    /**
+     * @return the number of throttled calls reported
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * @return the total time callers have waited for a token, in seconds
+     */
+    public double getWaitSeconds() {
+        return (double) waitNanos.get() / NANOS_PER_SECOND;
+    }
+}
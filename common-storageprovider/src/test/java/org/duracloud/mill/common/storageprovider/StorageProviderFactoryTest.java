@@ -0,0 +1,194 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.common.storageprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.s3.AmazonS3;
+import org.duracloud.mill.credentials.StorageProviderCredentials;
+import org.duracloud.storage.domain.StorageProviderType;
+import org.duracloud.storage.provider.StorageProvider;
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+/**
+ * @author Daniel Bernstein
+ */
+public class StorageProviderFactoryTest {
+
+    private int created = 0;
+    private List<AmazonS3> shutDown = new ArrayList<>();
+
+    private StorageProviderFactory createFactory(int maxCachedProviders, long idleTimeoutMs) {
+        return new StorageProviderFactory(maxCachedProviders, idleTimeoutMs) {
+            @Override
+            protected StorageProvider createProvider(StorageProviderCredentials credentials) {
+                created++;
+                return EasyMock.createMock(StorageProvider.class);
+            }
+
+            @Override
+            protected StorageProvider createProvider(StorageProviderCredentials credentials, AmazonS3 client) {
+                return createProvider(credentials);
+            }
+
+            @Override
+            protected AmazonS3 getS3Client(StorageProviderCredentials credentials) {
+                return createClient();
+            }
+
+            @Override
+            protected S3StoreClient createS3StoreClient(StorageProviderCredentials credentials, AmazonS3 client) {
+                created++;
+                return new S3StoreClient(credentials.getProviderType(), credentials.getAccessKey(), null,
+                                         client, null);
+            }
+        };
+    }
+
+    /*
+     * A client which records its shutdown
+     */
+    private AmazonS3 createClient() {
+        return (AmazonS3) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {AmazonS3.class},
+            (proxy, method, args) -> {
+                if (method.getName().equals("shutdown")) {
+                    shutDown.add((AmazonS3) proxy);
+                }
+                return null;
+            });
+    }
+
+    private StorageProviderCredentials credentials(String providerId, String secretKey) {
+        Map<String, String> options = new HashMap<>();
+        options.put("region", "us-east-1");
+        return new StorageProviderCredentials(providerId, "access", secretKey,
+                                              StorageProviderType.AMAZON_S3, options, true);
+    }
+
+    @Test
+    public void testUncached() {
+        StorageProviderFactory factory = createFactory(0, 0);
+        assertNotSame(factory.create(credentials("0", "secret")),
+                      factory.create(credentials("0", "secret")));
+        assertEquals(2, created);
+        assertEquals(0, factory.getCachedCount());
+    }
+
+    @Test
+    public void testCached() {
+        StorageProviderFactory factory = createFactory(10, 60000);
+        StorageProvider provider = factory.create(credentials("0", "secret"));
+        assertSame(provider, factory.create(credentials("0", "secret")));
+        assertNotSame(provider, factory.create(credentials("1", "secret")));
+
+        assertEquals(2, created);
+        assertEquals(1, factory.getCacheHits());
+        assertEquals(2, factory.getCacheMisses());
+        assertEquals(2, factory.getCachedCount());
+    }
+
+    @Test
+    public void testCredentialsChanged() {
+        StorageProviderFactory factory = createFactory(10, 60000);
+        StorageProvider provider = factory.create(credentials("0", "secret"));
+        StorageProvider rotated = factory.create(credentials("0", "rotated"));
+        assertNotSame(provider, rotated);
+        assertSame(rotated, factory.create(credentials("0", "rotated")));
+
+        StorageProviderCredentials moved = credentials("0", "rotated");
+        moved.getOptions().put("region", "us-west-2");
+        assertNotSame(rotated, factory.create(moved));
+
+        assertEquals(3, created);
+        assertEquals(2, factory.getCacheInvalidations());
+        assertEquals(1, factory.getCachedCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        StorageProviderFactory factory = createFactory(2, 60000);
+        StorageProvider first = factory.create(credentials("0", "secret"));
+        Thread.sleep(5);
+        factory.create(credentials("1", "secret"));
+        Thread.sleep(5);
+        assertSame(first, factory.create(credentials("0", "secret")));
+        Thread.sleep(5);
+        factory.create(credentials("2", "secret"));
+
+        assertEquals(2, factory.getCachedCount());
+        assertEquals(1, factory.getCacheEvictions());
+        assertSame(first, factory.create(credentials("0", "secret")));
+        assertEquals(3, created);
+    }
+
+    @Test
+    public void testIdleEvicted() throws Exception {
+        StorageProviderFactory factory = createFactory(10, 20);
+        StorageProvider provider = factory.create(credentials("0", "secret"));
+        Thread.sleep(50);
+        factory.create(credentials("1", "secret"));
+
+        assertEquals(1, factory.getCachedCount());
+        assertEquals(1, factory.getCacheEvictions());
+        assertNotSame(provider, factory.create(credentials("0", "secret")));
+    }
+
+    @Test
+    public void testS3ClientsCached() throws Exception {
+        StorageProviderFactory factory = createFactory(2, 60000);
+        S3StoreClient first = factory.getS3StoreClient(credentials("0", "secret"));
+        assertSame(first, factory.getS3StoreClient(credentials("0", "secret")));
+        Thread.sleep(5);
+        factory.getS3StoreClient(credentials("1", "secret"));
+        Thread.sleep(5);
+        factory.getS3StoreClient(credentials("2", "secret"));
+
+        assertEquals(2, factory.getCachedS3ClientCount());
+        assertNotSame(first, factory.getS3StoreClient(credentials("0", "secret")));
+        assertEquals(4, created);
+    }
+
+    @Test
+    public void testAccountsCachedSeparately() {
+        StorageProviderFactory factory = createFactory(10, 60000);
+        StorageProvider provider = factory.create(credentials("0", "secret"), "account-a");
+        assertSame(provider, factory.create(credentials("0", "secret"), "account-a"));
+        assertNotSame(provider, factory.create(credentials("0", "other"), "account-b"));
+        assertSame(provider, factory.create(credentials("0", "secret"), "account-a"));
+
+        assertEquals(2, created);
+        assertEquals(0, factory.getCacheInvalidations());
+        assertEquals(2, factory.getCachedCount());
+    }
+
+    @Test
+    public void testDroppedClientNotShutDown() throws Exception {
+        StorageProviderFactory factory = createFactory(10, 20);
+        factory.create(credentials("0", "secret"));
+        factory.getS3StoreClient(credentials("0", "secret"));
+        factory.create(credentials("0", "rotated"));
+        factory.getS3StoreClient(credentials("0", "rotated"));
+        Thread.sleep(50);
+        factory.create(credentials("1", "secret"));
+
+        //the clients are shared with other users of the same credentials
+        assertEquals(1, factory.getCacheInvalidations());
+        assertEquals(1, factory.getCacheEvictions());
+        assertTrue(shutDown.isEmpty());
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.common.storageprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.amazonaws.services.s3.AmazonS3;
+import org.duracloud.mill.credentials.StorageProviderCredentials;
+import org.duracloud.storage.domain.StorageAccount.OPTS;
+import org.duracloud.storage.domain.StorageProviderType;
+import org.duracloud.storage.provider.StorageProvider;
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+/**
+ * @author Daniel Bernstein
+ */
+public class StorageProviderRateLimiterTest {
+
+    private Map<String, TokenBucket> buckets = new HashMap<>();
+
+    private StorageProviderRateLimiter createLimiter(String limits, boolean perAccount) {
+        StorageProviderRateLimiter limiter =
+            new StorageProviderRateLimiter(StorageProviderRateLimiter.parseLimits(limits), perAccount);
+        limiter.setBucketListener(buckets::put);
+        return limiter;
+    }
+
+    private StorageProviderCredentials credentials(StorageProviderType type, String location) {
+        Map<String, String> options = new HashMap<>();
+        if (location != null) {
+            OPTS option = type == StorageProviderType.SWIFT_S3 ? OPTS.SWIFT_S3_ENDPOINT : OPTS.AWS_REGION;
+            options.put(option.name(), location);
+        }
+        return new StorageProviderCredentials("1", "access", "secret", type, options, true);
+    }
+
+    @Test
+    public void testParseLimits() {
+        Map<StorageProviderType, Double> limits =
+            StorageProviderRateLimiter.parseLimits("AMAZON_S3:500, swift_s3:2.5");
+        assertEquals(2, limits.size());
+        assertEquals(500, limits.get(StorageProviderType.AMAZON_S3), 0);
+        assertEquals(2.5, limits.get(StorageProviderType.SWIFT_S3), 0);
+        assertTrue(StorageProviderRateLimiter.parseLimits(null).isEmpty());
+
+        try {
+            StorageProviderRateLimiter.parseLimits("AMAZON_S3");
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testUnlimitedTypeNotWrapped() {
+        StorageProvider provider = EasyMock.createMock(StorageProvider.class);
+        StorageProviderRateLimiter limiter = createLimiter("SWIFT_S3:100", false);
+        assertSame(provider, limiter.wrap(provider, credentials(StorageProviderType.AMAZON_S3, null), "account"));
+        assertFalse(createLimiter("", false).isEnabled());
+    }
+
+    @Test
+    public void testKeys() {
+        StorageProvider provider = EasyMock.createMock(StorageProvider.class);
+        StorageProviderRateLimiter limiter = createLimiter("AMAZON_S3:100,SWIFT_S3:100", true);
+        limiter.wrap(provider, credentials(StorageProviderType.AMAZON_S3, null), "a");
+        limiter.wrap(provider, credentials(StorageProviderType.AMAZON_S3, null), "b");
+        limiter.wrap(provider, credentials(StorageProviderType.AMAZON_S3, null), "a");
+        limiter.wrap(provider, credentials(StorageProviderType.AMAZON_S3, "us-west-2"), "a");
+        limiter.wrap(provider, credentials(StorageProviderType.SWIFT_S3, "https://swift.example.org"), "a");
+
+        assertEquals(4, buckets.size());
+        assertTrue(buckets.containsKey("AMAZON_S3/default/a"));
+        assertTrue(buckets.containsKey("AMAZON_S3/default/b"));
+        assertTrue(buckets.containsKey("AMAZON_S3/us-west-2/a"));
+        assertTrue(buckets.containsKey("SWIFT_S3/https://swift.example.org/a"));
+    }
+
+    @Test
+    public void testS3ClientSharesLimit() throws Exception {
+        StorageProvider provider = EasyMock.createMock(StorageProvider.class);
+        AmazonS3 client = EasyMock.createMock(AmazonS3.class);
+        EasyMock.expect(client.doesBucketExistV2("bucket")).andReturn(true);
+        EasyMock.replay(provider, client);
+
+        StorageProviderRateLimiter limiter = createLimiter("AMAZON_S3:20", false);
+        StorageProviderCredentials credentials = credentials(StorageProviderType.AMAZON_S3, null);
+        limiter.wrap(provider, credentials, null);
+        assertTrue(limiter.wrap(client, credentials, null).doesBucketExistV2("bucket"));
+
+        assertEquals(1, buckets.size());
+        assertEquals(1, buckets.get("AMAZON_S3/default").getAcquiredCount());
+        assertSame(client, createLimiter("SWIFT_S3:20", false).wrap(client, credentials, null));
+        EasyMock.verify(provider, client);
+    }
+
+    @Test
+    public void testCallsLimited() throws Exception {
+        StorageProvider provider = EasyMock.createMock(StorageProvider.class);
+        EasyMock.expect(provider.getSpaceProperties("space")).andReturn(new HashMap<>()).times(30);
+        EasyMock.replay(provider);
+
+        StorageProvider limited =
+            createLimiter("AMAZON_S3:20", false).wrap(provider, credentials(StorageProviderType.AMAZON_S3, null),
+                                                       null);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 30; i++) {
+            limited.getSpaceProperties("space");
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        // the first 20 calls use the burst, the other 10 are spaced 50ms apart
+        assertTrue("elapsed " + elapsed, elapsed >= 400);
+        TokenBucket bucket = buckets.get("AMAZON_S3/default");
+        assertEquals(30, bucket.getAcquiredCount());
+        assertTrue(bucket.getWaitSeconds() > 0);
+        EasyMock.verify(provider);
+    }
+
+    @Test
+    public void testThrottleLowersRate() throws Exception {
+        StorageProvider provider = EasyMock.createMock(StorageProvider.class);
+        EasyMock.expect(provider.getSpaceProperties("space"))
+                .andThrow(new RuntimeException("Please reduce your request rate. (Service: Amazon S3; " +
+                                               "Status Code: 503; Error Code: SlowDown)"));
+        EasyMock.expect(provider.getSpaceProperties("space")).andThrow(new RuntimeException("not found"));
+        EasyMock.replay(provider);
+
+        StorageProvider limited =
+            createLimiter("AMAZON_S3:100", false).wrap(provider, credentials(StorageProviderType.AMAZON_S3, null),
+                                                       null);
+        for (int i = 0; i < 2; i++) {
+            try {
+                limited.getSpaceProperties("space");
+                fail("expected RuntimeException");
+            } catch (RuntimeException e) {
+                // expected
+            }
+        }
+
+        TokenBucket bucket = buckets.get("AMAZON_S3/default");
+        assertEquals(1, bucket.getThrottledCount());
+        assertEquals(50, bucket.getRate(), 0);
+        assertEquals(100, bucket.getMaxRate(), 0);
+        EasyMock.verify(provider);
+    }
+
+    @Test
+    public void testRateRecovers() throws Exception {
+        long[] now = {0};
+        TokenBucket bucket = new TokenBucket(100) {
+            @Override
+            protected long nanoTime() {
+                return now[0];
+            }
+        };
+
+        for (int i = 0; i < 20; i++) {
+            bucket.throttled();
+        }
+        assertEquals(1, bucket.getRate(), 0);
+
+        bucket.succeeded();
+        assertEquals(1, bucket.getRate(), 0);
+        for (int i = 0; i < 20; i++) {
+            now[0] += 1000000000L;
+            bucket.succeeded();
+        }
+        assertEquals(100, bucket.getRate(), 0);
+    }
+}
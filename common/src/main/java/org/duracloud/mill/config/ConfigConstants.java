@@ -70,11 +70,44 @@ public class ConfigConstants {
     public static final String SWIFT_ENDPOINT = "swift.endpoint";
     public static final String SWIFT_SIGNER_TYPE = "swift.signerType";
 
+    /*
+     * CREDENTIALS CACHE
+     */
+    public static final String CREDENTIALS_CACHE_TTL = "credentials-cache-ttl";
+    public static final String CREDENTIALS_CACHE_NEGATIVE_TTL = "credentials-cache-negative-ttl";
+
     /*
      * WORKMAN
      */
 
     public static final String MAX_WORKERS = "max-workers";
+    public static final String PREFETCH_SIZE = "prefetch-size";
+    public static final String TASK_TYPE_MAX_WORKERS = "task-type-max-workers";
+    public static final String ADAPTIVE_CONCURRENCY = "adaptive-concurrency";
+    public static final String MIN_WORKERS = "min-workers";
+    public static final String WORKER_EXECUTOR = "worker-executor";
+    public static final String METRICS_PORT = "metrics-port";
+    public static final String METRICS_BIND_ADDRESS = "metrics-bind-address";
+    public static final String QUEUE_WEIGHTS = "queue-weights";
+    public static final String SHUTDOWN_GRACE_PERIOD = "shutdown-grace-period";
+    public static final String STORAGE_PROVIDER_CACHE_SIZE = "storage-provider-cache-size";
+    public static final String STORAGE_PROVIDER_IDLE_TIMEOUT = "storage-provider-idle-timeout";
+    public static final String STORAGE_PROVIDER_RATE_LIMITS = "storage-provider-rate-limits";
+    public static final String STORAGE_PROVIDER_RATE_LIMIT_PER_ACCOUNT = "storage-provider-rate-limit-per-account";
+    public static final String CIRCUIT_BREAKER_FAILURE_THRESHOLD = "circuit-breaker-failure-threshold";
+    public static final String CIRCUIT_BREAKER_OPEN_SECONDS = "circuit-breaker-open-seconds";
+    public static final String AUDIT_LOG_BATCH_SIZE = "audit-log-batch-size";
+    public static final String AUDIT_LOG_BATCH_WAIT = "audit-log-batch-wait";
+    public static final String MANIFEST_BATCH_SIZE = "manifest-batch-size";
+    public static final String MANIFEST_BATCH_WAIT = "manifest-batch-wait";
+    public static final String DUPLICATION_COALESCING_WINDOW = "duplication-coalescing-window";
+    public static final String DUPLICATION_STREAMING = "duplication-streaming";
+    public static final String DUPLICATION_MULTIPART_THRESHOLD = "duplication-multipart-threshold";
+    public static final String DUPLICATION_MULTIPART_PART_SIZE = "duplication-multipart-part-size";
+    public static final String DUPLICATION_MULTIPART_PARALLELISM = "duplication-multipart-parallelism";
+    public static final String DUPLICATION_SERVER_SIDE_COPY = "duplication-server-side-copy";
+    public static final String DUPLICATION_FAN_OUT = "duplication-fan-out";
+    public static final String DUPLICATION_SPACE_CACHE_TTL = "duplication-space-cache-ttl";
 
     /*
      * LOOPING BIT TASK PRODUCER
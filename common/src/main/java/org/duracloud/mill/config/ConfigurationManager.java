@@ -18,6 +18,9 @@ import org.duracloud.common.queue.QueueType;
  */
 public class ConfigurationManager {
 
+    public static final long DEFAULT_CREDENTIALS_CACHE_TTL_SECONDS = 300;
+    public static final long DEFAULT_CREDENTIALS_CACHE_NEGATIVE_TTL_SECONDS = 30;
+
     public String getAuditQueueName() {
         return System.getProperty(ConfigConstants.QUEUE_NAME_AUDIT);
     }
@@ -119,4 +122,28 @@ public class ConfigurationManager {
     public String getSubdomainDotDefaultDomain(String subdomain) {
         return subdomain + "." + getDefaultDomain();
     }
+
+    /**
+     * @return how long account and storage provider credentials are cached
+     */
+    public long getCredentialsCacheTtlMs() {
+        return getSeconds(ConfigConstants.CREDENTIALS_CACHE_TTL, DEFAULT_CREDENTIALS_CACHE_TTL_SECONDS) * 1000;
+    }
+
+    /**
+     * @return how long missing accounts and storage providers are cached
+     */
+    public long getCredentialsCacheNegativeTtlMs() {
+        return getSeconds(ConfigConstants.CREDENTIALS_CACHE_NEGATIVE_TTL,
+                          DEFAULT_CREDENTIALS_CACHE_NEGATIVE_TTL_SECONDS) * 1000;
+    }
+
+    private long getSeconds(String prop, long defaultValue) {
+        String value = System.getProperty(prop);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        } else {
+            return Long.valueOf(value.trim());
+        }
+    }
 }
@@ -0,0 +1,217 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.credentials;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A <code>CredentialsRepo</code> which remembers the answers of another
+ * repo for a while, so that the account database is not queried for every
+ * task.
+ *
+ * Answers are kept for the TTL. Accounts and storage providers which were
+ * not found are remembered for the (usually shorter) negative TTL; other
+ * failures are not remembered at all. Concurrent requests for the same
+ * answer wait on a single lookup rather than each querying the repo.
+ *
+ * @author Daniel Bernstein
+ */
+public class CachingCredentialsRepo implements CredentialsRepo {
+
+    private static final String ACTIVE_ACCOUNTS_KEY = "";
+
+    private CredentialsRepo repo;
+    private long ttlMs;
+    private long negativeTtlMs;
+
+    private ConcurrentMap<String, Entry<StorageProviderCredentials>> storageProviderCredentials =
+        new ConcurrentHashMap<>();
+    private ConcurrentMap<String, Entry<AccountCredentials>> accountCredentials = new ConcurrentHashMap<>();
+    private ConcurrentMap<String, Entry<Boolean>> accountActive = new ConcurrentHashMap<>();
+    private ConcurrentMap<String, Entry<List<String>>> activeAccounts = new ConcurrentHashMap<>();
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param repo          the repo to cache
+     * @param ttlMs         how long answers are kept; 0 disables caching
+     * @param negativeTtlMs how long "not found" answers are kept
+     */
+    public CachingCredentialsRepo(CredentialsRepo repo, long ttlMs, long negativeTtlMs) {
+        this.repo = repo;
+        this.ttlMs = ttlMs;
+        this.negativeTtlMs = negativeTtlMs;
+    }
+
+    @Override
+    public StorageProviderCredentials getStorageProviderCredentials(String account, String storeId)
+        throws CredentialsRepoException {
+        String key = account + "/" + storeId;
+        return get(storageProviderCredentials, key, () -> repo.getStorageProviderCredentials(account, storeId));
+    }
+
+    @Override
+    public List<String> getActiveAccounts() throws CredentialsRepoException {
+        return get(activeAccounts, ACTIVE_ACCOUNTS_KEY, () -> repo.getActiveAccounts());
+    }
+
+    @Override
+    public AccountCredentials getAccountCredentials(String account) throws AccountCredentialsNotFoundException {
+        return get(accountCredentials, account, () -> repo.getAccountCredentials(account));
+    }
+
+    @Override
+    public boolean isAccountActive(String account) throws AccountCredentialsNotFoundException {
+        return get(accountActive, account, () -> repo.isAccountActive(account));
+    }
+
+    /**
+     * Forgets everything known about an account, for example after its
+     * storage providers or status have changed.
+     *
+     * @param account
+     */
+    public void invalidate(String account) {
+        accountCredentials.remove(account);
+        accountActive.remove(account);
+        storageProviderCredentials.keySet().removeIf(key -> key.startsWith(account + "/"));
+        activeAccounts.clear();
+    }
+
+    /**
+     * Forgets everything.
+     */
+    public void invalidateAll() {
+        accountCredentials.clear();
+        accountActive.clear();
+        storageProviderCredentials.clear();
+        activeAccounts.clear();
+    }
+
+    /**
+     * @return the number of lookups answered without querying the underlying
+     * repo
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups which queried the underlying repo
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of answers currently cached
+     */
+    public int getSize() {
+        return storageProviderCredentials.size() + accountCredentials.size() +
+               accountActive.size() + activeAccounts.size();
+    }
+
+    private <T, E extends CredentialsRepoException> T get(ConcurrentMap<String, Entry<T>> cache,
+                                                          String key,
+                                                          Lookup<T, E> lookup) throws E {
+        if (ttlMs <= 0) {
+            misses.incrementAndGet();
+            return lookup.get();
+        }
+
+        while (true) {
+            Entry<T> entry = cache.get(key);
+            if (entry != null && !entry.isExpired()) {
+                hits.incrementAndGet();
+                return entry.<E>await();
+            }
+
+            Entry<T> loading = new Entry<>(lookup);
+            boolean claimed = entry == null ? cache.putIfAbsent(key, loading) == null
+                                            : cache.replace(key, entry, loading);
+            if (!claimed) {
+                //another thread started the lookup first: wait for it.
+                continue;
+            }
+
+            misses.incrementAndGet();
+            loading.load.run();
+            try {
+                T value = loading.<E>await();
+                loading.expires = System.currentTimeMillis() + ttlMs;
+                return value;
+            } catch (CredentialsRepoException e) {
+                if (e instanceof AccountCredentialsNotFoundException ||
+                    e instanceof StorageProviderCredentialsNotFoundException) {
+                    loading.expires = System.currentTimeMillis() + negativeTtlMs;
+                } else {
+                    cache.remove(key, loading);
+                }
+                throw e;
+            } catch (RuntimeException | Error e) {
+                cache.remove(key, loading);
+                throw e;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Lookup<T, E extends CredentialsRepoException> {
+        T get() throws E;
+    }
+
+    private static class Entry<T> {
+        private FutureTask<T> load;
+
+        /*
+         * Long.MAX_VALUE while the lookup is in progress, so that waiting
+         * threads never start a second one.
+         */
+        private volatile long expires = Long.MAX_VALUE;
+
+        Entry(Lookup<T, ?> lookup) {
+            this.load = new FutureTask<>(lookup::get);
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expires;
+        }
+
+        @SuppressWarnings("unchecked")
+        <E extends CredentialsRepoException> T await() throws E {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return load.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw (E) cause;
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
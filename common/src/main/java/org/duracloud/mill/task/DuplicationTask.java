@@ -7,6 +7,10 @@
  */
 package org.duracloud.mill.task;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import org.duracloud.common.queue.task.Task;
@@ -16,14 +20,20 @@ import org.duracloud.common.queue.task.TypedTask;
  * Provides the information necessary to complete a content
  * duplication activity.
  *
+ * A task may name several destination stores, in which case the source item is
+ * read once and duplicated to each of them. The first destination is also
+ * the task's destination store.
+ *
  * @author Bill Branan
  * Date: 10/18/13
  */
 public class DuplicationTask extends TypedTask {
 
     public static final String DEST_STORE_ID_PROP = "destStoreId";
+    public static final String DEST_STORE_IDS_PROP = "destStoreIds";
 
     private String destStoreId;
+    private List<String> destStoreIds;
 
     /**
      * Gets the source store ID. This is equivalent to calling getStoreId()
@@ -47,8 +57,40 @@ public class DuplicationTask extends TypedTask {
         return destStoreId;
     }
 
+    /**
+     * Sets a single destination store ID.
+     *
+     * @param destStoreId
+     */
     public void setDestStoreId(String destStoreId) {
         this.destStoreId = destStoreId;
+        this.destStoreIds = null;
+    }
+
+    /**
+     * Gets the IDs of all the stores to which the content is duplicated.
+     *
+     * @return destination store IDs
+     */
+    public List<String> getDestStoreIds() {
+        if (destStoreIds != null) {
+            return Collections.unmodifiableList(destStoreIds);
+        } else if (destStoreId != null) {
+            return Collections.singletonList(destStoreId);
+        } else {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Sets the IDs of the stores to which the content is duplicated. The
+     * first is also the destination store ID.
+     *
+     * @param destStoreIds
+     */
+    public void setDestStoreIds(List<String> destStoreIds) {
+        this.destStoreIds = new ArrayList<>(destStoreIds);
+        this.destStoreId = destStoreIds.isEmpty() ? null : destStoreIds.get(0);
     }
 
     @Override
@@ -57,6 +99,10 @@ public class DuplicationTask extends TypedTask {
 
         Map<String, String> props = task.getProperties();
         setDestStoreId(props.get(DEST_STORE_ID_PROP));
+        String ids = props.get(DEST_STORE_IDS_PROP);
+        if (ids != null && !ids.isEmpty()) {
+            setDestStoreIds(Arrays.asList(ids.split(",")));
+        }
     }
 
     @Override
@@ -64,6 +110,9 @@ public class DuplicationTask extends TypedTask {
         Task task = super.writeTask();
         task.setType(Task.Type.DUP);
         task.addProperty(DEST_STORE_ID_PROP, getDestStoreId());
+        if (destStoreIds != null && destStoreIds.size() > 1) {
+            task.addProperty(DEST_STORE_IDS_PROP, String.join(",", destStoreIds));
+        }
         return task;
     }
 
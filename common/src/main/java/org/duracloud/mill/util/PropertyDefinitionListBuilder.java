@@ -63,6 +63,12 @@ public class PropertyDefinitionListBuilder {
         return this;
     }
 
+    public PropertyDefinitionListBuilder addCredentialsCache() {
+        add(ConfigConstants.CREDENTIALS_CACHE_TTL, false);
+        add(ConfigConstants.CREDENTIALS_CACHE_NEGATIVE_TTL, false);
+        return this;
+    }
+
     public PropertyDefinitionListBuilder addDeadLetterQueue() {
         add(ConfigConstants.QUEUE_NAME_DEAD_LETTER, true);
         return this;
@@ -184,6 +190,105 @@ public class PropertyDefinitionListBuilder {
         return this;
     }
 
+    public PropertyDefinitionListBuilder addPrefetchSize() {
+        add(ConfigConstants.PREFETCH_SIZE, false);
+        return this;
+    }
+
+    public PropertyDefinitionListBuilder addTaskTypeMaxWorkers() {
+        add(ConfigConstants.TASK_TYPE_MAX_WORKERS, false);
+        return this;
+    }
+
+    public PropertyDefinitionListBuilder addAdaptiveConcurrency() {
+        add(ConfigConstants.ADAPTIVE_CONCURRENCY, false);
+        add(ConfigConstants.MIN_WORKERS, false);
+        return this;
+    }
+
+    public PropertyDefinitionListBuilder addWorkerExecutor() {
+        add(ConfigConstants.WORKER_EXECUTOR, false);
+        return this;
+    }
+
+    public PropertyDefinitionListBuilder addMetricsPort() {
+        add(ConfigConstants.METRICS_PORT, false);
+        add(ConfigConstants.METRICS_BIND_ADDRESS, false);
+        return this;
+    }
+
+    public PropertyDefinitionListBuilder addQueueWeights() {
+        add(ConfigConstants.QUEUE_WEIGHTS, false);
+        return this;
+    }
+
+    public PropertyDefinitionListBuilder addShutdownGracePeriod() {
+        add(ConfigConstants.SHUTDOWN_GRACE_PERIOD, false);
+        return this;
+    }
+
+    public PropertyDefinitionListBuilder addStorageProviderCache() {
+        add(ConfigConstants.STORAGE_PROVIDER_CACHE_SIZE, false);
+        add(ConfigConstants.STORAGE_PROVIDER_IDLE_TIMEOUT, false);
+        return this;
+    }
+
+    public PropertyDefinitionListBuilder addStorageProviderRateLimits() {
+        add(ConfigConstants.STORAGE_PROVIDER_RATE_LIMITS, false);
+        add(ConfigConstants.STORAGE_PROVIDER_RATE_LIMIT_PER_ACCOUNT, false);
+        return this;
+    }
+
+    public PropertyDefinitionListBuilder addCircuitBreaker() {
+        add(ConfigConstants.CIRCUIT_BREAKER_FAILURE_THRESHOLD, false);
+        add(ConfigConstants.CIRCUIT_BREAKER_OPEN_SECONDS, false);
+        return this;
+    }
+
+    public PropertyDefinitionListBuilder addAuditLogBatch() {
+        add(ConfigConstants.AUDIT_LOG_BATCH_SIZE, false);
+        add(ConfigConstants.AUDIT_LOG_BATCH_WAIT, false);
+        return this;
+    }
+
+    public PropertyDefinitionListBuilder addManifestBatch() {
+        add(ConfigConstants.MANIFEST_BATCH_SIZE, false);
+        add(ConfigConstants.MANIFEST_BATCH_WAIT, false);
+        return this;
+    }
+
+    public PropertyDefinitionListBuilder addDuplicationCoalescingWindow() {
+        add(ConfigConstants.DUPLICATION_COALESCING_WINDOW, false);
+        return this;
+    }
+
+    public PropertyDefinitionListBuilder addDuplicationStreaming() {
+        add(ConfigConstants.DUPLICATION_STREAMING, false);
+        return this;
+    }
+
+    public PropertyDefinitionListBuilder addDuplicationMultipart() {
+        add(ConfigConstants.DUPLICATION_MULTIPART_THRESHOLD, false);
+        add(ConfigConstants.DUPLICATION_MULTIPART_PART_SIZE, false);
+        add(ConfigConstants.DUPLICATION_MULTIPART_PARALLELISM, false);
+        return this;
+    }
+
+    public PropertyDefinitionListBuilder addDuplicationServerSideCopy() {
+        add(ConfigConstants.DUPLICATION_SERVER_SIDE_COPY, false);
+        return this;
+    }
+
+    public PropertyDefinitionListBuilder addDuplicationFanOut() {
+        add(ConfigConstants.DUPLICATION_FAN_OUT, false);
+        return this;
+    }
+
+    public PropertyDefinitionListBuilder addDuplicationSpaceCache() {
+        add(ConfigConstants.DUPLICATION_SPACE_CACHE_TTL, false);
+        return this;
+    }
+
     public PropertyDefinitionListBuilder addDuracloudAuditSpace() {
         add(ConfigConstants.AUDIT_LOG_GENERATOR_AUDIT_LOG_SPACE_ID, true);
         return this;
@@ -0,0 +1,208 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.credentials;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.duracloud.storage.domain.StorageProviderType;
+import org.easymock.EasyMock;
+import org.easymock.EasyMockRunner;
+import org.easymock.EasyMockSupport;
+import org.easymock.Mock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author Daniel Bernstein
+ */
+@RunWith(EasyMockRunner.class)
+public class CachingCredentialsRepoTest extends EasyMockSupport {
+
+    @Mock
+    private CredentialsRepo repo;
+
+    private CachingCredentialsRepo cachingRepo;
+
+    private StorageProviderCredentials creds =
+        new StorageProviderCredentials("1", "access", "secret", StorageProviderType.AMAZON_S3, null, true);
+
+    @Before
+    public void setup() {
+        cachingRepo = new CachingCredentialsRepo(repo, 60000, 60000);
+    }
+
+    @After
+    public void tearDown() {
+        verifyAll();
+    }
+
+    @Test
+    public void testGetStorageProviderCredentials() throws Exception {
+        EasyMock.expect(repo.getStorageProviderCredentials("account", "1")).andReturn(creds).once();
+        replayAll();
+
+        for (int i = 0; i < 3; i++) {
+            assertSame(creds, cachingRepo.getStorageProviderCredentials("account", "1"));
+        }
+        assertEquals(2, cachingRepo.getHits());
+        assertEquals(1, cachingRepo.getMisses());
+    }
+
+    @Test
+    public void testIsAccountActive() throws Exception {
+        EasyMock.expect(repo.isAccountActive("account")).andReturn(true).once();
+        EasyMock.expect(repo.getActiveAccounts()).andReturn(Collections.singletonList("account")).once();
+        replayAll();
+
+        assertTrue(cachingRepo.isAccountActive("account"));
+        assertTrue(cachingRepo.isAccountActive("account"));
+        assertEquals(1, cachingRepo.getActiveAccounts().size());
+        assertEquals(1, cachingRepo.getActiveAccounts().size());
+        assertEquals(2, cachingRepo.getSize());
+    }
+
+    @Test
+    public void testAccountNotFoundCached() throws Exception {
+        EasyMock.expect(repo.getAccountCredentials("missing"))
+                .andThrow(new AccountCredentialsNotFoundException("missing")).once();
+        replayAll();
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                cachingRepo.getAccountCredentials("missing");
+                fail("expected AccountCredentialsNotFoundException");
+            } catch (AccountCredentialsNotFoundException e) {
+                assertEquals("missing", e.getMessage());
+            }
+        }
+        assertEquals(1, cachingRepo.getMisses());
+    }
+
+    @Test
+    public void testFailureNotCached() throws Exception {
+        EasyMock.expect(repo.getStorageProviderCredentials("account", "1"))
+                .andThrow(new RuntimeException("database unavailable")).once();
+        EasyMock.expect(repo.getStorageProviderCredentials("account", "1")).andReturn(creds).once();
+        replayAll();
+
+        try {
+            cachingRepo.getStorageProviderCredentials("account", "1");
+            fail("expected RuntimeException");
+        } catch (RuntimeException e) {
+            assertEquals("database unavailable", e.getMessage());
+        }
+        assertSame(creds, cachingRepo.getStorageProviderCredentials("account", "1"));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        cachingRepo = new CachingCredentialsRepo(repo, 10, 10);
+        EasyMock.expect(repo.isAccountActive("account")).andReturn(true);
+        EasyMock.expect(repo.isAccountActive("account")).andReturn(false);
+        replayAll();
+
+        assertTrue(cachingRepo.isAccountActive("account"));
+        Thread.sleep(20);
+        assertEquals(false, cachingRepo.isAccountActive("account"));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        EasyMock.expect(repo.getStorageProviderCredentials("account", "1")).andReturn(creds).times(2);
+        EasyMock.expect(repo.getStorageProviderCredentials("other", "1")).andReturn(creds).once();
+        replayAll();
+
+        cachingRepo.getStorageProviderCredentials("account", "1");
+        cachingRepo.getStorageProviderCredentials("other", "1");
+        cachingRepo.invalidate("account");
+        cachingRepo.getStorageProviderCredentials("account", "1");
+        cachingRepo.getStorageProviderCredentials("other", "1");
+        assertEquals(1, cachingRepo.getHits());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        cachingRepo = new CachingCredentialsRepo(repo, 0, 0);
+        EasyMock.expect(repo.isAccountActive("account")).andReturn(true).times(2);
+        replayAll();
+
+        cachingRepo.isAccountActive("account");
+        cachingRepo.isAccountActive("account");
+        assertEquals(0, cachingRepo.getSize());
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        replayAll();
+
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger lookups = new AtomicInteger();
+        CredentialsRepo slowRepo = new CredentialsRepoBase() {
+            @Override
+            public StorageProviderCredentials getStorageProviderCredentials(String account, String storeId) {
+                lookups.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return creds;
+            }
+
+            @Override
+            public List<String> getActiveAccounts() {
+                return null;
+            }
+
+            @Override
+            public AccountCredentials getAccountCredentials(String account) {
+                return null;
+            }
+
+            @Override
+            public boolean isAccountActive(String account) {
+                return false;
+            }
+        };
+        cachingRepo = new CachingCredentialsRepo(slowRepo, 60000, 60000);
+
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Future<?>[] results = new Future<?>[threads];
+            for (int i = 0; i < threads; i++) {
+                results[i] = executor.submit(() -> cachingRepo.getStorageProviderCredentials("account", "1"));
+            }
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<?> result : results) {
+                assertSame(creds, result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, lookups.get());
+        assertEquals(1, cachingRepo.getMisses());
+        assertEquals(threads - 1, cachingRepo.getHits());
+    }
+}
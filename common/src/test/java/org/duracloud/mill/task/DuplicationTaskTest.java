@@ -8,7 +8,10 @@
 package org.duracloud.mill.task;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
 
 import org.duracloud.common.queue.task.Task;
@@ -71,4 +74,28 @@ public class DuplicationTaskTest {
                      taskProps.get(DuplicationTask.CONTENT_ID_PROP));
     }
 
+    @Test
+    public void testMultipleDestinations() {
+        DuplicationTask dupTask = new DuplicationTask();
+        dupTask.setAccount(account);
+        dupTask.setSourceStoreId(sourceStoreId);
+        dupTask.setDestStoreIds(Arrays.asList("dest-1", "dest-2"));
+        dupTask.setSpaceId(spaceId);
+        dupTask.setContentId(contentId);
+
+        Task task = dupTask.writeTask();
+        assertEquals("dest-1", task.getProperty(DuplicationTask.DEST_STORE_ID_PROP));
+        assertEquals("dest-1,dest-2", task.getProperty(DuplicationTask.DEST_STORE_IDS_PROP));
+
+        DuplicationTask readTask = new DuplicationTask();
+        readTask.readTask(task);
+        assertEquals("dest-1", readTask.getDestStoreId());
+        assertEquals(Arrays.asList("dest-1", "dest-2"), readTask.getDestStoreIds());
+
+        // A task written with a single destination store
+        readTask.setDestStoreId(destStoreId);
+        assertEquals(Collections.singletonList(destStoreId), readTask.getDestStoreIds());
+        assertNull(readTask.writeTask().getProperty(DuplicationTask.DEST_STORE_IDS_PROP));
+    }
+
 }
@@ -18,6 +18,7 @@ import org.duracloud.common.queue.aws.SQSTaskQueue;
 import org.duracloud.common.queue.rabbitmq.RabbitmqTaskQueue;
 import org.duracloud.mill.common.storageprovider.StorageProviderFactory;
 import org.duracloud.mill.config.ConfigConstants;
+import org.duracloud.mill.credentials.CachingCredentialsRepo;
 import org.duracloud.mill.credentials.CredentialsRepo;
 import org.duracloud.mill.credentials.impl.ApplicationContextLocator;
 import org.duracloud.mill.db.repo.JpaBitIntegrityReportRepo;
@@ -93,6 +94,7 @@ public class AppDriver extends LoopingTaskProducerDriverSupport {
                                                .addNotificationConfig()
                                                .addNotifications()
                                                .addMcDb()
+                                               .addCredentialsCache()
                                                .addRabbitmqConfig()
                                                .addBitIntegrityQueue()
                                                .addLoopingBitFrequency()
@@ -109,7 +111,10 @@ public class AppDriver extends LoopingTaskProducerDriverSupport {
         LoopingBitTaskProducerConfigurationManager config = new LoopingBitTaskProducerConfigurationManager();
 
         ApplicationContext ctx = ApplicationContextLocator.get();
-        CredentialsRepo credentialsRepo = ctx.getBean(CredentialsRepo.class);
+        CredentialsRepo credentialsRepo =
+            new CachingCredentialsRepo(ctx.getBean(CredentialsRepo.class),
+                                       config.getCredentialsCacheTtlMs(),
+                                       config.getCredentialsCacheNegativeTtlMs());
         JpaBitIntegrityReportRepo bitReportRepo = ctx.getBean(JpaBitIntegrityReportRepo.class);
         StorageProviderFactory storageProviderFactory = new StorageProviderFactory();
 
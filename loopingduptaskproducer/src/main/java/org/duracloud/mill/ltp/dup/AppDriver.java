@@ -19,6 +19,7 @@ import org.duracloud.common.queue.rabbitmq.RabbitmqTaskQueue;
 import org.duracloud.mill.common.storageprovider.StorageProviderFactory;
 import org.duracloud.mill.common.taskproducer.TaskProducerConfigurationManager;
 import org.duracloud.mill.config.ConfigConstants;
+import org.duracloud.mill.credentials.CachingCredentialsRepo;
 import org.duracloud.mill.credentials.CredentialsRepo;
 import org.duracloud.mill.credentials.impl.ApplicationContextLocator;
 import org.duracloud.mill.dup.DuplicationPolicyManager;
@@ -75,6 +76,7 @@ public class AppDriver extends LoopingTaskProducerDriverSupport {
                                                .addNotificationConfig()
                                                .addNotifications()
                                                .addMcDb()
+                                               .addCredentialsCache()
                                                .addRabbitmqConfig()
                                                .addDuplicationLowPriorityQueue()
                                                .addLoopingDupFrequency()
@@ -89,7 +91,10 @@ public class AppDriver extends LoopingTaskProducerDriverSupport {
         LoopingTaskProducerConfigurationManager config = new LoopingTaskProducerConfigurationManager();
         processLocalDuplicationDirOption(config);
 
-        CredentialsRepo credentialsRepo = ApplicationContextLocator.get().getBean(CredentialsRepo.class);
+        CredentialsRepo credentialsRepo =
+            new CachingCredentialsRepo(ApplicationContextLocator.get().getBean(CredentialsRepo.class),
+                                       config.getCredentialsCacheTtlMs(),
+                                       config.getCredentialsCacheNegativeTtlMs());
 
         StorageProviderFactory storageProviderFactory = new StorageProviderFactory();
 
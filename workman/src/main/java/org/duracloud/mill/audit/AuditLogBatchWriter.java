@@ -0,0 +1,164 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.audit;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.duracloud.mill.auditor.AuditLogStore;
+import org.duracloud.mill.auditor.AuditLogWriteFailedException;
+import org.duracloud.mill.db.model.JpaAuditLogItem;
+import org.duracloud.mill.db.repo.JpaAuditLogItemRepo;
+import org.duracloud.mill.workman.TransactionalBatchWriter;
+import org.springframework.transaction.PlatformTransactionManager;
+
+/**
+ * Gathers the audit log rows written by all audit workers into batches which
+ * are written in a single transaction (see {@link TransactionalBatchWriter}).
+ *
+ * A batch is saved through the audit log repository, since the audit log
+ * store writes each row in a transaction of its own. Rows which are written
+ * one at a time, such as those of a failed batch, go through the store, which
+ * ignores duplicate rows.
+ *
+ * @author Daniel Bernstein
+ */
+public class AuditLogBatchWriter extends TransactionalBatchWriter<AuditLogBatchWriter.Row> {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1;
+    public static final long DEFAULT_MAX_WAIT_MS = 5;
+
+    private AuditLogStore auditLogStore;
+    private JpaAuditLogItemRepo auditLogItemRepo;
+
+    /**
+     * @param auditLogStore      writes each row which is not part of a batch
+     * @param auditLogItemRepo   saves the rows of each batch
+     * @param transactionManager the transaction manager of the audit log
+     *                           repository, in whose transactions the batches
+     *                           are written
+     * @param maxBatchSize       the most rows written in one transaction
+     * @param maxWaitMs          how long the first row of a batch waits for
+     *                           others to join it
+     */
+    public AuditLogBatchWriter(AuditLogStore auditLogStore,
+                               JpaAuditLogItemRepo auditLogItemRepo,
+                               PlatformTransactionManager transactionManager,
+                               int maxBatchSize,
+                               long maxWaitMs) {
+        super("audit log", transactionManager, maxBatchSize, maxWaitMs);
+        this.auditLogStore = auditLogStore;
+        this.auditLogItemRepo = auditLogItemRepo;
+    }
+
+    @Override
+    protected void writeItem(Row row) throws AuditLogWriteFailedException {
+        row.writeTo(auditLogStore);
+    }
+
+    @Override
+    protected void writeItems(List<Row> batch) {
+        List<JpaAuditLogItem> items = new ArrayList<>(batch.size());
+        for (Row row : batch) {
+            items.add(row.toItem());
+        }
+        auditLogItemRepo.saveAll(items);
+        auditLogItemRepo.flush();
+    }
+
+    /**
+     * The arguments of {@link AuditLogStore#write}.
+     */
+    public static class Row {
+        private String account;
+        private String storeId;
+        private String spaceId;
+        private String contentId;
+        private String contentMd5;
+        private String mimetype;
+        private String contentSize;
+        private String user;
+        private String action;
+        private String properties;
+        private String spaceAcls;
+        private String sourceSpaceId;
+        private String sourceContentId;
+        private Date timestamp;
+
+        public Row(String account,
+                   String storeId,
+                   String spaceId,
+                   String contentId,
+                   String contentMd5,
+                   String mimetype,
+                   String contentSize,
+                   String user,
+                   String action,
+                   String properties,
+                   String spaceAcls,
+                   String sourceSpaceId,
+                   String sourceContentId,
+                   Date timestamp) {
+            this.account = account;
+            this.storeId = storeId;
+            this.spaceId = spaceId;
+            this.contentId = contentId;
+            this.contentMd5 = contentMd5;
+            this.mimetype = mimetype;
+            this.contentSize = contentSize;
+            this.user = user;
+            this.action = action;
+            this.properties = properties;
+            this.spaceAcls = spaceAcls;
+            this.sourceSpaceId = sourceSpaceId;
+            this.sourceContentId = sourceContentId;
+            this.timestamp = timestamp;
+        }
+
+        public void writeTo(AuditLogStore auditLogStore) throws AuditLogWriteFailedException {
+            auditLogStore.write(account,
+                                storeId,
+                                spaceId,
+                                contentId,
+                                contentMd5,
+                                mimetype,
+                                contentSize,
+                                user,
+                                action,
+                                properties,
+                                spaceAcls,
+                                sourceSpaceId,
+                                sourceContentId,
+                                timestamp);
+        }
+
+        /**
+         * @return the row as the audit log store would save it
+         */
+        public JpaAuditLogItem toItem() {
+            JpaAuditLogItem item = new JpaAuditLogItem();
+            item.setAccount(account);
+            item.setStoreId(storeId);
+            item.setSpaceId(spaceId);
+            item.setContentId(contentId);
+            item.setContentMd5(contentMd5);
+            item.setMimetype(mimetype);
+            item.setContentSize(contentSize);
+            item.setUsername(user);
+            item.setAction(action);
+            item.setContentProperties(properties);
+            item.setSpaceAcls(spaceAcls);
+            item.setSourceSpaceId(sourceSpaceId);
+            item.setSourceContentId(sourceContentId);
+            item.setTimestamp(timestamp.getTime());
+            item.setModified(timestamp);
+            return item;
+        }
+    }
+}
@@ -29,12 +29,26 @@ public class AuditLogWritingProcessor extends TaskProcessorBase {
     private final Logger log = LoggerFactory.getLogger(AuditLogWritingProcessor.class);
 
     private AuditLogStore auditLogStore;
+    private AuditLogBatchWriter batchWriter;
     private AuditTask task;
 
     public AuditLogWritingProcessor(AuditTask task,
                                     AuditLogStore auditLogStore) {
+        this(task, auditLogStore, null);
+    }
+
+    /**
+     * @param task
+     * @param auditLogStore
+     * @param batchWriter   writes the row in a batch with those of other
+     *                      tasks; if null the row is written on its own
+     */
+    public AuditLogWritingProcessor(AuditTask task,
+                                    AuditLogStore auditLogStore,
+                                    AuditLogBatchWriter batchWriter) {
         super(task);
         this.auditLogStore = auditLogStore;
+        this.batchWriter = batchWriter;
         this.task = task;
     }
 
@@ -54,20 +68,26 @@ public class AuditLogWritingProcessor extends TaskProcessorBase {
             String acls = task.getSpaceACLs();
             Date timestamp = new Date(Long.valueOf(task.getDateTime()));
 
-            auditLogStore.write(account,
-                                storeId,
-                                spaceId,
-                                contentId,
-                                task.getContentChecksum(),
-                                task.getContentMimetype(),
-                                task.getContentSize(),
-                                task.getUserId(),
-                                action,
-                                props != null ? AuditLogStoreUtil.serialize(props) : null,
-                                acls,
-                                task.getSourceSpaceId(),
-                                task.getSourceContentId(),
-                                timestamp);
+            AuditLogBatchWriter.Row row =
+                new AuditLogBatchWriter.Row(account,
+                                            storeId,
+                                            spaceId,
+                                            contentId,
+                                            task.getContentChecksum(),
+                                            task.getContentMimetype(),
+                                            task.getContentSize(),
+                                            task.getUserId(),
+                                            action,
+                                            props != null ? AuditLogStoreUtil.serialize(props) : null,
+                                            acls,
+                                            task.getSourceSpaceId(),
+                                            task.getSourceContentId(),
+                                            timestamp);
+            if (batchWriter != null) {
+                batchWriter.write(row);
+            } else {
+                row.writeTo(auditLogStore);
+            }
 
             log.debug("audit task successfully processed: {}", task);
         } catch (TransactionSystemException e) {
@@ -18,10 +18,21 @@ import org.duracloud.mill.workman.TaskProcessor;
 public class AuditLogWritingProcessorFactory extends AuditTaskProcessorFactory {
 
     private AuditLogStore auditLogStore;
+    private AuditLogBatchWriter batchWriter;
 
     public AuditLogWritingProcessorFactory(AuditLogStore auditLogStore) {
+        this(auditLogStore, null);
+    }
+
+    /**
+     * @param auditLogStore
+     * @param batchWriter   shared by the processors to write their rows in
+     *                      batches; may be null
+     */
+    public AuditLogWritingProcessorFactory(AuditLogStore auditLogStore, AuditLogBatchWriter batchWriter) {
         super();
         this.auditLogStore = auditLogStore;
+        this.batchWriter = batchWriter;
     }
 
     /* (non-Javadoc)
@@ -29,6 +40,6 @@ public class AuditLogWritingProcessorFactory extends AuditTaskProcessorFactory {
      */
     @Override
     protected TaskProcessor createImpl(AuditTask auditTask) {
-        return new AuditLogWritingProcessor(auditTask, auditLogStore);
+        return new AuditLogWritingProcessor(auditTask, auditLogStore, batchWriter);
     }
 }
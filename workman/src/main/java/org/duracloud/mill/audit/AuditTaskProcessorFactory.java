@@ -23,6 +23,13 @@ public abstract class AuditTaskProcessorFactory implements TaskProcessorFactory
 
     private final Logger log = LoggerFactory.getLogger(AuditTaskProcessorFactory.class);
 
+    /*
+     * The steps of a multi-step audit processor are created one after another
+     * on the same thread for the same task, so the AuditTask read for the
+     * first step is reused by the rest rather than read again for each one.
+     */
+    private static final ThreadLocal<ReadTask> LAST_READ = new ThreadLocal<>();
+
     /*
      * (non-Javadoc)
      *
@@ -34,16 +41,26 @@ public abstract class AuditTaskProcessorFactory implements TaskProcessorFactory
     public final TaskProcessor create(Task task)
         throws TaskProcessorCreationFailedException {
         if (isSupported(task)) {
-            log.debug("creating task processor for " + task);
-            AuditTask auditTask = new AuditTask();
-            auditTask.readTask(task);
-            return createImpl(auditTask);
+            log.debug("creating task processor for {}", task);
+            return createImpl(readTask(task));
         }
 
         throw new TaskProcessorCreationFailedException("Task is not an Audit task");
 
     }
 
+    private AuditTask readTask(Task task) {
+        ReadTask last = LAST_READ.get();
+        if (last != null && last.task == task && last.attempts == task.getAttempts()) {
+            return last.auditTask;
+        }
+
+        AuditTask auditTask = new AuditTask();
+        auditTask.readTask(task);
+        LAST_READ.set(new ReadTask(task, auditTask));
+        return auditTask;
+    }
+
     /**
      * @param auditTask
      * @return
@@ -57,4 +74,16 @@ public abstract class AuditTaskProcessorFactory implements TaskProcessorFactory
     public boolean isSupported(Task task) {
         return task.getType().equals(Task.Type.AUDIT);
     }
+
+    private static class ReadTask {
+        private Task task;
+        private int attempts;
+        private AuditTask auditTask;
+
+        ReadTask(Task task, AuditTask auditTask) {
+            this.task = task;
+            this.attempts = task.getAttempts();
+            this.auditTask = auditTask;
+        }
+    }
 }
@@ -0,0 +1,275 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.audit;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.duracloud.common.queue.TaskQueue;
+import org.duracloud.common.queue.task.Task;
+import org.duracloud.mill.task.DuplicationTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges the duplication tasks generated for the same content item and
+ * destination store within a time window, so that a client which adds a file
+ * and then sets its properties several times causes one duplication rather
+ * than one per event.
+ *
+ * The first task for an item is held for the window before it is put on the
+ * duplication queue; tasks for the same item which arrive while it is held
+ * are merged into it. Since a duplication task only names the item, and the
+ * duplication reads the item's current state, the merged task covers every
+ * event which joined it. Callers block until the task they joined has been
+ * put, so an audit task is only acknowledged once a duplication task covering
+ * it is on the queue. Since this blocks the worker processing the audit task
+ * for up to the window, the window must be short: a worker processes at most
+ * one audit task per window.
+ *
+ * @author Daniel Bernstein
+ */
+public class DuplicationTaskCoalescer {
+    private static final Logger log = LoggerFactory.getLogger(DuplicationTaskCoalescer.class);
+
+    public static final long DEFAULT_WINDOW_MS = 0;
+
+    private TaskQueue duplicationTaskQueue;
+    private long windowNanos;
+
+    //held tasks in the order they were first added, which is also the order
+    //in which they are due
+    private Map<String, Held> held = new LinkedHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private Thread flusher;
+    private volatile boolean running = true;
+
+    private AtomicLong puts = new AtomicLong();
+    private AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @param duplicationTaskQueue the queue on which the tasks are put
+     * @param windowMs             how long the first task for an item is held
+     *                             for others to merge into it
+     */
+    public DuplicationTaskCoalescer(TaskQueue duplicationTaskQueue, long windowMs) {
+        this.duplicationTaskQueue = duplicationTaskQueue;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMs));
+        this.flusher = new Thread(this::run, "duplication-task-coalescer");
+        this.flusher.setDaemon(true);
+    }
+
+    /**
+     * Puts the tasks on the duplication queue, merging each with a held task
+     * for the same item if there is one, and waits until they are on the
+     * queue.
+     *
+     * @param dupTasks
+     */
+    public void put(Set<DuplicationTask> dupTasks) {
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        lock.lock();
+        try {
+            if (!running) {
+                putDirectly(dupTasks);
+                return;
+            }
+
+            if (!flusher.isAlive()) {
+                flusher.start();
+                log.info("coalescing duplication tasks over {} ms",
+                         TimeUnit.NANOSECONDS.toMillis(windowNanos));
+            }
+
+            long due = System.nanoTime() + windowNanos;
+            for (DuplicationTask dupTask : dupTasks) {
+                String key = getKey(dupTask);
+                Held existing = held.get(key);
+                if (existing != null) {
+                    coalesced.incrementAndGet();
+                    log.debug("merged {} into held duplication task", dupTask);
+                } else {
+                    existing = new Held(dupTask.writeTask(), due);
+                    held.put(key, existing);
+                }
+                results.add(existing.result);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        for (CompletableFuture<Void> result : results) {
+            await(result);
+        }
+    }
+
+    private void await(CompletableFuture<Void> result) {
+        try {
+            while (true) {
+                try {
+                    result.get(1, TimeUnit.SECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    if (!flusher.isAlive()) {
+                        //destroy() puts everything still held before the
+                        //flusher exits, so the result is complete by now
+                        result.get();
+                        return;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted waiting for duplication task to be put", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause.getMessage(), cause);
+        }
+    }
+
+    private void putDirectly(Set<DuplicationTask> dupTasks) {
+        Set<Task> tasks = new HashSet<>();
+        for (DuplicationTask dupTask : dupTasks) {
+            tasks.add(dupTask.writeTask());
+        }
+        duplicationTaskQueue.put(tasks);
+        puts.addAndGet(tasks.size());
+    }
+
+    private void run() {
+        while (true) {
+            List<Held> due = new ArrayList<>();
+            lock.lock();
+            try {
+                while (due.isEmpty()) {
+                    if (held.isEmpty()) {
+                        if (!running) {
+                            return;
+                        }
+                        changed.await(100, TimeUnit.MILLISECONDS);
+                        continue;
+                    }
+
+                    long now = System.nanoTime();
+                    Iterator<Held> it = held.values().iterator();
+                    while (it.hasNext()) {
+                        Held next = it.next();
+                        if (running && next.due - now > 0) {
+                            break;
+                        }
+                        due.add(next);
+                        it.remove();
+                    }
+
+                    if (due.isEmpty()) {
+                        long waitNanos = held.values().iterator().next().due - now;
+                        changed.awaitNanos(Math.max(1, waitNanos));
+                    }
+                }
+            } catch (InterruptedException e) {
+                running = false;
+                continue;
+            } finally {
+                lock.unlock();
+            }
+
+            putAll(due);
+        }
+    }
+
+    private void putAll(List<Held> due) {
+        Set<Task> tasks = new HashSet<>();
+        for (Held next : due) {
+            tasks.add(next.task);
+        }
+
+        try {
+            duplicationTaskQueue.put(tasks);
+            puts.addAndGet(tasks.size());
+            for (Held next : due) {
+                next.result.complete(null);
+            }
+        } catch (Throwable t) {
+            log.error("failed to put " + tasks.size() + " duplication tasks: " + t.getMessage(), t);
+            for (Held next : due) {
+                next.result.completeExceptionally(t);
+            }
+        }
+    }
+
+    private String getKey(DuplicationTask dupTask) {
+        return dupTask.getAccount() + "/" + dupTask.getSourceStoreId() + "/" +
+               String.join(",", dupTask.getDestStoreIds()) + "/" + dupTask.getSpaceId() + "/" + dupTask.getContentId();
+    }
+
+    /**
+     * Puts the tasks which are still held and stops the coalescer.
+     */
+    public void destroy() {
+        lock.lock();
+        try {
+            running = false;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (!flusher.isAlive()) {
+            return;
+        }
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of duplication tasks put on the queue
+     */
+    public long getPutCount() {
+        return puts.get();
+    }
+
+    /**
+     * @return the number of duplication tasks merged into a held task rather
+     * than put on the queue
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    private static class Held {
+        private Task task;
+        private long due;
+        private CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Held(Task task, long due) {
+            this.task = task;
+            this.due = due;
+        }
+    }
+}
@@ -13,7 +13,10 @@ import static org.duracloud.audit.task.AuditTask.ActionType.DELETE_CONTENT;
 import static org.duracloud.audit.task.AuditTask.ActionType.DELETE_SPACE;
 import static org.duracloud.audit.task.AuditTask.ActionType.SET_CONTENT_PROPERTIES;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.duracloud.audit.task.AuditTask;
@@ -38,6 +41,8 @@ public class DuplicationTaskProducingProcessor implements TaskProcessor {
     private AuditTask task;
     private TaskQueue duplicationTaskQueue;
     private DuplicationPolicyManager duplicationPolicyManager;
+    private DuplicationTaskCoalescer coalescer;
+    private boolean fanOut = false;
 
     /**
      * @param task
@@ -47,9 +52,36 @@ public class DuplicationTaskProducingProcessor implements TaskProcessor {
     public DuplicationTaskProducingProcessor(AuditTask task,
                                              TaskQueue duplicationTaskQueue,
                                              DuplicationPolicyManager duplicationPolicyManager) {
+        this(task, duplicationTaskQueue, duplicationPolicyManager, null);
+    }
+
+    /**
+     * @param task
+     * @param duplicationTaskQueue
+     * @param duplicationPolicyManager
+     * @param coalescer                merges the duplication tasks with those
+     *                                 of other audit tasks for the same item;
+     *                                 if null they are put on the queue
+     *                                 directly
+     */
+    public DuplicationTaskProducingProcessor(AuditTask task,
+                                             TaskQueue duplicationTaskQueue,
+                                             DuplicationPolicyManager duplicationPolicyManager,
+                                             DuplicationTaskCoalescer coalescer) {
         this.task = task;
         this.duplicationTaskQueue = duplicationTaskQueue;
         this.duplicationPolicyManager = duplicationPolicyManager;
+        this.coalescer = coalescer;
+    }
+
+    /**
+     * @param fanOut true if a single duplication task naming all of the
+     *               destination stores is produced when the content is
+     *               duplicated to several stores, so that the source is only
+     *               read once
+     */
+    public void setFanOut(boolean fanOut) {
+        this.fanOut = fanOut;
     }
 
     /* (non-Javadoc)
@@ -108,27 +140,14 @@ public class DuplicationTaskProducingProcessor implements TaskProcessor {
 
         if (dupStorePolicies != null && !dupStorePolicies.isEmpty()) {
 
-            Set<Task> tasks = null;
+            List<String> destStoreIds = new ArrayList<>();
 
             for (DuplicationStorePolicy dupStorePolicy : dupStorePolicies) {
                 if (dupStorePolicy.getSrcStoreId().equals(storeId)) {
                     log.debug("policy's sourceStoreId matches " +
                               "messageStoreId: policy={}; messageStoreId={}",
                               dupStorePolicy, storeId);
-                    DuplicationTask dupTask = new DuplicationTask();
-                    dupTask.setAccount(account);
-                    dupTask.setDestStoreId(dupStorePolicy.getDestStoreId());
-                    dupTask.setSpaceId(spaceId);
-                    dupTask.setContentId(contentId);
-                    dupTask.setSourceStoreId(storeId);
-
-                    log.info("adding duplication task to the task queue: {}", dupTask);
-
-                    if (tasks == null) {
-                        tasks = new HashSet<>();
-                    }
-
-                    tasks.add(dupTask.writeTask());
+                    destStoreIds.add(dupStorePolicy.getDestStoreId());
                 } else {
                     log.debug("policy's sourceStoreId does not match " +
                               "messageStoreId: policy={}; messageStoreId={}",
@@ -136,8 +155,34 @@ public class DuplicationTaskProducingProcessor implements TaskProcessor {
                 }
             }
 
-            if (tasks != null) {
-                duplicationTaskQueue.put(tasks);
+            if (!destStoreIds.isEmpty()) {
+                Set<DuplicationTask> tasks = new HashSet<>();
+                if (fanOut && destStoreIds.size() > 1) {
+                    Collections.sort(destStoreIds);
+                    DuplicationTask dupTask = createDuplicationTask(account, storeId, spaceId, contentId);
+                    dupTask.setDestStoreIds(destStoreIds);
+                    tasks.add(dupTask);
+                } else {
+                    for (String destStoreId : destStoreIds) {
+                        DuplicationTask dupTask = createDuplicationTask(account, storeId, spaceId, contentId);
+                        dupTask.setDestStoreId(destStoreId);
+                        tasks.add(dupTask);
+                    }
+                }
+
+                for (DuplicationTask dupTask : tasks) {
+                    log.info("adding duplication task to the task queue: {}", dupTask);
+                }
+
+                if (coalescer != null) {
+                    coalescer.put(tasks);
+                } else {
+                    Set<Task> queueTasks = new HashSet<>();
+                    for (DuplicationTask dupTask : tasks) {
+                        queueTasks.add(dupTask.writeTask());
+                    }
+                    duplicationTaskQueue.put(queueTasks);
+                }
             }
 
         } else {
@@ -145,4 +190,16 @@ public class DuplicationTaskProducingProcessor implements TaskProcessor {
         }
     }
 
+    private DuplicationTask createDuplicationTask(String account,
+                                                  String storeId,
+                                                  String spaceId,
+                                                  String contentId) {
+        DuplicationTask dupTask = new DuplicationTask();
+        dupTask.setAccount(account);
+        dupTask.setSpaceId(spaceId);
+        dupTask.setContentId(contentId);
+        dupTask.setSourceStoreId(storeId);
+        return dupTask;
+    }
+
 }
@@ -20,6 +20,8 @@ public class DuplicationTaskProducingProcessorFactory extends AuditTaskProcessor
 
     private TaskQueue duplicationTaskQueue;
     private DuplicationPolicyManager duplicationPolicyManager;
+    private DuplicationTaskCoalescer coalescer;
+    private boolean fanOut = false;
 
     /**
      * @param duplicationTaskQueue
@@ -27,9 +29,31 @@ public class DuplicationTaskProducingProcessorFactory extends AuditTaskProcessor
      */
     public DuplicationTaskProducingProcessorFactory(TaskQueue duplicationTaskQueue,
                                                     DuplicationPolicyManager duplicationPolicyManager) {
+        this(duplicationTaskQueue, duplicationPolicyManager, null);
+    }
+
+    /**
+     * @param duplicationTaskQueue
+     * @param duplicationPolicyManager
+     * @param coalescer                shared by the processors to merge the
+     *                                 duplication tasks for the same item; may
+     *                                 be null
+     */
+    public DuplicationTaskProducingProcessorFactory(TaskQueue duplicationTaskQueue,
+                                                    DuplicationPolicyManager duplicationPolicyManager,
+                                                    DuplicationTaskCoalescer coalescer) {
         super();
         this.duplicationTaskQueue = duplicationTaskQueue;
         this.duplicationPolicyManager = duplicationPolicyManager;
+        this.coalescer = coalescer;
+    }
+
+    /**
+     * @param fanOut true if the processors should produce a single
+     *               duplication task for all of an item's destination stores
+     */
+    public void setFanOut(boolean fanOut) {
+        this.fanOut = fanOut;
     }
 
     /* (non-Javadoc)
@@ -37,8 +61,12 @@ public class DuplicationTaskProducingProcessorFactory extends AuditTaskProcessor
      */
     @Override
     protected TaskProcessor createImpl(AuditTask auditTask) {
-        return new DuplicationTaskProducingProcessor(auditTask,
-                                                     duplicationTaskQueue,
-                                                     duplicationPolicyManager);
+        DuplicationTaskProducingProcessor processor =
+            new DuplicationTaskProducingProcessor(auditTask,
+                                                  duplicationTaskQueue,
+                                                  duplicationPolicyManager,
+                                                  coalescer);
+        processor.setFanOut(fanOut);
+        return processor;
     }
 }
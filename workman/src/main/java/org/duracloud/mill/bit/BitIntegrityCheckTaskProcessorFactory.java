@@ -70,7 +70,7 @@ public class BitIntegrityCheckTaskProcessorFactory
         try {
             StorageProviderCredentials credentials =
                 getCredentialRepo().getStorageProviderCredentials(subdomain, bitTask.getStoreId());
-            StorageProvider store = storageProviderFactory.create(credentials);
+            StorageProvider store = storageProviderFactory.create(credentials, subdomain);
             StorageProviderType storageProviderType = credentials.getProviderType();
             return new BitIntegrityCheckTaskProcessor(bitTask,
                                                       store,
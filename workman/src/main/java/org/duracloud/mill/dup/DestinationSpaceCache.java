@@ -0,0 +1,118 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.dup;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers, across tasks, the destination spaces which are known to exist, so
+ * that duplication tasks do not ask the destination store to create the space
+ * every time.
+ *
+ * A space is remembered for the TTL after it was created or found to exist.
+ * It is forgotten when the mill deletes it, and when a task which relied on
+ * it fails, so that a space removed by other means is trusted at most until
+ * the next failure.
+ *
+ * @author Daniel Bernstein
+ */
+public class DestinationSpaceCache {
+
+    public static final long DEFAULT_TTL_SECONDS = 600;
+
+    /*
+     * More spaces than any mill is expected to duplicate to; reaching it
+     * clears the cache, which only costs a createSpace call per space
+     */
+    private static final int MAX_SIZE = 100000;
+
+    private long ttlMs;
+    private ConcurrentMap<String, Long> spaces = new ConcurrentHashMap<>();
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param ttlMs how long a space is remembered; 0 disables the cache
+     */
+    public DestinationSpaceCache(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * @param account
+     * @param storeId
+     * @param spaceId
+     * @return true if the space is known to exist
+     */
+    public boolean contains(String account, String storeId, String spaceId) {
+        Long expires = spaces.get(getKey(account, storeId, spaceId));
+        if (expires != null && System.currentTimeMillis() < expires) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Remembers that the space exists.
+     *
+     * @param account
+     * @param storeId
+     * @param spaceId
+     */
+    public void add(String account, String storeId, String spaceId) {
+        if (ttlMs <= 0) {
+            return;
+        }
+        if (spaces.size() >= MAX_SIZE) {
+            spaces.clear();
+        }
+        spaces.put(getKey(account, storeId, spaceId), System.currentTimeMillis() + ttlMs);
+    }
+
+    /**
+     * Forgets the space, for example because it has been deleted.
+     *
+     * @param account
+     * @param storeId
+     * @param spaceId
+     */
+    public void remove(String account, String storeId, String spaceId) {
+        spaces.remove(getKey(account, storeId, spaceId));
+    }
+
+    /**
+     * @return the number of checks answered without calling the destination
+     * store
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of checks which called the destination store
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of spaces currently remembered
+     */
+    public int getSize() {
+        return spaces.size();
+    }
+
+    private String getKey(String account, String storeId, String spaceId) {
+        return account + "/" + storeId + "/" + spaceId;
+    }
+}
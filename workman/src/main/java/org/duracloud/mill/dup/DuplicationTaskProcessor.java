@@ -10,25 +10,37 @@ package org.duracloud.mill.dup;
 import static org.duracloud.common.util.ChecksumUtil.Algorithm.MD5;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import javax.ws.rs.core.HttpHeaders;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.duracloud.audit.task.AuditTask;
+import org.duracloud.common.queue.TaskQueue;
+import org.duracloud.common.queue.task.Task;
 import org.duracloud.common.retry.ExceptionHandler;
 import org.duracloud.common.retry.Retriable;
 import org.duracloud.common.retry.Retrier;
 import org.duracloud.common.util.ChecksumUtil;
+import org.duracloud.mill.common.storageprovider.S3StoreClient;
 import org.duracloud.mill.db.model.ManifestItem;
 import org.duracloud.mill.manifest.ManifestStore;
 import org.duracloud.mill.task.DuplicationTask;
+import org.duracloud.mill.util.SimpleUserUtil;
 import org.duracloud.mill.workman.TaskExecutionFailedException;
 import org.duracloud.mill.workman.TaskProcessorBase;
 import org.duracloud.storage.error.NotFoundException;
@@ -49,6 +61,16 @@ public class DuplicationTaskProcessor extends TaskProcessorBase {
     private StorageProvider destStore;
     private File workDir;
     private ManifestStore manifestStore;
+    private boolean streaming = false;
+    private MultipartContentCopier multipartCopier;
+    private ServerSideContentCopier serverSideCopier;
+    private SharedSourceContent sharedSource;
+    private DestinationSpaceCache spaceCache;
+    private Executor executor = Runnable::run;
+    private S3StoreClient sourceS3Client;
+    private S3StoreClient destS3Client;
+    private Task task;
+    private TaskQueue auditTaskQueue;
 
     private List<File> cachedFiles = new ArrayList<>();
 
@@ -72,8 +94,95 @@ public class DuplicationTaskProcessor extends TaskProcessorBase {
         return this.cachedFiles;
     }
 
+    /**
+     * @param streaming true to stream content of known size directly from the
+     *                  source to the destination store rather than copying it
+     *                  to a local file first
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Gives access to the S3 API of the stores, which is needed to copy
+     * content in parts or within the provider.
+     *
+     * @param sourceS3Client the S3 API of the source store; may be null
+     * @param destS3Client   the S3 API of the destination store
+     * @param task           the task being processed, on which a multipart
+     *                       upload in progress is recorded
+     * @param auditTaskQueue the queue on which the addition of the content to
+     *                       the destination store is recorded, since it is
+     *                       not added through the audited destination store
+     */
+    public void setS3Clients(S3StoreClient sourceS3Client,
+                             S3StoreClient destS3Client,
+                             Task task,
+                             TaskQueue auditTaskQueue) {
+        this.sourceS3Client = sourceS3Client;
+        this.destS3Client = destS3Client;
+        this.task = task;
+        this.auditTaskQueue = auditTaskQueue;
+    }
+
+    /**
+     * @param multipartCopier copies large content items to the destination
+     *                        store in parts
+     */
+    public void setMultipartCopier(MultipartContentCopier multipartCopier) {
+        this.multipartCopier = multipartCopier;
+    }
+
+    /**
+     * @param serverSideCopier copies content items within the provider when
+     *                         the source and destination stores allow it
+     */
+    public void setServerSideCopier(ServerSideContentCopier serverSideCopier) {
+        this.serverSideCopier = serverSideCopier;
+    }
+
+    /**
+     * @param sharedSource the source item, shared with the processors of the
+     *                     other destination stores of the same task, through
+     *                     which the source's properties and content are
+     *                     retrieved. Content too small to be copied in
+     *                     parts is then copied through a local file shared
+     *                     by the destinations, and is not streamed even when
+     *                     streaming is enabled
+     */
+    public void setSharedSource(SharedSourceContent sharedSource) {
+        this.sharedSource = sharedSource;
+    }
+
+    /**
+     * @param spaceCache the destination spaces known to exist, which the
+     *                   processor need not create
+     */
+    public void setSpaceCache(DestinationSpaceCache spaceCache) {
+        this.spaceCache = spaceCache;
+    }
+
+    /**
+     * @param executor retrieves the properties of the destination item while
+     *                 those of the source item are retrieved; by default they
+     *                 are retrieved one after the other on the calling thread
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
     @Override
     protected void executeImpl() throws TaskExecutionFailedException {
+        try {
+            duplicate();
+        } catch (TaskExecutionFailedException | RuntimeException e) {
+            // The destination space may be why the task failed
+            forgetDestSpace(dupTask.getSpaceId());
+            throw e;
+        }
+    }
+
+    private void duplicate() throws TaskExecutionFailedException {
         // Read task
         String spaceId = dupTask.getSpaceId();
         String contentId = dupTask.getContentId();
@@ -103,20 +212,28 @@ public class DuplicationTaskProcessor extends TaskProcessorBase {
         // Check destination space
         ensureDestSpaceExists(spaceId);
 
-        // Retrieve properties for content items from both providers
+        // Retrieve properties for content items from both providers at once
+        CompletableFuture<Map<String, String>> destPropertiesResult =
+            getDestPropertiesAsync(spaceId, contentId);
         Map<String, String> sourceProperties =
-            getContentProperties(sourceStore, spaceId, contentId);
+            getSourceProperties(spaceId, contentId);
         Map<String, String> destProperties =
-            getContentProperties(destStore, spaceId, contentId);
+            joinDestProperties(destPropertiesResult);
 
         if (null != sourceProperties) { // Item exists in source provider
             String sourceChecksum = sourceProperties.get(
                 StorageProvider.PROPERTIES_CONTENT_CHECKSUM);
+            String sourceSize = sourceProperties.get(
+                StorageProvider.PROPERTIES_CONTENT_SIZE);
             cleanProperties(sourceProperties);
 
             if (null != destProperties) { // Item exists in dest provider
-                String destChecksum = destProperties.get(
-                    StorageProvider.PROPERTIES_CONTENT_CHECKSUM);
+                // An item copied in parts reports the ETag of its parts as
+                // its checksum, its MD5 is then one of its properties
+                String destChecksum =
+                    MultipartContentCopier.getContentChecksum(destProperties);
+                String copiedChecksum = destProperties.get(
+                    MultipartContentCopier.CONTENT_CHECKSUM_PROPERTY);
                 cleanProperties(destProperties);
 
                 // Item exists in both providers, compare checksums
@@ -130,7 +247,8 @@ public class DuplicationTaskProcessor extends TaskProcessorBase {
                             // Properties are not equal, duplicate the props
                             duplicateProperties(spaceId,
                                                 contentId,
-                                                sourceProperties);
+                                                withContentChecksum(sourceProperties,
+                                                                    copiedChecksum));
                         } else {
                             // No updates needed
                             log.info("Duplication check complete, no updates " +
@@ -142,6 +260,7 @@ public class DuplicationTaskProcessor extends TaskProcessorBase {
                         duplicateContent(spaceId,
                                          contentId,
                                          sourceChecksum,
+                                         sourceSize,
                                          sourceProperties);
                     }
                 } else {
@@ -155,6 +274,7 @@ public class DuplicationTaskProcessor extends TaskProcessorBase {
                 duplicateContent(spaceId,
                                  contentId,
                                  sourceChecksum,
+                                 sourceSize,
                                  sourceProperties);
             }
         } else { // Item does not exist in source, it must have been deleted
@@ -200,11 +320,31 @@ public class DuplicationTaskProcessor extends TaskProcessorBase {
      * @param spaceId
      */
     private void ensureDestSpaceExists(final String spaceId) {
+        String account = dupTask.getAccount();
+        String destStoreId = dupTask.getDestStoreId();
+        if (spaceCache != null && spaceCache.contains(account, destStoreId, spaceId)) {
+            return;
+        }
+
         try {
             destStore.createSpace(spaceId);
         } catch (Exception e) {
             // The space already exists
         }
+
+        if (spaceCache != null) {
+            spaceCache.add(account, destStoreId, spaceId);
+        }
+    }
+
+    /*
+     * Removes the destination space from the cache of known spaces, so the
+     * next task creates it again if need be
+     */
+    private void forgetDestSpace(final String spaceId) {
+        if (spaceCache != null && spaceId != null) {
+            spaceCache.remove(dupTask.getAccount(), dupTask.getDestStoreId(), spaceId);
+        }
     }
 
     /**
@@ -258,6 +398,7 @@ public class DuplicationTaskProcessor extends TaskProcessorBase {
             throw new DuplicationTaskExecutionFailedException(
                 buildFailureMessage(msg), e);
         }
+        forgetDestSpace(spaceId);
         log.info("Successfully deleted space " + spaceId +
                  " from dest provider in account " + dupTask.getAccount());
     }
@@ -300,6 +441,46 @@ public class DuplicationTaskProcessor extends TaskProcessorBase {
         }
     }
 
+    /*
+     * Retrieves the properties of the source content item, through the shared
+     * source item if there is one
+     */
+    private Map<String, String> getSourceProperties(final String spaceId,
+                                                    final String contentId)
+        throws TaskExecutionFailedException {
+        if (sharedSource != null) {
+            return sharedSource.getProperties(() -> getContentProperties(sourceStore, spaceId, contentId));
+        }
+        return getContentProperties(sourceStore, spaceId, contentId);
+    }
+
+    /*
+     * Starts retrieving the properties of the destination content item on
+     * the executor
+     */
+    private CompletableFuture<Map<String, String>> getDestPropertiesAsync(final String spaceId,
+                                                                          final String contentId) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return getContentProperties(destStore, spaceId, contentId);
+            } catch (TaskExecutionFailedException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private Map<String, String> joinDestProperties(CompletableFuture<Map<String, String>> result)
+        throws TaskExecutionFailedException {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TaskExecutionFailedException) {
+                throw (TaskExecutionFailedException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
     /**
      * Determines if source and destination properties are equal.
      *
@@ -355,6 +536,20 @@ public class DuplicationTaskProcessor extends TaskProcessorBase {
         }
     }
 
+    /*
+     * Returns the properties to set on a destination item, keeping the MD5
+     * recorded on it if it was copied in parts
+     */
+    private Map<String, String> withContentChecksum(Map<String, String> properties,
+                                                    String contentChecksum) {
+        if (contentChecksum == null) {
+            return properties;
+        }
+        Map<String, String> itemProperties = new HashMap<>(properties);
+        itemProperties.put(MultipartContentCopier.CONTENT_CHECKSUM_PROPERTY, contentChecksum);
+        return itemProperties;
+    }
+
     /**
      * Pull out the system-generated properties, to allow the properties that
      * are added to the duplicated item to be only the user-defined properties.
@@ -377,11 +572,16 @@ public class DuplicationTaskProcessor extends TaskProcessorBase {
             props.remove(HttpHeaders.LAST_MODIFIED.toLowerCase());
             props.remove(HttpHeaders.DATE.toLowerCase());
             props.remove(HttpHeaders.ETAG.toLowerCase());
+            props.remove(MultipartContentCopier.CONTENT_CHECKSUM_PROPERTY);
         }
     }
 
     /**
-     * Copies a content item from the source store to the destination store
+     * Copies a content item from the source store to the destination store:
+     * within the provider when the stores allow it, otherwise in parts when
+     * the item is large enough, otherwise through the local copy shared with
+     * the task's other destinations when there is one, otherwise streamed
+     * when streaming is enabled, and otherwise through a local file.
      *
      * @param spaceId
      * @param contentId
@@ -389,60 +589,286 @@ public class DuplicationTaskProcessor extends TaskProcessorBase {
     private void duplicateContent(final String spaceId,
                                   final String contentId,
                                   final String sourceChecksum,
+                                  final String sourceSize,
                                   final Map<String, String> sourceProperties)
         throws TaskExecutionFailedException {
         log.info("Duplicating " + contentId + " in space " + spaceId +
                  " in account " + dupTask.getAccount());
 
+        Long size = parseSize(sourceSize);
+        if (serverSideCopier != null && size != null && sourceS3Client != null && destS3Client != null &&
+            serverSideCopier.isApplicable(sourceS3Client, destS3Client, size)) {
+            copyContentWithinProvider(spaceId, contentId, sourceChecksum, size, sourceProperties);
+            log.info("Successfully duplicated id={} dup_size={} space={} account={} server_side=true",
+                     contentId, size, spaceId, dupTask.getAccount());
+            return;
+        }
+
+        if (multipartCopier != null && size != null && destS3Client != null && multipartCopier.isApplicable(size)) {
+            copyContentInParts(spaceId, contentId, sourceChecksum, size, sourceProperties);
+            log.info("Successfully duplicated id={} dup_size={} space={} account={} multipart=true",
+                     contentId, size, spaceId, dupTask.getAccount());
+            return;
+        }
+
+        if (sharedSource != null) {
+            // Read the source once for all of the task's destinations. The item is
+            // spooled to a local file rather than streamed, since a stream from
+            // the source can only be read by one destination
+            File localFile = sharedSource.getFile(() -> retrieveContent(spaceId, contentId, sourceChecksum));
+            putDestinationContent(spaceId,
+                                  contentId,
+                                  sourceChecksum,
+                                  sourceProperties,
+                                  localFile);
+            log.info("Successfully duplicated id={} dup_size={} space={} account={} shared=true",
+                     contentId, localFile.length(), spaceId, dupTask.getAccount());
+            return;
+        }
+
+        if (streaming && size != null) {
+            try {
+                streamContent(spaceId, contentId, sourceChecksum, size, sourceProperties);
+                log.info("Successfully duplicated id={} dup_size={} space={} account={} streamed=true",
+                         contentId, size, spaceId, dupTask.getAccount());
+                return;
+            } catch (TaskExecutionFailedException e) {
+                log.warn("Unable to stream {} in space {} in account {}, copying it through " +
+                         "a local file instead: {}", contentId, spaceId, dupTask.getAccount(), e.getMessage());
+            }
+        }
+
+        File localFile = null;
+        try {
+            localFile = retrieveContent(spaceId, contentId, sourceChecksum);
+            putDestinationContent(spaceId,
+                                  contentId,
+                                  sourceChecksum,
+                                  sourceProperties,
+                                  localFile);
+            log.info(
+                    "Successfully duplicated id={} dup_size={} space={} account={}",
+                    contentId,
+                    localFile.length(),
+                    spaceId, dupTask.getAccount());
+        } finally {
+            cleanup(localFile);
+        }
+    }
+
+    /*
+     * Copies the source content item to a local file, checking that its
+     * checksum matches the source checksum
+     */
+    private File retrieveContent(final String spaceId,
+                                 final String contentId,
+                                 final String sourceChecksum)
+        throws TaskExecutionFailedException {
         ChecksumUtil checksumUtil = new ChecksumUtil(MD5);
         boolean localChecksumMatch = false;
         int attempt = 0;
         File localFile = null;
-        try {
-            while (!localChecksumMatch && attempt < 3) {
-                // Get content stream
-                try (InputStream sourceStream = getSourceContent(spaceId, contentId)) {
-                    // Cache content locally
-                    localFile = cacheContent(sourceStream);
-                    // Check content
-                    String localChecksum = checksumUtil.generateChecksum(localFile);
-                    if (sourceChecksum.equals(localChecksum)) {
-                        localChecksumMatch = true;
-                    } else {
-                        // if the local checksums don't match we need to clean up the local file
-                        // since the next attempt will use a different file path.
-                        cleanup(localFile);
-                    }
-                } catch (Exception e) {
-                    //if the local file failed to be cached for the checksum generation failed
-                    //we'll need to remove the local file since it will be restreamed to a different
-                    //file.
+        while (!localChecksumMatch && attempt < 3) {
+            // Get content stream
+            try (InputStream sourceStream = getSourceContent(spaceId, contentId)) {
+                // Cache content locally
+                localFile = cacheContent(sourceStream);
+                // Check content
+                String localChecksum = checksumUtil.generateChecksum(localFile);
+                if (sourceChecksum.equals(localChecksum)) {
+                    localChecksumMatch = true;
+                } else {
+                    // if the local checksums don't match we need to clean up the local file
+                    // since the next attempt will use a different file path.
                     cleanup(localFile);
-                    log.warn("Error generating checksum for source content: " + e.getMessage(), e);
                 }
-                attempt++;
+            } catch (Exception e) {
+                //if the local file failed to be cached for the checksum generation failed
+                //we'll need to remove the local file since it will be restreamed to a different
+                //file.
+                cleanup(localFile);
+                log.warn("Error generating checksum for source content: " + e.getMessage(), e);
             }
+            attempt++;
+        }
 
-            // Put content
-            if (localChecksumMatch) {
-                putDestinationContent(spaceId,
-                        contentId,
-                        sourceChecksum,
-                        sourceProperties,
-                        localFile);
-                log.info(
-                        "Successfully duplicated id={} dup_size={} space={} account={}",
-                        contentId,
-                        localFile.length(),
-                        spaceId, dupTask.getAccount());
-            } else {
-                String msg = "Unable to retrieve content which matches the" +
-                        " expected source checksum of: " + sourceChecksum;
-                throw new DuplicationTaskExecutionFailedException(buildFailureMessage(msg));
-            }
+        if (!localChecksumMatch) {
+            String msg = "Unable to retrieve content which matches the" +
+                    " expected source checksum of: " + sourceChecksum;
+            throw new DuplicationTaskExecutionFailedException(buildFailureMessage(msg));
+        }
+        return localFile;
+    }
 
-        } finally {
-            cleanup(localFile);
+    private Long parseSize(String size) {
+        if (size == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(size);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Streams the content item from the source directly to the destination,
+     * computing its checksum as it passes through. If the content which was
+     * read does not match the source checksum and size the destination item
+     * is deleted, unless the destination store has already rejected it.
+     */
+    private void streamContent(final String spaceId,
+                               final String contentId,
+                               final String sourceChecksum,
+                               final long size,
+                               final Map<String, String> sourceProperties)
+        throws TaskExecutionFailedException {
+        try {
+            new Retrier().execute(new Retriable() {
+                @Override
+                public String retry() throws Exception {
+                    String srcMimetype = sourceProperties.get(
+                        StorageProvider.PROPERTIES_CONTENT_MIMETYPE);
+
+                    String destChecksum;
+                    ChecksummingInputStream sourceStream =
+                        new ChecksummingInputStream(getSourceContent(spaceId, contentId));
+                    try {
+                        destChecksum = destStore.addContent(spaceId,
+                                                            contentId,
+                                                            srcMimetype,
+                                                            sourceProperties,
+                                                            size,
+                                                            sourceChecksum,
+                                                            sourceStream);
+                    } finally {
+                        sourceStream.close();
+                    }
+
+                    String streamedChecksum = sourceStream.getChecksum();
+                    if (!sourceChecksum.equals(streamedChecksum) || sourceStream.getCount() != size) {
+                        rollbackDestinationContent(spaceId, contentId);
+                        throw new RuntimeException("Streamed content (checksum " + streamedChecksum +
+                                                   ", size " + sourceStream.getCount() +
+                                                   ") does not match source (checksum " +
+                                                   sourceChecksum + ", size " + size + ")");
+                    } else if (!sourceChecksum.equals(destChecksum)) {
+                        throw new RuntimeException("Checksum in dest does not match source");
+                    }
+                    return "success";
+                }
+            });
+        } catch (Exception e) {
+            String msg = "Error attempting to stream content to destination: " + e.getMessage();
+            throw new DuplicationTaskExecutionFailedException(buildFailureMessage(msg), e);
+        }
+    }
+
+    /*
+     * Copies the content item and its properties to the destination in parts,
+     * then records its addition to the destination store. The properties are
+     * set with the content, since setting them afterwards would copy the item
+     * onto itself.
+     */
+    private void copyContentInParts(final String spaceId,
+                                    final String contentId,
+                                    final String sourceChecksum,
+                                    final long size,
+                                    final Map<String, String> sourceProperties)
+        throws TaskExecutionFailedException {
+        String srcMimetype = sourceProperties.get(StorageProvider.PROPERTIES_CONTENT_MIMETYPE);
+        try {
+            multipartCopier.copy(sourceStore,
+                                 destS3Client,
+                                 spaceId,
+                                 contentId,
+                                 size,
+                                 sourceChecksum,
+                                 srcMimetype,
+                                 sourceProperties,
+                                 task);
+        } catch (Exception e) {
+            String msg = "Error attempting to copy content to destination in parts: " + e.getMessage();
+            throw new DuplicationTaskExecutionFailedException(buildFailureMessage(msg), e);
+        }
+
+        recordAddContent(spaceId, contentId, sourceChecksum, size, sourceProperties);
+    }
+
+    /*
+     * Has the provider copy the content item and its properties from the
+     * source store to the destination, then records its addition to the
+     * destination store.
+     */
+    private void copyContentWithinProvider(final String spaceId,
+                                           final String contentId,
+                                           final String sourceChecksum,
+                                           final long size,
+                                           final Map<String, String> sourceProperties)
+        throws TaskExecutionFailedException {
+        String srcMimetype = sourceProperties.get(StorageProvider.PROPERTIES_CONTENT_MIMETYPE);
+        try {
+            serverSideCopier.copy(sourceS3Client,
+                                  destS3Client,
+                                  spaceId,
+                                  contentId,
+                                  sourceChecksum,
+                                  srcMimetype,
+                                  sourceProperties);
+        } catch (Exception e) {
+            String msg = "Error attempting to copy content to destination within the provider: " + e.getMessage();
+            throw new DuplicationTaskExecutionFailedException(buildFailureMessage(msg), e);
+        }
+
+        recordAddContent(spaceId, contentId, sourceChecksum, size, sourceProperties);
+    }
+
+    /*
+     * Records the addition of a content item which was not added through the
+     * audited destination store.
+     */
+    private void recordAddContent(final String spaceId,
+                                  final String contentId,
+                                  final String sourceChecksum,
+                                  final long size,
+                                  final Map<String, String> sourceProperties)
+        throws TaskExecutionFailedException {
+        String srcMimetype = sourceProperties.get(StorageProvider.PROPERTIES_CONTENT_MIMETYPE);
+        AuditTask auditTask = new AuditTask();
+        auditTask.setAction(AuditTask.ActionType.ADD_CONTENT.name());
+        auditTask.setAccount(dupTask.getAccount());
+        auditTask.setStoreId(dupTask.getDestStoreId());
+        auditTask.setStoreType(destS3Client.getProviderType().getName());
+        auditTask.setSpaceId(spaceId);
+        auditTask.setContentId(contentId);
+        auditTask.setContentChecksum(sourceChecksum);
+        auditTask.setContentMimetype(srcMimetype);
+        auditTask.setContentSize(String.valueOf(size));
+        auditTask.setContentProperties(sourceProperties);
+        auditTask.setUserId(SimpleUserUtil.USER);
+        auditTask.setDateTime(String.valueOf(System.currentTimeMillis()));
+        try {
+            new Retrier().execute(new Retriable() {
+                @Override
+                public String retry() throws Exception {
+                    auditTaskQueue.put(auditTask.writeTask());
+                    return "success";
+                }
+            });
+        } catch (Exception e) {
+            String msg = "Error attempting to record the addition of content to destination: " + e.getMessage();
+            throw new DuplicationTaskExecutionFailedException(buildFailureMessage(msg), e);
+        }
+    }
+
+    private void rollbackDestinationContent(String spaceId, String contentId) {
+        try {
+            destStore.deleteContent(spaceId, contentId);
+        } catch (NotFoundException e) {
+            // The destination store rejected the content
+        } catch (Exception e) {
+            log.warn("Unable to delete mismatched streamed content " + contentId + " in space " +
+                     spaceId + " in account " + dupTask.getAccount() + ": " + e.getMessage(), e);
         }
     }
 
@@ -619,4 +1045,69 @@ public class DuplicationTaskProcessor extends TaskProcessorBase {
         builder.append(dupTask.getContentId());
         return builder.toString();
     }
-}
\ No newline at end of file
+
+    /*
+     * Computes the MD5 checksum and counts the bytes of the content read
+     * through it.
+     */
+    private static class ChecksummingInputStream extends FilterInputStream {
+        private MessageDigest digest;
+        private long count = 0;
+
+        ChecksummingInputStream(InputStream in) {
+            super(in);
+            try {
+                this.digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                digest.update((byte) b);
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                digest.update(b, off, read);
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            //skipped bytes would be missing from the checksum
+            long skipped = 0;
+            while (skipped < n && read() != -1) {
+                skipped++;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        String getChecksum() {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+    }
+}
@@ -8,9 +8,11 @@
 package org.duracloud.mill.dup;
 
 import java.io.File;
+import java.util.concurrent.Executor;
 
 import org.duracloud.common.queue.TaskQueue;
 import org.duracloud.common.queue.task.Task;
+import org.duracloud.mill.common.storageprovider.S3StoreClient;
 import org.duracloud.mill.common.storageprovider.StorageProviderFactory;
 import org.duracloud.mill.credentials.CredentialsRepo;
 import org.duracloud.mill.credentials.CredentialsRepoException;
@@ -36,6 +38,11 @@ public class DuplicationTaskProcessorFactory extends TaskProcessorFactoryBase {
     private TaskQueue auditTaskQueue;
     private StorageProviderFactory storageProviderFactory;
     private ManifestStore manifestStore;
+    private boolean streaming = false;
+    private MultipartContentCopier multipartCopier;
+    private ServerSideContentCopier serverSideCopier;
+    private DestinationSpaceCache spaceCache;
+    private Executor executor = Runnable::run;
 
     public DuplicationTaskProcessorFactory(CredentialsRepo repo,
                                            StorageProviderFactory storageProviderFactory,
@@ -48,6 +55,51 @@ public class DuplicationTaskProcessorFactory extends TaskProcessorFactoryBase {
         this.manifestStore = manifestStore;
     }
 
+    /**
+     * @param streaming true if the processors should stream content of known
+     *                  size directly to the destination store rather than
+     *                  copying it to a local file first
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * @param multipartCopier copies large content items to destination stores
+     *                        reached through the S3 API in parts; may be null
+     */
+    public void setMultipartCopier(MultipartContentCopier multipartCopier) {
+        this.multipartCopier = multipartCopier;
+    }
+
+    /**
+     * @param serverSideCopier copies content items within the provider when
+     *                         the source and destination stores are in the
+     *                         same location; may be null
+     */
+    public void setServerSideCopier(ServerSideContentCopier serverSideCopier) {
+        this.serverSideCopier = serverSideCopier;
+    }
+
+    /**
+     * @param spaceCache the destination spaces known to exist, shared by all
+     *                   processors; may be null
+     */
+    public void setSpaceCache(DestinationSpaceCache spaceCache) {
+        this.spaceCache = spaceCache;
+    }
+
+    /**
+     * @param executor runs the processors of the destination stores of a
+     *                 task with several destinations, and retrieves the
+     *                 properties of destination items while those of source
+     *                 items are retrieved; by default these run one after
+     *                 the other on the calling thread
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
     @Override
     public boolean isSupported(Task task) {
         return task.getType().equals(Task.Type.DUP);
@@ -66,12 +118,23 @@ public class DuplicationTaskProcessorFactory extends TaskProcessorFactoryBase {
                 createStorageProvider(dtask.getSourceStoreId(),
                                       subdomain,
                                       auditTaskQueue);
-            StorageProvider destStore =
-                createStorageProvider(dtask.getDestStoreId(),
-                                      subdomain,
-                                      auditTaskQueue);
-            return new DuplicationTaskProcessor(dtask, sourceStore, destStore,
-                                                getWorkDir(), manifestStore);
+            if (dtask.getDestStoreIds().size() > 1) {
+                SharedSourceContent sharedSource = new SharedSourceContent();
+                FanOutDuplicationTaskProcessor fanOut =
+                    new FanOutDuplicationTaskProcessor(task, executor, sharedSource);
+                for (String destStoreId : dtask.getDestStoreIds()) {
+                    Task destTask = fanOut.createDestinationTask(destStoreId);
+                    DuplicationTask destDupTask = new DuplicationTask();
+                    destDupTask.readTask(destTask);
+                    DuplicationTaskProcessor processor =
+                        createProcessor(destDupTask, destTask, sourceStore, subdomain);
+                    processor.setSharedSource(sharedSource);
+                    fanOut.addDestination(destStoreId, processor);
+                }
+                return fanOut;
+            }
+
+            return createProcessor(dtask, task, sourceStore, subdomain);
         } catch (Exception e) {
             log.error("failed to create task: unable to locate credentials " +
                       "for subdomain: " + e.getMessage(), e);
@@ -81,6 +144,42 @@ public class DuplicationTaskProcessorFactory extends TaskProcessorFactoryBase {
         }
     }
 
+    /*
+     * Creates the processor which duplicates the item to a single destination
+     * store
+     */
+    private DuplicationTaskProcessor createProcessor(DuplicationTask dtask,
+                                                     Task task,
+                                                     StorageProvider sourceStore,
+                                                     String subdomain) {
+        StorageProvider destStore =
+            createStorageProvider(dtask.getDestStoreId(),
+                                  subdomain,
+                                  auditTaskQueue);
+        DuplicationTaskProcessor processor =
+            new DuplicationTaskProcessor(dtask, sourceStore, destStore,
+                                         getWorkDir(), manifestStore);
+        processor.setStreaming(streaming);
+        processor.setSpaceCache(spaceCache);
+        processor.setExecutor(executor);
+        if (multipartCopier != null || serverSideCopier != null) {
+            S3StoreClient destS3Client =
+                storageProviderFactory.getS3StoreClient(getCredentials(dtask.getDestStoreId(), subdomain),
+                                                        subdomain);
+            if (destS3Client != null) {
+                S3StoreClient sourceS3Client = null;
+                if (serverSideCopier != null) {
+                    sourceS3Client = storageProviderFactory.getS3StoreClient(
+                        getCredentials(dtask.getSourceStoreId(), subdomain), subdomain);
+                }
+                processor.setS3Clients(sourceS3Client, destS3Client, task, auditTaskQueue);
+                processor.setMultipartCopier(multipartCopier);
+                processor.setServerSideCopier(serverSideCopier);
+            }
+        }
+        return processor;
+    }
+
     /**
      * @param storeId
      * @param subdomain
@@ -89,13 +188,16 @@ public class DuplicationTaskProcessorFactory extends TaskProcessorFactoryBase {
     private StorageProvider createStorageProvider(String storeId,
                                                   String subdomain,
                                                   TaskQueue auditTaskQueue) {
+        StorageProviderCredentials credentials = getCredentials(storeId, subdomain);
+        return this.storageProviderFactory.createWithAudit(credentials,
+                                                           subdomain,
+                                                           auditTaskQueue);
+    }
+
+    private StorageProviderCredentials getCredentials(String storeId, String subdomain) {
         try {
-            StorageProviderCredentials credentials =
-                getCredentialRepo().getStorageProviderCredentials(subdomain,
-                                                                  storeId);
-            return this.storageProviderFactory.createWithAudit(credentials,
-                                                               subdomain,
-                                                               auditTaskQueue);
+            return getCredentialRepo().getStorageProviderCredentials(subdomain,
+                                                                     storeId);
         } catch (CredentialsRepoException e) {
             throw new RuntimeException(e);
         }
@@ -0,0 +1,187 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.dup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import org.duracloud.common.queue.task.Task;
+import org.duracloud.mill.task.DuplicationTask;
+import org.duracloud.mill.workman.TaskExecutionFailedException;
+import org.duracloud.mill.workman.TaskProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Processes a duplication task with several destination stores by running the
+ * processor of each destination concurrently. The processors share the
+ * source item (see {@link SharedSourceContent}), so it is only read once.
+ *
+ * Each destination succeeds or fails on its own. If any fail, the task is
+ * narrowed to the destinations which failed before the failure is reported,
+ * so that a retry only duplicates to those. The state each destination's
+ * processor records on its task, such as a multipart upload in progress, is
+ * kept on the task under the destination's store ID, and given back to the
+ * destination's processor on a retry.
+ *
+ * @author Daniel Bernstein
+ */
+public class FanOutDuplicationTaskProcessor implements TaskProcessor {
+    private static final Logger log = LoggerFactory.getLogger(FanOutDuplicationTaskProcessor.class);
+
+    private static final String DEST_STATE_PREFIX = "dest.";
+
+    private Task task;
+    private Executor executor;
+    private SharedSourceContent sharedSource;
+    private Map<String, TaskProcessor> processors = new LinkedHashMap<>();
+    private Map<String, Task> destTasks = new HashMap<>();
+    private Map<String, Set<String>> destTaskKeys = new HashMap<>();
+
+    /**
+     * @param task         the task with several destination stores
+     * @param executor     runs the destinations' processors
+     * @param sharedSource the source item shared by the destinations'
+     *                     processors
+     */
+    public FanOutDuplicationTaskProcessor(Task task, Executor executor, SharedSourceContent sharedSource) {
+        this.task = task;
+        this.executor = executor;
+        this.sharedSource = sharedSource;
+    }
+
+    /**
+     * Creates the task of a single destination store, holding the state
+     * recorded for that destination by an earlier attempt.
+     *
+     * @param destStoreId
+     * @return the destination's task
+     */
+    public Task createDestinationTask(String destStoreId) {
+        DuplicationTask dupTask = new DuplicationTask();
+        dupTask.readTask(task);
+        dupTask.setDestStoreId(destStoreId);
+        Task destTask = dupTask.writeTask();
+        destTaskKeys.put(destStoreId, new HashMap<>(destTask.getProperties()).keySet());
+
+        String prefix = getStatePrefix(destStoreId);
+        for (Map.Entry<String, String> property : task.getProperties().entrySet()) {
+            if (property.getKey().startsWith(prefix)) {
+                destTask.addProperty(property.getKey().substring(prefix.length()), property.getValue());
+            }
+        }
+        destTasks.put(destStoreId, destTask);
+        return destTask;
+    }
+
+    /**
+     * @param destStoreId
+     * @param processor   duplicates the item to the destination store, using
+     *                    the task created by {@link #createDestinationTask}
+     */
+    public void addDestination(String destStoreId, TaskProcessor processor) {
+        processors.put(destStoreId, processor);
+    }
+
+    @Override
+    public void execute() throws TaskExecutionFailedException {
+        Map<String, CompletableFuture<Void>> results = new LinkedHashMap<>();
+        for (Map.Entry<String, TaskProcessor> destination : processors.entrySet()) {
+            TaskProcessor processor = destination.getValue();
+            results.put(destination.getKey(), CompletableFuture.runAsync(() -> {
+                try {
+                    processor.execute();
+                } catch (TaskExecutionFailedException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+
+        List<String> failed = new ArrayList<>();
+        Throwable failure = null;
+        try {
+            for (Map.Entry<String, CompletableFuture<Void>> result : results.entrySet()) {
+                String destStoreId = result.getKey();
+                try {
+                    result.getValue().join();
+                } catch (CompletionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    log.error("duplication to store {} failed: {}", destStoreId, cause.getMessage());
+                    failed.add(destStoreId);
+                    if (failure == null) {
+                        failure = cause;
+                    }
+                }
+                saveDestinationState(destStoreId);
+            }
+        } finally {
+            sharedSource.destroy();
+        }
+
+        if (failed.isEmpty()) {
+            return;
+        }
+
+        narrowTo(failed);
+        throw new DuplicationTaskExecutionFailedException(
+            "Duplication failed for destination stores " + failed + " of " + processors.keySet() + ": " +
+            failure.getMessage(), failure);
+    }
+
+    /*
+     * Copies the state the destination's processor recorded on its task to
+     * the fan-out task. Only that processor writes the destination's task,
+     * and it has finished by now.
+     */
+    private void saveDestinationState(String destStoreId) {
+        Task destTask = destTasks.get(destStoreId);
+        if (destTask == null) {
+            return;
+        }
+
+        Set<String> taskKeys = destTaskKeys.get(destStoreId);
+        String prefix = getStatePrefix(destStoreId);
+        for (Map.Entry<String, String> property : destTask.getProperties().entrySet()) {
+            if (!taskKeys.contains(property.getKey())) {
+                task.addProperty(prefix + property.getKey(), property.getValue());
+            }
+        }
+    }
+
+    /*
+     * Limits the task to the given destination stores. A task left with a
+     * single destination is processed as an ordinary duplication task, so
+     * that destination's state is moved back to the task's own properties.
+     */
+    private void narrowTo(List<String> destStoreIds) {
+        task.addProperty(DuplicationTask.DEST_STORE_ID_PROP, destStoreIds.get(0));
+        if (destStoreIds.size() > 1) {
+            task.addProperty(DuplicationTask.DEST_STORE_IDS_PROP, String.join(",", destStoreIds));
+            return;
+        }
+
+        task.addProperty(DuplicationTask.DEST_STORE_IDS_PROP, "");
+        String prefix = getStatePrefix(destStoreIds.get(0));
+        for (Map.Entry<String, String> property : new HashMap<>(task.getProperties()).entrySet()) {
+            if (property.getKey().startsWith(prefix)) {
+                task.addProperty(property.getKey().substring(prefix.length()), property.getValue());
+            }
+        }
+    }
+
+    private String getStatePrefix(String destStoreId) {
+        return DEST_STATE_PREFIX + destStoreId + ".";
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.dup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.regex.Pattern;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import org.duracloud.common.queue.task.Task;
+import org.duracloud.common.retry.Retriable;
+import org.duracloud.common.retry.Retrier;
+import org.duracloud.mill.common.storageprovider.S3StoreClient;
+import org.duracloud.storage.provider.StorageProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies large content items to stores reached through the S3 API (Amazon S3
+ * or Swift) as multipart uploads, reading ranges of the source item and
+ * uploading them as parts in parallel.
+ *
+ * The upload is recorded on the task (see {@link #UPLOAD_ID_PROPERTY}), so
+ * that when the task is retried the parts which were already uploaded are
+ * kept and only the rest are copied. Each part is uploaded with its MD5, which
+ * the destination checks. Parts read from the source are also digested in
+ * order, and the upload is only completed if the MD5 of the whole item matches
+ * the source checksum; parts kept from an earlier attempt are read again for
+ * this, and uploaded again if they do not match. The completed item's ETag must
+ * then be the multipart ETag of the parts: the MD5 of their MD5s followed by
+ * the number of parts. If it is not, the item is deleted from the destination.
+ *
+ * The item's properties are set when the upload is initiated. Since the
+ * store reports the multipart ETag as the checksum of the completed item, the
+ * verified MD5 of its content is also recorded as one of its properties (see
+ * {@link #CONTENT_CHECKSUM_PROPERTY}), and is read back by
+ * {@link #getContentChecksum}. Items larger than {@link #MAX_SIZE} are not
+ * copied in parts: changing the properties of an item in a store reached
+ * through the S3 API copies the item onto itself, which the API does not allow
+ * for larger items.
+ *
+ * Uploads which are abandoned, for example because their task ran out of
+ * attempts, are not cleaned up here; destination buckets should have a
+ * lifecycle rule which aborts incomplete multipart uploads.
+ *
+ * Each item read from its source holds up to parallelism parts in memory, so
+ * the heap must allow for partSize * parallelism bytes per worker which may
+ * be duplicating. Copying in parts is therefore off unless a threshold is
+ * configured.
+ *
+ * @author Daniel Bernstein
+ */
+public class MultipartContentCopier {
+    private static final Logger log = LoggerFactory.getLogger(MultipartContentCopier.class);
+
+    public static final long DEFAULT_THRESHOLD = 0;
+    public static final long DEFAULT_PART_SIZE = 32L * 1024 * 1024;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    /**
+     * The smallest part size the S3 API accepts, other than for the last part
+     */
+    public static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+
+    /**
+     * The largest item copied in parts
+     */
+    public static final long MAX_SIZE = 5L * 1024 * 1024 * 1024;
+
+    private static final int MAX_PARTS = 10000;
+
+    /**
+     * Task property holding the id of the multipart upload in progress
+     */
+    public static final String UPLOAD_ID_PROPERTY = "multipart-upload-id";
+
+    /**
+     * Task property holding the checksum of the source item when the upload
+     * in progress was started
+     */
+    public static final String UPLOAD_CHECKSUM_PROPERTY = "multipart-upload-checksum";
+
+    /**
+     * Property of an item copied in parts holding the MD5 of its content
+     */
+    public static final String CONTENT_CHECKSUM_PROPERTY = "multipart-content-checksum";
+
+    private static final Pattern MULTIPART_ETAG = Pattern.compile("[0-9a-f]{32}-[0-9]+");
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private Executor executor;
+    private long threshold;
+    private long partSize;
+    private int parallelism;
+
+    /**
+     * @param executor    runs the part copies
+     * @param threshold   the size from which items are copied in parts
+     * @param partSize    the size of each part; at least {@link #MIN_PART_SIZE}
+     * @param parallelism the most parts of one item copied at the same time
+     */
+    public MultipartContentCopier(Executor executor, long threshold, long partSize, int parallelism) {
+        if (partSize < MIN_PART_SIZE || partSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("partSize must be between " + MIN_PART_SIZE + " and " +
+                                               Integer.MAX_VALUE + ": " + partSize);
+        }
+        this.executor = executor;
+        this.threshold = threshold;
+        this.partSize = partSize;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @param size the size of the item in bytes
+     * @return true if an item of the given size is copied in parts
+     */
+    public boolean isApplicable(long size) {
+        return size >= threshold && size <= MAX_SIZE;
+    }
+
+    /**
+     * @param properties the properties of an item
+     * @return the checksum of the item: the MD5 recorded when it was copied in
+     * parts if the checksum reported for it is a multipart ETag, otherwise the
+     * reported checksum
+     */
+    public static String getContentChecksum(Map<String, String> properties) {
+        String checksum = properties.get(StorageProvider.PROPERTIES_CONTENT_CHECKSUM);
+        String contentChecksum = properties.get(CONTENT_CHECKSUM_PROPERTY);
+        if (checksum != null && contentChecksum != null && MULTIPART_ETAG.matcher(checksum).matches()) {
+            return contentChecksum;
+        }
+        return checksum;
+    }
+
+    /**
+     * Copies a content item and its properties to the destination store.
+     *
+     * @param sourceStore    the store from which the item's ranges are read
+     * @param dest           the store to which the item is copied
+     * @param spaceId
+     * @param contentId
+     * @param size           the size of the item
+     * @param sourceChecksum the MD5 of the item
+     * @param mimetype
+     * @param properties     the properties of the item
+     * @param task           the task on which the upload is recorded
+     * @throws Exception if the copy failed
+     */
+    public void copy(StorageProvider sourceStore,
+                     S3StoreClient dest,
+                     String spaceId,
+                     String contentId,
+                     long size,
+                     String sourceChecksum,
+                     String mimetype,
+                     Map<String, String> properties,
+                     Task task) throws Exception {
+        AmazonS3 client = dest.getClient();
+        String bucketName = dest.getBucketName(spaceId);
+        copyInParts(client, bucketName, spaceId, contentId, size, sourceChecksum, mimetype, properties, task,
+            (uploadId, partNumber, offset, length, uploaded) ->
+                uploadPart(sourceStore, client, bucketName, spaceId, contentId, uploadId, partNumber, offset,
+                           length, uploaded));
+    }
+
+    private void copyInParts(AmazonS3 client,
+                             String bucketName,
+                             String spaceId,
+                             String contentId,
+                             long size,
+                             String sourceChecksum,
+                             String mimetype,
+                             Map<String, String> properties,
+                             Task task,
+                             PartCopier partCopier) throws Exception {
+        long itemPartSize = Math.max(partSize, (size + MAX_PARTS - 1) / MAX_PARTS);
+        int partCount = (int) ((size + itemPartSize - 1) / itemPartSize);
+
+        Map<Integer, PartETag> uploaded = new HashMap<>();
+        String uploadId = resumeUpload(client, bucketName, contentId, sourceChecksum, size, itemPartSize,
+                                       task, uploaded);
+        if (uploadId == null) {
+            //the checksum is recorded before the content has been read, but
+            //the upload is only completed if the content matches it
+            Map<String, String> itemProperties = new HashMap<>();
+            if (properties != null) {
+                itemProperties.putAll(properties);
+            }
+            itemProperties.put(CONTENT_CHECKSUM_PROPERTY, sourceChecksum);
+            ObjectMetadata metadata = S3ContentMetadata.create(mimetype, itemProperties);
+            uploadId = client.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest(bucketName, contentId, metadata)).getUploadId();
+            task.addProperty(UPLOAD_ID_PROPERTY, uploadId);
+            task.addProperty(UPLOAD_CHECKSUM_PROPERTY, sourceChecksum);
+        }
+
+        log.info("copying {} in space {} to bucket {} in {} parts of {} bytes ({} already uploaded)",
+                 contentId, spaceId, bucketName, partCount, itemPartSize, uploaded.size());
+
+        //the parts are collected in order, so that the content read from the
+        //source can be digested as a whole
+        MessageDigest itemDigest = MessageDigest.getInstance("MD5");
+        MessageDigest partsDigest = MessageDigest.getInstance("MD5");
+        List<PartETag> partETags = new ArrayList<>(partCount);
+        LinkedList<CompletableFuture<CopiedPart>> inProgress = new LinkedList<>();
+        try {
+            for (int partNumber = 1; partNumber <= partCount; partNumber++) {
+                //bounds the memory held by this item's parts
+                if (inProgress.size() >= parallelism) {
+                    collect(inProgress.removeFirst().join(), partETags, partsDigest, itemDigest);
+                }
+
+                long offset = (partNumber - 1) * itemPartSize;
+                long length = Math.min(itemPartSize, size - offset);
+                String partUploadId = uploadId;
+                int number = partNumber;
+                PartETag uploadedPart = uploaded.get(partNumber);
+                inProgress.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return partCopier.copy(partUploadId, number, offset, length, uploadedPart);
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor));
+            }
+
+            while (!inProgress.isEmpty()) {
+                collect(inProgress.removeFirst().join(), partETags, partsDigest, itemDigest);
+            }
+        } catch (CompletionException e) {
+            for (CompletableFuture<CopiedPart> part : inProgress) {
+                part.cancel(false);
+            }
+            //the upload is kept so that a retry can resume it
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+
+        String readChecksum = HEX.formatHex(itemDigest.digest());
+        if (!sourceChecksum.equals(readChecksum)) {
+            abort(client, bucketName, contentId, uploadId);
+            clearUpload(task);
+            throw new RuntimeException("Checksum of content read from source (" + readChecksum +
+                                       ") does not match source (" + sourceChecksum + ")");
+        }
+
+        CompleteMultipartUploadResult completed = client.completeMultipartUpload(
+            new CompleteMultipartUploadRequest(bucketName, contentId, uploadId, partETags));
+        clearUpload(task);
+
+        String expectedETag = HEX.formatHex(partsDigest.digest()) + "-" + partCount;
+        String completedETag = unquote(completed.getETag());
+        if (!expectedETag.equals(completedETag)) {
+            delete(client, bucketName, contentId);
+            throw new RuntimeException("ETag of copied content (" + completedETag +
+                                       ") does not match its parts (" + expectedETag + ")");
+        }
+    }
+
+    /*
+     * Adds a copied part to the parts of the upload and to the digests
+     */
+    private void collect(CopiedPart part,
+                         List<PartETag> partETags,
+                         MessageDigest partsDigest,
+                         MessageDigest itemDigest) {
+        partETags.add(part.partETag);
+        partsDigest.update(HEX.parseHex(unquote(part.partETag.getETag())));
+        itemDigest.update(part.content);
+    }
+
+    private void clearUpload(Task task) {
+        task.addProperty(UPLOAD_ID_PROPERTY, "");
+    }
+
+    private void delete(AmazonS3 client, String bucketName, String contentId) {
+        try {
+            client.deleteObject(bucketName, contentId);
+        } catch (Exception e) {
+            log.warn("unable to delete mismatched copy of " + contentId + " in bucket " + bucketName + ": " +
+                     e.getMessage(), e);
+        }
+    }
+
+    private static String unquote(String etag) {
+        return etag == null ? null : etag.replace("\"", "");
+    }
+
+    /*
+     * Returns the id of the upload recorded on the task, filling in the parts
+     * it already holds, or null if there is no upload to resume. Parts whose
+     * size is not the one expected for their number (for example because the
+     * part size has been changed) are uploaded again.
+     */
+    private String resumeUpload(AmazonS3 client,
+                                String bucketName,
+                                String contentId,
+                                String sourceChecksum,
+                                long size,
+                                long itemPartSize,
+                                Task task,
+                                Map<Integer, PartETag> uploaded) {
+        String uploadId = task.getProperty(UPLOAD_ID_PROPERTY);
+        if (uploadId == null || uploadId.isEmpty()) {
+            return null;
+        }
+
+        if (!sourceChecksum.equals(task.getProperty(UPLOAD_CHECKSUM_PROPERTY))) {
+            //the source item has changed since the upload was started
+            abort(client, bucketName, contentId, uploadId);
+            return null;
+        }
+
+        try {
+            ListPartsRequest request = new ListPartsRequest(bucketName, contentId, uploadId);
+            PartListing listing;
+            do {
+                listing = client.listParts(request);
+                for (PartSummary part : listing.getParts()) {
+                    long offset = (part.getPartNumber() - 1) * itemPartSize;
+                    if (offset < size && part.getSize() == Math.min(itemPartSize, size - offset)) {
+                        uploaded.put(part.getPartNumber(), new PartETag(part.getPartNumber(), part.getETag()));
+                    }
+                }
+                request.setPartNumberMarker(listing.getNextPartNumberMarker());
+            } while (listing.isTruncated());
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                log.info("upload {} of {} no longer exists: starting again", uploadId, contentId);
+                uploaded.clear();
+                return null;
+            }
+            throw e;
+        }
+        return uploadId;
+    }
+
+    private void abort(AmazonS3 client, String bucketName, String contentId, String uploadId) {
+        try {
+            client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, contentId, uploadId));
+        } catch (Exception e) {
+            log.warn("unable to abort upload " + uploadId + " of " + contentId + ": " + e.getMessage(), e);
+        }
+    }
+
+    private CopiedPart uploadPart(StorageProvider sourceStore,
+                                  AmazonS3 client,
+                                  String bucketName,
+                                  String spaceId,
+                                  String contentId,
+                                  String uploadId,
+                                  int partNumber,
+                                  long offset,
+                                  long length,
+                                  PartETag uploaded) throws Exception {
+        return new Retrier().execute(new Retriable() {
+            @Override
+            public CopiedPart retry() throws Exception {
+                byte[] part = readRange(sourceStore, spaceId, contentId, offset, length);
+                byte[] md5 = MessageDigest.getInstance("MD5").digest(part);
+                if (uploaded != null && HEX.formatHex(md5).equals(unquote(uploaded.getETag()))) {
+                    return new CopiedPart(uploaded, part);
+                }
+
+                UploadPartRequest request = new UploadPartRequest().withBucketName(bucketName)
+                                                                   .withKey(contentId)
+                                                                   .withUploadId(uploadId)
+                                                                   .withPartNumber(partNumber)
+                                                                   .withPartSize(part.length)
+                                                                   .withMD5Digest(
+                                                                       Base64.getEncoder().encodeToString(md5))
+                                                                   .withInputStream(
+                                                                       new ByteArrayInputStream(part));
+                return new CopiedPart(client.uploadPart(request).getPartETag(), part);
+            }
+        });
+    }
+
+    private byte[] readRange(StorageProvider sourceStore,
+                             String spaceId,
+                             String contentId,
+                             long offset,
+                             long length) throws IOException {
+        String range = "bytes=" + offset + "-" + (offset + length - 1);
+        byte[] part = new byte[(int) length];
+        int read = 0;
+        try (InputStream in = sourceStore.getContent(spaceId, contentId, range).getContentStream()) {
+            while (read < part.length) {
+                int count = in.read(part, read, part.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            if (read < part.length || in.read() != -1) {
+                throw new IOException("Range " + range + " of " + contentId + " did not return " + length +
+                                      " bytes");
+            }
+        }
+        return part;
+    }
+
+    /*
+     * Puts one part of the item in the upload. The part may already have been
+     * uploaded, in which case uploaded is its ETag.
+     */
+    private interface PartCopier {
+        CopiedPart copy(String uploadId, int partNumber, long offset, long length, PartETag uploaded)
+            throws Exception;
+    }
+
+    /*
+     * A part in the upload, with its content as read from the source
+     */
+    private static class CopiedPart {
+        private PartETag partETag;
+        private byte[] content;
+
+        CopiedPart(PartETag partETag, byte[] content) {
+            this.partETag = partETag;
+            this.content = content;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.dup;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import javax.ws.rs.core.HttpHeaders;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.duracloud.storage.util.StorageProviderUtil;
+
+/**
+ * Builds the metadata of content items which are written to a store through
+ * the S3 API rather than through its storage provider. The item's properties
+ * are encoded as the S3 storage provider encodes them when it adds content,
+ * so that the provider reads them back as the item's properties.
+ *
+ * @author Daniel Bernstein
+ */
+class S3ContentMetadata {
+
+    private static final String DEFAULT_MIMETYPE = "application/octet-stream";
+    private static final String HEADER_KEY_SUFFIX = "*";
+    private static final String HEADER_VALUE_PREFIX = StandardCharsets.UTF_8.name() + "''";
+
+    private S3ContentMetadata() {
+    }
+
+    /**
+     * @param mimetype   the mimetype of the item; may be null
+     * @param properties the properties of the item; may be null
+     * @return the metadata with which to write the item
+     */
+    static ObjectMetadata create(String mimetype, Map<String, String> properties) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(mimetype == null || mimetype.isEmpty() ? DEFAULT_MIMETYPE : mimetype);
+        if (properties == null) {
+            return metadata;
+        }
+
+        Map<String, String> userProperties = StorageProviderUtil.removeCalculatedProperties(properties);
+        String encoding = userProperties.remove(HttpHeaders.CONTENT_ENCODING);
+        if (encoding != null) {
+            metadata.setContentEncoding(encoding);
+        }
+        for (Map.Entry<String, String> property : userProperties.entrySet()) {
+            if (property.getValue() != null) {
+                metadata.addUserMetadata(property.getKey() + HEADER_KEY_SUFFIX,
+                                         encodeValue(property.getValue()));
+            }
+        }
+        return metadata;
+    }
+
+    private static String encodeValue(String value) {
+        return HEADER_VALUE_PREFIX + URLEncoder.encode(value.replaceAll(" ", "%20"), StandardCharsets.UTF_8);
+    }
+}
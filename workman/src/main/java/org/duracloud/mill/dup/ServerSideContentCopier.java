@@ -0,0 +1,94 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.dup;
+
+import java.util.Map;
+
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.duracloud.common.retry.Retriable;
+import org.duracloud.common.retry.Retrier;
+import org.duracloud.mill.common.storageprovider.S3StoreClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies content items between two stores in the same location of the same
+ * provider (see {@link S3StoreClient#isCopyableTo}) within the provider, so
+ * that none of their bytes pass through the worker, using a single CopyObject
+ * which also sets the item's properties.
+ *
+ * The copy's ETag is the MD5 of the whole item, which must match the source
+ * checksum; a copy which does not match is deleted from the destination.
+ * Items over {@link #MAX_SIZE} bytes cannot be copied in a single request, so
+ * are not copied this way.
+ *
+ * @author Daniel Bernstein
+ */
+public class ServerSideContentCopier {
+    private static final Logger log = LoggerFactory.getLogger(ServerSideContentCopier.class);
+
+    /**
+     * The largest item which can be copied in one request
+     */
+    public static final long MAX_SIZE = 5L * 1024 * 1024 * 1024;
+
+    /**
+     * @param source the store from which the item would be copied
+     * @param dest   the store to which the item would be copied
+     * @param size   the size of the item in bytes
+     * @return true if the item can be copied within the provider
+     */
+    public boolean isApplicable(S3StoreClient source, S3StoreClient dest, long size) {
+        return size <= MAX_SIZE && source.isCopyableTo(dest);
+    }
+
+    /**
+     * Copies a content item and its properties to the destination store.
+     *
+     * @param source         the store from which the item is copied
+     * @param dest           the store to which the item is copied
+     * @param spaceId
+     * @param contentId
+     * @param sourceChecksum the MD5 of the item
+     * @param mimetype
+     * @param properties     the properties of the item
+     * @throws Exception if the copy failed
+     */
+    public void copy(S3StoreClient source,
+                     S3StoreClient dest,
+                     String spaceId,
+                     String contentId,
+                     String sourceChecksum,
+                     String mimetype,
+                     Map<String, String> properties) throws Exception {
+        ObjectMetadata metadata = S3ContentMetadata.create(mimetype, properties);
+        String bucketName = dest.getBucketName(spaceId);
+        CopyObjectRequest request = new CopyObjectRequest(source.getBucketName(spaceId),
+                                                          contentId,
+                                                          bucketName,
+                                                          contentId).withNewObjectMetadata(metadata);
+        CopyObjectResult copied = new Retrier().execute(new Retriable() {
+            @Override
+            public CopyObjectResult retry() throws Exception {
+                return dest.getClient().copyObject(request);
+            }
+        });
+        if (!sourceChecksum.equals(copied.getETag())) {
+            try {
+                dest.getClient().deleteObject(bucketName, contentId);
+            } catch (Exception e) {
+                log.warn("unable to delete mismatched copy of " + contentId + " in bucket " + bucketName + ": " +
+                         e.getMessage(), e);
+            }
+            throw new RuntimeException("Checksum of copied content (" + copied.getETag() +
+                                       ") does not match source (" + sourceChecksum + ")");
+        }
+    }
+}
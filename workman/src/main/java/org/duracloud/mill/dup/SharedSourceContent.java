@@ -0,0 +1,154 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.dup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+import org.duracloud.mill.workman.TaskExecutionFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The source content item of a duplication task with several destination
+ * stores, shared by the processors of the destinations so that its properties
+ * and content are only retrieved from the source once.
+ *
+ * Whichever processor first needs the properties or the content retrieves
+ * them; the others wait for that retrieval rather than each querying the
+ * source, and reuse its result. No lock is held while retrieving, so a
+ * processor waiting for the content does not tie up its thread's carrier
+ * when running on a virtual thread. A failed retrieval is not kept, so each
+ * processor which was waiting for it, and the next to need it, tries again.
+ *
+ * @author Daniel Bernstein
+ */
+public class SharedSourceContent {
+    private static final Logger log = LoggerFactory.getLogger(SharedSourceContent.class);
+
+    private AtomicReference<FutureTask<Map<String, String>>> properties = new AtomicReference<>();
+    private AtomicReference<FutureTask<File>> file = new AtomicReference<>();
+
+    /**
+     * Retrieves a property map or file from the source store.
+     */
+    public interface Retrieval<T> {
+        T retrieve() throws TaskExecutionFailedException;
+    }
+
+    /**
+     * @param retrieval retrieves the properties of the source item, if no
+     *                  other processor has
+     * @return a copy of the properties of the source item, or null if it does
+     * not exist
+     * @throws TaskExecutionFailedException
+     */
+    public Map<String, String> getProperties(Retrieval<Map<String, String>> retrieval)
+        throws TaskExecutionFailedException {
+        Map<String, String> retrieved = get(properties, retrieval);
+        return retrieved == null ? null : new HashMap<>(retrieved);
+    }
+
+    /**
+     * @param retrieval copies the source item to a local file, whose checksum
+     *                  matches the source's, if no other processor has
+     * @return the local copy of the source item, which the caller must not
+     * delete
+     * @throws TaskExecutionFailedException
+     */
+    public File getFile(Retrieval<File> retrieval) throws TaskExecutionFailedException {
+        return get(file, retrieval);
+    }
+
+    /**
+     * Deletes the local copy of the source item, once all processors are
+     * done with it.
+     */
+    public void destroy() {
+        FutureTask<File> retrieved = file.getAndSet(null);
+        if (retrieved == null || !retrieved.isDone()) {
+            return;
+        }
+
+        File localFile;
+        try {
+            localFile = retrieved.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return;
+        }
+        if (localFile != null) {
+            try {
+                FileUtils.forceDelete(localFile);
+            } catch (IOException e) {
+                log.info("Unable to delete temp file: " + localFile.getAbsolutePath() +
+                         " due to: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private <T> T get(AtomicReference<FutureTask<T>> result, Retrieval<T> retrieval)
+        throws TaskExecutionFailedException {
+        while (true) {
+            FutureTask<T> current = result.get();
+            boolean claimed = false;
+            if (current == null) {
+                FutureTask<T> retrieving = new FutureTask<>(retrieval::retrieve);
+                if (!result.compareAndSet(null, retrieving)) {
+                    //another processor started the retrieval first: wait for it.
+                    continue;
+                }
+                retrieving.run();
+                current = retrieving;
+                claimed = true;
+            }
+
+            try {
+                return await(current);
+            } catch (TaskExecutionFailedException | RuntimeException | Error e) {
+                result.compareAndSet(current, null);
+                if (claimed) {
+                    throw e;
+                }
+                log.info("shared retrieval of the source item failed ({}): retrying", e.getMessage());
+            }
+        }
+    }
+
+    private <T> T await(FutureTask<T> retrieval) throws TaskExecutionFailedException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return retrieval.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TaskExecutionFailedException) {
+                throw (TaskExecutionFailedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause.getMessage(), cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
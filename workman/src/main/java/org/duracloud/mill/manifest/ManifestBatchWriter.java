@@ -0,0 +1,157 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.manifest;
+
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import org.duracloud.mill.workman.TransactionalBatchWriter;
+import org.springframework.transaction.PlatformTransactionManager;
+
+/**
+ * Gathers the manifest updates and deletions made by all audit workers into
+ * batches which are written in a single transaction (see
+ * {@link TransactionalBatchWriter}).
+ *
+ * The items of a batch are applied in timestamp order, so that when a batch
+ * holds several events for the same content item the latest one is applied
+ * last, just as the manifest store's own timestamp checks order events
+ * across batches.
+ *
+ * The manifest store applies each update in a transaction of its own, so the
+ * updates of a batch are applied through a second manifest store whose
+ * writes join the batch's transaction: one which is not managed by Spring, so
+ * that the transactions declared on its methods do not apply.
+ *
+ * @author Daniel Bernstein
+ */
+public class ManifestBatchWriter extends TransactionalBatchWriter<ManifestBatchWriter.Update> {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1;
+    public static final long DEFAULT_MAX_WAIT_MS = 5;
+
+    private ManifestStore manifestStore;
+    private ManifestStore batchManifestStore;
+
+    /**
+     * @param manifestStore      writes each update which is not part of a
+     *                           batch, in a transaction of its own
+     * @param batchManifestStore writes the updates of each batch within the
+     *                           batch's transaction
+     * @param transactionManager the transaction manager of the manifest
+     *                           store, in whose transactions the batches are
+     *                           written
+     * @param maxBatchSize       the most updates written in one transaction
+     * @param maxWaitMs          how long the first update of a batch waits
+     *                           for others to join it
+     */
+    public ManifestBatchWriter(ManifestStore manifestStore,
+                               ManifestStore batchManifestStore,
+                               PlatformTransactionManager transactionManager,
+                               int maxBatchSize,
+                               long maxWaitMs) {
+        super("manifest", transactionManager, maxBatchSize, maxWaitMs);
+        this.manifestStore = manifestStore;
+        this.batchManifestStore = batchManifestStore;
+    }
+
+    @Override
+    protected void writeItem(Update update) throws ManifestItemWriteException {
+        update.writeTo(manifestStore);
+    }
+
+    @Override
+    protected void writeItems(List<Update> batch) throws ManifestItemWriteException {
+        for (Update update : batch) {
+            update.writeTo(batchManifestStore);
+        }
+    }
+
+    @Override
+    protected void order(List<Update> batch) {
+        //stable, so events with the same timestamp keep their arrival order
+        batch.sort(Comparator.comparing(update -> update.timestamp));
+    }
+
+    /**
+     * An addition, update or deletion of a manifest item.
+     */
+    public static class Update {
+        private String account;
+        private String storeId;
+        private String spaceId;
+        private String contentId;
+        private String contentChecksum;
+        private String contentMimetype;
+        private String contentSize;
+        private Date timestamp;
+        private boolean deleted;
+
+        private Update(String account,
+                       String storeId,
+                       String spaceId,
+                       String contentId,
+                       String contentChecksum,
+                       String contentMimetype,
+                       String contentSize,
+                       Date timestamp,
+                       boolean deleted) {
+            this.account = account;
+            this.storeId = storeId;
+            this.spaceId = spaceId;
+            this.contentId = contentId;
+            this.contentChecksum = contentChecksum;
+            this.contentMimetype = contentMimetype;
+            this.contentSize = contentSize;
+            this.timestamp = timestamp;
+            this.deleted = deleted;
+        }
+
+        /**
+         * @return the arguments of {@link ManifestStore#addUpdate}
+         */
+        public static Update addUpdate(String account,
+                                       String storeId,
+                                       String spaceId,
+                                       String contentId,
+                                       String contentChecksum,
+                                       String contentMimetype,
+                                       String contentSize,
+                                       Date timestamp) {
+            return new Update(account, storeId, spaceId, contentId, contentChecksum, contentMimetype,
+                              contentSize, timestamp, false);
+        }
+
+        /**
+         * @return the arguments of {@link ManifestStore#flagAsDeleted}
+         */
+        public static Update flagAsDeleted(String account,
+                                           String storeId,
+                                           String spaceId,
+                                           String contentId,
+                                           Date timestamp) {
+            return new Update(account, storeId, spaceId, contentId, null, null, null, timestamp, true);
+        }
+
+        public void writeTo(ManifestStore manifestStore) throws ManifestItemWriteException {
+            if (deleted) {
+                manifestStore.flagAsDeleted(account, storeId, spaceId, contentId, timestamp);
+            } else {
+                manifestStore.addUpdate(account,
+                                        storeId,
+                                        spaceId,
+                                        contentId,
+                                        contentChecksum,
+                                        contentMimetype,
+                                        contentSize,
+                                        timestamp);
+            }
+        }
+    }
+}
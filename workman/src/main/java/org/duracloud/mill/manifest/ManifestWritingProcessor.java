@@ -24,15 +24,27 @@ public class ManifestWritingProcessor extends TaskProcessorBase {
     private static Logger log = LoggerFactory.getLogger(ManifestWritingProcessor.class);
     private AuditTask task;
     private ManifestStore manifestStore;
+    private ManifestBatchWriter batchWriter;
 
     /**
      * @param task
      * @param manifestStore
      */
     public ManifestWritingProcessor(AuditTask task, ManifestStore manifestStore) {
+        this(task, manifestStore, null);
+    }
+
+    /**
+     * @param task
+     * @param manifestStore
+     * @param batchWriter   writes the update in a batch with those of other
+     *                      tasks; if null the update is written on its own
+     */
+    public ManifestWritingProcessor(AuditTask task, ManifestStore manifestStore, ManifestBatchWriter batchWriter) {
         super(task);
         this.task = task;
         this.manifestStore = manifestStore;
+        this.batchWriter = batchWriter;
     }
 
     /* (non-Javadoc)
@@ -60,20 +72,20 @@ public class ManifestWritingProcessor extends TaskProcessorBase {
                     size = "0";
                 }
 
-                this.manifestStore.addUpdate(account,
-                                             storeId,
-                                             spaceId,
-                                             contentId,
-                                             task.getContentChecksum(),
-                                             mimetype,
-                                             size,
-                                             timeStamp);
+                write(ManifestBatchWriter.Update.addUpdate(account,
+                                                           storeId,
+                                                           spaceId,
+                                                           contentId,
+                                                           task.getContentChecksum(),
+                                                           mimetype,
+                                                           size,
+                                                           timeStamp));
             } else if (ActionType.DELETE_CONTENT.name().equals(action)) {
-                this.manifestStore.flagAsDeleted(account,
-                                                 storeId,
-                                                 spaceId,
-                                                 contentId,
-                                                 timeStamp);
+                write(ManifestBatchWriter.Update.flagAsDeleted(account,
+                                                               storeId,
+                                                               spaceId,
+                                                               contentId,
+                                                               timeStamp));
             } else {
                 log.debug("action {} not handled by this processor: task={}", action, task);
             }
@@ -85,4 +97,11 @@ public class ManifestWritingProcessor extends TaskProcessorBase {
         }
     }
 
+    private void write(ManifestBatchWriter.Update update) throws Exception {
+        if (batchWriter != null) {
+            batchWriter.write(update);
+        } else {
+            update.writeTo(manifestStore);
+        }
+    }
 }
@@ -18,9 +18,20 @@ import org.duracloud.mill.workman.TaskProcessor;
 public class ManifestWritingProcessorFactory extends AuditTaskProcessorFactory {
 
     private ManifestStore manifestStore;
+    private ManifestBatchWriter batchWriter;
 
     public ManifestWritingProcessorFactory(ManifestStore manifestStore) {
+        this(manifestStore, null);
+    }
+
+    /**
+     * @param manifestStore
+     * @param batchWriter   shared by the processors to write their updates in
+     *                      batches; may be null
+     */
+    public ManifestWritingProcessorFactory(ManifestStore manifestStore, ManifestBatchWriter batchWriter) {
         this.manifestStore = manifestStore;
+        this.batchWriter = batchWriter;
     }
 
     /* (non-Javadoc)
@@ -28,6 +39,6 @@ public class ManifestWritingProcessorFactory extends AuditTaskProcessorFactory {
      */
     @Override
     protected TaskProcessor createImpl(AuditTask auditTask) {
-        return new ManifestWritingProcessor(auditTask, manifestStore);
+        return new ManifestWritingProcessor(auditTask, manifestStore, batchWriter);
     }
 }
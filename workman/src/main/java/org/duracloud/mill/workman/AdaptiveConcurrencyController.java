@@ -0,0 +1,316 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang.StringUtils;
+import org.duracloud.common.queue.task.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adjusts the size of a {@link WorkerPool} at runtime using an additive
+ * increase / multiplicative decrease (AIMD) policy.
+ *
+ * Task completions are observed as a {@link TaskWorkerListener}. At the end of
+ * each sampling interval the limit is cut by a quarter if, during the
+ * interval, any task was throttled by the storage provider (503 / SlowDown),
+ * the failure rate was too high, host CPU was saturated or task latency grew
+ * well beyond its baseline. Otherwise, if the pool was fully used, the limit
+ * is raised by one. The limit always stays within the configured bounds and
+ * every change is logged.
+ *
+ * Each task type's latency baseline is a moving average of its mean latency
+ * per interval, and is only compared with once it has been built from enough
+ * tasks. Intervals with too few tasks of a type are ignored for that type, and
+ * so are duplication and bit integrity tasks, whose latency depends on the
+ * size of their content item rather than on load.
+ *
+ * @author Daniel Bernstein
+ */
+public class AdaptiveConcurrencyController implements TaskWorkerListener {
+    private static Logger log = LoggerFactory.getLogger(AdaptiveConcurrencyController.class);
+
+    public static final long DEFAULT_INTERVAL_MS = 30 * 1000;
+
+    /*
+     * fraction of failed tasks in an interval above which the limit is cut
+     */
+    static final double MAX_FAILURE_RATE = 0.1;
+
+    /*
+     * host cpu load (0-1) above which the limit is cut
+     */
+    static final double MAX_CPU_LOAD = 0.9;
+
+    /*
+     * ratio of interval latency to baseline latency above which the limit is cut
+     */
+    static final double MAX_LATENCY_RATIO = 2.0;
+
+    /*
+     * the fewest tasks of a type in an interval for its latency to be used
+     */
+    static final int MIN_INTERVAL_SAMPLES = 10;
+
+    /*
+     * the fewest tasks of a type from which its baseline must be built before
+     * it is compared with
+     */
+    static final int MIN_BASELINE_SAMPLES = 50;
+
+    /*
+     * weight of each interval's latency in the baseline's moving average
+     */
+    static final double BASELINE_WEIGHT = 0.2;
+
+    private static final Set<Task.Type> SIZE_DEPENDENT_TYPES = EnumSet.of(Task.Type.DUP, Task.Type.BIT);
+
+    static final double DECREASE_FACTOR = 0.75;
+
+    private static final String[] THROTTLE_MARKERS = {
+        "SlowDown", "Status Code: 503", "Status Code: 429", "Throttl", "Too Many Requests"
+    };
+
+    private WorkerPool pool;
+    private int minWorkers;
+    private int maxWorkers;
+    private long intervalMs = DEFAULT_INTERVAL_MS;
+    private Timer timer;
+
+    /*
+     * taskCompleted() is called on worker threads (possibly virtual threads)
+     * so a lock is used rather than a monitor to avoid pinning.
+     */
+    private final ReentrantLock windowLock = new ReentrantLock();
+    private Map<Task.Type, Stats> window = new EnumMap<>(Task.Type.class);
+    private Map<Task.Type, Baseline> baselines = new EnumMap<>(Task.Type.class);
+
+    public AdaptiveConcurrencyController(WorkerPool pool, int minWorkers, int maxWorkers) {
+        if (minWorkers < 1 || maxWorkers < minWorkers) {
+            throw new IllegalArgumentException("invalid worker bounds: min=" + minWorkers + " max=" + maxWorkers);
+        }
+        this.pool = pool;
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+    }
+
+    public void setIntervalMs(long intervalMs) {
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * Starts adjusting the pool from its current size, brought within the
+     * bounds, so that a worker does not lose its capacity on start up and
+     * then take an interval per worker to win it back; if that is more than
+     * the stores can take, the decrease path backs off quickly.
+     */
+    public void start() {
+        int limit = Math.max(minWorkers, Math.min(maxWorkers, pool.getWorkerLimit()));
+        pool.setWorkerLimit(limit);
+        log.info("adaptive concurrency started: worker_limit={} min_workers={} max_workers={} interval_ms={}",
+                 limit, minWorkers, maxWorkers, intervalMs);
+        timer = new Timer("adaptive-concurrency", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    adjust();
+                } catch (Exception e) {
+                    log.error("failed to adjust worker limit: " + e.getMessage(), e);
+                }
+            }
+        }, intervalMs, intervalMs);
+    }
+
+    public void stop() {
+        if (timer != null) {
+            timer.cancel();
+        }
+    }
+
+    @Override
+    public void taskCompleted(Task task, long elapsedMs, Throwable failure) {
+        Task.Type type = task.getType() != null ? task.getType() : Task.Type.NOOP;
+        windowLock.lock();
+        try {
+            Stats stats = window.get(type);
+            if (stats == null) {
+                stats = new Stats();
+                window.put(type, stats);
+            }
+            stats.completed++;
+            stats.totalLatencyMs += elapsedMs;
+            if (failure != null) {
+                stats.failed++;
+                if (isThrottle(failure)) {
+                    stats.throttled++;
+                }
+            }
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    /**
+     * Evaluates the last interval and changes the worker limit if called for.
+     *
+     * @return the new worker limit
+     */
+    protected int adjust() {
+        Map<Task.Type, Stats> sample;
+        windowLock.lock();
+        try {
+            sample = window;
+            window = new EnumMap<>(Task.Type.class);
+        } finally {
+            windowLock.unlock();
+        }
+
+        int completed = 0;
+        int failed = 0;
+        int throttled = 0;
+        double latency = 0;
+        double baseline = 0;
+        for (Map.Entry<Task.Type, Stats> entry : sample.entrySet()) {
+            Stats stats = entry.getValue();
+            completed += stats.completed;
+            failed += stats.failed;
+            throttled += stats.throttled;
+
+            if (SIZE_DEPENDENT_TYPES.contains(entry.getKey()) || stats.completed < MIN_INTERVAL_SAMPLES) {
+                continue;
+            }
+
+            //weight each type's latency by its share of completions so that
+            //a mix of long and short task types compares like with like.
+            double avg = (double) stats.totalLatencyMs / stats.completed;
+            Baseline typeBaseline = baselines.computeIfAbsent(entry.getKey(), t -> new Baseline());
+            if (typeBaseline.samples >= MIN_BASELINE_SAMPLES) {
+                latency += avg * stats.completed;
+                baseline += typeBaseline.latency * stats.completed;
+            }
+            typeBaseline.add(avg, stats.completed);
+        }
+
+        double latencyRatio = baseline > 0 ? latency / baseline : 1.0;
+        double cpuLoad = getCpuLoad();
+        int peakRunning = pool.getAndResetPeakRunningWorkers();
+        int limit = pool.getWorkerLimit();
+
+        String reason = null;
+        int newLimit = limit;
+        if (throttled > 0) {
+            reason = "throttled";
+        } else if (completed > 0 && (double) failed / completed > MAX_FAILURE_RATE) {
+            reason = "failure_rate";
+        } else if (cpuLoad > MAX_CPU_LOAD) {
+            reason = "cpu";
+        } else if (latencyRatio > MAX_LATENCY_RATIO) {
+            reason = "latency";
+        }
+
+        if (reason != null) {
+            newLimit = Math.max(minWorkers, Math.min(limit - 1, (int) (limit * DECREASE_FACTOR)));
+        } else if (peakRunning >= limit) {
+            reason = "saturated";
+            newLimit = Math.min(maxWorkers, limit + 1);
+        }
+
+        if (newLimit != limit) {
+            pool.setWorkerLimit(newLimit);
+            log.info("worker limit changed: old_limit={} new_limit={} reason={} completed={} failed={} " +
+                     "throttled={} latency_ratio={} cpu_load={} peak_running={}",
+                     limit, newLimit, reason, completed, failed, throttled,
+                     String.format("%.2f", latencyRatio), String.format("%.2f", cpuLoad), peakRunning);
+        } else {
+            log.debug("worker limit unchanged: limit={} completed={} failed={} throttled={} " +
+                      "latency_ratio={} cpu_load={} peak_running={}",
+                      limit, completed, failed, throttled,
+                      String.format("%.2f", latencyRatio), String.format("%.2f", cpuLoad), peakRunning);
+        }
+        return newLimit;
+    }
+
+    /**
+     * @return the host CPU load between 0 and 1.
+     */
+    protected double getCpuLoad() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            double load = ((com.sun.management.OperatingSystemMXBean) os).getCpuLoad();
+            if (load >= 0) {
+                return load;
+            }
+        }
+        double loadAverage = os.getSystemLoadAverage();
+        return loadAverage < 0 ? 0 : loadAverage / os.getAvailableProcessors();
+    }
+
+    /**
+     * @return true if the error, or any of its causes, indicates that a
+     * remote service is throttling requests.
+     */
+    protected static boolean isThrottle(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            String message = t.getMessage();
+            if (message != null) {
+                for (String marker : THROTTLE_MARKERS) {
+                    if (StringUtils.contains(message, marker)) {
+                        return true;
+                    }
+                }
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    public int getMinWorkers() {
+        return minWorkers;
+    }
+
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    private static class Stats {
+        private int completed;
+        private int failed;
+        private int throttled;
+        private long totalLatencyMs;
+    }
+
+    /*
+     * The typical latency of a task type: an exponentially weighted moving
+     * average of its mean latency per interval, so that a single fast or slow
+     * interval moves it only part of the way and a lasting shift is accepted
+     * over a few intervals.
+     */
+    private static class Baseline {
+        private double latency;
+        private long samples;
+
+        void add(double intervalLatency, int count) {
+            latency = samples == 0 ? intervalLatency :
+                      latency * (1 - BASELINE_WEIGHT) + intervalLatency * BASELINE_WEIGHT;
+            samples += count;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.util.List;
+
+import org.duracloud.common.queue.task.Task;
+
+/**
+ * Implemented by task queues which can extend the visibility timeout of many
+ * tasks in a single call.
+ *
+ * @author Daniel Bernstein
+ */
+public interface BatchVisibilityTimeoutExtender {
+
+    /**
+     * Extends the visibility timeout of each task by its own
+     * visibility timeout. Workers may change the properties of their tasks
+     * while they are being extended, so the tasks must not be hashed or
+     * compared by equality.
+     *
+     * @param tasks
+     * @return the tasks (the same instances) whose visibility timeout could
+     * not be extended; empty if all succeeded.
+     */
+    List<Task> extendVisibilityTimeouts(List<Task> tasks);
+}
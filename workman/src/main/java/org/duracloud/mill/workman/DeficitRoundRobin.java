@@ -0,0 +1,118 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Shares dispatches among a fixed list of lanes (such as task queues) in
+ * proportion to their weights, using deficit round robin with a unit cost
+ * per dispatch.
+ *
+ * Lanes are visited in turn; each visit credits the lane with its weight and
+ * the lane is served until its credit runs out or it has nothing to give.
+ * While every lane is backlogged each one receives weight / total weight of
+ * the dispatches. A lane with nothing to give forfeits its credit, so idle
+ * lanes neither hold back busy ones nor bank a burst for later.
+ *
+ * Not thread safe: callers are expected to hold the dispatch lock.
+ *
+ * @author Daniel Bernstein
+ */
+public class DeficitRoundRobin {
+
+    private int[] weights;
+    private long[] dispatched;
+    private int[] deficits;
+    private int current = 0;
+
+    /**
+     * @param weights a positive weight per lane
+     */
+    public DeficitRoundRobin(int[] weights) {
+        if (weights == null || weights.length == 0) {
+            throw new IllegalArgumentException("at least one weight must be specified");
+        }
+        for (int weight : weights) {
+            if (weight < 1) {
+                throw new IllegalArgumentException("weights must be greater than 0: " + Arrays.toString(weights));
+            }
+        }
+        this.weights = weights.clone();
+        this.deficits = new int[weights.length];
+        this.dispatched = new long[weights.length];
+        this.deficits[0] = weights[0];
+    }
+
+    /**
+     * Finds the next item to dispatch.
+     *
+     * @param poll returns (and removes) the next item of the given lane, or
+     *             null if the lane has nothing that can be dispatched now.
+     * @return the next item or null if no lane has anything to dispatch.
+     */
+    public <T> T next(IntFunction<T> poll) {
+        //visiting every lane once more than the lane count guarantees each
+        //lane is credited and asked at least once.
+        for (int visits = 0; visits <= weights.length; visits++) {
+            if (deficits[current] > 0) {
+                T item = poll.apply(current);
+                if (item != null) {
+                    deficits[current]--;
+                    dispatched[current]++;
+                    return item;
+                }
+                deficits[current] = 0;
+            }
+
+            current = (current + 1) % weights.length;
+            deficits[current] += weights[current];
+        }
+        return null;
+    }
+
+    public int getWeight(int lane) {
+        return weights[lane];
+    }
+
+    /**
+     * @return the number of items dispatched from the given lane.
+     */
+    public long getDispatchedCount(int lane) {
+        return dispatched[lane];
+    }
+
+    /**
+     * Parses a comma separated list of weights, one per lane in lane order,
+     * for example "8,2,1".
+     *
+     * @param config    the weights; may be blank
+     * @param laneCount the number of lanes
+     * @return the weights or null if config is blank
+     */
+    public static int[] parseWeights(String config, int laneCount) {
+        if (StringUtils.isBlank(config)) {
+            return null;
+        }
+
+        String[] entries = config.split(",");
+        if (entries.length != laneCount) {
+            throw new IllegalArgumentException("expected " + laneCount + " queue weights but found " +
+                                               entries.length + ": " + config);
+        }
+
+        int[] weights = new int[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            weights[i] = Integer.parseInt(entries[i].trim());
+        }
+        return weights;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import org.duracloud.common.queue.task.Task;
+
+/**
+ * Implemented by task queues which can hold a requeued task back for a time
+ * before it becomes available to consumers again.
+ *
+ * @author Daniel Bernstein
+ */
+public interface DelayedTaskRequeuer {
+
+    /**
+     * Increments the task's attempts and returns it to the queue, where it
+     * will not be delivered again until the delay has passed.
+     *
+     * @param task
+     * @param delaySeconds
+     */
+    void requeue(Task task, int delaySeconds);
+
+    /**
+     * Returns a task which was taken but not processed to the queue, without
+     * counting it as an attempt, where it will not be delivered again until
+     * the delay has passed.
+     *
+     * @param task
+     * @param delaySeconds
+     */
+    void park(Task task, int delaySeconds);
+}
@@ -0,0 +1,119 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * A fixed-size, lock free histogram of non-negative values (typically
+ * latencies in microseconds).
+ *
+ * As in an HDR histogram, values are counted in buckets whose width grows
+ * with the magnitude of the value: each power of two is split into
+ * SUB_BUCKETS equal buckets, so any recorded value is known to within
+ * 1/SUB_BUCKETS (about 6%) of its true value while the whole range up to
+ * MAX_VALUE takes well under a thousand counters. Values above MAX_VALUE are
+ * counted as MAX_VALUE.
+ *
+ * @author Daniel Bernstein
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The largest value tracked: 2^40 (about 12 days in microseconds).
+     */
+    public static final long MAX_VALUE = (1L << 40) - 1;
+
+    private AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+    private AtomicLong count = new AtomicLong();
+    private AtomicLong sum = new AtomicLong();
+    private LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param value a value; negative values are recorded as 0.
+     */
+    public void record(long value) {
+        long v = Math.min(Math.max(value, 0), MAX_VALUE);
+        counts.incrementAndGet(indexOf(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        max.accumulate(v);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value at or below which the given percentage of recorded
+     * values fall (the highest value of the bucket it falls in), or 0 if
+     * nothing has been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @param value
+     * @return the number of recorded values known to be at or below the given
+     * value. Values in the bucket straddling it are not included.
+     */
+    public long getCountAtOrBelow(long value) {
+        long total = 0;
+        for (int i = 0; i < counts.length() && highestValueOf(i) <= value; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageSystemAttributeName;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import org.duracloud.common.queue.TaskNotFoundException;
+import org.duracloud.common.queue.TimeoutException;
+import org.duracloud.common.queue.aws.SQSTaskQueue;
+import org.duracloud.common.queue.task.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An SQS task queue which uses long polling when receiving messages: a take()
+ * against an empty queue waits on the SQS side (up to 20 seconds) for a
+ * message to arrive rather than returning immediately. This removes the need
+ * for the caller to back off between empty receives and means new tasks are
+ * picked up as soon as they are enqueued.
+ *
+ * It also supports extending the visibility timeout of many tasks at once
+ * using ChangeMessageVisibilityBatch, and requeuing tasks with a message
+ * delay so that failed tasks can be retried after a backoff.
+ *
+ * @author Daniel Bernstein
+ */
+public class LongPollingSQSTaskQueue extends SQSTaskQueue
+    implements BatchVisibilityTimeoutExtender, DelayedTaskRequeuer, LongPollingTaskQueue {
+    private static Logger log = LoggerFactory.getLogger(LongPollingSQSTaskQueue.class);
+
+    /**
+     * The maximum wait time permitted by SQS.
+     */
+    public static final int DEFAULT_WAIT_TIME_SECONDS = 20;
+
+    /**
+     * The maximum number of messages SQS will return from a single receive or
+     * accept in a single batch request.
+     */
+    private static final int MAX_MESSAGES_PER_RECEIVE = 10;
+
+    /**
+     * The maximum message delay permitted by SQS.
+     */
+    public static final int MAX_DELAY_SECONDS = 15 * 60;
+
+    private AmazonSQS sqsClient;
+    private String queueUrl;
+    private Integer visibilityTimeout;
+    private int waitTimeSeconds;
+
+    public LongPollingSQSTaskQueue(String queueName) {
+        this(AmazonSQSClientBuilder.defaultClient(), queueName);
+    }
+
+    public LongPollingSQSTaskQueue(AmazonSQS sqsClient, String queueName) {
+        this(sqsClient, queueName, DEFAULT_WAIT_TIME_SECONDS);
+    }
+
+    public LongPollingSQSTaskQueue(AmazonSQS sqsClient, String queueName, int waitTimeSeconds) {
+        super(sqsClient, queueName);
+        this.sqsClient = sqsClient;
+        this.waitTimeSeconds = waitTimeSeconds;
+        this.queueUrl = sqsClient.getQueueUrl(new GetQueueUrlRequest(queueName)).getQueueUrl();
+        String timeout = sqsClient.getQueueAttributes(
+            new GetQueueAttributesRequest(queueUrl)
+                .withAttributeNames(QueueAttributeName.VisibilityTimeout))
+                                  .getAttributes()
+                                  .get(QueueAttributeName.VisibilityTimeout.name());
+        this.visibilityTimeout = Integer.valueOf(timeout);
+    }
+
+    /**
+     * @return true unless the wait time is zero, in which case receives
+     * against an empty queue return immediately.
+     */
+    @Override
+    public boolean blocksOnEmpty() {
+        return waitTimeSeconds > 0;
+    }
+
+    @Override
+    public Set<Task> take(int maxTasks) throws TimeoutException {
+        List<Message> messages = sqsClient.receiveMessage(
+            new ReceiveMessageRequest()
+                .withQueueUrl(queueUrl)
+                .withMaxNumberOfMessages(Math.min(maxTasks, MAX_MESSAGES_PER_RECEIVE))
+                .withWaitTimeSeconds(waitTimeSeconds)
+                .withMessageSystemAttributeNames(MessageSystemAttributeName.ApproximateReceiveCount))
+                                          .getMessages();
+
+        if (messages == null || messages.isEmpty()) {
+            throw new TimeoutException("No tasks available from queue: " + getName() +
+                                       ", queueUrl: " + queueUrl +
+                                       " after waiting " + waitTimeSeconds + " seconds");
+        }
+
+        Set<Task> tasks = new HashSet<>();
+        for (Message msg : messages) {
+            log.debug("SQS message received - queue: {}, msgId: {}, receiveCount: {}",
+                      getName(), msg.getMessageId(),
+                      msg.getAttributes().get(MessageSystemAttributeName.ApproximateReceiveCount.toString()));
+            Task task = marshallTask(msg);
+            task.setVisibilityTimeout(visibilityTimeout);
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    @Override
+    public List<Task> extendVisibilityTimeouts(List<Task> tasks) {
+        List<Task> failed = new ArrayList<>();
+        Map<String, Task> batch = new HashMap<>();
+        for (Task task : tasks) {
+            batch.put(String.valueOf(batch.size()), task);
+            if (batch.size() == MAX_MESSAGES_PER_RECEIVE) {
+                failed.addAll(changeMessageVisibility(batch));
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            failed.addAll(changeMessageVisibility(batch));
+        }
+        return failed;
+    }
+
+    /**
+     * Unlike requeue(Task), the new message is sent before the old one is
+     * deleted so that a failure to send cannot lose the task.
+     */
+    @Override
+    public void requeue(Task task, int delaySeconds) {
+        int attempts = task.getAttempts();
+        task.incrementAttempts();
+        int delay = resend(task, delaySeconds);
+        log.warn("requeued {} after {} failed attempts with a delay of {} seconds", task, attempts, delay);
+    }
+
+    /**
+     * The task is sent again rather than having its visibility timeout
+     * changed so that its receive count is not incremented by being parked.
+     */
+    @Override
+    public void park(Task task, int delaySeconds) {
+        int delay = resend(task, delaySeconds);
+        log.info("parked {} with a delay of {} seconds", task, delay);
+    }
+
+    /*
+     * Sends the task as a new message with the given delay, capped at
+     * MAX_DELAY_SECONDS, and deletes the message it was received as.
+     */
+    private int resend(Task task, int delaySeconds) {
+        int delay = Math.max(0, Math.min(delaySeconds, MAX_DELAY_SECONDS));
+        sqsClient.sendMessage(new SendMessageRequest(queueUrl, unmarshallTask(task))
+                                  .withDelaySeconds(delay));
+        try {
+            deleteTask(task);
+        } catch (TaskNotFoundException e) {
+            log.error("failed to delete resent task " + task + ": " + e.getMessage(), e);
+        }
+        return delay;
+    }
+
+    private List<Task> changeMessageVisibility(Map<String, Task> batch) {
+        List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        for (Map.Entry<String, Task> entry : batch.entrySet()) {
+            Task task = entry.getValue();
+            entries.add(new ChangeMessageVisibilityBatchRequestEntry(
+                entry.getKey(), task.getProperty(MsgProp.RECEIPT_HANDLE.name()))
+                            .withVisibilityTimeout(task.getVisibilityTimeout()));
+        }
+
+        List<Task> failed = new ArrayList<>();
+        try {
+            ChangeMessageVisibilityBatchResult result = sqsClient.changeMessageVisibilityBatch(
+                new ChangeMessageVisibilityBatchRequest(queueUrl, entries));
+            for (BatchResultErrorEntry error : result.getFailed()) {
+                Task task = batch.get(error.getId());
+                log.error("failed to extend visibility timeout of {}: code={} message={}",
+                          task, error.getCode(), error.getMessage());
+                failed.add(task);
+            }
+            log.debug("extended visibility timeout of {} tasks on {}",
+                      batch.size() - failed.size(), getName());
+        } catch (Exception e) {
+            log.error("failed to extend visibility timeouts on " + getName() + ": " + e.getMessage(), e);
+            failed.addAll(batch.values());
+        }
+        return failed;
+    }
+
+}
@@ -0,0 +1,24 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+/**
+ * Implemented by task queues whose take() may wait for tasks to arrive
+ * before reporting that the queue is empty. A queue which wraps another
+ * should delegate to the wrapped queue.
+ *
+ * @author Daniel Bernstein
+ */
+public interface LongPollingTaskQueue {
+
+    /**
+     * @return true if a take() against an empty queue waits for tasks to
+     * arrive, so that the caller need not back off before taking again.
+     */
+    boolean blocksOnEmpty();
+}
@@ -0,0 +1,107 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the {@link WorkmanMetrics} at /metrics in the Prometheus text format
+ * using the HTTP server built into the JDK. Requests are handled one at a
+ * time on a single daemon thread.
+ *
+ * @author Daniel Bernstein
+ */
+public class MetricsHttpServer {
+    private static Logger log = LoggerFactory.getLogger(MetricsHttpServer.class);
+
+    public static final String PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private WorkmanMetrics metrics;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Listens on the loopback interface only.
+     *
+     * @param metrics
+     * @param port    the port to listen on; 0 picks a free port
+     * @throws IOException if the port cannot be bound
+     */
+    public MetricsHttpServer(WorkmanMetrics metrics, int port) throws IOException {
+        this(metrics, InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * @param metrics
+     * @param bindAddress the address of the interface to listen on
+     * @param port        the port to listen on; 0 picks a free port
+     * @throws IOException if the port cannot be bound
+     */
+    public MetricsHttpServer(WorkmanMetrics metrics, InetAddress bindAddress, int port) throws IOException {
+        this.metrics = metrics;
+        this.server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        this.server.createContext(PATH, this::handle);
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server.setExecutor(this.executor);
+    }
+
+    public void start() {
+        server.start();
+        log.info("serving metrics at http://{}:{}{}", server.getAddress().getHostString(), getPort(), PATH);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            StringWriter text = new StringWriter();
+            metrics.writePrometheus(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (Exception e) {
+            log.error("failed to write metrics: " + e.getMessage(), e);
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -8,21 +8,111 @@
 package org.duracloud.mill.workman;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang.StringUtils;
+import org.duracloud.common.queue.task.Task;
 
 /**
+ * Runs a task through a series of steps.
+ *
+ * By default each step depends on all of the steps added before it, so the
+ * steps run one after another and the first failure stops the rest. Steps may
+ * instead declare which earlier steps they depend on; when an executor is set,
+ * steps whose dependencies have completed run concurrently. A failed step
+ * fails its dependents, and no step starts once any step has failed.
+ *
+ * When steps run concurrently a step may complete while another fails, so
+ * the indexes of completed steps are recorded on the task (see
+ * {@link #COMPLETED_STEPS_PROPERTY}) and skipped when the task is retried.
+ *
  * @author Daniel Bernstein
  * Date: Apr 10, 2014
  */
 public class MultiStepTaskProcessor implements TaskProcessor {
 
-    private List<TaskProcessor> processors = new ArrayList<>();
+    /**
+     * Task property holding the comma separated indexes of the steps which
+     * have completed.
+     */
+    public static final String COMPLETED_STEPS_PROPERTY = "completed-steps";
+
+    private List<Step> steps = new ArrayList<>();
+    private Task.Type type;
+    private ProcessorStepListener stepListener;
+    private Task task;
+    private Executor executor;
+    private final ReentrantLock completedLock = new ReentrantLock();
+
+    public MultiStepTaskProcessor() {
+    }
 
     /**
+     * @param type         the type of the task being processed
+     * @param stepListener notified as each step finishes
+     */
+    public MultiStepTaskProcessor(Task.Type type, ProcessorStepListener stepListener) {
+        this.type = type;
+        this.stepListener = stepListener;
+    }
+
+    /**
+     * @param task         the task being processed, on which completed steps
+     *                     are recorded
+     * @param stepListener notified as each step finishes
+     * @param executor     runs independent steps concurrently; if null the
+     *                     steps run one after another on the calling thread
+     */
+    public MultiStepTaskProcessor(Task task, ProcessorStepListener stepListener, Executor executor) {
+        this(task.getType(), stepListener);
+        this.task = task;
+        this.executor = executor;
+    }
+
+    /**
+     * Adds a step which depends on every step added before it.
+     *
      * @param processor
      */
     public void addTaskProcessor(TaskProcessor processor) {
-        this.processors.add(processor);
+        List<TaskProcessor> dependencies = new ArrayList<>();
+        for (Step step : steps) {
+            dependencies.add(step.processor);
+        }
+        addTaskProcessor(processor, dependencies);
+    }
+
+    /**
+     * Adds a step which may run as soon as the given steps have completed.
+     *
+     * @param processor
+     * @param dependencies previously added processors
+     */
+    public void addTaskProcessor(TaskProcessor processor, List<TaskProcessor> dependencies) {
+        Step step = new Step(steps.size(), processor);
+        for (TaskProcessor dependency : dependencies) {
+            Step dependencyStep = null;
+            for (Step added : steps) {
+                if (added.processor == dependency) {
+                    dependencyStep = added;
+                }
+            }
+            if (dependencyStep == null) {
+                throw new IllegalArgumentException(
+                    "dependency " + dependency + " must be added before the step which depends on it");
+            }
+            step.dependencies.add(dependencyStep);
+        }
+        this.steps.add(step);
     }
 
     /* (non-Javadoc)
@@ -30,8 +120,139 @@ public class MultiStepTaskProcessor implements TaskProcessor {
      */
     @Override
     public void execute() throws TaskExecutionFailedException {
-        for (TaskProcessor processor : processors) {
+        Set<Integer> completed = getCompletedSteps();
+        if (executor == null) {
+            for (Step step : steps) {
+                if (!completed.contains(step.index)) {
+                    execute(step);
+                }
+            }
+        } else {
+            executeConcurrently(completed);
+        }
+    }
+
+    private void executeConcurrently(Set<Integer> completed) throws TaskExecutionFailedException {
+        AtomicBoolean failed = new AtomicBoolean();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (Step step : steps) {
+            CompletableFuture<Void> future;
+            if (completed.contains(step.index)) {
+                future = CompletableFuture.completedFuture(null);
+            } else {
+                CompletableFuture<?>[] dependencies = new CompletableFuture<?>[step.dependencies.size()];
+                for (int i = 0; i < dependencies.length; i++) {
+                    dependencies[i] = futures.get(step.dependencies.get(i).index);
+                }
+                future = CompletableFuture.allOf(dependencies).thenRunAsync(() -> {
+                    if (failed.get()) {
+                        throw new SkippedStepException();
+                    }
+                    try {
+                        execute(step);
+                    } catch (TaskExecutionFailedException e) {
+                        failed.set(true);
+                        throw new CompletionException(e);
+                    } catch (RuntimeException | Error e) {
+                        failed.set(true);
+                        throw e;
+                    }
+                }, executor);
+            }
+            futures.add(future);
+        }
+
+        Throwable failure = null;
+        for (CompletableFuture<Void> future : futures) {
+            try {
+                future.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                if (failure == null && !(cause instanceof SkippedStepException)) {
+                    failure = cause;
+                }
+            }
+        }
+
+        if (failure instanceof TaskExecutionFailedException) {
+            throw (TaskExecutionFailedException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new TaskExecutionFailedException(failure.getMessage(), failure);
+        }
+    }
+
+    private void execute(Step step) throws TaskExecutionFailedException {
+        TaskProcessor processor = step.processor;
+        if (stepListener == null) {
             processor.execute();
+        } else {
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                processor.execute();
+                succeeded = true;
+            } finally {
+                stepListener.stepCompleted(type, processor, System.nanoTime() - start, succeeded);
+            }
+        }
+        recordCompleted(step);
+    }
+
+    private Set<Integer> getCompletedSteps() {
+        if (task == null || executor == null) {
+            return Collections.emptySet();
+        }
+
+        Set<Integer> completed = new HashSet<>();
+        String property = task.getProperty(COMPLETED_STEPS_PROPERTY);
+        if (StringUtils.isNotBlank(property)) {
+            for (String index : property.split(",")) {
+                completed.add(Integer.valueOf(index.trim()));
+            }
+        }
+        return completed;
+    }
+
+    /*
+     * Steps which run one after another are not recorded: a retry runs them
+     * all again, as it always has.
+     */
+    private void recordCompleted(Step step) {
+        if (task == null || executor == null) {
+            return;
+        }
+
+        completedLock.lock();
+        try {
+            Set<Integer> completed = new TreeSet<>(getCompletedSteps());
+            completed.add(step.index);
+            task.addProperty(COMPLETED_STEPS_PROPERTY, StringUtils.join(completed, ","));
+        } finally {
+            completedLock.unlock();
+        }
+    }
+
+    private static class Step {
+        private int index;
+        private TaskProcessor processor;
+        private List<Step> dependencies = new ArrayList<>();
+
+        Step(int index, TaskProcessor processor) {
+            this.index = index;
+            this.processor = processor;
+        }
+    }
+
+    /*
+     * Marks a step which was not started because another step had failed.
+     */
+    private static class SkippedStepException extends RuntimeException {
+        SkippedStepException() {
+            super(null, null, false, false);
         }
     }
 }
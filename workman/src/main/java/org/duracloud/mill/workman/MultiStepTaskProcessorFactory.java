@@ -8,27 +8,68 @@
 package org.duracloud.mill.workman;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 import org.duracloud.common.queue.task.Task;
 
 /**
  * A {@link TaskProcessorFactory} that can build a {@link MultiStepTaskProcessor}.  Instances of
  * this class can be configured with an arbitrary number of TaskProcessorFactories which will
- * be invoked when building the MultiStepTaskProcessor.
+ * be invoked when building the MultiStepTaskProcessor. Factories may declare which of the
+ * previously added factories their processors depend on, in which case the processors run
+ * concurrently when an executor is set.
  *
  * @author Daniel Bernstein
  * Date: Apr 10, 2014
  */
 public class MultiStepTaskProcessorFactory implements TaskProcessorFactory {
 
-    private List<TaskProcessorFactory> factories = new ArrayList<>();
+    private Map<TaskProcessorFactory, List<TaskProcessorFactory>> factories = new LinkedHashMap<>();
+    private ProcessorStepListener stepListener;
+    private Executor executor;
 
     /**
+     * Adds a factory whose processor depends on the processors of every
+     * factory added before it.
+     *
      * @param processor
      */
     public void addFactory(TaskProcessorFactory processor) {
-        this.factories.add(processor);
+        addFactory(processor, new ArrayList<>(this.factories.keySet()));
+    }
+
+    /**
+     * @param processor
+     * @param dependencies previously added factories whose processors must
+     *                     complete before this factory's processor runs
+     */
+    public void addFactory(TaskProcessorFactory processor, List<TaskProcessorFactory> dependencies) {
+        for (TaskProcessorFactory dependency : dependencies) {
+            if (!this.factories.containsKey(dependency)) {
+                throw new IllegalArgumentException(
+                    "dependency " + dependency + " must be added before the factory which depends on it");
+            }
+        }
+        this.factories.put(processor, new ArrayList<>(dependencies));
+    }
+
+    /**
+     * @param executor runs the processors which do not depend on each other
+     *                 concurrently; if null they run one after another
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param stepListener notified as each step of the processors built by
+     *                     this factory finishes
+     */
+    public void setStepListener(ProcessorStepListener stepListener) {
+        this.stepListener = stepListener;
     }
 
     /*
@@ -41,10 +82,17 @@ public class MultiStepTaskProcessorFactory implements TaskProcessorFactory {
     @Override
     public TaskProcessor create(Task task) throws TaskProcessorCreationFailedException {
 
-        MultiStepTaskProcessor processor = new MultiStepTaskProcessor();
+        MultiStepTaskProcessor processor = new MultiStepTaskProcessor(task, stepListener, executor);
 
-        for (TaskProcessorFactory factory : factories) {
-            processor.addTaskProcessor(factory.create(task));
+        Map<TaskProcessorFactory, TaskProcessor> processors = new LinkedHashMap<>();
+        for (Map.Entry<TaskProcessorFactory, List<TaskProcessorFactory>> entry : factories.entrySet()) {
+            TaskProcessor step = entry.getKey().create(task);
+            List<TaskProcessor> dependencies = new ArrayList<>();
+            for (TaskProcessorFactory dependency : entry.getValue()) {
+                dependencies.add(processors.get(dependency));
+            }
+            processor.addTaskProcessor(step, dependencies);
+            processors.put(entry.getKey(), step);
         }
 
         return processor;
@@ -55,7 +103,7 @@ public class MultiStepTaskProcessorFactory implements TaskProcessorFactory {
      */
     @Override
     public boolean isSupported(Task task) {
-        for (TaskProcessorFactory factory : factories) {
+        for (TaskProcessorFactory factory : factories.keySet()) {
             if (factory.isSupported(task)) {
                 return true;
             }
@@ -0,0 +1,27 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import org.duracloud.common.queue.task.Task;
+
+/**
+ * Receives notification each time a step of a
+ * <code>MultiStepTaskProcessor</code> finishes.
+ *
+ * @author Daniel Bernstein
+ */
+public interface ProcessorStepListener {
+
+    /**
+     * @param type      the type of the task being processed
+     * @param step      the processor which ran the step
+     * @param elapsedNs the time spent in the step
+     * @param succeeded false if the step threw an exception
+     */
+    void stepCompleted(Task.Type type, TaskProcessor step, long elapsedNs, boolean succeeded);
+}
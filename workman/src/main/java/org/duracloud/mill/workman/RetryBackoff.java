@@ -0,0 +1,60 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.util.Random;
+
+/**
+ * Calculates how long a failed task should wait before it is retried.
+ *
+ * The delay doubles with each failed attempt, starting from the base delay
+ * and capped at the maximum. Half of each delay is randomized ("equal
+ * jitter") so that tasks which failed together during an outage are not all
+ * retried at the same moment.
+ *
+ * @author Daniel Bernstein
+ */
+public class RetryBackoff {
+
+    public static final int DEFAULT_BASE_DELAY_SECONDS = 30;
+
+    /**
+     * The longest message delay supported by SQS.
+     */
+    public static final int DEFAULT_MAX_DELAY_SECONDS = 15 * 60;
+
+    private int baseDelaySeconds;
+    private int maxDelaySeconds;
+    private Random random;
+
+    public RetryBackoff() {
+        this(DEFAULT_BASE_DELAY_SECONDS, DEFAULT_MAX_DELAY_SECONDS, new Random());
+    }
+
+    public RetryBackoff(int baseDelaySeconds, int maxDelaySeconds, Random random) {
+        if (baseDelaySeconds < 0 || maxDelaySeconds < baseDelaySeconds) {
+            throw new IllegalArgumentException("invalid retry delays: base=" + baseDelaySeconds +
+                                               " max=" + maxDelaySeconds);
+        }
+        this.baseDelaySeconds = baseDelaySeconds;
+        this.maxDelaySeconds = maxDelaySeconds;
+        this.random = random;
+    }
+
+    /**
+     * @param attempts the number of attempts that have already failed, not
+     *                 counting the current one.
+     * @return the delay in seconds before the next attempt
+     */
+    public int getDelaySeconds(int attempts) {
+        long ceiling = (long) baseDelaySeconds << Math.min(Math.max(attempts, 0), 30);
+        int delay = (int) Math.min(maxDelaySeconds, ceiling);
+        int half = delay / 2;
+        return delay - half + random.nextInt(half + 1);
+    }
+}
@@ -7,8 +7,10 @@
  */
 package org.duracloud.mill.workman;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 import org.duracloud.common.queue.task.Task;
 import org.slf4j.Logger;
@@ -19,15 +21,25 @@ import org.slf4j.LoggerFactory;
  * If none of the underlying factories supports the task, an exception is
  * thrown.
  *
+ * Factories registered for a specific task type are looked up directly by the
+ * type of the task. Factories registered without a type are consulted in
+ * order, via isSupported(), only for tasks whose type has no registered
+ * factory.
+ *
+ * Factories are expected to be registered at startup, before the first task
+ * is processed.
+ *
  * @author Daniel Bernstein
  */
 public class RootTaskProcessorFactory implements TaskProcessorFactory {
     private static Logger log = LoggerFactory.getLogger(RootTaskProcessorFactory.class);
+    private Map<Task.Type, TaskProcessorFactory> typedFactories;
     private List<TaskProcessorFactory> factories;
 
     public RootTaskProcessorFactory() {
         log.debug("creating new...");
-        this.factories = new LinkedList<TaskProcessorFactory>();
+        this.typedFactories = new EnumMap<>(Task.Type.class);
+        this.factories = new ArrayList<TaskProcessorFactory>();
     }
 
     /* (non-Javadoc)
@@ -35,6 +47,10 @@ public class RootTaskProcessorFactory implements TaskProcessorFactory {
      */
     @Override
     public boolean isSupported(Task task) {
+        if (task.getType() != null && typedFactories.containsKey(task.getType())) {
+            return true;
+        }
+
         for (TaskProcessorFactory factory : factories) {
             if (factory.isSupported(task)) {
                 return true;
@@ -46,6 +62,11 @@ public class RootTaskProcessorFactory implements TaskProcessorFactory {
 
     @Override
     public TaskProcessor create(Task task) throws TaskProcessorCreationFailedException {
+        TaskProcessorFactory typed = task.getType() != null ? typedFactories.get(task.getType()) : null;
+        if (typed != null) {
+            return typed.create(task);
+        }
+
         TaskProcessor p = null;
         for (TaskProcessorFactory factory : factories) {
             if (factory.isSupported(task)) {
@@ -67,4 +88,20 @@ public class RootTaskProcessorFactory implements TaskProcessorFactory {
         log.debug("Adding {}", factory);
         this.factories.add(factory);
     }
+
+    /**
+     * Registers the factory which creates processors for all tasks of the
+     * given type.
+     *
+     * @param type
+     * @param factory
+     */
+    public void addTaskProcessorFactory(Task.Type type, TaskProcessorFactory factory) {
+        log.debug("Adding {} for {} tasks", factory, type);
+        TaskProcessorFactory previous = this.typedFactories.put(type, factory);
+        if (previous != null) {
+            throw new IllegalStateException("a factory is already registered for " + type +
+                                            " tasks: " + previous);
+        }
+    }
 }
@@ -0,0 +1,396 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.amazonaws.AmazonServiceException;
+import org.apache.commons.lang.StringUtils;
+import org.duracloud.common.queue.task.Task;
+import org.duracloud.common.queue.task.TypedTask;
+import org.duracloud.mill.task.DuplicationTask;
+import org.duracloud.storage.error.ChecksumMismatchException;
+import org.duracloud.storage.error.NotFoundException;
+import org.duracloud.storage.error.SpaceAlreadyExistsException;
+import org.duracloud.storage.error.StorageException;
+import org.duracloud.storage.error.StorageStateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps tasks for a store whose backend appears to be down from running, so
+ * that they neither use workers nor burn through their attempts and end up
+ * on the dead letter queue.
+ *
+ * Tasks are grouped by account and store (for duplication tasks, by account,
+ * source store and destination store). Each group has a circuit:
+ *
+ * <ul>
+ * <li>closed: tasks run. After failureThreshold consecutive failures the
+ * circuit opens.</li>
+ * <li>open: tasks are parked rather than run, until openSeconds have
+ * passed.</li>
+ * <li>half open: a single task is run as a probe while the others stay
+ * parked. If it succeeds the circuit closes; if it fails the circuit opens
+ * again.</li>
+ * </ul>
+ *
+ * Only failures which point at the store itself count towards opening a
+ * circuit (see {@link #isStoreFailure}): a task which fails because, for
+ * example, its content item is missing does not. Closed circuits which have
+ * seen no failure for openSeconds are forgotten.
+ *
+ * Only the task types which touch a customer's storage provider (DUP and BIT)
+ * are subject to the circuit breaker, and duplication tasks naming more than
+ * one destination store are not. Tasks are parked by returning them to their
+ * queue with a delay, so only tasks taken from a queue which supports delays
+ * (a DelayedTaskRequeuer) are subject to it.
+ *
+ * @author Daniel Bernstein
+ */
+public class StoreCircuitBreaker {
+
+    private static Logger log = LoggerFactory.getLogger(StoreCircuitBreaker.class);
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 10;
+    public static final int DEFAULT_OPEN_SECONDS = 300;
+
+    /**
+     * The longest message delay supported by SQS. A task due to be parked for
+     * longer is parked again when it returns.
+     */
+    public static final int MAX_PARK_SECONDS = LongPollingSQSTaskQueue.MAX_DELAY_SECONDS;
+
+    private static final Set<Task.Type> TYPES = EnumSet.of(Task.Type.DUP, Task.Type.BIT);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private int failureThreshold;
+    private long openMs;
+    private Random random;
+    private ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+    private AtomicLong trips = new AtomicLong();
+    private AtomicLong parked = new AtomicLong();
+    private AtomicLong nextPruneAt = new AtomicLong();
+
+    /**
+     * @param failureThreshold the consecutive failures which open a circuit
+     * @param openSeconds      how long a circuit stays open before a probe
+     *                         task is let through
+     */
+    public StoreCircuitBreaker(int failureThreshold, int openSeconds) {
+        this(failureThreshold, openSeconds, new Random());
+    }
+
+    public StoreCircuitBreaker(int failureThreshold, int openSeconds, Random random) {
+        if (failureThreshold < 1 || openSeconds < 1) {
+            throw new IllegalArgumentException("invalid circuit breaker settings: failureThreshold=" +
+                                               failureThreshold + " openSeconds=" + openSeconds);
+        }
+        this.failureThreshold = failureThreshold;
+        this.openMs = openSeconds * 1000L;
+        this.random = random;
+    }
+
+    /**
+     * @param task
+     * @return the circuit the task belongs to, or null if it is not subject to
+     * the circuit breaker
+     */
+    public String getKey(Task task) {
+        if (!TYPES.contains(task.getType())) {
+            return null;
+        }
+
+        String account = task.getProperty(TypedTask.ACCOUNT_PROP);
+        String storeId = task.getProperty(TypedTask.STORE_ID_PROP);
+        if (StringUtils.isBlank(account) || StringUtils.isBlank(storeId)) {
+            return null;
+        }
+
+        if (task.getType() == Task.Type.DUP &&
+            !StringUtils.isBlank(task.getProperty(DuplicationTask.DEST_STORE_IDS_PROP))) {
+            //a fan-out task's failures cannot be charged to a single
+            //destination. Once it has been narrowed to the destination which
+            //failed it is keyed like any other duplication task.
+            return null;
+        }
+
+        String key = account + "/" + storeId;
+        String destStoreId = task.getProperty(DuplicationTask.DEST_STORE_ID_PROP);
+        if (task.getType() == Task.Type.DUP && !StringUtils.isBlank(destStoreId)) {
+            key += "/" + destStoreId;
+        }
+        return key;
+    }
+
+    /**
+     * @param key
+     * @return true if a task of the circuit may run; false if it should be
+     * parked
+     */
+    public boolean allow(String key) {
+        Circuit circuit = circuits.get(key);
+        if (circuit == null) {
+            return true;
+        }
+
+        boolean allowed = circuit.allow(now());
+        if (!allowed) {
+            parked.incrementAndGet();
+        }
+        return allowed;
+    }
+
+    /**
+     * Records that a task of the circuit succeeded.
+     *
+     * @param key
+     */
+    public void succeeded(String key) {
+        Circuit circuit = circuits.get(key);
+        if (circuit != null && circuit.succeeded()) {
+            log.info("circuit {} closed: tasks will run again", key);
+        }
+    }
+
+    /**
+     * Records that a task of the circuit failed because of its store (see
+     * {@link #isStoreFailure}).
+     *
+     * @param key
+     */
+    public void failed(String key) {
+        long now = now();
+        prune(now);
+        Circuit circuit = circuits.computeIfAbsent(key, k -> new Circuit());
+        if (circuit.failed(now)) {
+            trips.incrementAndGet();
+            log.warn("circuit {} opened: its tasks will be parked for {} seconds", key, openMs / 1000);
+        }
+    }
+
+    /**
+     * Indicates whether a task failed because its store could not be reached
+     * or refused the worker, rather than because of the task itself: an
+     * IOException, a storage provider error other than one about the content
+     * or space, or a response from the store's backend with a 5xx or 403
+     * status. The causes of the failure are searched, and a response status
+     * found among them is decisive.
+     *
+     * @param failure
+     * @return true if the failure counts towards opening the task's circuit
+     */
+    public static boolean isStoreFailure(Throwable failure) {
+        boolean storeFailure = false;
+        Set<Throwable> seen = new HashSet<>();
+        for (Throwable cause = failure; cause != null && seen.add(cause); cause = cause.getCause()) {
+            if (cause instanceof AmazonServiceException) {
+                int status = ((AmazonServiceException) cause).getStatusCode();
+                return status >= 500 || status == 403;
+            } else if (cause instanceof IOException) {
+                storeFailure = true;
+            } else if (cause instanceof StorageException && !(cause instanceof NotFoundException ||
+                                                                cause instanceof ChecksumMismatchException ||
+                                                                cause instanceof StorageStateException ||
+                                                                cause instanceof SpaceAlreadyExistsException)) {
+                storeFailure = true;
+            }
+        }
+        return storeFailure;
+    }
+
+    /*
+     * Forgets the circuits which are closed and have seen no failure for
+     * openMs, at most once every openMs
+     */
+    private void prune(long now) {
+        long pruneAt = nextPruneAt.get();
+        if (now < pruneAt || !nextPruneAt.compareAndSet(pruneAt, now + openMs)) {
+            return;
+        }
+        circuits.values().removeIf(circuit -> circuit.isIdle(now));
+    }
+
+    /**
+     * @return the number of circuits held
+     */
+    int getCircuitCount() {
+        return circuits.size();
+    }
+
+    /**
+     * @param key
+     * @return how long a task of the circuit should be parked: until the
+     * circuit is next due to let a probe through, plus up to a quarter again
+     * so that parked tasks do not all return at once
+     */
+    public int getParkSeconds(String key) {
+        Circuit circuit = circuits.get(key);
+        long remainingMs = circuit == null ? 0 : circuit.getRemainingMs(now());
+        long delayMs = Math.max(remainingMs, openMs / 4);
+        long jitterMs = (long) (random.nextDouble() * delayMs / 4);
+        return (int) Math.min(MAX_PARK_SECONDS, Math.max(1, (delayMs + jitterMs) / 1000));
+    }
+
+    public State getState(String key) {
+        Circuit circuit = circuits.get(key);
+        return circuit == null ? State.CLOSED : circuit.getState();
+    }
+
+    /**
+     * @return the number of circuits which are not closed
+     */
+    public int getOpenCount() {
+        int count = 0;
+        for (Circuit circuit : circuits.values()) {
+            if (circuit.getState() != State.CLOSED) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of times a circuit has opened
+     */
+    public long getTripCount() {
+        return trips.get();
+    }
+
+    /**
+     * @return the number of tasks parked
+     */
+    public long getParkedCount() {
+        return parked.get();
+    }
+
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    private class Circuit {
+        private final ReentrantLock lock = new ReentrantLock();
+        private State state = State.CLOSED;
+        private int failures = 0;
+        private long openedAt;
+        private long probeStartedAt;
+        private long failedAt;
+
+        boolean allow(long now) {
+            lock.lock();
+            try {
+                switch (state) {
+                    case OPEN:
+                        if (now - openedAt < openMs) {
+                            return false;
+                        }
+                        state = State.HALF_OPEN;
+                        probeStartedAt = now;
+                        return true;
+                    case HALF_OPEN:
+                        //a probe which never reports back must not hold the
+                        //circuit half open forever.
+                        if (now - probeStartedAt < openMs) {
+                            return false;
+                        }
+                        probeStartedAt = now;
+                        return true;
+                    default:
+                        return true;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return true if the circuit closed
+         */
+        boolean succeeded() {
+            lock.lock();
+            try {
+                failures = 0;
+                if (state == State.CLOSED) {
+                    return false;
+                }
+                state = State.CLOSED;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return true if the circuit opened
+         */
+        boolean failed(long now) {
+            lock.lock();
+            try {
+                failedAt = now;
+                if (state == State.OPEN) {
+                    return false;
+                }
+
+                if (state == State.HALF_OPEN || ++failures >= failureThreshold) {
+                    state = State.OPEN;
+                    openedAt = now;
+                    failures = 0;
+                    return true;
+                }
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long getRemainingMs(long now) {
+            lock.lock();
+            try {
+                switch (state) {
+                    case OPEN:
+                        return Math.max(0, openMs - (now - openedAt));
+                    case HALF_OPEN:
+                        return Math.max(0, openMs - (now - probeStartedAt));
+                    default:
+                        return 0;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isIdle(long now) {
+            lock.lock();
+            try {
+                return state == State.CLOSED && (failures == 0 || now - failedAt >= openMs);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        State getState() {
+            lock.lock();
+            try {
+                return state;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
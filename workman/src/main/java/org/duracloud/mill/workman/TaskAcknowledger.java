@@ -0,0 +1,310 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.duracloud.common.queue.TaskQueue;
+import org.duracloud.common.queue.task.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes completed tasks from their queues asynchronously so that workers
+ * do not wait on a queue round trip before moving on to their next task.
+ *
+ * Acknowledged tasks are collected by a single flusher thread and deleted in
+ * batches of up to ten per queue; a batch is flushed as soon as it is full or
+ * once the oldest task in it has waited for the flush interval. Failed deletes
+ * are retried with an increasing delay. Ack lag (the time from
+ * acknowledgement to successful deletion) is tracked and logged periodically
+ * along with the number of pending, deleted and failed acknowledgements; the
+ * mean and maximum lag of the last period are also available as metrics.
+ *
+ * @author Daniel Bernstein
+ */
+public class TaskAcknowledger {
+    private static Logger log = LoggerFactory.getLogger(TaskAcknowledger.class);
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 20;
+    public static final int MAX_BATCH_SIZE = 10;
+    public static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final long STATUS_INTERVAL_MS = 60 * 1000;
+
+    /*
+     * added on destroy() to wake the flusher so it flushes without waiting out
+     * the interval.
+     */
+    private static final Ack WAKE = new Ack(null, null, null);
+
+    private long flushIntervalMs;
+    private BlockingQueue<Ack> incoming = new LinkedBlockingQueue<>();
+    private DelayQueue<Ack> retries = new DelayQueue<>();
+    private Thread flusher;
+    private volatile boolean stop = false;
+
+    private AtomicLong pending = new AtomicLong();
+    private AtomicLong deleted = new AtomicLong();
+    private AtomicLong failed = new AtomicLong();
+    private AtomicLong lagTotalMs = new AtomicLong();
+    private AtomicLong lagCount = new AtomicLong();
+    private AtomicLong lagMaxMs = new AtomicLong();
+    private volatile long lastLagMeanMs;
+    private volatile long lastLagMaxMs;
+
+    public TaskAcknowledger() {
+        this(DEFAULT_FLUSH_INTERVAL_MS);
+    }
+
+    public TaskAcknowledger(long flushIntervalMs) {
+        this.flushIntervalMs = flushIntervalMs;
+        this.flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runFlusher();
+            }
+        }, "task-acknowledger");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Schedules the task for deletion from the queue.
+     *
+     * @param task
+     * @param queue
+     */
+    public void acknowledge(Task task, TaskQueue queue) {
+        acknowledge(task, queue, null);
+    }
+
+    /**
+     * Schedules the task for deletion from the queue.
+     *
+     * @param task
+     * @param queue
+     * @param onSettled run on the flusher thread once the task has been
+     *                  deleted, or once deleting it has failed for the last
+     *                  time; may be null
+     */
+    public void acknowledge(Task task, TaskQueue queue, Runnable onSettled) {
+        pending.incrementAndGet();
+        incoming.add(new Ack(task, queue, onSettled));
+    }
+
+    public long getPendingCount() {
+        return pending.get();
+    }
+
+    public long getDeletedCount() {
+        return deleted.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return the mean ack lag of the last status period, in milliseconds
+     */
+    public long getLagMeanMs() {
+        return lastLagMeanMs;
+    }
+
+    /**
+     * @return the longest ack lag of the last status period, in milliseconds
+     */
+    public long getLagMaxMs() {
+        return lastLagMaxMs;
+    }
+
+    private void runFlusher() {
+        Map<TaskQueue, List<Ack>> batches = new LinkedHashMap<>();
+        long batchStarted = 0;
+        long nextStatus = System.currentTimeMillis() + STATUS_INTERVAL_MS;
+
+        while (!stop || !incoming.isEmpty() || !batches.isEmpty()) {
+            try {
+                long wait = batches.isEmpty() ? flushIntervalMs * 10 :
+                            Math.max(0, batchStarted + flushIntervalMs - System.currentTimeMillis());
+                Ack ack = incoming.poll(wait, TimeUnit.MILLISECONDS);
+
+                List<Ack> received = new LinkedList<>();
+                if (ack != null) {
+                    received.add(ack);
+                    incoming.drainTo(received);
+                }
+                retries.drainTo(received);
+
+                received.remove(WAKE);
+                for (Ack next : received) {
+                    if (batches.isEmpty()) {
+                        batchStarted = System.currentTimeMillis();
+                    }
+                    List<Ack> batch = batches.get(next.queue);
+                    if (batch == null) {
+                        batch = new ArrayList<>(MAX_BATCH_SIZE);
+                        batches.put(next.queue, batch);
+                    }
+                    batch.add(next);
+                    if (batch.size() == MAX_BATCH_SIZE) {
+                        flush(next.queue, batch);
+                        batches.remove(next.queue);
+                    }
+                }
+
+                if (!batches.isEmpty() &&
+                    (stop || System.currentTimeMillis() - batchStarted >= flushIntervalMs)) {
+                    for (Map.Entry<TaskQueue, List<Ack>> entry : batches.entrySet()) {
+                        flush(entry.getKey(), entry.getValue());
+                    }
+                    batches.clear();
+                }
+
+                if (System.currentTimeMillis() >= nextStatus) {
+                    logStatus();
+                    nextStatus = System.currentTimeMillis() + STATUS_INTERVAL_MS;
+                }
+            } catch (InterruptedException e) {
+                log.warn("task acknowledger interrupted: {}", e.getMessage());
+            } catch (Exception e) {
+                log.error("unexpected failure in task acknowledger: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void flush(TaskQueue queue, List<Ack> batch) {
+        //equal tasks would collapse into one entry of a set, so they are
+        //split across separate deletes.
+        List<Set<Task>> deletes = new LinkedList<>();
+        for (Ack ack : batch) {
+            Set<Task> target = null;
+            for (Set<Task> tasks : deletes) {
+                if (!tasks.contains(ack.task)) {
+                    target = tasks;
+                    break;
+                }
+            }
+            if (target == null) {
+                target = new HashSet<>();
+                deletes.add(target);
+            }
+            target.add(ack.task);
+        }
+
+        try {
+            for (Set<Task> tasks : deletes) {
+                log.debug("deleting {} tasks from {}", tasks.size(), queue.getName());
+                queue.deleteTasks(tasks);
+            }
+            long now = System.currentTimeMillis();
+            for (Ack ack : batch) {
+                long lag = now - ack.acknowledged;
+                lagTotalMs.addAndGet(lag);
+                lagCount.incrementAndGet();
+                lagMaxMs.accumulateAndGet(lag, Math::max);
+                settle(ack);
+            }
+            deleted.addAndGet(batch.size());
+            pending.addAndGet(-batch.size());
+        } catch (Exception e) {
+            for (Ack ack : batch) {
+                ack.attempts++;
+                if (ack.attempts < MAX_ATTEMPTS && !stop) {
+                    ack.retryAt = System.currentTimeMillis() + RETRY_DELAY_MS * (1L << (ack.attempts - 1));
+                    retries.add(ack);
+                } else {
+                    log.error("failed to delete {} from {} after {} attempts: {}",
+                              ack.task, queue.getName(), ack.attempts, e.getMessage());
+                    failed.incrementAndGet();
+                    pending.decrementAndGet();
+                    settle(ack);
+                }
+            }
+            log.warn("failed to delete {} tasks from {}: {}", batch.size(), queue.getName(), e.getMessage());
+        }
+    }
+
+    private void settle(Ack ack) {
+        if (ack.onSettled == null) {
+            return;
+        }
+        try {
+            ack.onSettled.run();
+        } catch (Exception e) {
+            log.error("failed to settle acknowledgement of " + ack.task + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void logStatus() {
+        long count = lagCount.getAndSet(0);
+        long total = lagTotalMs.getAndSet(0);
+        lastLagMeanMs = count > 0 ? total / count : 0;
+        lastLagMaxMs = lagMaxMs.getAndSet(0);
+        log.info("Ack status: pending={} deleted={} failed={} avg_ack_lag_ms={} max_ack_lag_ms={}",
+                 pending.get(), deleted.get(), failed.get(), lastLagMeanMs, lastLagMaxMs);
+    }
+
+    /**
+     * Flushes any pending acknowledgements and stops the flusher. Tasks
+     * awaiting a retry are retried once more immediately.
+     */
+    public void destroy() {
+        incoming.addAll(Arrays.asList(retries.toArray(new Ack[0])));
+        retries.clear();
+
+        stop = true;
+        incoming.add(WAKE);
+        try {
+            flusher.join(30 * 1000);
+        } catch (InterruptedException e) {
+            log.warn("interrupted waiting for acknowledgements to flush");
+        }
+        logStatus();
+    }
+
+    private static class Ack implements Delayed {
+        private Task task;
+        private TaskQueue queue;
+        private Runnable onSettled;
+        private long acknowledged;
+        private long retryAt;
+        private int attempts = 0;
+
+        public Ack(Task task, TaskQueue queue, Runnable onSettled) {
+            this.task = task;
+            this.queue = queue;
+            this.onSettled = onSettled;
+            this.acknowledged = System.currentTimeMillis();
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(retryAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), o.getDelay(TimeUnit.MILLISECONDS));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.text.MessageFormat;
+
+import org.duracloud.common.queue.TaskQueue;
+import org.duracloud.common.queue.task.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queue operations used by workman which are not part of the
+ * <code>TaskQueue</code> interface itself.
+ *
+ * @author Daniel Bernstein
+ */
+public class TaskQueueHelper {
+
+    private static Logger log = LoggerFactory.getLogger(TaskQueueHelper.class);
+
+    private TaskQueueHelper() {
+        // Ensures no instances are made of this class, as there are only static members.
+    }
+
+    /**
+     * Hands a task that has been taken, but not processed, back to the queue
+     * without counting it as an attempt. The visibility timeout of the task is
+     * set to zero so that it becomes visible to other consumers immediately.
+     * Queues which do not support visibility timeouts (e.g. RabbitMQ) redeliver
+     * unacknowledged messages once the consumer's channel is closed.
+     *
+     * @param queue the queue from which the task was taken
+     * @param task  the task to release
+     */
+    public static void release(TaskQueue queue, Task task) {
+        try {
+            task.setVisibilityTimeout(0);
+            queue.extendVisibilityTimeout(task);
+            log.debug("released {} back to {}", task, queue.getName());
+        } catch (Exception e) {
+            log.warn(MessageFormat.format("failed to release task back to queue {0}: " +
+                                          "it will become visible when its visibility timeout " +
+                                          "expires: task={1}, message={2}",
+                                          queue.getName(),
+                                          task,
+                                          e.getMessage()));
+        }
+    }
+}
@@ -14,4 +14,14 @@ public interface TaskWorker extends Runnable {
 
     public static final int MAX_ATTEMPTS = 4;
 
+    /**
+     * Gives the task back to its queue, immediately visible to other
+     * consumers and without counting an attempt. A worker which has not yet
+     * started will not process the task; one which is running no longer
+     * deletes, requeues or dead letters the task when it finishes. Has no
+     * effect once the worker has settled the task itself.
+     */
+    default void abandon() {
+    }
+
 }
@@ -26,6 +26,14 @@ public interface TaskWorkerFactory {
      */
     TaskWorker create(Task task, TaskQueue taskQueue);
 
+    /**
+     * Registers a listener to be notified as each worker created by this
+     * factory completes its task.
+     *
+     * @param listener
+     */
+    void addTaskWorkerListener(TaskWorkerListener listener);
+
     /**
      * Handles the destruction of the factory
      */
@@ -7,7 +7,8 @@
  */
 package org.duracloud.mill.workman;
 
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.duracloud.common.queue.TaskQueue;
 import org.duracloud.common.queue.task.Task;
@@ -19,7 +20,11 @@ public class TaskWorkerFactoryImpl implements TaskWorkerFactory {
 
     private TaskProcessorFactory processorFactory;
     private TaskQueue deadLetterQueue;
-    private ScheduledThreadPoolExecutor timer;
+    private VisibilityTimeoutSweeper sweeper;
+    private TaskAcknowledger acknowledger;
+    private RetryBackoff retryBackoff = new RetryBackoff();
+    private StoreCircuitBreaker circuitBreaker;
+    private List<TaskWorkerListener> listeners = new CopyOnWriteArrayList<>();
 
     public TaskWorkerFactoryImpl(TaskProcessorFactory factory, TaskQueue deadLetterQueue) {
         if (factory == null) {
@@ -32,7 +37,8 @@ public class TaskWorkerFactoryImpl implements TaskWorkerFactory {
         }
         this.deadLetterQueue = deadLetterQueue;
 
-        this.timer = new ScheduledThreadPoolExecutor(5);
+        this.sweeper = new VisibilityTimeoutSweeper();
+        this.acknowledger = new TaskAcknowledger();
 
     }
 
@@ -42,17 +48,42 @@ public class TaskWorkerFactoryImpl implements TaskWorkerFactory {
                                                        processorFactory,
                                                        queue,
                                                        deadLetterQueue,
-                                                       this.timer);
+                                                       this.sweeper,
+                                                       this.acknowledger);
+        taskWorker.setListeners(listeners);
+        taskWorker.setRetryBackoff(retryBackoff);
+        taskWorker.setCircuitBreaker(circuitBreaker);
         taskWorker.init();
         return taskWorker;
     }
 
+    /**
+     * @param circuitBreaker shared by the workers this factory creates; may be
+     *                       null
+     */
+    public void setCircuitBreaker(StoreCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @return the acknowledger shared by the workers this factory creates
+     */
+    public TaskAcknowledger getAcknowledger() {
+        return acknowledger;
+    }
+
+    @Override
+    public void addTaskWorkerListener(TaskWorkerListener listener) {
+        this.listeners.add(listener);
+    }
+
     /* (non-Javadoc)
      * @see org.duracloud.mill.workman.TaskWorkerFactory#destroy()
      */
     @Override
     public void destroy() {
-        this.timer.shutdown();
+        this.sweeper.destroy();
+        this.acknowledger.destroy();
     }
 
 }
@@ -8,11 +8,12 @@
 package org.duracloud.mill.workman;
 
 import java.text.MessageFormat;
-import java.util.Date;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
-import org.duracloud.common.queue.TaskNotFoundException;
+import org.apache.commons.lang.StringUtils;
 import org.duracloud.common.queue.TaskQueue;
 import org.duracloud.common.queue.task.Task;
 import org.slf4j.Logger;
@@ -20,34 +21,61 @@ import org.slf4j.LoggerFactory;
 
 /**
  * It is responsible for executing a single <code>TaskProcessor</code>. During
- * execution it makes sure to extend the visibility timeout of the item on the
- * queue. the <code>TaskProcessor</code>.
+ * execution it keeps the item invisible on the queue by registering it with
+ * the <code>VisibilityTimeoutSweeper</code>.
  *
  * @author Daniel Bernstein
  */
 public class TaskWorkerImpl implements TaskWorker {
     private static Logger log = LoggerFactory.getLogger(TaskWorkerImpl.class);
-    private ScheduledThreadPoolExecutor timer;
+
+    /**
+     * Task property recording each failed attempt as
+     * "attempt:failed-at-millis:retry-delay-seconds:exception", comma separated.
+     */
+    public static final String RETRY_HISTORY_PROPERTY = "retry-history";
+    private VisibilityTimeoutSweeper sweeper;
+    private VisibilityTimeoutSweeper.Registration registration;
+    private TaskAcknowledger acknowledger;
+    private RetryBackoff retryBackoff = new RetryBackoff();
+    private StoreCircuitBreaker circuitBreaker;
 
     private TaskProcessorFactory processorFactory;
     private TaskQueue queue;
     private TaskQueue deadLetterQueue;
     private boolean done = false;
     private boolean started = false;
-    private Runnable currentTimerTask;
     private Task task;
     private boolean initialized = false;
 
+    /*
+     * Set once the task has been handed to the acknowledger, which then
+     * deregisters it from the sweeper when the delete is confirmed, so that
+     * the task stays invisible while the delete is queued or retried.
+     */
+    private boolean acknowledged = false;
+
+    /*
+     * Set by whichever of run() and abandon() gets to decide the task's fate
+     * on the queue first, so that only one of them touches the queue.
+     */
+    private AtomicBoolean settled = new AtomicBoolean();
+    private List<TaskWorkerListener> listeners = Collections.emptyList();
+
     /**
      * @param task
      * @param processorFactory
      * @param queue
+     * @param deadLetterQueue
+     * @param sweeper keeps the task invisible on the queue while it is processed
+     * @param acknowledger deletes the task from the queue once it is processed
      */
     public TaskWorkerImpl(Task task,
                           TaskProcessorFactory processorFactory,
                           TaskQueue queue,
                           TaskQueue deadLetterQueue,
-                          ScheduledThreadPoolExecutor timer) {
+                          VisibilityTimeoutSweeper sweeper,
+                          TaskAcknowledger acknowledger) {
         if (task == null) {
             throw new IllegalArgumentException("task must be non-null");
         }
@@ -62,44 +90,47 @@ public class TaskWorkerImpl implements TaskWorker {
             throw new IllegalArgumentException("processor must be non-null");
         }
 
-        if (timer == null) {
-            throw new IllegalArgumentException("timer must be non-null");
+        if (sweeper == null) {
+            throw new IllegalArgumentException("sweeper must be non-null");
+        }
+
+        if (acknowledger == null) {
+            throw new IllegalArgumentException("acknowledger must be non-null");
         }
 
         this.task = task;
         this.processorFactory = processorFactory;
         this.queue = queue;
         this.deadLetterQueue = deadLetterQueue;
-        this.timer = timer;
+        this.sweeper = sweeper;
+        this.acknowledger = acknowledger;
         log.debug("new worker created {}", this);
 
     }
 
-    private void scheduleVisibilityTimeoutExtender(final Task task,
-                                                   Date timeFrom,
-                                                   final Integer visibilityTimeout) {
-        // schedule task to run in half the visibility timeout to help ensure that the time runs
-        //before the visibility timeout expires.
-        long delay = ((long) (visibilityTimeout * 1000 * 0.5));
-        Runnable timerTask = new Runnable() {
-            @Override
-            public void run() {
-                if (!done) {
-                    try {
-                        log.debug("extending timeout of {} {} seconds", task, visibilityTimeout);
-                        queue.extendVisibilityTimeout(task);
-                        log.debug("timeout extended for {}", task);
-                        // reschedule task
-                        scheduleVisibilityTimeoutExtender(task, new Date(), visibilityTimeout);
-                    } catch (Exception e) {
-                        log.error(e.getMessage(), e);
-                    }
-                }
-            }
-        };
+    /**
+     * @param listeners notified when this worker is done with its task
+     */
+    public void setListeners(List<TaskWorkerListener> listeners) {
+        this.listeners = listeners;
+    }
 
-        this.currentTimerTask = timerTask;
-        timer.schedule(currentTimerTask, delay, TimeUnit.MILLISECONDS);
+    /**
+     * @param retryBackoff determines how long a failed task waits before it
+     *                     is retried
+     */
+    public void setRetryBackoff(RetryBackoff retryBackoff) {
+        this.retryBackoff = retryBackoff;
+    }
+
+    /**
+     * @param circuitBreaker parks the task rather than running it while its
+     *                       store is failing; may be null. Ignored unless the
+     *                       queue is a DelayedTaskRequeuer, since the task
+     *                       could not otherwise be held back.
+     */
+    public void setCircuitBreaker(StoreCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = this.queue instanceof DelayedTaskRequeuer ? circuitBreaker : null;
     }
 
     /**
@@ -108,10 +139,7 @@ public class TaskWorkerImpl implements TaskWorker {
      */
     protected void init() {
         log.debug("taskworker {} initializing...", this);
-        Integer visibilityTimeout = task.getVisibilityTimeout();
-        if (visibilityTimeout > 0) {
-            scheduleVisibilityTimeoutExtender(task, new Date(), visibilityTimeout);
-        }
+        this.registration = sweeper.register(task, queue);
         log.debug("taskworker {} initialized", this);
         initialized = true;
     }
@@ -133,13 +161,30 @@ public class TaskWorkerImpl implements TaskWorker {
             return;
         }
 
+        if (settled.get()) {
+            log.info("task worker {} was abandoned before it started. Ignoring...", this);
+            return;
+        }
+
         started = true;
+        String circuit = circuitBreaker == null ? null : circuitBreaker.getKey(task);
+        if (circuit != null && !circuitBreaker.allow(circuit)) {
+            park(circuit);
+            return;
+        }
+
+        Throwable failure = null;
 
         try {
             log.debug("{} dequeued {}", this, this.task);
             TaskProcessor processor = this.processorFactory.create(task);
             processor.execute();
-            deleteTaskFromQueue(task);
+            if (circuit != null) {
+                circuitBreaker.succeeded(circuit);
+            }
+            if (settle()) {
+                deleteTaskFromQueue(task);
+            }
 
             log.info("completed task:  task_type={} task_class={} attempts={} result={} elapsed_time={}",
                      task.getType(),
@@ -149,6 +194,10 @@ public class TaskWorkerImpl implements TaskWorker {
                      System.currentTimeMillis() - startTime);
 
         } catch (Throwable t) {
+            failure = t;
+            if (circuit != null && StoreCircuitBreaker.isStoreFailure(t)) {
+                circuitBreaker.failed(circuit);
+            }
             int attempts = task.getAttempts();
             log.error(MessageFormat.format("failed to complete:  task_type={0} attempts={1} "
                                            + "result=failure elapsed_time={2} properties=\"{3}\" "
@@ -159,26 +208,117 @@ public class TaskWorkerImpl implements TaskWorker {
                                            task.getProperties(),
                                            t.getMessage()), t);
 
-            if (attempts < TaskWorker.MAX_ATTEMPTS) {
-                requeueTask(this.task);
-            } else {
-                task.addProperty("error", t.getClass().getName() + ":" + t.getMessage());
-                sendToDeadLetterQueue(task);
+            //unless abandoned, in which case the task has already been released
+            if (settle()) {
+                if (attempts < TaskWorker.MAX_ATTEMPTS) {
+                    int delaySeconds = retryBackoff.getDelaySeconds(attempts);
+                    recordFailedAttempt(attempts, delaySeconds, t);
+                    requeueTask(this.task, delaySeconds);
+                } else {
+                    recordFailedAttempt(attempts, 0, t);
+                    task.addProperty("error", t.getClass().getName() + ":" + t.getMessage());
+                    sendToDeadLetterQueue(task);
+                }
             }
 
         } finally {
             done = true;
-            if (this.currentTimerTask != null) {
-                this.timer.remove(this.currentTimerTask);
+            if (!acknowledged) {
+                sweeper.deregister(this.registration);
             }
 
             log.debug("task worker finished {}", this.task);
+            notifyListeners(System.currentTimeMillis() - startTime, failure);
         }
     }
 
-    private void requeueTask(Task task) {
+    @Override
+    public void abandon() {
+        if (settled.compareAndSet(false, true)) {
+            sweeper.deregister(this.registration);
+            TaskQueueHelper.release(this.queue, this.task);
+            log.info("abandoned {}: released back to {}", this.task, this.queue.getName());
+        }
+    }
+
+    /*
+     * Puts the task back on its queue without running it or counting it as an
+     * attempt, to be picked up again once its circuit is due to close.
+     */
+    private void park(String circuit) {
+        done = true;
+        sweeper.deregister(this.registration);
+        if (settle()) {
+            int delaySeconds = circuitBreaker.getParkSeconds(circuit);
+            try {
+                ((DelayedTaskRequeuer) this.queue).park(this.task, delaySeconds);
+                log.info("circuit {} is open: parked {} for {} seconds", circuit, this.task, delaySeconds);
+                notifyListeners(listener -> listener.taskParked(task, delaySeconds));
+            } catch (Exception e) {
+                log.warn(MessageFormat.format("failed to park task on queue {0}: " +
+                                              "it will become visible when its visibility timeout " +
+                                              "expires: task={1}, message={2}",
+                                              queue.getName(),
+                                              task,
+                                              e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * @return true if this worker may delete, requeue or dead letter the
+     * task; false if it has been abandoned.
+     */
+    private boolean settle() {
+        if (settled.compareAndSet(false, true)) {
+            return true;
+        }
+        log.info("task worker {} was abandoned: leaving task on queue", this);
+        return false;
+    }
+
+    private void notifyListeners(long elapsedMs, Throwable failure) {
+        notifyListeners(listener -> listener.taskCompleted(task, elapsedMs, failure));
+    }
+
+    private void notifyListeners(Consumer<TaskWorkerListener> notification) {
+        for (TaskWorkerListener listener : listeners) {
+            try {
+                notification.accept(listener);
+            } catch (Exception e) {
+                log.error("task worker listener failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /*
+     * Appends an entry to the task's retry history so that the circumstances
+     * of each failed attempt travel with the task, including to the dead
+     * letter queue. Only the most recent MAX_ATTEMPTS entries are kept.
+     */
+    private void recordFailedAttempt(int attempts, int delaySeconds, Throwable t) {
+        String entry = attempts + ":" + System.currentTimeMillis() + ":" + delaySeconds + ":" +
+                       t.getClass().getSimpleName();
+        String history = task.getProperty(RETRY_HISTORY_PROPERTY);
+        if (history != null) {
+            String[] entries = (history + "," + entry).split(",");
+            entry = StringUtils.join(entries, ",", Math.max(0, entries.length - TaskWorker.MAX_ATTEMPTS),
+                                     entries.length);
+        }
+        task.addProperty(RETRY_HISTORY_PROPERTY, entry);
+    }
+
+    private void requeueTask(Task task, int delaySeconds) {
         try {
-            this.queue.requeue(task);
+            if (this.queue instanceof DelayedTaskRequeuer) {
+                ((DelayedTaskRequeuer) this.queue).requeue(task, delaySeconds);
+            } else {
+                this.queue.requeue(task);
+                delaySeconds = 0;
+            }
+
+            final int delay = delaySeconds;
+            notifyListeners(listener -> listener.taskRequeued(task, delay));
         } catch (Throwable e) {
             log.error(MessageFormat.format("failed to requeue task: task_type={0} "
                                            + "properties=\"{1}\" "
@@ -196,10 +336,11 @@ public class TaskWorkerImpl implements TaskWorker {
         log.info("putting {} on dead letter queue", task);
 
         try {
-            deleteTaskFromQueue(task);
-
             this.deadLetterQueue.put(task);
             log.info("sent {} to dead-letter-queue={}", task, deadLetterQueue.getName());
+            notifyListeners(listener -> listener.taskDeadLettered(task));
+
+            deleteTaskFromQueue(task);
 
         } catch (Throwable e) {
             log.error(MessageFormat.format("failed to send to dead letter queue:  task_type={0} "
@@ -213,11 +354,9 @@ public class TaskWorkerImpl implements TaskWorker {
     }
 
     private void deleteTaskFromQueue(Task task) {
-        try {
-            log.debug("deleting {} from {}", task, this.queue);
-            this.queue.deleteTask(task);
-        } catch (TaskNotFoundException e) {
-            log.error("Error deleting " + task + ". This should never happen: " + e.getMessage(), e);
-        }
+        log.debug("acknowledging {} on {}", task, this.queue);
+        VisibilityTimeoutSweeper.Registration registration = this.registration;
+        this.acknowledger.acknowledge(task, this.queue, () -> sweeper.deregister(registration));
+        acknowledged = true;
     }
 }
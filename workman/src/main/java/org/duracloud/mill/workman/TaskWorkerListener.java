@@ -0,0 +1,59 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import org.duracloud.common.queue.task.Task;
+
+/**
+ * Receives notification each time a <code>TaskWorker</code> finishes
+ * processing a task.
+ *
+ * @author Daniel Bernstein
+ */
+public interface TaskWorkerListener {
+
+    /**
+     * Called once the worker is done with the task, after it has been deleted,
+     * requeued or sent to the dead letter queue.
+     *
+     * @param task      the task
+     * @param elapsedMs the time spent processing the task
+     * @param failure   the error which caused the task to fail or null if it
+     *                  succeeded.
+     */
+    void taskCompleted(Task task, long elapsedMs, Throwable failure);
+
+    /**
+     * Called when a failed task has been put back on its queue to be retried,
+     * before taskCompleted().
+     *
+     * @param task         the task
+     * @param delaySeconds how long the task waits before it is retried
+     */
+    default void taskRequeued(Task task, int delaySeconds) {
+    }
+
+    /**
+     * Called when a task which failed on its last attempt has been put on the
+     * dead letter queue, before taskCompleted().
+     *
+     * @param task the task
+     */
+    default void taskDeadLettered(Task task) {
+    }
+
+    /**
+     * Called instead of taskCompleted() when a task was put back on its queue
+     * without being run because the circuit breaker for its store is open.
+     *
+     * @param task         the task
+     * @param delaySeconds how long the task waits before it is run
+     */
+    default void taskParked(Task task, int delaySeconds) {
+    }
+}
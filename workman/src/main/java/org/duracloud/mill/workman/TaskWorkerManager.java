@@ -9,40 +9,145 @@ package org.duracloud.mill.workman;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleSupplier;
 
 import org.apache.commons.lang.StringUtils;
+import org.duracloud.common.queue.TaskNotFoundException;
 import org.duracloud.common.queue.TaskQueue;
 import org.duracloud.common.queue.TimeoutException;
+import org.duracloud.common.queue.task.Task;
+import org.duracloud.mill.config.ConfigConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Dispatches tasks from a prioritized list of task queues to a fixed pool of
+ * workers.
+ *
+ * Dispatching is event driven: the dispatcher thread blocks on a worker permit
+ * which is released the moment a worker completes, and then blocks on the
+ * per-queue task buffers which are filled by one fetcher thread per queue.
+ * Fetchers only go to their queue when the dispatcher has a free worker and
+ * nothing buffered to give it. Queues that support long polling wait on the
+ * queue itself while empty; others back off exponentially.
+ *
+ * The number of workers available to any one task type may be limited
+ * (see {@link WorkerLane}); tasks whose lane is full stay buffered while
+ * tasks of other types are dispatched around them.
+ *
+ * When adaptive concurrency is enabled the worker limit moves between
+ * min-workers and max-workers under the control of an
+ * {@link AdaptiveConcurrencyController}.
+ *
+ * Workers run on a fixed size thread pool by default or, for I/O bound
+ * workloads, on a thread per task (see {@link WorkerExecutors}). Either way
+ * the number of concurrently running workers is governed by the worker
+ * permits rather than by the size of the pool.
+ *
+ * Queues are served in strict priority order by default. When queue weights
+ * are configured the dispatcher shares workers among the queues by
+ * {@link DeficitRoundRobin} instead: each backlogged queue is guaranteed its
+ * weighted share and idle queues leave their share to the others. To let the
+ * scheduler see which queues are backlogged every fetcher then keeps its
+ * buffer filled, and all queues use the same short backoff.
+ *
+ * On shutdown the manager drains: it stops taking tasks, immediately
+ * releases tasks which have been taken but not started back to their
+ * queues, and gives running workers a grace period (shutdown-grace-period
+ * seconds) to finish. Workers still running after that are abandoned: their
+ * tasks are released for other nodes to pick up and the workers are
+ * interrupted.
+ *
+ * When given {@link WorkmanMetrics}, the manager registers them as a worker
+ * listener and publishes worker utilization and queue depth gauges. Queue
+ * depths are those found by the most recent status check.
+ *
  * @author Daniel Bernstein
  */
-public class TaskWorkerManager {
+public class TaskWorkerManager implements WorkerPool {
     private Logger log = LoggerFactory.getLogger(TaskWorkerManager.class);
 
     public static final int DEFAULT_MAX_WORKERS = 5;
     public static final String MAX_WORKER_PROPERTY_KEY = "max-workers";
     public static final String MIN_WAIT_BEFORE_TAKE_KEY = "min-wait-before-take";
     public static final long DEFAULT_MIN_WAIT_BEFORE_TAKE = 15 * 1000;
+    public static final String PREFETCH_SIZE_KEY = ConfigConstants.PREFETCH_SIZE;
+    public static final int DEFAULT_PREFETCH_SIZE = 1;
+    public static final String TASK_TYPE_MAX_WORKERS_KEY = ConfigConstants.TASK_TYPE_MAX_WORKERS;
+    public static final String ADAPTIVE_CONCURRENCY_KEY = ConfigConstants.ADAPTIVE_CONCURRENCY;
+    public static final String MIN_WORKERS_KEY = ConfigConstants.MIN_WORKERS;
+    public static final int DEFAULT_MIN_WORKERS = 1;
+    public static final String WORKER_EXECUTOR_KEY = ConfigConstants.WORKER_EXECUTOR;
+    public static final String QUEUE_WEIGHTS_KEY = ConfigConstants.QUEUE_WEIGHTS;
+    public static final String SHUTDOWN_GRACE_PERIOD_KEY = ConfigConstants.SHUTDOWN_GRACE_PERIOD;
+    public static final long DEFAULT_SHUTDOWN_GRACE_PERIOD_SECONDS = 120;
     private static final long DEFAULT_MAX_WAIT_BEFORE_TAKE = 8 * 60 * 1000;
     private Long defaultMinWaitTime = DEFAULT_MIN_WAIT_BEFORE_TAKE;
+    private int prefetchSize = DEFAULT_PREFETCH_SIZE;
     private TaskWorkerFactory factory;
-    private ThreadPoolExecutor executor;
-    private boolean stop = false;
+    private ExecutorService executor;
+    private AtomicLong completedWorkers = new AtomicLong();
+    private volatile boolean stop = false;
     private Timer timer = new Timer();
     private List<TaskQueueExecutor> taskQueueExecutors;
     private TaskQueue deadLetterQueue = null;
     private List<TaskQueue> taskQueues;
 
+    /*
+     * One permit per worker slot: acquired by the dispatcher before it hands
+     * out a task and released as soon as the worker completes.
+     */
+    private ResizableSemaphore workerPermits;
+    private int workerLimit;
+    private AtomicInteger runningWorkers = new AtomicInteger();
+    private AtomicInteger peakRunningWorkers = new AtomicInteger();
+    private Set<WorkerRun> inFlight = ConcurrentHashMap.newKeySet();
+    private Thread dispatcher;
+    private long shutdownGracePeriodSeconds = DEFAULT_SHUTDOWN_GRACE_PERIOD_SECONDS;
+    private AdaptiveConcurrencyController concurrencyController;
+
+    /*
+     * Shares dispatches among the queues when weights are configured; null
+     * for strict priority. Guarded by the dispatch lock.
+     */
+    private DeficitRoundRobin scheduler;
+    private WorkmanMetrics metrics;
+    private Map<TaskQueue, Long> queueSizes = new ConcurrentHashMap<>();
+
+    /*
+     * Optional per task type limits within the worker pool.
+     */
+    private Map<Task.Type, WorkerLane> lanes = new EnumMap<>(Task.Type.class);
+
+    /*
+     * Guards the task buffers and the dispatcher's demand for work. Fetchers
+     * and the dispatcher signal each other through this lock's condition.
+     * A lock rather than a monitor is used since workers signal it on
+     * completion and, when running on virtual threads, must not pin their
+     * carrier thread.
+     */
+    private final ReentrantLock dispatchLock = new ReentrantLock();
+    private final Condition dispatchCondition = dispatchLock.newCondition();
+    private boolean awaitingTasks = false;
+
     public TaskWorkerManager(List<TaskQueue> taskQueues,
                              TaskQueue deadLetterQueue,
                              TaskWorkerFactory factory) {
@@ -87,20 +192,63 @@ public class TaskWorkerManager {
         Integer maxThreadCount = Integer.valueOf(System.getProperty(MAX_WORKER_PROPERTY_KEY,
                                                                     String.valueOf(DEFAULT_MAX_WORKERS)));
 
-        //With a bound pool and unbounded queue, rejection should never occur.
-        this.executor = new ThreadPoolExecutor(maxThreadCount,
-                                               maxThreadCount,
-                                               0L, TimeUnit.MILLISECONDS,
-                                               new LinkedBlockingQueue<Runnable>());
+        this.executor = WorkerExecutors.create(System.getProperty(WORKER_EXECUTOR_KEY), maxThreadCount);
+        this.workerPermits = new ResizableSemaphore(maxThreadCount);
+        this.workerLimit = maxThreadCount;
+
+        this.shutdownGracePeriodSeconds = Long.valueOf(
+            System.getProperty(SHUTDOWN_GRACE_PERIOD_KEY, String.valueOf(DEFAULT_SHUTDOWN_GRACE_PERIOD_SECONDS)));
+
+        this.lanes = WorkerLane.parse(System.getProperty(TASK_TYPE_MAX_WORKERS_KEY), maxThreadCount);
+        for (WorkerLane lane : this.lanes.values()) {
+            log.info("limiting {} tasks to {} workers", lane.getType(), lane.getMaxWorkers());
+        }
+
+        //never prefetch more tasks than can be handed to workers in a single
+        //pass; anything beyond that would sit in the buffer burning through
+        //its visibility timeout.
+        int requestedPrefetchSize = Integer.valueOf(System.getProperty(PREFETCH_SIZE_KEY,
+                                                                       String.valueOf(DEFAULT_PREFETCH_SIZE)));
+        this.prefetchSize = Math.max(1, Math.min(requestedPrefetchSize, maxThreadCount));
+        log.info("prefetch size set to {} (requested {})", this.prefetchSize, requestedPrefetchSize);
+
+        int[] weights = DeficitRoundRobin.parseWeights(System.getProperty(QUEUE_WEIGHTS_KEY),
+                                                       this.taskQueueExecutors.size());
+        if (weights != null) {
+            this.scheduler = new DeficitRoundRobin(weights);
+            for (int i = 0; i < weights.length; i++) {
+                TaskQueueExecutor taskQueueExecutor = this.taskQueueExecutors.get(i);
+                taskQueueExecutor.setWaitTimes(1000, 30 * 1000);
+                log.info("queue {} weight set to {}", taskQueueExecutor.taskQueue.getName(), weights[i]);
+            }
+        }
+
+        if (Boolean.valueOf(System.getProperty(ADAPTIVE_CONCURRENCY_KEY, "false"))) {
+            int minWorkers = Math.min(maxThreadCount,
+                                      Integer.valueOf(System.getProperty(MIN_WORKERS_KEY,
+                                                                         String.valueOf(DEFAULT_MIN_WORKERS))));
+            this.concurrencyController = new AdaptiveConcurrencyController(this, minWorkers, maxThreadCount);
+            this.factory.addTaskWorkerListener(this.concurrencyController);
+            this.concurrencyController.start();
+        }
+
+        if (this.metrics != null) {
+            registerMetrics();
+        }
 
-        this.executor.setRejectedExecutionHandler(new ThreadPoolExecutor.DiscardPolicy());
+        for (TaskQueueExecutor taskQueueExecutor : this.taskQueueExecutors) {
+            Thread fetcher = new Thread(taskQueueExecutor, "fetcher-" + taskQueueExecutor.taskQueue.getName());
+            fetcher.setDaemon(true);
+            fetcher.start();
+        }
 
-        new Thread(new Runnable() {
+        this.dispatcher = new Thread(new Runnable() {
             @Override
             public void run() {
                 runManager();
             }
-        }).start();
+        }, "task-dispatcher");
+        this.dispatcher.start();
 
         timer.scheduleAtFixedRate(new TimerTask() {
             @Override
@@ -108,50 +256,94 @@ public class TaskWorkerManager {
 
                 List<String> queueStats = new LinkedList<String>();
 
-                for (TaskQueue queue : taskQueues) {
-                    queueStats.add(formatQueueStat(queue));
+                for (int i = 0; i < taskQueueExecutors.size(); i++) {
+                    TaskQueueExecutor taskQueueExecutor = taskQueueExecutors.get(i);
+                    String name = taskQueueExecutor.taskQueue.getName();
+                    queueStats.add(formatQueueStat(taskQueueExecutor.taskQueue));
+                    queueStats.add(name + "_buffered=" + taskQueueExecutor.getBufferedCount());
+                    if (scheduler != null) {
+                        queueStats.add(name + "_weight=" + scheduler.getWeight(i));
+                        queueStats.add(name + "_dispatched=" + getDispatchedCount(i));
+                    }
                 }
 
                 queueStats.add(formatQueueStat(deadLetterQueue));
 
+                for (WorkerLane lane : lanes.values()) {
+                    queueStats.add(lane.toString());
+                }
+
                 log.info("Status: max_workers={} running_workers={} completed_workers={}, {}",
-                         getMaxWorkers(),
-                         executor.getActiveCount(),
-                         executor.getCompletedTaskCount(),
+                         getWorkerLimit(),
+                         runningWorkers.get(),
+                         completedWorkers.get(),
                          StringUtils.join(queueStats, " "));
             }
 
             private String formatQueueStat(TaskQueue queue) {
-                return queue.getName() + "_q_size=" + queue.size();
+                Integer size = queue.size();
+                if (size != null) {
+                    queueSizes.put(queue, size.longValue());
+                }
+                return queue.getName() + "_q_size=" + size;
             }
 
         }, new Date(), 1 * 60 * 1000);
     }
 
+    /**
+     * @param metrics receives worker events and publishes the manager's gauges
+     */
+    public void setMetrics(WorkmanMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private void registerMetrics() {
+        this.factory.addTaskWorkerListener(metrics);
+        metrics.addGauge("workman_worker_limit", "The number of workers permitted to run concurrently.",
+                         this::getWorkerLimit);
+        metrics.addGauge("workman_running_workers", "The number of workers currently running.",
+                         runningWorkers::get);
+        metrics.addGauge("workman_worker_utilization", "Running workers as a fraction of the worker limit.",
+                         this::getWorkerUtilization);
+        for (TaskQueueExecutor taskQueueExecutor : this.taskQueueExecutors) {
+            addQueueDepthGauge(taskQueueExecutor.taskQueue);
+            metrics.addQueueGauge("workman_buffered_tasks", "Tasks taken from the queue awaiting a worker.",
+                                  taskQueueExecutor.taskQueue.getName(),
+                                  taskQueueExecutor::getBufferedCount);
+        }
+        addQueueDepthGauge(this.deadLetterQueue);
+    }
+
+    private void addQueueDepthGauge(TaskQueue queue) {
+        DoubleSupplier depth = () -> queueSizes.getOrDefault(queue, -1L);
+        metrics.addQueueGauge("workman_queue_depth", "Tasks on the queue as of the last status check.",
+                              queue.getName(), depth);
+    }
+
+    private double getWorkerUtilization() {
+        return (double) runningWorkers.get() / getWorkerLimit();
+    }
+
     private void runManager() {
 
         while (!stop) {
             try {
-                if (isManagerTooBusy()) {
-                    log.debug("manager is too busy, sleeping for 1 sec");
-                    //wait only a moment before trying again since
-                    //the worker pool is expected to move relatively quickly.
-                    sleep(1000);
-                } else {
-                    //loop through queues attempting to
-                    //execute a task off the highest priority queue
-                    boolean executedOne = false;
-                    for (TaskQueueExecutor taskQueueExecutor : this.taskQueueExecutors) {
-                        if (taskQueueExecutor.execute()) {
-                            executedOne = true;
-                            break;
-                        }
-                    }
-
-                    if (!executedOne) {
-                        sleep(defaultMinWaitTime);
+                //blocks until a worker slot is free
+                workerPermits.acquire();
+
+                boolean dispatched = false;
+                try {
+                    dispatched = dispatchNext();
+                } finally {
+                    if (!dispatched) {
+                        workerPermits.release();
                     }
                 }
+            } catch (InterruptedException ex) {
+                if (!stop) {
+                    log.warn("dispatcher interrupted: {}", ex.getMessage());
+                }
             } catch (Exception ex) {
                 log.error("unexpected failure in outer run manager while loop: "
                           + ex.getMessage() + ". Ignoring...", ex);
@@ -160,12 +352,178 @@ public class TaskWorkerManager {
         }
     }
 
-    private class TaskQueueExecutor {
+    /**
+     * Blocks until a buffered task is available and hands it to a worker.
+     *
+     * @return true if a task was dispatched; false if the manager is stopping.
+     * @throws InterruptedException
+     */
+    private boolean dispatchNext() throws InterruptedException {
+        while (!stop) {
+            BufferedTask next = awaitBufferedTask();
+            if (next == null) {
+                return false;
+            }
+
+            TaskQueueExecutor taskQueueExecutor = next.taskQueueExecutor;
+            final WorkerLane lane = lanes.get(next.task.getType());
+            boolean dispatched = false;
+            try {
+                if (taskQueueExecutor.ensureVisibilityHeadroom(next)) {
+                    TaskWorker worker = factory.create(next.task, taskQueueExecutor.taskQueue);
+                    peakRunningWorkers.accumulateAndGet(runningWorkers.incrementAndGet(), Math::max);
+                    WorkerRun run = new WorkerRun(worker, lane);
+                    inFlight.add(run);
+                    executor.execute(run);
+                    dispatched = true;
+                    return true;
+                }
+            } finally {
+                if (!dispatched) {
+                    releaseLane(lane, false);
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /*
+     * Runs a worker and frees its worker slot once it is done.
+     */
+    private class WorkerRun implements Runnable {
+        private TaskWorker worker;
+        private WorkerLane lane;
+        private AtomicBoolean started = new AtomicBoolean();
+
+        public WorkerRun(TaskWorker worker, WorkerLane lane) {
+            this.worker = worker;
+            this.lane = lane;
+        }
+
+        @Override
+        public void run() {
+            boolean ran = false;
+            try {
+                if (started.compareAndSet(false, true)) {
+                    ran = true;
+                    worker.run();
+                }
+            } finally {
+                inFlight.remove(this);
+                //signal the dispatcher that the slot is free
+                releaseLane(lane, ran);
+                runningWorkers.decrementAndGet();
+                completedWorkers.incrementAndGet();
+                workerPermits.release();
+            }
+        }
+
+        /**
+         * Abandons the worker if it has not started.
+         *
+         * @return true if it was abandoned
+         */
+        public boolean abandonIfNotStarted() {
+            if (started.compareAndSet(false, true)) {
+                worker.abandon();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private long getDispatchedCount(int queueIndex) {
+        dispatchLock.lock();
+        try {
+            return scheduler.getDispatchedCount(queueIndex);
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    /*
+     * Returns the lane permit of a task, counting it as completed only if its
+     * worker ran.
+     */
+    private void releaseLane(WorkerLane lane, boolean ran) {
+        if (lane != null) {
+            if (ran) {
+                lane.release();
+            } else {
+                lane.cancel();
+            }
+            //a task held back by this lane may now be dispatchable
+            signalDispatch();
+        }
+    }
+
+    /**
+     * Waits for the next buffered task whose task type lane has room for
+     * another worker: the highest priority one or, when queue weights are
+     * configured, the one chosen by the scheduler. The lane permit is acquired
+     * on behalf of the caller. While there is nothing dispatchable the
+     * fetchers are told that the dispatcher is waiting for work.
+     *
+     * @return the next task or null if the manager is stopping.
+     * @throws InterruptedException
+     */
+    private BufferedTask awaitBufferedTask() throws InterruptedException {
+        dispatchLock.lock();
+        try {
+            while (!stop) {
+                BufferedTask next;
+                if (scheduler == null) {
+                    next = pollByPriority();
+                } else {
+                    next = scheduler.next(i -> taskQueueExecutors.get(i).pollDispatchable());
+                }
+
+                if (next != null) {
+                    awaitingTasks = false;
+                    return next;
+                }
+
+                if (!awaitingTasks) {
+                    awaitingTasks = true;
+                    dispatchCondition.signalAll();
+                }
+
+                dispatchCondition.await();
+            }
+        } finally {
+            dispatchLock.unlock();
+        }
+
+        return null;
+    }
+
+    private BufferedTask pollByPriority() {
+        for (TaskQueueExecutor taskQueueExecutor : this.taskQueueExecutors) {
+            BufferedTask next = taskQueueExecutor.pollDispatchable();
+            if (next != null) {
+                return next;
+            }
+        }
+        return null;
+    }
+
+    private void signalDispatch() {
+        dispatchLock.lock();
+        try {
+            dispatchCondition.signalAll();
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    private class TaskQueueExecutor implements Runnable {
         private TaskQueue taskQueue;
         private long currentWaitBeforeTaskMs;
-        private Date nextAttempt = null;
+        private long nextAttempt = 0;
         private long minWaitTime;
         private long maxWaitTime;
+        private LinkedList<BufferedTask> buffer = new LinkedList<>();
 
         public TaskQueueExecutor(TaskQueue taskQueue, long minWaitTime, long maxWaitTime) {
             this.taskQueue = taskQueue;
@@ -174,69 +532,324 @@ public class TaskWorkerManager {
             this.currentWaitBeforeTaskMs = minWaitTime;
         }
 
+        public void setWaitTimes(long minWaitTime, long maxWaitTime) {
+            this.minWaitTime = minWaitTime;
+            this.maxWaitTime = maxWaitTime;
+            this.currentWaitBeforeTaskMs = minWaitTime;
+        }
+
         /**
-         * @return true if a task was executed.
+         * Removes and returns the first buffered task whose task type lane
+         * has room for another worker, acquiring the lane permit. Must be
+         * called while holding the dispatch lock.
+         *
+         * @return the task or null if none can be dispatched now.
          */
-        public boolean execute() {
-            if (nextAttempt != null &&
-                nextAttempt.getTime() > System.currentTimeMillis()) {
-                return false;
+        private BufferedTask pollDispatchable() {
+            Iterator<BufferedTask> it = buffer.iterator();
+            while (it.hasNext()) {
+                BufferedTask next = it.next();
+                WorkerLane lane = lanes.get(next.task.getType());
+                if (lane == null || lane.tryAcquire()) {
+                    it.remove();
+                    if (scheduler != null && buffer.isEmpty()) {
+                        //time for this queue's fetcher to refill its buffer
+                        dispatchCondition.signalAll();
+                    }
+                    return next;
+                }
+                if (!next.deferred) {
+                    //the buffer is polled on every dispatch: count the task once
+                    next.deferred = true;
+                    lane.defer();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * The fetcher loop: whenever the dispatcher is waiting for work and
+         * this queue's buffer is empty, refills the buffer from the queue (up
+         * to prefetchSize tasks in a single receive).
+         */
+        @Override
+        public void run() {
+            while (!stop) {
+                try {
+                    if (!awaitDemand()) {
+                        break;
+                    }
+
+                    Set<Task> tasks = take();
+                    long receivedTime = System.currentTimeMillis();
+                    currentWaitBeforeTaskMs = minWaitTime;
+                    nextAttempt = 0;
+
+                    dispatchLock.lock();
+                    try {
+                        for (Task task : tasks) {
+                            buffer.add(new BufferedTask(task, receivedTime, this));
+                        }
+                        dispatchCondition.signalAll();
+                    } finally {
+                        dispatchLock.unlock();
+                    }
+
+                    if (stop) {
+                        releaseBufferedTasks();
+                    }
+                } catch (TimeoutException e) {
+                    log.debug("Timeout: {} queue is empty:  message={}", taskQueue.getName(), e.getMessage());
+                    if (!(taskQueue instanceof LongPollingTaskQueue && ((LongPollingTaskQueue) taskQueue).blocksOnEmpty())) {
+                        nextAttempt = System.currentTimeMillis() + currentWaitBeforeTaskMs;
+                        currentWaitBeforeTaskMs = Math.min(currentWaitBeforeTaskMs * 2, maxWaitTime);
+                    }
+                } catch (InterruptedException e) {
+                    log.warn("fetcher for {} interrupted: {}", taskQueue.getName(), e.getMessage());
+                } catch (Exception e) {
+                    log.error("unexpected failure taking tasks from " + taskQueue.getName() + ": "
+                              + e.getMessage() + ". Ignoring...", e);
+                    nextAttempt = System.currentTimeMillis() + minWaitTime;
+                }
+            }
+        }
+
+        /**
+         * Blocks until the dispatcher is waiting for tasks (or, when queue
+         * weights are configured, whenever), this queue's buffer is empty and
+         * any backoff period has elapsed.
+         *
+         * @return false if the manager is stopping.
+         * @throws InterruptedException
+         */
+        private boolean awaitDemand() throws InterruptedException {
+            dispatchLock.lock();
+            try {
+                while (!stop) {
+                    long backoff = nextAttempt - System.currentTimeMillis();
+                    if (backoff > 0) {
+                        dispatchCondition.await(backoff, TimeUnit.MILLISECONDS);
+                    } else if ((awaitingTasks || scheduler != null) && buffer.isEmpty()) {
+                        return true;
+                    } else {
+                        dispatchCondition.await();
+                    }
+                }
+            } finally {
+                dispatchLock.unlock();
+            }
+            return false;
+        }
+
+        private Set<Task> take() throws TimeoutException {
+            if (prefetchSize > 1) {
+                Set<Task> tasks = taskQueue.take(prefetchSize);
+                log.debug("prefetched {} tasks from {}", tasks.size(), taskQueue.getName());
+                return tasks;
+            } else {
+                Set<Task> tasks = new HashSet<>(1);
+                tasks.add(taskQueue.take());
+                return tasks;
+            }
+        }
+
+        /**
+         * Extends the visibility timeout of a task that has been buffered long
+         * enough that the visibility timeout sweeper, which first extends a
+         * task half a timeout after its worker is created, might not get to it
+         * in time. A task whose timeout cannot be extended is released
+         * back to its queue, or skipped if the queue no longer has it.
+         *
+         * @return true if the task can be executed.
+         */
+        private boolean ensureVisibilityHeadroom(BufferedTask buffered) {
+            Task task = buffered.task;
+            Integer visibilityTimeout = task.getVisibilityTimeout();
+            long bufferedMs = System.currentTimeMillis() - buffered.receivedTime;
+            if (visibilityTimeout == null || visibilityTimeout <= 0 ||
+                bufferedMs < visibilityTimeout * 1000L / 4) {
+                return true;
             }
 
             try {
-                TaskWorker worker = factory.create(taskQueue.take(), taskQueue);
-                executor.execute(worker);
-                nextAttempt = null;
-                currentWaitBeforeTaskMs = minWaitTime;
+                log.debug("{} buffered for {} ms: extending visibility timeout before execution",
+                          task, bufferedMs);
+                taskQueue.extendVisibilityTimeout(task);
                 return true;
-            } catch (TimeoutException e) {
-                log.debug("Timeout: {} queue is empty:  message={}", taskQueue.getName(), e.getMessage());
-                nextAttempt = new Date(System.currentTimeMillis() + currentWaitBeforeTaskMs);
-                currentWaitBeforeTaskMs = Math.min(currentWaitBeforeTaskMs * 2, maxWaitTime);
+            } catch (TaskNotFoundException e) {
+                log.warn("buffered task {} could not be found on {} (it may have been " +
+                         "redelivered elsewhere): skipping. message={}",
+                         task, taskQueue.getName(), e.getMessage());
+                return false;
+            } catch (RuntimeException e) {
+                log.warn("failed to extend visibility timeout of buffered task {} on {}: " +
+                         "releasing it rather than risk running it once it may have been " +
+                         "redelivered elsewhere. message={}", task, taskQueue.getName(), e.getMessage());
+                TaskQueueHelper.release(taskQueue, task);
                 return false;
             }
         }
 
+        public int getBufferedCount() {
+            dispatchLock.lock();
+            try {
+                return buffer.size();
+            } finally {
+                dispatchLock.unlock();
+            }
+        }
+
+        /**
+         * Makes any buffered (ie taken but not yet executing) tasks immediately
+         * visible on the queue again so that other workers can pick them up.
+         *
+         * @return the number of tasks released
+         */
+        public int releaseBufferedTasks() {
+            List<BufferedTask> released;
+            dispatchLock.lock();
+            try {
+                released = new ArrayList<>(buffer);
+                buffer.clear();
+            } finally {
+                dispatchLock.unlock();
+            }
+
+            for (BufferedTask buffered : released) {
+                TaskQueueHelper.release(taskQueue, buffered.task);
+            }
+            return released.size();
+        }
     }
 
-    /**
-     * @return
+    private static class BufferedTask {
+        private Task task;
+        private long receivedTime;
+        private TaskQueueExecutor taskQueueExecutor;
+        private boolean deferred;
+
+        public BufferedTask(Task task, long receivedTime, TaskQueueExecutor taskQueueExecutor) {
+            this.task = task;
+            this.receivedTime = receivedTime;
+            this.taskQueueExecutor = taskQueueExecutor;
+        }
+    }
+
+    public int getMaxWorkers() {
+        return getWorkerLimit();
+    }
+
+    /*
+     * The lane limiting the workers of the given task type, if any
      */
-    private boolean isManagerTooBusy() {
-        int active = this.executor.getActiveCount();
-        int maxPoolSize = this.executor.getMaximumPoolSize();
-        int queueSize = this.executor.getQueue().size();
+    WorkerLane getLane(Task.Type type) {
+        return lanes.get(type);
+    }
+
+    @Override
+    public synchronized int getWorkerLimit() {
+        return workerLimit;
+    }
+
+    @Override
+    public synchronized void setWorkerLimit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("worker limit must be greater than 0: " + limit);
+        }
 
-        boolean tooBusy = active + queueSize >= maxPoolSize;
+        int delta = limit - workerLimit;
+        if (delta > 0) {
+            //grow the pool before handing out the additional permits
+            WorkerExecutors.resize(executor, limit);
+            workerPermits.release(delta);
+        } else if (delta < 0) {
+            //running workers keep their permits; the reduction takes effect
+            //as they complete.
+            workerPermits.reducePermits(-delta);
+            WorkerExecutors.resize(executor, limit);
+        }
 
-        if (tooBusy) {
-            log.info("manager is too busy: active worker count = {}; " +
-                     "workers awaiting execution (thread pool queue size) = {}",
-                     active, queueSize);
+        if (delta != 0) {
+            log.info("worker limit set to {} (was {})", limit, workerLimit);
+            workerLimit = limit;
         }
-        return tooBusy;
     }
 
-    public int getMaxWorkers() {
-        return executor.getMaximumPoolSize();
+    @Override
+    public int getAndResetPeakRunningWorkers() {
+        return peakRunningWorkers.getAndSet(runningWorkers.get());
     }
 
-    private void sleep(long ms) {
-        try {
-            Thread.sleep(ms);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    /*
+     * A semaphore whose permit count can be lowered while permits are held.
+     */
+    private static class ResizableSemaphore extends Semaphore {
+        public ResizableSemaphore(int permits) {
+            super(permits);
+        }
+
+        @Override
+        public void reducePermits(int reduction) {
+            super.reducePermits(reduction);
         }
     }
 
     public void destroy() {
+        log.info("draining: no more tasks will be taken");
         stop = true;
         timer.cancel();
+        if (concurrencyController != null) {
+            concurrencyController.stop();
+        }
+        signalDispatch();
+
+        //wake the dispatcher if it is waiting for a free worker and wait for
+        //it to hand over any task it is dispatching
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+            try {
+                dispatcher.join(10 * 1000);
+            } catch (InterruptedException e) {
+                log.warn("interrupted waiting for the dispatcher to stop");
+            }
+        }
+
+        int released = 0;
+        for (TaskQueueExecutor taskQueueExecutor : this.taskQueueExecutors) {
+            released += taskQueueExecutor.releaseBufferedTasks();
+        }
+        for (WorkerRun run : inFlight) {
+            if (run.abandonIfNotStarted()) {
+                released++;
+            }
+        }
+        log.info("draining: released {} tasks which had not started", released);
+
         executor.shutdown();
-        log.info("terminating...waiting for threads to complete processing...");
-        while (!executor.isTerminated()) {
-            sleep(1000);
+        log.info("draining: waiting up to {} seconds for {} running workers to complete...",
+                 shutdownGracePeriodSeconds, runningWorkers.get());
+        if (!awaitTermination(shutdownGracePeriodSeconds)) {
+            int abandoned = 0;
+            for (WorkerRun run : inFlight) {
+                run.worker.abandon();
+                abandoned++;
+            }
+            log.warn("draining: grace period expired: released {} running tasks and interrupting their workers",
+                     abandoned);
+            executor.shutdownNow();
+            if (!awaitTermination(10)) {
+                log.warn("draining: {} workers did not respond to interruption", runningWorkers.get());
+            }
         }
         log.info("terminated");
     }
+
+    private boolean awaitTermination(long seconds) {
+        try {
+            return executor.awaitTermination(seconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            log.warn("interrupted waiting for workers to complete");
+            return executor.isTerminated();
+        }
+    }
 }
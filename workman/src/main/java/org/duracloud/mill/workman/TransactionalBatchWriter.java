@@ -0,0 +1,317 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Gathers the items written by concurrent workers into batches which are
+ * written in a single transaction, so that heavy load pays for one commit per
+ * batch rather than one per item.
+ *
+ * A batch is written once it holds maxBatchSize items or maxWaitMs after its
+ * first item arrived, whichever comes first. Callers of write() block until
+ * their item's batch has committed, so a task is only acknowledged once its
+ * item is in the database. If a batch fails (for example because one of its
+ * items is a duplicate) its transaction is rolled back, so none of its items
+ * are written, and each item is then written again in a transaction of its
+ * own, so that each caller sees the outcome of its own item, as it would
+ * without batching.
+ *
+ * Batches are written by a single thread, so batching only pays off where
+ * the commit, rather than the statements, dominates the cost of a write.
+ *
+ * @param <T> the type of item written
+ * @author Daniel Bernstein
+ */
+public abstract class TransactionalBatchWriter<T> {
+    private static final Logger log = LoggerFactory.getLogger(TransactionalBatchWriter.class);
+
+    private String name;
+    private TransactionTemplate transactionTemplate;
+    private int maxBatchSize;
+    private long maxWaitMs;
+
+    private BlockingQueue<Pending<T>> pending = new LinkedBlockingQueue<>();
+    private Thread flusher;
+    private final ReentrantLock flusherLock = new ReentrantLock();
+    private volatile boolean running = true;
+
+    private AtomicLong batches = new AtomicLong();
+    private AtomicLong items = new AtomicLong();
+    private AtomicLong fallbacks = new AtomicLong();
+
+    /**
+     * @param name               names the writer's thread and log messages
+     * @param transactionManager the transaction manager in whose transactions
+     *                           the batches are written
+     * @param maxBatchSize       the most items written in one transaction
+     * @param maxWaitMs          how long the first item of a batch waits for
+     *                           others to join it
+     */
+    protected TransactionalBatchWriter(String name,
+                                       PlatformTransactionManager transactionManager,
+                                       int maxBatchSize,
+                                       long maxWaitMs) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1: " + maxBatchSize);
+        }
+        this.name = name;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitMs = Math.max(0, maxWaitMs);
+        this.flusher = new Thread(this::run, name + "-batch-writer");
+        this.flusher.setDaemon(true);
+    }
+
+    /**
+     * Writes a single item in a transaction of its own.
+     *
+     * @param item
+     * @throws Exception
+     */
+    protected abstract void writeItem(T item) throws Exception;
+
+    /**
+     * Writes the items of a batch within the batch's transaction. Nothing
+     * written here may commit on its own: an exception rolls back the whole
+     * batch.
+     *
+     * @param batch
+     * @throws Exception
+     */
+    protected abstract void writeItems(List<T> batch) throws Exception;
+
+    /**
+     * Called with each batch before it is written, for example to put its
+     * items in the order in which they must be applied.
+     *
+     * @param batch
+     */
+    protected void order(List<T> batch) {
+    }
+
+    private void start() {
+        flusherLock.lock();
+        try {
+            if (!flusher.isAlive() && running) {
+                flusher.start();
+                log.info("writing {} in batches of up to {} items, waiting up to {} ms",
+                         name, maxBatchSize, maxWaitMs);
+            }
+        } finally {
+            flusherLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the item and waits for its batch to commit.
+     *
+     * @param item
+     * @throws Exception the exception with which the item failed
+     */
+    public void write(T item) throws Exception {
+        if (!running) {
+            writeItem(item);
+            return;
+        }
+
+        if (!flusher.isAlive()) {
+            start();
+        }
+
+        Pending<T> entry = new Pending<>(item);
+        pending.add(entry);
+        try {
+            while (true) {
+                try {
+                    entry.result.get(1, TimeUnit.SECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    //the writer may have stopped after the item was added
+                    if (!flusher.isAlive() && pending.remove(entry)) {
+                        writeItem(item);
+                        return;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted waiting for " + name + " batch to be written", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause.getMessage(), cause);
+        }
+    }
+
+    private void run() {
+        List<Pending<T>> batch = new ArrayList<>(maxBatchSize);
+        while (running || !pending.isEmpty()) {
+            try {
+                Pending<T> first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Pending<T> next = remaining > 0 ?
+                                      pending.poll(remaining, TimeUnit.NANOSECONDS) : pending.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (Throwable t) {
+                log.error(name + " batch writer failed: " + t.getMessage(), t);
+                for (Pending<T> entry : batch) {
+                    entry.result.completeExceptionally(t);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<Pending<T>> batch) {
+        batches.incrementAndGet();
+        items.addAndGet(batch.size());
+
+        List<T> ordered = new ArrayList<>(batch.size());
+        for (Pending<T> entry : batch) {
+            ordered.add(entry.item);
+        }
+        order(ordered);
+
+        if (batch.size() > 1) {
+            try {
+                transactionTemplate.execute(status -> {
+                    try {
+                        writeItems(ordered);
+                    } catch (RuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new BatchFailedException(e);
+                    }
+                    return null;
+                });
+                for (Pending<T> entry : batch) {
+                    entry.result.complete(null);
+                }
+                return;
+            } catch (RuntimeException e) {
+                fallbacks.incrementAndGet();
+                log.info("failed to write batch of {} {} items ({}): writing them one at a time",
+                         batch.size(), name, e.getMessage());
+            }
+        }
+
+        for (T item : ordered) {
+            Pending<T> entry = find(batch, item);
+            try {
+                writeItem(item);
+                entry.result.complete(null);
+            } catch (Throwable t) {
+                entry.result.completeExceptionally(t);
+            }
+        }
+    }
+
+    private Pending<T> find(List<Pending<T>> batch, T item) {
+        for (Pending<T> entry : batch) {
+            if (entry.item == item) {
+                return entry;
+            }
+        }
+        throw new IllegalStateException("order() must not add items to a batch");
+    }
+
+    /**
+     * Writes the items which are still pending and stops the writer.
+     */
+    public void destroy() {
+        flusherLock.lock();
+        try {
+            running = false;
+            if (!flusher.isAlive()) {
+                return;
+            }
+            flusher.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            flusherLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of batches written
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * @return the number of items written in batches
+     */
+    public long getItemCount() {
+        return items.get();
+    }
+
+    /**
+     * @return the number of batches whose items had to be written one at a
+     * time
+     */
+    public long getFallbackCount() {
+        return fallbacks.get();
+    }
+
+    private static class Pending<T> {
+        private T item;
+        private CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Pending(T item) {
+            this.item = item;
+        }
+    }
+
+    /*
+     * Carries a checked exception out of the batch's transaction so that the
+     * transaction is rolled back.
+     */
+    private static class BatchFailedException extends RuntimeException {
+        BatchFailedException(Exception cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.duracloud.common.queue.TaskQueue;
+import org.duracloud.common.queue.task.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the tasks of all running workers invisible on their queues.
+ *
+ * Workers register their task when they are initialized and deregister it when
+ * they finish. A single thread sweeps the registrations at a fixed interval:
+ * a task is due for extension once half its visibility timeout has elapsed
+ * since it was received or last extended. Whenever a queue has a task due,
+ * every other task on that queue which has used at least a quarter of its
+ * visibility timeout is extended along with it, so that tasks which would
+ * otherwise come due a few moments apart share the same call. Queues which
+ * implement {@link BatchVisibilityTimeoutExtender} extend the whole group in
+ * batched requests; others are extended one task at a time.
+ *
+ * @author Daniel Bernstein
+ */
+public class VisibilityTimeoutSweeper {
+    private static Logger log = LoggerFactory.getLogger(VisibilityTimeoutSweeper.class);
+
+    public static final long DEFAULT_SWEEP_INTERVAL_MS = 1000;
+
+    private Set<Registration> registrations = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService scheduler;
+
+    public VisibilityTimeoutSweeper() {
+        this(DEFAULT_SWEEP_INTERVAL_MS);
+    }
+
+    /**
+     * @param sweepIntervalMs how often to check for tasks that are due. It
+     *                        should be well below half the shortest visibility
+     *                        timeout in use.
+     */
+    public VisibilityTimeoutSweeper(long sweepIntervalMs) {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "visibility-timeout-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep();
+                } catch (Exception e) {
+                    log.error("visibility timeout sweep failed: " + e.getMessage(), e);
+                }
+            }
+        }, sweepIntervalMs, sweepIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts keeping the task invisible on the queue. Tasks without a positive
+     * visibility timeout are ignored.
+     *
+     * @param task
+     * @param queue
+     * @return the registration to pass to deregister() or null if the task
+     * was ignored.
+     */
+    public Registration register(Task task, TaskQueue queue) {
+        Integer visibilityTimeout = task.getVisibilityTimeout();
+        if (visibilityTimeout != null && visibilityTimeout > 0) {
+            Registration registration = new Registration(task, queue, visibilityTimeout * 1000L);
+            registrations.add(registration);
+            log.debug("registered {} for visibility timeout extension every {} seconds",
+                      task, visibilityTimeout / 2.0);
+            return registration;
+        }
+        return null;
+    }
+
+    /**
+     * Stops extending the visibility timeout of a registered task.
+     *
+     * @param registration may be null
+     */
+    public void deregister(Registration registration) {
+        if (registration != null && registrations.remove(registration)) {
+            log.debug("deregistered {}", registration.task);
+        }
+    }
+
+    public int getRegisteredCount() {
+        return registrations.size();
+    }
+
+    protected void sweep() {
+        long now = System.currentTimeMillis();
+
+        //group the registrations by queue, noting which queues have a task due
+        Map<TaskQueue, List<Registration>> candidates = new HashMap<>();
+        Set<TaskQueue> queuesWithDueTasks = new HashSet<>();
+        for (Registration registration : registrations) {
+            long age = now - registration.lastExtended;
+            if (age >= registration.visibilityTimeoutMs / 4) {
+                List<Registration> list = candidates.get(registration.queue);
+                if (list == null) {
+                    list = new LinkedList<>();
+                    candidates.put(registration.queue, list);
+                }
+                list.add(registration);
+                if (age >= registration.visibilityTimeoutMs / 2) {
+                    queuesWithDueTasks.add(registration.queue);
+                }
+            }
+        }
+
+        for (TaskQueue queue : queuesWithDueTasks) {
+            extend(queue, candidates.get(queue), now);
+        }
+    }
+
+    private void extend(TaskQueue queue, List<Registration> group, long now) {
+        if (queue instanceof BatchVisibilityTimeoutExtender) {
+            List<Task> tasks = new ArrayList<>(group.size());
+            for (Registration registration : group) {
+                tasks.add(registration.task);
+            }
+            log.debug("extending visibility timeout of {} tasks on {}", tasks.size(), queue.getName());
+            //the tasks' properties may be changed by their workers at any
+            //time, so they are matched by identity rather than by equality
+            Set<Task> failed = Collections.newSetFromMap(new IdentityHashMap<>());
+            failed.addAll(((BatchVisibilityTimeoutExtender) queue).extendVisibilityTimeouts(tasks));
+            for (Registration registration : group) {
+                if (!failed.contains(registration.task)) {
+                    registration.lastExtended = now;
+                } else {
+                    log.error("failed to extend visibility timeout of {} on {}", registration.task,
+                              queue.getName());
+                }
+            }
+        } else {
+            for (Registration registration : group) {
+                try {
+                    log.debug("extending timeout of {} {} seconds", registration.task,
+                              registration.visibilityTimeoutMs / 1000);
+                    queue.extendVisibilityTimeout(registration.task);
+                    registration.lastExtended = now;
+                    log.debug("timeout extended for {}", registration.task);
+                } catch (Exception e) {
+                    log.error(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    public void destroy() {
+        scheduler.shutdownNow();
+        registrations.clear();
+    }
+
+    /**
+     * A task being kept invisible on its queue.
+     */
+    public static class Registration {
+        private Task task;
+        private TaskQueue queue;
+        private long visibilityTimeoutMs;
+        private volatile long lastExtended;
+
+        public Registration(Task task, TaskQueue queue, long visibilityTimeoutMs) {
+            this.task = task;
+            this.queue = queue;
+            this.visibilityTimeoutMs = visibilityTimeoutMs;
+            this.lastExtended = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the executor on which task workers run.
+ *
+ * Two modes are supported:
+ * <ul>
+ * <li>"pool" (the default): a fixed size pool of platform threads, one per
+ * worker.</li>
+ * <li>"virtual": a new thread per task. On a Java 21+ runtime these are
+ * virtual threads, which makes it cheap to run hundreds of I/O bound workers
+ * (S3, MySQL) concurrently. On older runtimes an unbounded cached pool of
+ * platform threads is used instead.</li>
+ * </ul>
+ * In both cases the number of concurrently running workers is governed by
+ * the caller's worker permits, not by the executor.
+ *
+ * @author Daniel Bernstein
+ */
+public class WorkerExecutors {
+    private static Logger log = LoggerFactory.getLogger(WorkerExecutors.class);
+
+    public static final String POOL = "pool";
+    public static final String VIRTUAL = "virtual";
+
+    private WorkerExecutors() {
+        // Ensures no instances are made of this class, as there are only static members.
+    }
+
+    /**
+     * @param mode       "pool" or "virtual"; blank means "pool".
+     * @param maxWorkers the size of the fixed pool
+     * @return a new executor
+     */
+    public static ExecutorService create(String mode, int maxWorkers) {
+        if (StringUtils.isBlank(mode) || POOL.equalsIgnoreCase(mode.trim())) {
+            log.info("running workers on a fixed pool of {} threads", maxWorkers);
+            //With a bound pool and unbounded queue, rejection should never occur.
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(maxWorkers,
+                                                                 maxWorkers,
+                                                                 0L, TimeUnit.MILLISECONDS,
+                                                                 new LinkedBlockingQueue<Runnable>());
+            executor.setRejectedExecutionHandler(new ThreadPoolExecutor.DiscardPolicy());
+            return executor;
+        } else if (VIRTUAL.equalsIgnoreCase(mode.trim())) {
+            return createThreadPerTaskExecutor();
+        } else {
+            throw new IllegalArgumentException("unknown worker executor mode: " + mode +
+                                               " (expected " + POOL + " or " + VIRTUAL + ")");
+        }
+    }
+
+    /**
+     * Resizes the executor if it is a fixed size pool; thread per task
+     * executors need no resizing.
+     */
+    public static void resize(ExecutorService executor, int size) {
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            if (pool.getCorePoolSize() == pool.getMaximumPoolSize()) {
+                if (size > pool.getMaximumPoolSize()) {
+                    pool.setMaximumPoolSize(size);
+                    pool.setCorePoolSize(size);
+                } else {
+                    pool.setCorePoolSize(size);
+                    pool.setMaximumPoolSize(size);
+                }
+            }
+        }
+    }
+
+    private static ExecutorService createThreadPerTaskExecutor() {
+        try {
+            //looked up reflectively so that the code base can continue to
+            //target Java 17 while taking advantage of virtual threads when
+            //run on a newer JVM.
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService executor = (ExecutorService) method.invoke(null);
+            log.info("running workers on virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            log.warn("virtual threads are not supported by this JVM ({}): running workers " +
+                     "on an unbounded pool of platform threads instead",
+                     System.getProperty("java.version"));
+            final AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "worker-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.text.MessageFormat;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.duracloud.common.queue.task.Task;
+
+/**
+ * A bulkhead limiting the number of workers which may concurrently process
+ * tasks of a single type. Lanes are carved out of the shared worker pool:
+ * a task is only handed to a worker when both a pool slot and a permit from
+ * its type's lane are available. This keeps slow, bandwidth bound task types
+ * (such as duplication) from occupying every worker and starving the others.
+ *
+ * @author Daniel Bernstein
+ */
+public class WorkerLane {
+
+    private Task.Type type;
+    private int maxWorkers;
+    private Semaphore permits;
+    private AtomicLong completed = new AtomicLong();
+    private AtomicLong deferred = new AtomicLong();
+
+    public WorkerLane(Task.Type type, int maxWorkers) {
+        if (maxWorkers < 1) {
+            throw new IllegalArgumentException("maxWorkers must be greater than 0: " + maxWorkers);
+        }
+        this.type = type;
+        this.maxWorkers = maxWorkers;
+        this.permits = new Semaphore(maxWorkers);
+    }
+
+    /**
+     * @return true if a worker may be started for this lane. The caller must
+     * call release() once the worker completes, or cancel() if no worker is
+     * run after all. A task which cannot be started is reported with defer()
+     * the first time only.
+     */
+    public boolean tryAcquire() {
+        return permits.tryAcquire();
+    }
+
+    /**
+     * Records that a task of this type was held back because the lane was
+     * full. Each task is recorded once, however many times it is tried.
+     */
+    public void defer() {
+        deferred.incrementAndGet();
+    }
+
+    /**
+     * Returns the permit of a worker which ran to completion.
+     */
+    public void release() {
+        completed.incrementAndGet();
+        permits.release();
+    }
+
+    /**
+     * Returns a permit which was acquired for a task that was not run.
+     */
+    public void cancel() {
+        permits.release();
+    }
+
+    public Task.Type getType() {
+        return type;
+    }
+
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    public int getRunningCount() {
+        return maxWorkers - permits.availablePermits();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * @return the number of tasks of this type which were held back at least
+     * once because the lane was full.
+     */
+    public long getDeferredCount() {
+        return deferred.get();
+    }
+
+    @Override
+    public String toString() {
+        String name = type.name().toLowerCase();
+        return MessageFormat.format("{0}_max_workers={1} {0}_running={2} {0}_completed={3} {0}_deferred={4}",
+                                    name, maxWorkers, getRunningCount(), getCompletedCount(),
+                                    getDeferredCount());
+    }
+
+    /**
+     * Parses a lane configuration of the form "DUP:3,BIT:2". Limits above
+     * poolSize are capped at poolSize.
+     *
+     * @param config     comma separated TYPE:count pairs; may be blank.
+     * @param poolSize   the size of the shared worker pool
+     * @return a lane per configured task type
+     */
+    public static Map<Task.Type, WorkerLane> parse(String config, int poolSize) {
+        Map<Task.Type, WorkerLane> lanes = new EnumMap<>(Task.Type.class);
+        if (StringUtils.isBlank(config)) {
+            return lanes;
+        }
+
+        for (String entry : config.split(",")) {
+            String[] pair = entry.trim().split(":");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException(
+                    "task type max workers entry must be of the form TYPE:count: " + entry);
+            }
+            Task.Type type = Task.Type.valueOf(pair[0].trim().toUpperCase());
+            int max = Math.min(Integer.parseInt(pair[1].trim()), poolSize);
+            lanes.put(type, new WorkerLane(type, max));
+        }
+        return lanes;
+    }
+}
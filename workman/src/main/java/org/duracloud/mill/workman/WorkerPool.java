@@ -0,0 +1,36 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+/**
+ * A pool of workers whose size can be changed while it is running.
+ *
+ * @author Daniel Bernstein
+ */
+public interface WorkerPool {
+
+    /**
+     * @return the number of workers currently permitted to run concurrently.
+     */
+    int getWorkerLimit();
+
+    /**
+     * Changes the number of workers permitted to run concurrently. When the
+     * limit is lowered running workers are allowed to complete; no new workers
+     * are started until the number running drops below the new limit.
+     *
+     * @param limit
+     */
+    void setWorkerLimit(int limit);
+
+    /**
+     * @return the highest number of workers running at the same time since
+     * the last call to this method.
+     */
+    int getAndResetPeakRunningWorkers();
+}
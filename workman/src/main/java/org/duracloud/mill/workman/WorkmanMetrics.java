@@ -0,0 +1,520 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.duracloud.common.queue.task.Task;
+import org.duracloud.mill.config.ConfigConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects runtime metrics for workman: latency histograms per task type and
+ * per processor step; completed, failed, requeued, dead lettered and parked
+ * task counts per task type; and gauges (such as worker utilization and queue
+ * depth) and counters (such as cache hits) registered by the components which
+ * own them.
+ *
+ * The metrics are published over JMX as read-only attributes of the
+ * org.duracloud.mill.workman:type=WorkmanMetrics MBean and, when the
+ * metrics-port property is set, over HTTP at /metrics in the Prometheus text
+ * format, on the interface given by the metrics-bind-address property
+ * (loopback by default).
+ *
+ * @author Daniel Bernstein
+ */
+public class WorkmanMetrics implements TaskWorkerListener, ProcessorStepListener, DynamicMBean {
+    private static Logger log = LoggerFactory.getLogger(WorkmanMetrics.class);
+
+    public static final String METRICS_PORT_KEY = ConfigConstants.METRICS_PORT;
+    public static final String METRICS_BIND_ADDRESS_KEY = ConfigConstants.METRICS_BIND_ADDRESS;
+    public static final String OBJECT_NAME = "org.duracloud.mill.workman:type=WorkmanMetrics";
+
+    /*
+     * Upper bounds, in seconds, of the Prometheus histogram buckets.
+     */
+    private static final double[] BUCKET_BOUNDS = {
+        0.001, 0.005, 0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600, 1800, 3600
+    };
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private static final String GAUGE = "gauge";
+    private static final String COUNTER = "counter";
+    private static final String COUNTER_SUFFIX = "_total";
+
+    private Map<Task.Type, TypeMetrics> types = new EnumMap<>(Task.Type.class);
+    private ConcurrentMap<StepKey, StepMetrics> steps = new ConcurrentHashMap<>();
+    private List<SuppliedMetric> supplied = new CopyOnWriteArrayList<>();
+    private MetricsHttpServer httpServer;
+    private ObjectName objectName;
+
+    public WorkmanMetrics() {
+        for (Task.Type type : Task.Type.values()) {
+            types.put(type, new TypeMetrics());
+        }
+    }
+
+    public void init() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            this.objectName = new ObjectName(OBJECT_NAME);
+            server.registerMBean(this, this.objectName);
+            log.info("registered {}", OBJECT_NAME);
+        } catch (Exception e) {
+            log.error("failed to register " + OBJECT_NAME + ": " + e.getMessage(), e);
+            this.objectName = null;
+        }
+
+        String port = System.getProperty(METRICS_PORT_KEY);
+        if (port != null && !port.trim().isEmpty()) {
+            String bindAddress = System.getProperty(METRICS_BIND_ADDRESS_KEY);
+            try {
+                //only reachable from the host itself unless an address is given
+                InetAddress address = bindAddress == null || bindAddress.trim().isEmpty() ?
+                                      InetAddress.getLoopbackAddress() :
+                                      InetAddress.getByName(bindAddress.trim());
+                this.httpServer = new MetricsHttpServer(this, address, Integer.parseInt(port.trim()));
+                this.httpServer.start();
+            } catch (IOException e) {
+                log.error("failed to start metrics endpoint on port " + port + " of " + bindAddress + ": " +
+                          e.getMessage(), e);
+            }
+        }
+    }
+
+    public void destroy() {
+        if (this.httpServer != null) {
+            this.httpServer.stop();
+        }
+
+        if (this.objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+            } catch (Exception e) {
+                log.warn("failed to unregister {}: {}", OBJECT_NAME, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Registers a value which is read each time the metrics are published.
+     *
+     * @param name  the metric name
+     * @param help  a description of the metric
+     * @param value
+     */
+    public void addGauge(String name, String help, DoubleSupplier value) {
+        supplied.add(new SuppliedMetric(name, GAUGE, help, null, null, value));
+    }
+
+    /**
+     * Registers a value, labelled with the name of the queue it describes,
+     * which is read each time the metrics are published.
+     *
+     * @param name  the metric name
+     * @param help  a description of the metric
+     * @param queue the name of the queue
+     * @param value
+     */
+    public void addQueueGauge(String name, String help, String queue, DoubleSupplier value) {
+        addLabeledGauge(name, help, "queue", queue, value);
+    }
+
+    /**
+     * Registers a value, labelled with what it describes, which is read each
+     * time the metrics are published.
+     *
+     * @param name       the metric name
+     * @param help       a description of the metric
+     * @param label      the label name
+     * @param labelValue the label value
+     * @param value
+     */
+    public void addLabeledGauge(String name, String help, String label, String labelValue, DoubleSupplier value) {
+        supplied.add(new SuppliedMetric(name, GAUGE, help, label, labelValue, value));
+    }
+
+    /**
+     * Registers a count which only ever increases, read each time the
+     * metrics are published.
+     *
+     * @param name  the metric name, which must end in _total
+     * @param help  a description of the metric
+     * @param value
+     */
+    public void addCounter(String name, String help, DoubleSupplier value) {
+        addLabeledCounter(name, help, null, null, value);
+    }
+
+    /**
+     * Registers a count which only ever increases, labelled with what it
+     * describes, read each time the metrics are published.
+     *
+     * @param name       the metric name, which must end in _total
+     * @param help       a description of the metric
+     * @param label      the label name
+     * @param labelValue the label value
+     * @param value
+     */
+    public void addLabeledCounter(String name, String help, String label, String labelValue,
+                                  DoubleSupplier value) {
+        if (!name.endsWith(COUNTER_SUFFIX)) {
+            throw new IllegalArgumentException("counter names must end in " + COUNTER_SUFFIX + ": " + name);
+        }
+        supplied.add(new SuppliedMetric(name, COUNTER, help, label, labelValue, value));
+    }
+
+    @Override
+    public void taskCompleted(Task task, long elapsedMs, Throwable failure) {
+        TypeMetrics metrics = types.get(task.getType());
+        if (metrics == null) {
+            return;
+        }
+
+        metrics.latency.record(elapsedMs * 1000);
+        if (failure == null) {
+            metrics.succeeded.incrementAndGet();
+        } else {
+            metrics.failed.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void taskRequeued(Task task, int delaySeconds) {
+        TypeMetrics metrics = types.get(task.getType());
+        if (metrics != null) {
+            metrics.requeued.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void taskDeadLettered(Task task) {
+        TypeMetrics metrics = types.get(task.getType());
+        if (metrics != null) {
+            metrics.deadLettered.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void taskParked(Task task, int delaySeconds) {
+        TypeMetrics metrics = types.get(task.getType());
+        if (metrics != null) {
+            metrics.parked.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void stepCompleted(Task.Type type, TaskProcessor step, long elapsedNs, boolean succeeded) {
+        StepKey key = new StepKey(type, step.getClass().getSimpleName());
+        StepMetrics metrics = steps.computeIfAbsent(key, k -> new StepMetrics());
+        metrics.latency.record(elapsedNs / 1000);
+        if (!succeeded) {
+            metrics.failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format (version
+     * 0.0.4). Latencies are exported as histograms in seconds.
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public void writePrometheus(Writer writer) throws IOException {
+        writeFamily(writer, "workman_task_duration_seconds", "histogram",
+                    "Time spent processing a task, by task type.");
+        for (Map.Entry<Task.Type, TypeMetrics> entry : types.entrySet()) {
+            LatencyHistogram latency = entry.getValue().latency;
+            if (latency.getCount() > 0) {
+                writeHistogram(writer, "workman_task_duration_seconds",
+                               "task_type=\"" + entry.getKey() + "\"", latency);
+            }
+        }
+
+        writeFamily(writer, "workman_tasks_completed_total", "counter",
+                    "Tasks processed, by task type and result.");
+        for (Map.Entry<Task.Type, TypeMetrics> entry : types.entrySet()) {
+            TypeMetrics metrics = entry.getValue();
+            if (metrics.latency.getCount() > 0) {
+                String type = "task_type=\"" + entry.getKey() + "\"";
+                writeSample(writer, "workman_tasks_completed_total", type + ",result=\"success\"",
+                            metrics.succeeded.get());
+                writeSample(writer, "workman_tasks_completed_total", type + ",result=\"failure\"",
+                            metrics.failed.get());
+            }
+        }
+
+        writeTypeCounter(writer, "workman_tasks_requeued_total", metrics -> metrics.requeued,
+                         "Failed tasks put back on their queue to be retried, by task type.");
+        writeTypeCounter(writer, "workman_tasks_dead_lettered_total", metrics -> metrics.deadLettered,
+                         "Failed tasks put on the dead letter queue, by task type.");
+        writeTypeCounter(writer, "workman_tasks_parked_total", metrics -> metrics.parked,
+                         "Tasks put back on their queue without being run because the circuit " +
+                         "breaker for their store was open, by task type.");
+
+        List<StepKey> stepKeys = new ArrayList<>(steps.keySet());
+        stepKeys.sort(null);
+
+        writeFamily(writer, "workman_task_step_duration_seconds", "histogram",
+                    "Time spent in each step of a multi-step task processor.");
+        for (StepKey key : stepKeys) {
+            writeHistogram(writer, "workman_task_step_duration_seconds", key.labels(), steps.get(key).latency);
+        }
+
+        writeFamily(writer, "workman_task_step_failures_total", "counter",
+                    "Failed steps of multi-step task processors.");
+        for (StepKey key : stepKeys) {
+            writeSample(writer, "workman_task_step_failures_total", key.labels(), steps.get(key).failed.get());
+        }
+
+        Map<String, List<SuppliedMetric>> suppliedByName = new LinkedHashMap<>();
+        for (SuppliedMetric metric : supplied) {
+            suppliedByName.computeIfAbsent(metric.name, k -> new ArrayList<>()).add(metric);
+        }
+        for (List<SuppliedMetric> family : suppliedByName.values()) {
+            writeFamily(writer, family.get(0).name, family.get(0).type, family.get(0).help);
+            for (SuppliedMetric metric : family) {
+                writeSample(writer, metric.name,
+                            metric.label == null ? null : metric.label + "=\"" + metric.labelValue + "\"",
+                            metric.value.getAsDouble());
+            }
+        }
+    }
+
+    private void writeTypeCounter(Writer writer, String name, Function<TypeMetrics, AtomicLong> counter,
+                                  String help) throws IOException {
+        writeFamily(writer, name, "counter", help);
+        for (Map.Entry<Task.Type, TypeMetrics> entry : types.entrySet()) {
+            TypeMetrics metrics = entry.getValue();
+            long count = counter.apply(metrics).get();
+            if (metrics.latency.getCount() > 0 || count > 0) {
+                writeSample(writer, name, "task_type=\"" + entry.getKey() + "\"", count);
+            }
+        }
+    }
+
+    private void writeFamily(Writer writer, String name, String type, String help) throws IOException {
+        writer.write("# HELP " + name + " " + help + "\n");
+        writer.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    private void writeHistogram(Writer writer, String name, String labels, LatencyHistogram latency)
+        throws IOException {
+        for (double bound : BUCKET_BOUNDS) {
+            writeSample(writer, name + "_bucket", labels + ",le=\"" + bound + "\"",
+                        latency.getCountAtOrBelow((long) (bound * 1000000)));
+        }
+        long count = latency.getCount();
+        writeSample(writer, name + "_bucket", labels + ",le=\"+Inf\"", count);
+        writeSample(writer, name + "_sum", labels, latency.getSum() / 1000000d);
+        writeSample(writer, name + "_count", labels, count);
+    }
+
+    private void writeSample(Writer writer, String name, String labels, double value) throws IOException {
+        writer.write(name);
+        if (labels != null) {
+            writer.write("{" + labels + "}");
+        }
+        writer.write(" " + formatValue(value) + "\n");
+    }
+
+    private String formatValue(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        } else if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            return String.valueOf((long) value);
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * @return every metric as a flat, sorted name to value map. Latencies are
+     * summarized as a count and percentiles in milliseconds.
+     */
+    public SortedMap<String, Double> getValues() {
+        SortedMap<String, Double> values = new TreeMap<>();
+        for (Map.Entry<Task.Type, TypeMetrics> entry : types.entrySet()) {
+            TypeMetrics metrics = entry.getValue();
+            if (metrics.latency.getCount() > 0) {
+                String type = entry.getKey().name();
+                putLatency(values, "task_duration", type, metrics.latency);
+                values.put("tasks_succeeded." + type, (double) metrics.succeeded.get());
+                values.put("tasks_failed." + type, (double) metrics.failed.get());
+                values.put("tasks_requeued." + type, (double) metrics.requeued.get());
+                values.put("tasks_dead_lettered." + type, (double) metrics.deadLettered.get());
+            }
+            if (metrics.parked.get() > 0) {
+                values.put("tasks_parked." + entry.getKey().name(), (double) metrics.parked.get());
+            }
+        }
+
+        for (Map.Entry<StepKey, StepMetrics> entry : steps.entrySet()) {
+            String step = entry.getKey().type + "." + entry.getKey().step;
+            putLatency(values, "task_step_duration", step, entry.getValue().latency);
+            values.put("task_step_failures." + step, (double) entry.getValue().failed.get());
+        }
+
+        for (SuppliedMetric metric : supplied) {
+            String name = metric.name.replaceFirst("^workman_", "").replaceFirst(COUNTER_SUFFIX + "$", "");
+            values.put(metric.label == null ? name : name + "." + metric.labelValue, metric.value.getAsDouble());
+        }
+        return values;
+    }
+
+    private void putLatency(Map<String, Double> values, String name, String suffix, LatencyHistogram latency) {
+        values.put(name + "_count." + suffix, (double) latency.getCount());
+        for (double percentile : PERCENTILES) {
+            String label = String.valueOf(percentile).replaceFirst("\\.0$", "").replace(".", "_");
+            values.put(name + "_p" + label + "_ms." + suffix, latency.getValueAtPercentile(percentile) / 1000d);
+        }
+        values.put(name + "_max_ms." + suffix, latency.getMax() / 1000d);
+    }
+
+    /*
+     * DynamicMBean: each entry of getValues() is a read-only attribute.
+     */
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Double value = getValues().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        SortedMap<String, Double> values = getValues();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Double value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : getValues().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, Double.class.getName(), name, true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Workman runtime metrics",
+                             attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    private static class TypeMetrics {
+        private LatencyHistogram latency = new LatencyHistogram();
+        private AtomicLong succeeded = new AtomicLong();
+        private AtomicLong failed = new AtomicLong();
+        private AtomicLong requeued = new AtomicLong();
+        private AtomicLong deadLettered = new AtomicLong();
+        private AtomicLong parked = new AtomicLong();
+    }
+
+    private static class StepMetrics {
+        private LatencyHistogram latency = new LatencyHistogram();
+        private AtomicLong failed = new AtomicLong();
+    }
+
+    private static class StepKey implements Comparable<StepKey> {
+        private Task.Type type;
+        private String step;
+
+        StepKey(Task.Type type, String step) {
+            this.type = type;
+            this.step = step;
+        }
+
+        String labels() {
+            return "task_type=\"" + type + "\",step=\"" + step + "\"";
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof StepKey)) {
+                return false;
+            }
+            StepKey other = (StepKey) o;
+            return type == other.type && step.equals(other.step);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * String.valueOf(type).hashCode() + step.hashCode();
+        }
+
+        @Override
+        public int compareTo(StepKey other) {
+            return labels().compareTo(other.labels());
+        }
+    }
+
+    private static class SuppliedMetric {
+        private String name;
+        private String type;
+        private String help;
+        private String label;
+        private String labelValue;
+        private DoubleSupplier value;
+
+        SuppliedMetric(String name, String type, String help, String label, String labelValue,
+                       DoubleSupplier value) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.label = label;
+            this.labelValue = labelValue;
+            this.value = value;
+        }
+    }
+}
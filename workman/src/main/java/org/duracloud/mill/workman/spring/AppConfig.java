@@ -8,8 +8,13 @@
 package org.duracloud.mill.workman.spring;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
@@ -19,7 +24,10 @@ import org.duracloud.common.queue.QueueType;
 import org.duracloud.common.queue.TaskQueue;
 import org.duracloud.common.queue.aws.SQSTaskQueue;
 import org.duracloud.common.queue.rabbitmq.RabbitmqTaskQueue;
+import org.duracloud.common.queue.task.Task;
+import org.duracloud.mill.audit.AuditLogBatchWriter;
 import org.duracloud.mill.audit.AuditLogWritingProcessorFactory;
+import org.duracloud.mill.audit.DuplicationTaskCoalescer;
 import org.duracloud.mill.audit.DuplicationTaskProducingProcessorFactory;
 import org.duracloud.mill.audit.SpaceCreatedNotifcationGeneratingProcessorFactory;
 import org.duracloud.mill.auditor.AuditLogStore;
@@ -31,20 +39,27 @@ import org.duracloud.mill.bitlog.BitLogStore;
 import org.duracloud.mill.bitlog.jpa.JpaBitLogItemRepo;
 import org.duracloud.mill.bitlog.jpa.JpaBitLogStore;
 import org.duracloud.mill.common.storageprovider.StorageProviderFactory;
+import org.duracloud.mill.common.storageprovider.StorageProviderRateLimiter;
 import org.duracloud.mill.common.taskproducer.TaskProducerConfigurationManager;
 import org.duracloud.mill.config.ConfigurationManager;
+import org.duracloud.mill.credentials.CachingCredentialsRepo;
 import org.duracloud.mill.credentials.CredentialsRepo;
 import org.duracloud.mill.credentials.impl.DefaultCredentialsRepoImpl;
 import org.duracloud.mill.db.repo.JpaAuditLogItemRepo;
 import org.duracloud.mill.db.repo.JpaBitIntegrityReportRepo;
 import org.duracloud.mill.db.repo.JpaManifestItemRepo;
+import org.duracloud.mill.db.repo.MillJpaRepoConfig;
+import org.duracloud.mill.dup.DestinationSpaceCache;
 import org.duracloud.mill.dup.DuplicationPolicyManager;
 import org.duracloud.mill.dup.DuplicationPolicyRefresher;
 import org.duracloud.mill.dup.DuplicationTaskProcessorFactory;
+import org.duracloud.mill.dup.MultipartContentCopier;
+import org.duracloud.mill.dup.ServerSideContentCopier;
 import org.duracloud.mill.dup.repo.DuplicationPolicyRepo;
 import org.duracloud.mill.dup.repo.LocalDuplicationPolicyRepo;
 import org.duracloud.mill.dup.repo.S3DuplicationPolicyRepo;
 import org.duracloud.mill.dup.repo.SwiftDuplicationPolicyRepo;
+import org.duracloud.mill.manifest.ManifestBatchWriter;
 import org.duracloud.mill.manifest.ManifestStore;
 import org.duracloud.mill.manifest.ManifestWritingProcessorFactory;
 import org.duracloud.mill.manifest.jpa.JpaManifestStore;
@@ -54,11 +69,16 @@ import org.duracloud.mill.notification.SESNotificationManager;
 import org.duracloud.mill.notification.SMTPNotificationManager;
 import org.duracloud.mill.storagestats.SpaceStatsManager;
 import org.duracloud.mill.storagestats.StorageStatsTaskProcessorFactory;
+import org.duracloud.mill.workman.LongPollingSQSTaskQueue;
 import org.duracloud.mill.workman.MultiStepTaskProcessorFactory;
 import org.duracloud.mill.workman.RootTaskProcessorFactory;
+import org.duracloud.mill.workman.StoreCircuitBreaker;
+import org.duracloud.mill.workman.TaskAcknowledger;
 import org.duracloud.mill.workman.TaskWorkerFactory;
 import org.duracloud.mill.workman.TaskWorkerFactoryImpl;
 import org.duracloud.mill.workman.TaskWorkerManager;
+import org.duracloud.mill.workman.WorkmanMetrics;
+import org.duracloud.storage.domain.StorageProviderType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -66,6 +86,7 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.transaction.PlatformTransactionManager;
 
 /**
  * @author Daniel Bernstein
@@ -92,20 +113,40 @@ public class AppConfig {
         @Qualifier("bitReportProcessorFactory") MultiStepTaskProcessorFactory bitReportTaskProcessorFactory,
         @Qualifier("auditTaskProcessorFactory") MultiStepTaskProcessorFactory auditTaskProcessorFactory,
         StorageStatsTaskProcessorFactory storageStatsTaskProcessorFactory,
-        TaskProducerConfigurationManager configurationManager,
-        ManifestStore manifestStore) {
+        WorkmanConfigurationManager configurationManager,
+        ManifestStore manifestStore,
+        DestinationSpaceCache destinationSpaceCache) {
 
         RootTaskProcessorFactory factory = new RootTaskProcessorFactory();
-        factory.addTaskProcessorFactory(new DuplicationTaskProcessorFactory(repo,
-                                                                            storageProviderFactory,
-                                                                            workDir,
-                                                                            auditQueue(configurationManager),
-                                                                            manifestStore));
-        factory.addTaskProcessorFactory(auditTaskProcessorFactory);
-        factory.addTaskProcessorFactory(bitCheckTaskProcessorFactory);
-        factory.addTaskProcessorFactory(bitReportTaskProcessorFactory);
-        factory.addTaskProcessorFactory(storageStatsTaskProcessorFactory);
-        factory.addTaskProcessorFactory(new NoopTaskProcessorFactory(repo,
+        DuplicationTaskProcessorFactory duplicationTaskProcessorFactory =
+            new DuplicationTaskProcessorFactory(repo,
+                                                storageProviderFactory,
+                                                workDir,
+                                                auditQueue(configurationManager),
+                                                manifestStore);
+        duplicationTaskProcessorFactory.setStreaming(configurationManager.isDuplicationStreaming());
+        duplicationTaskProcessorFactory.setExecutor(processorStepExecutor());
+        long multipartThreshold = configurationManager.getDuplicationMultipartThreshold();
+        if (multipartThreshold > 0) {
+            MultipartContentCopier multipartCopier = new MultipartContentCopier(duplicationPartExecutor(),
+                                                         multipartThreshold,
+                                                         configurationManager.getDuplicationMultipartPartSize(),
+                                                         configurationManager.getDuplicationMultipartParallelism());
+            duplicationTaskProcessorFactory.setMultipartCopier(multipartCopier);
+        }
+        if (configurationManager.isDuplicationServerSideCopy()) {
+            duplicationTaskProcessorFactory.setServerSideCopier(new ServerSideContentCopier());
+        }
+        if (configurationManager.getDuplicationSpaceCacheTtlMs() > 0) {
+            duplicationTaskProcessorFactory.setSpaceCache(destinationSpaceCache);
+        }
+        factory.addTaskProcessorFactory(Task.Type.DUP, duplicationTaskProcessorFactory);
+        factory.addTaskProcessorFactory(Task.Type.AUDIT, auditTaskProcessorFactory);
+        factory.addTaskProcessorFactory(Task.Type.BIT, bitCheckTaskProcessorFactory);
+        factory.addTaskProcessorFactory(Task.Type.BIT_REPORT, bitReportTaskProcessorFactory);
+        factory.addTaskProcessorFactory(Task.Type.STORAGE_STATS, storageStatsTaskProcessorFactory);
+        factory.addTaskProcessorFactory(Task.Type.NOOP,
+                                        new NoopTaskProcessorFactory(repo,
                                                                      workDir));
         log.info("RootTaskProcessorFactory created.");
         return factory;
@@ -149,9 +190,11 @@ public class AppConfig {
         BitLogStore bitLogStore,
         TaskQueue bitErrorQueue,
         TaskProducerConfigurationManager config,
-        NotificationManager notificationManager) {
+        NotificationManager notificationManager,
+        WorkmanMetrics workmanMetrics) {
 
         MultiStepTaskProcessorFactory factory = new MultiStepTaskProcessorFactory();
+        factory.setStepListener(workmanMetrics);
         factory.addFactory(new SpaceComparisonTaskProcessorFactory(credentialRepo,
                                                                    storageProviderFactory,
                                                                    bitLogStore,
@@ -171,26 +214,199 @@ public class AppConfig {
         TaskQueue duplicationQueue,
         DuplicationPolicyManager policyManager,
         NotificationManager notificationManager,
-        ManifestStore manifestStore) {
+        ManifestStore manifestStore,
+        WorkmanMetrics workmanMetrics,
+        WorkmanConfigurationManager config,
+        AuditLogBatchWriter auditLogBatchWriter,
+        ManifestBatchWriter manifestBatchWriter,
+        DuplicationTaskCoalescer duplicationTaskCoalescer) {
 
         MultiStepTaskProcessorFactory factory = new MultiStepTaskProcessorFactory();
-        factory.addFactory(new AuditLogWritingProcessorFactory(auditLogStore));
-        factory.addFactory(new ManifestWritingProcessorFactory(manifestStore));
-        factory.addFactory(new DuplicationTaskProducingProcessorFactory(duplicationQueue,
-                                                                        policyManager));
-        factory.addFactory(new SpaceCreatedNotifcationGeneratingProcessorFactory(notificationManager));
+        factory.setStepListener(workmanMetrics);
+        factory.setExecutor(processorStepExecutor());
+
+        //the audit log and manifest writes and the space created notification
+        //are independent of each other. Duplication must follow the manifest
+        //write, since duplicating a deletion checks the source manifest.
+        ManifestWritingProcessorFactory manifestWriting = new ManifestWritingProcessorFactory(
+            manifestStore, config.getManifestBatchSize() > 1 ? manifestBatchWriter : null);
+        AuditLogBatchWriter batchWriter = config.getAuditLogBatchSize() > 1 ? auditLogBatchWriter : null;
+        factory.addFactory(new AuditLogWritingProcessorFactory(auditLogStore, batchWriter), Collections.emptyList());
+        factory.addFactory(manifestWriting, Collections.emptyList());
+        DuplicationTaskCoalescer coalescer =
+            config.getDuplicationCoalescingWindowMs() > 0 ? duplicationTaskCoalescer : null;
+        DuplicationTaskProducingProcessorFactory duplicationTaskProducing =
+            new DuplicationTaskProducingProcessorFactory(duplicationQueue, policyManager, coalescer);
+        duplicationTaskProducing.setFanOut(config.isDuplicationFanOut());
+        factory.addFactory(duplicationTaskProducing, Collections.singletonList(manifestWriting));
+        factory.addFactory(new SpaceCreatedNotifcationGeneratingProcessorFactory(notificationManager),
+                           Collections.emptyList());
         return factory;
     }
 
+    @Bean(destroyMethod = "destroy")
+    public AuditLogBatchWriter auditLogBatchWriter(
+        AuditLogStore auditLogStore,
+        JpaAuditLogItemRepo auditLogItemRepo,
+        @Qualifier(MillJpaRepoConfig.TRANSACTION_MANAGER_BEAN) PlatformTransactionManager transactionManager,
+        WorkmanConfigurationManager config,
+        WorkmanMetrics workmanMetrics) {
+        AuditLogBatchWriter writer = new AuditLogBatchWriter(auditLogStore,
+                                                             auditLogItemRepo,
+                                                             transactionManager,
+                                                             Math.max(1, config.getAuditLogBatchSize()),
+                                                             config.getAuditLogBatchWaitMs());
+        workmanMetrics.addCounter("workman_audit_log_batches_total",
+                                  "Audit log batches written",
+                                  writer::getBatchCount);
+        workmanMetrics.addCounter("workman_audit_log_batched_rows_total",
+                                  "Audit log rows written in batches",
+                                  writer::getItemCount);
+        workmanMetrics.addCounter("workman_audit_log_batch_fallbacks_total",
+                                  "Audit log batches whose rows were written one at a time after the batch failed",
+                                  writer::getFallbackCount);
+        return writer;
+    }
+
+    @Bean(destroyMethod = "destroy")
+    public ManifestBatchWriter manifestBatchWriter(
+        ManifestStore manifestStore,
+        JpaManifestItemRepo manifestItemRepo,
+        @Qualifier(MillJpaRepoConfig.TRANSACTION_MANAGER_BEAN) PlatformTransactionManager transactionManager,
+        WorkmanConfigurationManager config,
+        WorkmanMetrics workmanMetrics) {
+        //not a bean, so its updates join the batch's transaction
+        ManifestStore batchManifestStore = new JpaManifestStore(manifestItemRepo);
+        ManifestBatchWriter writer = new ManifestBatchWriter(manifestStore,
+                                                             batchManifestStore,
+                                                             transactionManager,
+                                                             Math.max(1, config.getManifestBatchSize()),
+                                                             config.getManifestBatchWaitMs());
+        workmanMetrics.addCounter("workman_manifest_batches_total",
+                                  "Manifest batches written",
+                                  writer::getBatchCount);
+        workmanMetrics.addCounter("workman_manifest_batched_updates_total",
+                                  "Manifest updates written in batches",
+                                  writer::getItemCount);
+        workmanMetrics.addCounter("workman_manifest_batch_fallbacks_total",
+                                  "Manifest batches whose updates were written one at a time after the batch failed",
+                                  writer::getFallbackCount);
+        return writer;
+    }
+
+    @Bean(destroyMethod = "destroy")
+    public DuplicationTaskCoalescer duplicationTaskCoalescer(TaskQueue duplicationQueue,
+                                                             WorkmanConfigurationManager config,
+                                                             WorkmanMetrics workmanMetrics) {
+        DuplicationTaskCoalescer coalescer =
+            new DuplicationTaskCoalescer(duplicationQueue, config.getDuplicationCoalescingWindowMs());
+        workmanMetrics.addCounter("workman_duplication_tasks_put_total",
+                                  "Duplication tasks generated from audit events put on the duplication queue",
+                                  coalescer::getPutCount);
+        workmanMetrics.addCounter("workman_duplication_tasks_coalesced_total",
+                                  "Duplication tasks merged into a held task for the same item",
+                                  coalescer::getCoalescedCount);
+        return coalescer;
+    }
+
+    @Bean
+    public DestinationSpaceCache destinationSpaceCache(WorkmanConfigurationManager config,
+                                                       WorkmanMetrics workmanMetrics) {
+        DestinationSpaceCache cache = new DestinationSpaceCache(config.getDuplicationSpaceCacheTtlMs());
+        workmanMetrics.addCounter("workman_dest_space_cache_hits_total",
+                                  "Destination space checks answered without calling the destination store",
+                                  cache::getHits);
+        workmanMetrics.addCounter("workman_dest_space_cache_misses_total",
+                                  "Destination space checks which created the space in the destination store",
+                                  cache::getMisses);
+        return cache;
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService processorStepExecutor() {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "processor-step-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService duplicationPartExecutor() {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "dup-part-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
     @Bean(name = "credentialsRepo")
     public CredentialsRepo credentialRepo(ConfigurationManager configurationManager,
-                                          DuracloudAccountRepo accountRepo) {
-        return new DefaultCredentialsRepoImpl(accountRepo);
+                                          DuracloudAccountRepo accountRepo,
+                                          WorkmanMetrics workmanMetrics) {
+        CachingCredentialsRepo repo =
+            new CachingCredentialsRepo(new DefaultCredentialsRepoImpl(accountRepo),
+                                       configurationManager.getCredentialsCacheTtlMs(),
+                                       configurationManager.getCredentialsCacheNegativeTtlMs());
+        workmanMetrics.addCounter("workman_credentials_cache_hits_total",
+                                  "Credentials lookups answered without querying the account database",
+                                  repo::getHits);
+        workmanMetrics.addCounter("workman_credentials_cache_misses_total",
+                                  "Credentials lookups which queried the account database",
+                                  repo::getMisses);
+        workmanMetrics.addGauge("workman_credentials_cached",
+                                "Credentials lookup answers currently cached",
+                                repo::getSize);
+        return repo;
     }
 
     @Bean
-    StorageProviderFactory storageProviderFactory() {
-        return new StorageProviderFactory();
+    StorageProviderFactory storageProviderFactory(WorkmanConfigurationManager config,
+                                                  WorkmanMetrics workmanMetrics) {
+        StorageProviderFactory factory =
+            new StorageProviderFactory(config.getStorageProviderCacheSize(),
+                                       config.getStorageProviderIdleTimeoutMs());
+        workmanMetrics.addGauge("workman_storage_providers_cached",
+                                "Storage provider clients currently cached",
+                                factory::getCachedCount);
+        workmanMetrics.addGauge("workman_storage_provider_cache_hit_ratio",
+                                "Fraction of storage provider requests served by a cached client",
+                                factory::getCacheHitRatio);
+        workmanMetrics.addCounter("workman_storage_provider_cache_invalidations_total",
+                                  "Cached storage provider clients replaced because their credentials changed",
+                                  factory::getCacheInvalidations);
+        workmanMetrics.addCounter("workman_storage_provider_cache_evictions_total",
+                                  "Cached storage provider clients dropped because they were idle or the cache " +
+                                  "was full",
+                                  factory::getCacheEvictions);
+
+        Map<StorageProviderType, Double> limits =
+            StorageProviderRateLimiter.parseLimits(config.getStorageProviderRateLimits());
+        StorageProviderRateLimiter rateLimiter =
+            new StorageProviderRateLimiter(limits, config.isStorageProviderRateLimitPerAccount());
+        if (rateLimiter.isEnabled()) {
+            rateLimiter.setBucketListener((key, bucket) -> {
+                workmanMetrics.addLabeledGauge("workman_storage_rate_limit",
+                                               "Current storage provider call rate limit in calls per second",
+                                               "limiter", key, bucket::getRate);
+                workmanMetrics.addLabeledGauge("workman_storage_rate_limit_max",
+                                               "Configured storage provider call rate limit in calls per second",
+                                               "limiter", key, bucket::getMaxRate);
+                workmanMetrics.addLabeledCounter("workman_storage_calls_total",
+                                                 "Storage provider calls made through the rate limiter",
+                                                 "limiter", key, bucket::getAcquiredCount);
+                workmanMetrics.addLabeledCounter("workman_storage_calls_throttled_total",
+                                                 "Storage provider calls rejected by the provider as throttled",
+                                                 "limiter", key, bucket::getThrottledCount);
+                workmanMetrics.addLabeledCounter("workman_storage_rate_limit_wait_seconds_total",
+                                                 "Total time storage provider calls waited for the rate limit",
+                                                 "limiter", key, bucket::getWaitSeconds);
+            });
+            factory.setRateLimiter(rateLimiter);
+        }
+        return factory;
     }
 
     @Bean
@@ -219,17 +435,52 @@ public class AppConfig {
     public TaskWorkerManager taskWorkerManager(WorkmanConfigurationManager config,
                                                RootTaskProcessorFactory factory,
                                                TaskQueue deadLetterQueue,
-                                               TaskWorkerFactory taskWorkerFactory) {
+                                               TaskWorkerFactory taskWorkerFactory,
+                                               WorkmanMetrics workmanMetrics) {
+
+        TaskWorkerManager manager = new TaskWorkerManager(createTaskQueues(config),
+                                                          deadLetterQueue,
+                                                          taskWorkerFactory);
+        manager.setMetrics(workmanMetrics);
+        return manager;
+    }
 
-        return new TaskWorkerManager(createTaskQueues(config),
-                                     deadLetterQueue,
-                                     taskWorkerFactory);
+    @Bean(initMethod = "init", destroyMethod = "destroy")
+    public WorkmanMetrics workmanMetrics() {
+        return new WorkmanMetrics();
     }
 
     @Bean(destroyMethod = "destroy")
     public TaskWorkerFactory taskWorkerFactory(RootTaskProcessorFactory factory,
-                                               TaskQueue deadLetterQueue) {
-        return new TaskWorkerFactoryImpl(factory, deadLetterQueue);
+                                               TaskQueue deadLetterQueue,
+                                               WorkmanConfigurationManager config,
+                                               WorkmanMetrics workmanMetrics) {
+        TaskWorkerFactoryImpl taskWorkerFactory = new TaskWorkerFactoryImpl(factory, deadLetterQueue);
+        TaskAcknowledger acknowledger = taskWorkerFactory.getAcknowledger();
+        workmanMetrics.addGauge("workman_ack_lag_mean_ms",
+                                "Mean time from a task's completion to its deletion from the queue over the last " +
+                                "minute",
+                                acknowledger::getLagMeanMs);
+        workmanMetrics.addGauge("workman_ack_lag_max_ms",
+                                "Longest time from a task's completion to its deletion from the queue over the last " +
+                                "minute",
+                                acknowledger::getLagMaxMs);
+        workmanMetrics.addGauge("workman_acks_pending",
+                                "Completed tasks waiting to be deleted from their queues",
+                                acknowledger::getPendingCount);
+        if (config.getCircuitBreakerFailureThreshold() > 0) {
+            StoreCircuitBreaker circuitBreaker =
+                new StoreCircuitBreaker(config.getCircuitBreakerFailureThreshold(),
+                                        config.getCircuitBreakerOpenSeconds());
+            workmanMetrics.addGauge("workman_circuit_breakers_open",
+                                    "Stores whose tasks are currently being parked rather than run",
+                                    circuitBreaker::getOpenCount);
+            workmanMetrics.addCounter("workman_circuit_breaker_trips_total",
+                                      "Times a store's circuit breaker has opened",
+                                      circuitBreaker::getTripCount);
+            taskWorkerFactory.setCircuitBreaker(circuitBreaker);
+        }
+        return taskWorkerFactory;
     }
 
     private Boolean isRabbitmq(QueueType queueType) {
@@ -269,7 +520,7 @@ public class AppConfig {
                     break;
                 }
             } else {
-                taskQueue = new SQSTaskQueue(taskQueueName.trim());
+                taskQueue = new LongPollingSQSTaskQueue(taskQueueName.trim());
             }
             taskQueues.add(taskQueue);
             log.info("created queue {}: priority = {}",
@@ -21,7 +21,6 @@ import org.duracloud.mill.util.PropertyDefinitionListBuilder;
 import org.duracloud.mill.util.PropertyVerifier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.AnnotationConfigApplicationContext;
 
 /**
@@ -90,6 +89,7 @@ public class AppDriver extends DriverSupport {
                                                .addSwift()
                                                .addMillDb()
                                                .addMcDb()
+                                               .addCredentialsCache()
                                                .addDeadLetterQueue()
                                                .addQueueType()
                                                .addRabbitmqConfig()
@@ -106,6 +106,24 @@ public class AppDriver extends DriverSupport {
                                                .addDuplicationHighPriorityQueue()
                                                .addLocalDuplicationDir()
                                                .addMaxWorkers()
+                                               .addPrefetchSize()
+                                               .addTaskTypeMaxWorkers()
+                                               .addAdaptiveConcurrency()
+                                               .addWorkerExecutor()
+                                               .addMetricsPort()
+                                               .addQueueWeights()
+                                               .addShutdownGracePeriod()
+                                               .addStorageProviderCache()
+                                               .addStorageProviderRateLimits()
+                                               .addCircuitBreaker()
+                                               .addAuditLogBatch()
+                                               .addManifestBatch()
+                                               .addDuplicationCoalescingWindow()
+                                               .addDuplicationStreaming()
+                                               .addDuplicationMultipart()
+                                               .addDuplicationServerSideCopy()
+                                               .addDuplicationFanOut()
+                                               .addDuplicationSpaceCache()
                                                .build();
         PropertyVerifier verifier = new PropertyVerifier(defintions);
         verifier.verify(System.getProperties());
@@ -131,7 +149,9 @@ public class AppDriver extends DriverSupport {
             die();
         }
 
-        ApplicationContext context = new AnnotationConfigApplicationContext("org.duracloud.mill");
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext("org.duracloud.mill");
+        //drain the workers (see TaskWorkerManager.destroy()) when the process is stopped
+        context.registerShutdownHook();
     }
 
     /**
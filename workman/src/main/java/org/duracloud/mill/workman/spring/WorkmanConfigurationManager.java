@@ -10,8 +10,15 @@ package org.duracloud.mill.workman.spring;
 import java.util.Arrays;
 import java.util.List;
 
+import org.duracloud.mill.audit.AuditLogBatchWriter;
+import org.duracloud.mill.audit.DuplicationTaskCoalescer;
+import org.duracloud.mill.common.storageprovider.StorageProviderFactory;
 import org.duracloud.mill.common.taskproducer.TaskProducerConfigurationManager;
 import org.duracloud.mill.config.ConfigConstants;
+import org.duracloud.mill.dup.DestinationSpaceCache;
+import org.duracloud.mill.dup.MultipartContentCopier;
+import org.duracloud.mill.manifest.ManifestBatchWriter;
+import org.duracloud.mill.workman.StoreCircuitBreaker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -69,4 +76,212 @@ public class WorkmanConfigurationManager extends TaskProducerConfigurationManage
         return System.getProperty(ConfigConstants.QUEUE_NAME_BIT_ERROR);
     }
 
+    /**
+     * @return the number of storage provider clients to keep for reuse
+     */
+    public int getStorageProviderCacheSize() {
+        String size = System.getProperty(ConfigConstants.STORAGE_PROVIDER_CACHE_SIZE);
+        if (size != null) {
+            return Integer.valueOf(size);
+        } else {
+            return StorageProviderFactory.DEFAULT_MAX_CACHED_PROVIDERS;
+        }
+    }
+
+    /**
+     * @return how long an unused storage provider client is kept
+     */
+    public long getStorageProviderIdleTimeoutMs() {
+        String timeout = System.getProperty(ConfigConstants.STORAGE_PROVIDER_IDLE_TIMEOUT);
+        if (timeout != null) {
+            return Long.valueOf(timeout) * 1000;
+        } else {
+            return StorageProviderFactory.DEFAULT_IDLE_TIMEOUT_MS;
+        }
+    }
+
+    /**
+     * @return the storage provider rate limits, as TYPE:permits-per-second
+     * pairs
+     */
+    public String getStorageProviderRateLimits() {
+        return System.getProperty(ConfigConstants.STORAGE_PROVIDER_RATE_LIMITS);
+    }
+
+    /**
+     * @return true if each account has its own storage provider rate limits
+     */
+    public boolean isStorageProviderRateLimitPerAccount() {
+        return Boolean.valueOf(System.getProperty(ConfigConstants.STORAGE_PROVIDER_RATE_LIMIT_PER_ACCOUNT, "false"));
+    }
+
+    /**
+     * @return the consecutive failures of a store's tasks which open its
+     * circuit breaker; 0 disables the circuit breaker
+     */
+    public int getCircuitBreakerFailureThreshold() {
+        String threshold = System.getProperty(ConfigConstants.CIRCUIT_BREAKER_FAILURE_THRESHOLD);
+        if (threshold != null) {
+            return Integer.valueOf(threshold);
+        } else {
+            return StoreCircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+        }
+    }
+
+    /**
+     * @return how long, in seconds, an open circuit breaker parks tasks before
+     * letting a probe task through
+     */
+    public int getCircuitBreakerOpenSeconds() {
+        String seconds = System.getProperty(ConfigConstants.CIRCUIT_BREAKER_OPEN_SECONDS);
+        if (seconds != null) {
+            return Integer.valueOf(seconds);
+        } else {
+            return StoreCircuitBreaker.DEFAULT_OPEN_SECONDS;
+        }
+    }
+
+    /**
+     * @return the most audit log rows written in one transaction; 1 or less
+     * writes each row on its own
+     */
+    public int getAuditLogBatchSize() {
+        String size = System.getProperty(ConfigConstants.AUDIT_LOG_BATCH_SIZE);
+        if (size != null) {
+            return Integer.valueOf(size);
+        } else {
+            return AuditLogBatchWriter.DEFAULT_MAX_BATCH_SIZE;
+        }
+    }
+
+    /**
+     * @return how long, in milliseconds, an audit log row waits for others to
+     * join its batch
+     */
+    public long getAuditLogBatchWaitMs() {
+        String wait = System.getProperty(ConfigConstants.AUDIT_LOG_BATCH_WAIT);
+        if (wait != null) {
+            return Long.valueOf(wait);
+        } else {
+            return AuditLogBatchWriter.DEFAULT_MAX_WAIT_MS;
+        }
+    }
+
+    /**
+     * @return the most manifest updates written in one transaction; 1 or less
+     * writes each update on its own
+     */
+    public int getManifestBatchSize() {
+        String size = System.getProperty(ConfigConstants.MANIFEST_BATCH_SIZE);
+        if (size != null) {
+            return Integer.valueOf(size);
+        } else {
+            return ManifestBatchWriter.DEFAULT_MAX_BATCH_SIZE;
+        }
+    }
+
+    /**
+     * @return how long, in milliseconds, a manifest update waits for others to
+     * join its batch
+     */
+    public long getManifestBatchWaitMs() {
+        String wait = System.getProperty(ConfigConstants.MANIFEST_BATCH_WAIT);
+        if (wait != null) {
+            return Long.valueOf(wait);
+        } else {
+            return ManifestBatchWriter.DEFAULT_MAX_WAIT_MS;
+        }
+    }
+
+    /**
+     * @return how long, in milliseconds, a duplication task is held for tasks
+     * for the same item to merge into it; 0 or less puts each task directly
+     */
+    public long getDuplicationCoalescingWindowMs() {
+        String window = System.getProperty(ConfigConstants.DUPLICATION_COALESCING_WINDOW);
+        if (window != null) {
+            return Long.valueOf(window);
+        } else {
+            return DuplicationTaskCoalescer.DEFAULT_WINDOW_MS;
+        }
+    }
+
+    /**
+     * @return true if content of known size is streamed directly from the
+     * source to the destination store when duplicating
+     */
+    public boolean isDuplicationStreaming() {
+        return Boolean.valueOf(System.getProperty(ConfigConstants.DUPLICATION_STREAMING, "true"));
+    }
+
+    /**
+     * @return the size, in bytes, from which content duplicated to a store
+     * reached through the S3 API is copied in parts; 0 or less disables
+     * copying in parts
+     */
+    public long getDuplicationMultipartThreshold() {
+        String threshold = System.getProperty(ConfigConstants.DUPLICATION_MULTIPART_THRESHOLD);
+        if (threshold != null) {
+            return Long.valueOf(threshold);
+        } else {
+            return MultipartContentCopier.DEFAULT_THRESHOLD;
+        }
+    }
+
+    /**
+     * @return the size, in bytes, of the parts in which large content is
+     * duplicated
+     */
+    public long getDuplicationMultipartPartSize() {
+        String partSize = System.getProperty(ConfigConstants.DUPLICATION_MULTIPART_PART_SIZE);
+        if (partSize != null) {
+            return Long.valueOf(partSize);
+        } else {
+            return MultipartContentCopier.DEFAULT_PART_SIZE;
+        }
+    }
+
+    /**
+     * @return the number of parts of a content item copied at once
+     */
+    public int getDuplicationMultipartParallelism() {
+        String parallelism = System.getProperty(ConfigConstants.DUPLICATION_MULTIPART_PARALLELISM);
+        if (parallelism != null) {
+            return Integer.valueOf(parallelism);
+        } else {
+            return MultipartContentCopier.DEFAULT_PARALLELISM;
+        }
+    }
+
+    /**
+     * @return true if content duplicated between stores in the same location
+     * of the same provider is copied by the provider rather than through the
+     * worker
+     */
+    public boolean isDuplicationServerSideCopy() {
+        return Boolean.valueOf(System.getProperty(ConfigConstants.DUPLICATION_SERVER_SIDE_COPY, "false"));
+    }
+
+    /**
+     * @return true if a single duplication task is produced for all of the
+     * stores to which a content item is duplicated
+     */
+    public boolean isDuplicationFanOut() {
+        return Boolean.valueOf(System.getProperty(ConfigConstants.DUPLICATION_FAN_OUT, "false"));
+    }
+
+    /**
+     * @return how long, in milliseconds, a destination space is known to
+     * exist once it has been created; 0 or less creates the space for every
+     * duplication task
+     */
+    public long getDuplicationSpaceCacheTtlMs() {
+        String ttl = System.getProperty(ConfigConstants.DUPLICATION_SPACE_CACHE_TTL);
+        if (ttl != null) {
+            return Long.valueOf(ttl) * 1000;
+        } else {
+            return DestinationSpaceCache.DEFAULT_TTL_SECONDS * 1000;
+        }
+    }
+
 }
@@ -0,0 +1,189 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.audit;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.duracloud.mill.auditor.AuditLogStore;
+import org.duracloud.mill.db.model.JpaAuditLogItem;
+import org.duracloud.mill.db.repo.JpaAuditLogItemRepo;
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+import org.easymock.EasyMock;
+import org.easymock.EasyMockRunner;
+import org.easymock.EasyMockSupport;
+import org.easymock.Mock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.TransactionSystemException;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+/**
+ * @author Daniel Bernstein
+ */
+@RunWith(EasyMockRunner.class)
+public class AuditLogBatchWriterTest extends EasyMockSupport {
+
+    @Mock
+    private AuditLogStore logStore;
+
+    @Mock
+    private JpaAuditLogItemRepo logItemRepo;
+
+    private AtomicInteger commits = new AtomicInteger();
+    private AtomicInteger rollbacks = new AtomicInteger();
+    private AuditLogBatchWriter writer;
+    private ExecutorService executor;
+
+    private PlatformTransactionManager transactionManager = new PlatformTransactionManager() {
+        @Override
+        public TransactionStatus getTransaction(TransactionDefinition definition) {
+            return new SimpleTransactionStatus();
+        }
+
+        @Override
+        public void commit(TransactionStatus status) {
+            commits.incrementAndGet();
+        }
+
+        @Override
+        public void rollback(TransactionStatus status) {
+            rollbacks.incrementAndGet();
+        }
+    };
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        if (writer != null) {
+            writer.destroy();
+        }
+        verifyAll();
+    }
+
+    private void expectWrite(String contentId) throws Exception {
+        logStore.write(EasyMock.anyString(), EasyMock.anyString(), EasyMock.anyString(),
+                       EasyMock.eq(contentId), EasyMock.anyString(), EasyMock.anyString(),
+                       EasyMock.anyString(), EasyMock.anyString(), EasyMock.anyString(),
+                       EasyMock.anyString(), EasyMock.anyString(), EasyMock.anyString(),
+                       EasyMock.anyString(), EasyMock.isA(Date.class));
+    }
+
+    private void expectAnyWrite() throws Exception {
+        logStore.write(EasyMock.anyString(), EasyMock.anyString(), EasyMock.anyString(),
+                       EasyMock.anyString(), EasyMock.anyString(), EasyMock.anyString(),
+                       EasyMock.anyString(), EasyMock.anyString(), EasyMock.anyString(),
+                       EasyMock.anyString(), EasyMock.anyString(), EasyMock.anyString(),
+                       EasyMock.anyString(), EasyMock.isA(Date.class));
+    }
+
+    private AuditLogBatchWriter.Row createRow(String contentId) {
+        return new AuditLogBatchWriter.Row("account", "1", "space", contentId, "md5", "text/plain", "10",
+                                           "user", "ADD_CONTENT", "props", "acls", "sourceSpace",
+                                           "sourceContent", new Date());
+    }
+
+    private List<Future<?>> writeConcurrently(String... contentIds) {
+        List<Future<?>> results = new ArrayList<>();
+        for (String contentId : contentIds) {
+            results.add(executor.submit(() -> {
+                writer.write(createRow(contentId));
+                return null;
+            }));
+        }
+        return results;
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        String[] contentIds = new String[10];
+        for (int i = 0; i < contentIds.length; i++) {
+            contentIds[i] = "content-" + i;
+        }
+        //the rows of batches are saved together, and single rows by the store
+        Capture<List<JpaAuditLogItem>> saved = Capture.newInstance(CaptureType.ALL);
+        EasyMock.expect(logItemRepo.saveAll(EasyMock.capture(saved))).andReturn(null).times(1, 5);
+        logItemRepo.flush();
+        EasyMock.expectLastCall().times(1, 5);
+        expectAnyWrite();
+        EasyMock.expectLastCall().times(0, 8);
+        replayAll();
+
+        writer = new AuditLogBatchWriter(logStore, logItemRepo, transactionManager, 10, 500);
+        for (Future<?> result : writeConcurrently(contentIds)) {
+            result.get(5, TimeUnit.SECONDS);
+        }
+
+        Assert.assertEquals(10, writer.getItemCount());
+        Assert.assertTrue(writer.getBatchCount() < 10);
+        Assert.assertEquals(0, writer.getFallbackCount());
+        Assert.assertEquals(saved.getValues().size(), commits.get());
+        Assert.assertEquals(0, rollbacks.get());
+
+        JpaAuditLogItem item = saved.getValues().get(0).get(0);
+        Assert.assertEquals("account", item.getAccount());
+        Assert.assertEquals("ADD_CONTENT", item.getAction());
+        Assert.assertNotNull(item.getUniqueKey());
+    }
+
+    @Test
+    public void testDuplicateHandledPerRow() throws Exception {
+        //a failed batch is rolled back, then each row is written on its own
+        EasyMock.expect(logItemRepo.saveAll(EasyMock.isA(List.class)))
+                .andThrow(new DataIntegrityViolationException("duplicate entry")).times(0, 1);
+        expectWrite("ok");
+        EasyMock.expectLastCall().once();
+        expectWrite("duplicate");
+        EasyMock.expectLastCall().andThrow(new TransactionSystemException("duplicate entry")).once();
+        replayAll();
+
+        writer = new AuditLogBatchWriter(logStore, logItemRepo, transactionManager, 2, 500);
+        List<Future<?>> results = writeConcurrently("ok", "duplicate");
+
+        results.get(0).get(5, TimeUnit.SECONDS);
+        try {
+            results.get(1).get(5, TimeUnit.SECONDS);
+            Assert.fail("the duplicate row should fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TransactionSystemException);
+        }
+        Assert.assertEquals(0, commits.get());
+    }
+
+    @Test
+    public void testWriteAfterDestroy() throws Exception {
+        expectWrite("content");
+        EasyMock.expectLastCall().once();
+        replayAll();
+
+        writer = new AuditLogBatchWriter(logStore, logItemRepo, transactionManager, 10, 5);
+        writer.destroy();
+        writer.write(createRow("content"));
+        Assert.assertEquals(0, writer.getBatchCount());
+    }
+}
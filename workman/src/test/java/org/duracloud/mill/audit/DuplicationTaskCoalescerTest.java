@@ -0,0 +1,133 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.audit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.duracloud.common.queue.TaskQueue;
+import org.duracloud.common.queue.task.Task;
+import org.duracloud.mill.task.DuplicationTask;
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+import org.easymock.EasyMock;
+import org.easymock.EasyMockRunner;
+import org.easymock.EasyMockSupport;
+import org.easymock.Mock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author Daniel Bernstein
+ */
+@RunWith(EasyMockRunner.class)
+public class DuplicationTaskCoalescerTest extends EasyMockSupport {
+
+    @Mock
+    private TaskQueue duplicationTaskQueue;
+
+    private DuplicationTaskCoalescer coalescer;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        if (coalescer != null) {
+            coalescer.destroy();
+        }
+        verifyAll();
+    }
+
+    private DuplicationTask createDupTask(String contentId, String destStoreId) {
+        DuplicationTask dupTask = new DuplicationTask();
+        dupTask.setAccount("account");
+        dupTask.setSourceStoreId("0");
+        dupTask.setDestStoreId(destStoreId);
+        dupTask.setSpaceId("space");
+        dupTask.setContentId(contentId);
+        return dupTask;
+    }
+
+    private List<Future<?>> putConcurrently(DuplicationTask... dupTasks) {
+        List<Future<?>> results = new ArrayList<>();
+        for (DuplicationTask dupTask : dupTasks) {
+            results.add(executor.submit(() -> {
+                coalescer.put(Collections.singleton(dupTask));
+                return null;
+            }));
+        }
+        return results;
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        Capture<Set<Task>> puts = Capture.newInstance(CaptureType.ALL);
+        duplicationTaskQueue.put(EasyMock.capture(puts));
+        EasyMock.expectLastCall().times(1, 3);
+        replayAll();
+
+        coalescer = new DuplicationTaskCoalescer(duplicationTaskQueue, 1000);
+        List<Future<?>> results = putConcurrently(createDupTask("content", "1"),
+                                                  createDupTask("content", "1"),
+                                                  createDupTask("content", "1"),
+                                                  createDupTask("other", "1"),
+                                                  createDupTask("content", "2"));
+        for (Future<?> result : results) {
+            result.get(5, TimeUnit.SECONDS);
+        }
+
+        int put = 0;
+        for (Set<Task> tasks : puts.getValues()) {
+            put += tasks.size();
+        }
+        Assert.assertEquals(3, put);
+        Assert.assertEquals(3, coalescer.getPutCount());
+        Assert.assertEquals(2, coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void testPutFailure() throws Exception {
+        duplicationTaskQueue.put(EasyMock.<Set<Task>>anyObject());
+        EasyMock.expectLastCall().andThrow(new RuntimeException("queue unavailable"));
+        replayAll();
+
+        coalescer = new DuplicationTaskCoalescer(duplicationTaskQueue, 10);
+        try {
+            coalescer.put(Collections.singleton(createDupTask("content", "1")));
+            Assert.fail("the failure to put the task should be reported to the caller");
+        } catch (RuntimeException e) {
+            Assert.assertEquals("queue unavailable", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testPutAfterDestroy() throws Exception {
+        duplicationTaskQueue.put(EasyMock.<Set<Task>>anyObject());
+        EasyMock.expectLastCall().once();
+        replayAll();
+
+        coalescer = new DuplicationTaskCoalescer(duplicationTaskQueue, 1000);
+        coalescer.destroy();
+        coalescer.put(Collections.singleton(createDupTask("content", "1")));
+        Assert.assertEquals(0, coalescer.getCoalescedCount());
+    }
+}
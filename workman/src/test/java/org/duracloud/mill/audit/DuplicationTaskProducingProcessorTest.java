@@ -8,6 +8,7 @@
 
 package org.duracloud.mill.audit;
 
+import java.util.Arrays;
 import java.util.Set;
 
 import org.apache.commons.lang.NotImplementedException;
@@ -21,6 +22,7 @@ import org.duracloud.mill.dup.DuplicationPolicy;
 import org.duracloud.mill.dup.DuplicationPolicyManager;
 import org.duracloud.mill.dup.DuplicationStorePolicy;
 import org.duracloud.mill.notification.NotificationManager;
+import org.duracloud.mill.task.DuplicationTask;
 import org.duracloud.mill.workman.TaskExecutionFailedException;
 import org.easymock.EasyMock;
 import org.easymock.EasyMockRunner;
@@ -167,6 +169,35 @@ public class DuplicationTaskProducingProcessorTest extends EasyMockSupport {
 
     }
 
+    @Test
+    public void testFanOut() throws TaskExecutionFailedException {
+        AuditTask task = createAuditTask(AuditTask.ActionType.ADD_CONTENT.name());
+        for (String destStoreId : new String[] {"destId2", "destId1"}) {
+            DuplicationStorePolicy storePolicy = new DuplicationStorePolicy();
+            storePolicy.setSrcStoreId("storeId");
+            storePolicy.setDestStoreId(destStoreId);
+            policy.addDuplicationStorePolicy("spaceId", storePolicy);
+        }
+
+        EasyMock.expect(policyManager.getDuplicationPolicy(EasyMock.isA(String.class))).andReturn(policy);
+        duplicationTaskQueue.put(EasyMock.isA(Set.class));
+        EasyMock.expectLastCall().andDelegateTo(new TaskQueueAdapter() {
+            @Override
+            public void put(Set<Task> tasks) {
+                Assert.assertEquals(1, tasks.size());
+                DuplicationTask dupTask = new DuplicationTask();
+                dupTask.readTask(tasks.iterator().next());
+                Assert.assertEquals(Arrays.asList("destId1", "destId2"), dupTask.getDestStoreIds());
+            }
+        });
+        replayAll();
+
+        DuplicationTaskProducingProcessor processor =
+            new DuplicationTaskProducingProcessor(task, duplicationTaskQueue, policyManager);
+        processor.setFanOut(true);
+        processor.execute();
+    }
+
     private static class TaskQueueAdapter implements TaskQueue {
         /* (non-Javadoc)
          * @see org.duracloud.common.queue.TaskQueue#getName()
@@ -0,0 +1,50 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.dup;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Daniel Bernstein
+ */
+public class DestinationSpaceCacheTest {
+
+    @Test
+    public void testAddAndRemove() {
+        DestinationSpaceCache cache = new DestinationSpaceCache(60000);
+        Assert.assertFalse(cache.contains("account", "1", "space"));
+
+        cache.add("account", "1", "space");
+        Assert.assertTrue(cache.contains("account", "1", "space"));
+        Assert.assertFalse(cache.contains("account", "2", "space"));
+        Assert.assertFalse(cache.contains("other", "1", "space"));
+
+        cache.remove("account", "1", "space");
+        Assert.assertFalse(cache.contains("account", "1", "space"));
+
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        DestinationSpaceCache cache = new DestinationSpaceCache(1);
+        cache.add("account", "1", "space");
+        Thread.sleep(10);
+        Assert.assertFalse(cache.contains("account", "1", "space"));
+    }
+
+    @Test
+    public void testDisabled() {
+        DestinationSpaceCache cache = new DestinationSpaceCache(0);
+        cache.add("account", "1", "space");
+        Assert.assertFalse(cache.contains("account", "1", "space"));
+        Assert.assertEquals(0, cache.getSize());
+    }
+}
@@ -8,6 +8,7 @@
 package org.duracloud.mill.dup;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -16,15 +17,23 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.duracloud.audit.task.AuditTask;
+import org.duracloud.common.queue.local.LocalTaskQueue;
+import org.duracloud.common.queue.task.Task;
 import org.duracloud.common.util.ChecksumUtil;
 import org.duracloud.common.util.IOUtil;
+import org.duracloud.mill.common.storageprovider.S3StoreClient;
 import org.duracloud.mill.db.model.ManifestItem;
 import org.duracloud.mill.manifest.ManifestStore;
 import org.duracloud.mill.task.DuplicationTask;
 import org.duracloud.mill.workman.TaskExecutionFailedException;
 import org.duracloud.storage.domain.RetrievedContent;
+import org.duracloud.storage.domain.StorageProviderType;
 import org.duracloud.storage.error.NotFoundException;
 import org.duracloud.storage.error.StorageStateException;
 import org.duracloud.storage.provider.StorageProvider;
@@ -175,6 +184,72 @@ public class DuplicationTaskProcessorTest {
         taskProcessor.execute();
     }
 
+    /**
+     * Verifies that a destination space known to exist is not created again,
+     * and that the properties of both items are retrieved.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testExecuteAvailableInBothKnownSpace() throws Exception {
+        DestinationSpaceCache spaceCache = new DestinationSpaceCache(60000);
+        spaceCache.add(account, destStoreId, spaceId);
+        taskProcessor.setSpaceCache(spaceCache);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        taskProcessor.setExecutor(executor);
+
+        final String checksum = "checksum";
+        Map<String, String> srcProps = new HashMap<>();
+        srcProps.put(StorageProvider.PROPERTIES_CONTENT_CHECKSUM, checksum);
+        EasyMock.expect(srcStore.getContentProperties(spaceId, contentId))
+                .andReturn(srcProps);
+
+        Map<String, String> destProps = new HashMap<>();
+        destProps.put(StorageProvider.PROPERTIES_CONTENT_CHECKSUM, checksum);
+        EasyMock.expect(destStore.getContentProperties(spaceId, contentId))
+                .andReturn(destProps);
+
+        replayMocks();
+
+        try {
+            taskProcessor.execute();
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, spaceCache.getHits());
+    }
+
+    /**
+     * Verifies that a destination space is created once and then known to
+     * exist, until a task for it fails.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testExecuteFailureForgetsSpace() throws Exception {
+        DestinationSpaceCache spaceCache = new DestinationSpaceCache(60000);
+        taskProcessor.setSpaceCache(spaceCache);
+
+        destStore.createSpace(spaceId);
+        EasyMock.expectLastCall().once();
+
+        // Source item has no checksum, which fails the task
+        EasyMock.expect(srcStore.getContentProperties(spaceId, contentId))
+                .andReturn(new HashMap<>());
+        EasyMock.expect(destStore.getContentProperties(spaceId, contentId))
+                .andReturn(new HashMap<>());
+
+        replayMocks();
+
+        try {
+            taskProcessor.execute();
+            fail("Exception expected");
+        } catch (TaskExecutionFailedException e) {
+            // expected
+        }
+        assertFalse(spaceCache.contains(account, destStoreId, spaceId));
+    }
+
     /**
      * Verifies the flow of actions that occur when a content item exists in
      * neither the source nor destination stores. No updates are needed.
@@ -705,4 +780,248 @@ public class DuplicationTaskProcessorTest {
         }
     }
 
+    private Map<String, String> expectStreamedSource(String content) throws Exception {
+        // Check space
+        destStore.createSpace(EasyMock.eq(spaceId));
+        EasyMock.expectLastCall().once();
+
+        ChecksumUtil checksumUtil = new ChecksumUtil(ChecksumUtil.Algorithm.MD5);
+        Map<String, String> srcProps = new HashMap<>();
+        srcProps.put(StorageProvider.PROPERTIES_CONTENT_CHECKSUM, checksumUtil.generateChecksum(content));
+        srcProps.put(StorageProvider.PROPERTIES_CONTENT_MIMETYPE, "text/plain");
+        srcProps.put(StorageProvider.PROPERTIES_CONTENT_SIZE, String.valueOf(content.length()));
+        EasyMock.expect(srcStore.getContentProperties(EasyMock.eq(spaceId),
+                                                      EasyMock.eq(contentId)))
+                .andReturn(srcProps);
+
+        EasyMock.expect(destStore.getContentProperties(EasyMock.eq(spaceId),
+                                                       EasyMock.eq(contentId)))
+                .andThrow(new NotFoundException("")).anyTimes();
+        return srcProps;
+    }
+
+    private RetrievedContent createRetrievedContent(String content) throws IOException {
+        RetrievedContent retrievedContent = new RetrievedContent();
+        retrievedContent.setContentStream(IOUtil.writeStringToStream(content));
+        return retrievedContent;
+    }
+
+    /*
+     * Reads the content passed to the destination store, as a store would,
+     * and reports the expected checksum back
+     */
+    private void expectStreamedAddContent(String content, String checksum, int times) throws Exception {
+        EasyMock.expect(destStore.addContent(EasyMock.eq(spaceId),
+                                             EasyMock.eq(contentId),
+                                             EasyMock.eq("text/plain"),
+                                             EasyMock.<Map<String, String>>anyObject(),
+                                             EasyMock.eq((long) content.length()),
+                                             EasyMock.eq(checksum),
+                                             EasyMock.<InputStream>anyObject()))
+                .andAnswer(() -> {
+                    IOUtil.readStringFromStream((InputStream) EasyMock.getCurrentArguments()[6]);
+                    return checksum;
+                }).times(times);
+    }
+
+    @Test
+    public void testExecuteWithinProviderRecordsAdditionFirst() throws Exception {
+        List<String> events = new ArrayList<>();
+        Map<String, String> srcProps = expectStreamedSource("source-content");
+        srcProps.put("important-information", "is-stored-here");
+        replayMocks();
+
+        LocalTaskQueue auditQueue = new LocalTaskQueue() {
+            @Override
+            public void put(Task task) {
+                events.add(task.getProperty(AuditTask.ACTION_PROP));
+            }
+        };
+        S3StoreClient s3Client = new S3StoreClient(StorageProviderType.AMAZON_S3, "key", null, null, null);
+        taskProcessor.setS3Clients(s3Client, s3Client, new Task(), auditQueue);
+        taskProcessor.setServerSideCopier(new ServerSideContentCopier() {
+            @Override
+            public void copy(S3StoreClient source, S3StoreClient dest, String spaceId, String contentId,
+                             String sourceChecksum, String mimetype, Map<String, String> properties) {
+                assertEquals("is-stored-here", properties.get("important-information"));
+                events.add("COPY");
+            }
+        });
+        taskProcessor.execute();
+
+        assertEquals(List.of("COPY", "ADD_CONTENT"), events);
+    }
+
+    @Test
+    public void testExecuteStreamed() throws Exception {
+        String content = "source-content";
+        String checksum = new ChecksumUtil(ChecksumUtil.Algorithm.MD5).generateChecksum(content);
+        expectStreamedSource(content);
+
+        EasyMock.expect(srcStore.getContent(EasyMock.eq(spaceId),
+                                            EasyMock.eq(contentId)))
+                .andReturn(createRetrievedContent(content));
+        expectStreamedAddContent(content, checksum, 1);
+
+        replayMocks();
+
+        taskProcessor.setStreaming(true);
+        taskProcessor.execute();
+        assertTrue(taskProcessor.getCachedFiles().isEmpty());
+    }
+
+    @Test
+    public void testExecuteStreamedChecksumMismatchRolledBack() throws Exception {
+        String content = "source-content";
+        String checksum = new ChecksumUtil(ChecksumUtil.Algorithm.MD5).generateChecksum(content);
+        expectStreamedSource(content);
+
+        // The first read of the source is corrupted
+        EasyMock.expect(srcStore.getContent(EasyMock.eq(spaceId),
+                                            EasyMock.eq(contentId)))
+                .andReturn(createRetrievedContent("source-c0ntent"))
+                .andReturn(createRetrievedContent(content));
+        expectStreamedAddContent(content, checksum, 2);
+
+        // The corrupted copy is removed from the destination
+        destStore.deleteContent(EasyMock.eq(spaceId), EasyMock.eq(contentId));
+        EasyMock.expectLastCall().once();
+
+        replayMocks();
+
+        taskProcessor.setStreaming(true);
+        taskProcessor.execute();
+        assertTrue(taskProcessor.getCachedFiles().isEmpty());
+    }
+
+    @Test
+    public void testExecuteSharedSourceLargeContentCopiedInParts() throws Exception {
+        List<String> events = new ArrayList<>();
+        Map<String, String> srcProps = expectStreamedSource("source-content");
+        srcProps.put("important-information", "is-stored-here");
+        replayMocks();
+
+        LocalTaskQueue auditQueue = new LocalTaskQueue() {
+            @Override
+            public void put(Task task) {
+                events.add(task.getProperty(AuditTask.ACTION_PROP));
+            }
+        };
+        S3StoreClient s3Client = new S3StoreClient(StorageProviderType.AMAZON_S3, "key", null, null, null);
+        taskProcessor.setS3Clients(null, s3Client, new Task(), auditQueue);
+        taskProcessor.setMultipartCopier(new MultipartContentCopier(null, 0, MultipartContentCopier.MIN_PART_SIZE,
+                                                                    1) {
+            @Override
+            public void copy(StorageProvider sourceStore, S3StoreClient dest, String spaceId, String contentId,
+                             long size, String sourceChecksum, String mimetype, Map<String, String> properties,
+                             Task task) {
+                assertEquals("text/plain", mimetype);
+                assertEquals("is-stored-here", properties.get("important-information"));
+                events.add("COPY_PARTS");
+            }
+        });
+        SharedSourceContent sharedSource = new SharedSourceContent() {
+            @Override
+            public File getFile(Retrieval<File> retrieval) {
+                fail("an item copied in parts should not be spooled to a local file");
+                return null;
+            }
+        };
+        taskProcessor.setSharedSource(sharedSource);
+        taskProcessor.setStreaming(true);
+        taskProcessor.execute();
+
+        assertEquals(List.of("COPY_PARTS", "ADD_CONTENT"), events);
+    }
+
+    @Test
+    public void testExecuteContentOverMaxSizeNotCopiedInParts() throws Exception {
+        String content = "source-content";
+        String checksum = new ChecksumUtil(ChecksumUtil.Algorithm.MD5).generateChecksum(content);
+        Map<String, String> srcProps = expectStreamedSource(content);
+        srcProps.put(StorageProvider.PROPERTIES_CONTENT_SIZE, String.valueOf(MultipartContentCopier.MAX_SIZE + 1));
+
+        EasyMock.expect(srcStore.getContent(EasyMock.eq(spaceId),
+                                            EasyMock.eq(contentId)))
+                .andReturn(createRetrievedContent(content));
+        expectStreamedAddContent(content, checksum, 1);
+        replayMocks();
+
+        S3StoreClient s3Client = new S3StoreClient(StorageProviderType.AMAZON_S3, "key", null, null, null);
+        taskProcessor.setS3Clients(null, s3Client, new Task(), new LocalTaskQueue());
+        taskProcessor.setMultipartCopier(new MultipartContentCopier(null, 0, MultipartContentCopier.MIN_PART_SIZE,
+                                                                    1) {
+            @Override
+            public void copy(StorageProvider sourceStore, S3StoreClient dest, String spaceId, String contentId,
+                             long size, String sourceChecksum, String mimetype, Map<String, String> properties,
+                             Task task) {
+                fail("an item over " + MultipartContentCopier.MAX_SIZE + " bytes should not be copied in parts");
+            }
+        });
+        taskProcessor.execute();
+    }
+
+    /**
+     * Verifies that an item copied in parts, whose checksum is the ETag of
+     * its parts, is compared to the source by the MD5 recorded on it, which
+     * is kept when its properties are duplicated.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testExecuteCopiedInPartsComparedByContentChecksum() throws Exception {
+        destStore.createSpace(spaceId);
+        EasyMock.expectLastCall().once();
+
+        final String checksum = "0123456789abcdef0123456789abcdef";
+        Map<String, String> srcProps = new HashMap<>();
+        srcProps.put(StorageProvider.PROPERTIES_CONTENT_CHECKSUM, checksum);
+        srcProps.put("important-information", "is-stored-here");
+        EasyMock.expect(srcStore.getContentProperties(spaceId, contentId))
+                .andReturn(srcProps);
+
+        Map<String, String> destProps = new HashMap<>();
+        destProps.put(StorageProvider.PROPERTIES_CONTENT_CHECKSUM, "fedcba9876543210fedcba9876543210-3");
+        destProps.put(MultipartContentCopier.CONTENT_CHECKSUM_PROPERTY, checksum);
+        EasyMock.expect(destStore.getContentProperties(spaceId, contentId))
+                .andReturn(destProps);
+
+        Map<String, String> expectedProps = new HashMap<>();
+        expectedProps.put("important-information", "is-stored-here");
+        expectedProps.put(MultipartContentCopier.CONTENT_CHECKSUM_PROPERTY, checksum);
+        destStore.setContentProperties(spaceId, contentId, expectedProps);
+        EasyMock.expectLastCall().once();
+
+        replayMocks();
+
+        taskProcessor.execute();
+    }
+
+    @Test
+    public void testExecuteSharedSourceSpooledRatherThanStreamed() throws Exception {
+        String content = "source-content";
+        String checksum = new ChecksumUtil(ChecksumUtil.Algorithm.MD5).generateChecksum(content);
+        expectStreamedSource(content);
+
+        EasyMock.expect(srcStore.getContent(EasyMock.eq(spaceId),
+                                            EasyMock.eq(contentId)))
+                .andReturn(createRetrievedContent(content));
+        expectStreamedAddContent(content, checksum, 1);
+
+        replayMocks();
+
+        SharedSourceContent sharedSource = new SharedSourceContent();
+        taskProcessor.setSharedSource(sharedSource);
+        taskProcessor.setStreaming(true);
+        taskProcessor.execute();
+
+        //the local copy is kept for the other destinations until destroyed
+        File localFile = sharedSource.getFile(() -> {
+            throw new TaskExecutionFailedException("the source should not be read again");
+        });
+        assertTrue(localFile.exists());
+        sharedSource.destroy();
+        assertFalse(localFile.exists());
+    }
+
 }
@@ -0,0 +1,103 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.dup;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.duracloud.common.queue.task.Task;
+import org.duracloud.mill.task.DuplicationTask;
+import org.duracloud.mill.workman.TaskExecutionFailedException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Daniel Bernstein
+ */
+public class FanOutDuplicationTaskProcessorTest {
+
+    private ExecutorService executor;
+    private Task task;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+
+        DuplicationTask dupTask = new DuplicationTask();
+        dupTask.setAccount("account");
+        dupTask.setSourceStoreId("0");
+        dupTask.setDestStoreIds(Arrays.asList("1", "2", "3"));
+        dupTask.setSpaceId("space");
+        dupTask.setContentId("content");
+        task = dupTask.writeTask();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private FanOutDuplicationTaskProcessor createProcessor(String... failingStoreIds) {
+        FanOutDuplicationTaskProcessor processor =
+            new FanOutDuplicationTaskProcessor(task, executor, new SharedSourceContent());
+        for (String destStoreId : Arrays.asList("1", "2", "3")) {
+            Task destTask = processor.createDestinationTask(destStoreId);
+            boolean fail = Arrays.asList(failingStoreIds).contains(destStoreId);
+            processor.addDestination(destStoreId, () -> {
+                Assert.assertEquals(destStoreId, destTask.getProperty(DuplicationTask.DEST_STORE_ID_PROP));
+                destTask.addProperty("checkpoint", "checkpoint-" + destStoreId);
+                if (fail) {
+                    throw new TaskExecutionFailedException("failed " + destStoreId);
+                }
+            });
+        }
+        return processor;
+    }
+
+    @Test
+    public void testAllSucceed() throws Exception {
+        createProcessor().execute();
+        Assert.assertEquals("1,2,3", task.getProperty(DuplicationTask.DEST_STORE_IDS_PROP));
+    }
+
+    @Test
+    public void testRetryOnlyFailedDestinations() throws Exception {
+        try {
+            createProcessor("1", "3").execute();
+            Assert.fail("the failed destinations should fail the task");
+        } catch (TaskExecutionFailedException e) {
+            Assert.assertTrue(e.getMessage().contains("[1, 3]"));
+        }
+
+        Assert.assertEquals("1", task.getProperty(DuplicationTask.DEST_STORE_ID_PROP));
+        Assert.assertEquals("1,3", task.getProperty(DuplicationTask.DEST_STORE_IDS_PROP));
+
+        // a retry gives each destination the state it recorded
+        FanOutDuplicationTaskProcessor retry =
+            new FanOutDuplicationTaskProcessor(task, executor, new SharedSourceContent());
+        Assert.assertEquals("checkpoint-3", retry.createDestinationTask("3").getProperty("checkpoint"));
+    }
+
+    @Test
+    public void testRetrySingleFailedDestination() throws Exception {
+        try {
+            createProcessor("2").execute();
+            Assert.fail("the failed destination should fail the task");
+        } catch (TaskExecutionFailedException e) {
+            // expected
+        }
+
+        DuplicationTask retry = new DuplicationTask();
+        retry.readTask(task);
+        Assert.assertEquals(Arrays.asList("2"), retry.getDestStoreIds());
+        Assert.assertEquals("checkpoint-2", task.getProperty("checkpoint"));
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.dup;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import org.duracloud.common.queue.task.Task;
+import org.duracloud.mill.common.storageprovider.S3StoreClient;
+import org.duracloud.storage.domain.RetrievedContent;
+import org.duracloud.storage.provider.StorageProvider;
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+import org.easymock.EasyMock;
+import org.easymock.EasyMockRunner;
+import org.easymock.EasyMockSupport;
+import org.easymock.Mock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author Daniel Bernstein
+ */
+@RunWith(EasyMockRunner.class)
+public class MultipartContentCopierTest extends EasyMockSupport {
+
+    private static final long PART_SIZE = MultipartContentCopier.MIN_PART_SIZE;
+
+    @Mock
+    private StorageProvider sourceStore;
+
+    @Mock
+    private AmazonS3 client;
+
+    @Mock
+    private S3StoreClient dest;
+
+    private String spaceId = "space-id";
+    private String contentId = "content-id";
+    private String bucketName = "bucket";
+    private String uploadId = "upload-id";
+    private String mimetype = "application/octet-stream";
+    private Map<String, String> properties = Map.of("important-information", "is stored here");
+
+    private byte[] content;
+    private String checksum;
+    private String multipartETag;
+    private Task task;
+    private MultipartContentCopier copier;
+
+    @Before
+    public void setUp() throws Exception {
+        //two full parts and a short last one
+        content = new byte[(int) (PART_SIZE * 2 + 1024)];
+        new Random(1).nextBytes(content);
+        checksum = md5(content, 0, content.length);
+        MessageDigest partsDigest = MessageDigest.getInstance("MD5");
+        for (int offset = 0; offset < content.length; offset += (int) PART_SIZE) {
+            int length = (int) Math.min(PART_SIZE, content.length - offset);
+            partsDigest.update(HexFormat.of().parseHex(md5(content, offset, length)));
+        }
+        multipartETag = HexFormat.of().formatHex(partsDigest.digest()) + "-3";
+        task = new Task();
+        copier = new MultipartContentCopier(Runnable::run, 0, PART_SIZE, 2);
+
+        EasyMock.expect(dest.getClient()).andReturn(client);
+        EasyMock.expect(dest.getBucketName(spaceId)).andReturn(bucketName);
+    }
+
+    @After
+    public void tearDown() {
+        verifyAll();
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+        initiated.setUploadId(uploadId);
+        Capture<InitiateMultipartUploadRequest> initiate = Capture.newInstance();
+        EasyMock.expect(client.initiateMultipartUpload(EasyMock.capture(initiate))).andReturn(initiated);
+        expectSourceRanges(3);
+        Capture<UploadPartRequest> parts = expectUploadParts(3);
+        Capture<CompleteMultipartUploadRequest> complete = expectComplete(multipartETag);
+        replayAll();
+
+        copier.copy(sourceStore, dest, spaceId, contentId, content.length, checksum, mimetype, properties, task);
+
+        Assert.assertEquals(3, parts.getValues().size());
+        for (UploadPartRequest part : parts.getValues()) {
+            Assert.assertEquals(uploadId, part.getUploadId());
+            Assert.assertNotNull(part.getMd5Digest());
+        }
+        Assert.assertEquals(Arrays.asList(1, 2, 3), getPartNumbers(complete.getValue()));
+        Assert.assertEquals("", task.getProperty(MultipartContentCopier.UPLOAD_ID_PROPERTY));
+
+        //the properties are set with the content, encoded as the S3 storage
+        //provider encodes them
+        ObjectMetadata metadata = initiate.getValue().getObjectMetadata();
+        Assert.assertEquals(mimetype, metadata.getContentType());
+        Assert.assertEquals("UTF-8''is%2520stored%2520here",
+                            metadata.getUserMetaDataOf("important-information*"));
+        Assert.assertEquals("UTF-8''" + checksum,
+                            metadata.getUserMetaDataOf(MultipartContentCopier.CONTENT_CHECKSUM_PROPERTY + "*"));
+    }
+
+    @Test
+    public void testGetContentChecksum() {
+        EasyMock.reset(dest);
+        replayAll();
+
+        Map<String, String> properties = new HashMap<>();
+        properties.put(StorageProvider.PROPERTIES_CONTENT_CHECKSUM, multipartETag);
+        Assert.assertEquals(multipartETag, MultipartContentCopier.getContentChecksum(properties));
+        properties.put(MultipartContentCopier.CONTENT_CHECKSUM_PROPERTY, checksum);
+        Assert.assertEquals(checksum, MultipartContentCopier.getContentChecksum(properties));
+
+        //the recorded checksum is ignored once the item is no longer the one
+        //which was copied in parts
+        properties.put(StorageProvider.PROPERTIES_CONTENT_CHECKSUM, "0123456789abcdef0123456789abcdef");
+        Assert.assertEquals("0123456789abcdef0123456789abcdef",
+                            MultipartContentCopier.getContentChecksum(properties));
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        task.addProperty(MultipartContentCopier.UPLOAD_ID_PROPERTY, uploadId);
+        task.addProperty(MultipartContentCopier.UPLOAD_CHECKSUM_PROPERTY, checksum);
+
+        //part 1 is complete, part 2 was only partly uploaded; part 1 is read
+        //again to check the whole item
+        PartListing listing = new PartListing();
+        listing.setParts(Arrays.asList(createPartSummary(1, PART_SIZE, md5(content, 0, (int) PART_SIZE)),
+                                       createPartSummary(2, 10, "etag-2")));
+        listing.setTruncated(false);
+        EasyMock.expect(client.listParts(EasyMock.isA(ListPartsRequest.class))).andReturn(listing);
+        expectSourceRanges(3);
+        Capture<UploadPartRequest> parts = expectUploadParts(2);
+        Capture<CompleteMultipartUploadRequest> complete = expectComplete(multipartETag);
+        replayAll();
+
+        copier.copy(sourceStore, dest, spaceId, contentId, content.length, checksum, mimetype, properties, task);
+
+        Assert.assertEquals(2, parts.getValues().size());
+        Assert.assertEquals(2, parts.getValues().get(0).getPartNumber());
+        Assert.assertEquals(3, parts.getValues().get(1).getPartNumber());
+        Assert.assertEquals(Arrays.asList(1, 2, 3), getPartNumbers(complete.getValue()));
+    }
+
+    @Test
+    public void testChecksumMismatch() throws Exception {
+        InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+        initiated.setUploadId(uploadId);
+        EasyMock.expect(client.initiateMultipartUpload(EasyMock.isA(InitiateMultipartUploadRequest.class)))
+                .andReturn(initiated);
+        expectSourceRanges(3);
+        expectUploadParts(3);
+        expectComplete("other-etag-3");
+        client.deleteObject(bucketName, contentId);
+        EasyMock.expectLastCall();
+        replayAll();
+
+        try {
+            copier.copy(sourceStore, dest, spaceId, contentId, content.length, checksum, mimetype, properties, task);
+            Assert.fail("the ETag mismatch should fail the copy");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getMessage().contains("does not match"));
+        }
+        Assert.assertEquals("", task.getProperty(MultipartContentCopier.UPLOAD_ID_PROPERTY));
+    }
+
+    @Test
+    public void testSourceChecksumMismatch() throws Exception {
+        InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+        initiated.setUploadId(uploadId);
+        EasyMock.expect(client.initiateMultipartUpload(EasyMock.isA(InitiateMultipartUploadRequest.class)))
+                .andReturn(initiated);
+        expectSourceRanges(3);
+        expectUploadParts(3);
+        client.abortMultipartUpload(EasyMock.isA(AbortMultipartUploadRequest.class));
+        EasyMock.expectLastCall();
+        replayAll();
+
+        try {
+            copier.copy(sourceStore, dest, spaceId, contentId, content.length, "other-checksum", mimetype, properties,
+                        task);
+            Assert.fail("the checksum mismatch should fail the copy");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getMessage().contains("does not match"));
+        }
+        Assert.assertEquals("", task.getProperty(MultipartContentCopier.UPLOAD_ID_PROPERTY));
+    }
+
+    @Test
+    public void testIsApplicable() {
+        EasyMock.reset(dest);
+        replayAll();
+
+        MultipartContentCopier copier = new MultipartContentCopier(Runnable::run, 1024, PART_SIZE, 2);
+        Assert.assertFalse(copier.isApplicable(1023));
+        Assert.assertTrue(copier.isApplicable(1024));
+        Assert.assertTrue(copier.isApplicable(MultipartContentCopier.MAX_SIZE));
+        Assert.assertFalse(copier.isApplicable(MultipartContentCopier.MAX_SIZE + 1));
+        Assert.assertFalse(copier.isApplicable(100L * 1024 * 1024 * 1024));
+    }
+
+    private void expectSourceRanges(int times) {
+        EasyMock.expect(sourceStore.getContent(EasyMock.eq(spaceId), EasyMock.eq(contentId), EasyMock.anyString()))
+                .andAnswer(() -> {
+                    String[] range = ((String) EasyMock.getCurrentArguments()[2]).substring(6).split("-");
+                    int from = Integer.parseInt(range[0]);
+                    int to = Integer.parseInt(range[1]);
+                    RetrievedContent retrieved = new RetrievedContent();
+                    retrieved.setContentStream(new ByteArrayInputStream(content, from, to - from + 1));
+                    return retrieved;
+                }).times(times);
+    }
+
+    private Capture<UploadPartRequest> expectUploadParts(int times) {
+        Capture<UploadPartRequest> parts = Capture.newInstance(CaptureType.ALL);
+        EasyMock.expect(client.uploadPart(EasyMock.capture(parts))).andAnswer(() -> {
+            UploadPartRequest request = (UploadPartRequest) EasyMock.getCurrentArguments()[0];
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag(HexFormat.of().formatHex(Base64.getDecoder().decode(request.getMd5Digest())));
+            return result;
+        }).times(times);
+        return parts;
+    }
+
+    private Capture<CompleteMultipartUploadRequest> expectComplete(String etag) {
+        Capture<CompleteMultipartUploadRequest> complete = Capture.newInstance();
+        CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setETag(etag);
+        EasyMock.expect(client.completeMultipartUpload(EasyMock.capture(complete))).andReturn(result);
+        return complete;
+    }
+
+    private PartSummary createPartSummary(int partNumber, long size, String etag) {
+        PartSummary part = new PartSummary();
+        part.setPartNumber(partNumber);
+        part.setSize(size);
+        part.setETag(etag);
+        return part;
+    }
+
+    private List<Integer> getPartNumbers(CompleteMultipartUploadRequest request) {
+        List<Integer> numbers = new ArrayList<>();
+        request.getPartETags().forEach(part -> numbers.add(part.getPartNumber()));
+        return numbers;
+    }
+
+    private String md5(byte[] bytes, int offset, int length) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        digest.update(bytes, offset, length);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.dup;
+
+import java.util.Map;
+
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import org.duracloud.mill.common.storageprovider.S3StoreClient;
+import org.duracloud.s3storage.S3StorageProvider;
+import org.duracloud.storage.domain.StorageProviderType;
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.easymock.EasyMockRunner;
+import org.easymock.EasyMockSupport;
+import org.easymock.Mock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author Daniel Bernstein
+ */
+@RunWith(EasyMockRunner.class)
+public class ServerSideContentCopierTest extends EasyMockSupport {
+
+    @Mock
+    private AmazonS3 client;
+
+    @Mock
+    private S3StorageProvider sourceProvider;
+
+    @Mock
+    private S3StorageProvider destProvider;
+
+    private String spaceId = "space-id";
+    private String contentId = "content-id";
+    private String checksum = "checksum";
+    private String mimetype = "text/plain";
+    private Map<String, String> properties = Map.of("important-information", "is-stored-here");
+
+    @After
+    public void tearDown() {
+        verifyAll();
+    }
+
+    private S3StoreClient createStoreClient(String accessKey, String location, S3StorageProvider provider) {
+        return new S3StoreClient(StorageProviderType.AMAZON_S3, accessKey, location, client, provider);
+    }
+
+    @Test
+    public void testIsApplicable() {
+        replayAll();
+
+        ServerSideContentCopier copier = new ServerSideContentCopier();
+        S3StoreClient source = createStoreClient("key", "us-east-1", sourceProvider);
+        Assert.assertTrue(copier.isApplicable(source, createStoreClient("key", "us-east-1", destProvider), 10));
+        Assert.assertFalse(copier.isApplicable(source, createStoreClient("other", "us-east-1", destProvider), 10));
+        Assert.assertFalse(copier.isApplicable(source, createStoreClient("key", "us-west-2", destProvider), 10));
+        Assert.assertFalse(copier.isApplicable(source, createStoreClient("key", "us-east-1", destProvider),
+                                               ServerSideContentCopier.MAX_SIZE + 1));
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        EasyMock.expect(sourceProvider.getBucketName(spaceId)).andReturn("source-bucket");
+        EasyMock.expect(destProvider.getBucketName(spaceId)).andReturn("dest-bucket");
+        Capture<CopyObjectRequest> request = Capture.newInstance();
+        EasyMock.expect(client.copyObject(EasyMock.capture(request))).andReturn(createCopyResult(checksum));
+        replayAll();
+
+        new ServerSideContentCopier().copy(createStoreClient("key", null, sourceProvider),
+                                           createStoreClient("key", null, destProvider),
+                                           spaceId, contentId, checksum, mimetype, properties);
+
+        Assert.assertEquals("source-bucket", request.getValue().getSourceBucketName());
+        Assert.assertEquals("dest-bucket", request.getValue().getDestinationBucketName());
+        Assert.assertEquals(contentId, request.getValue().getDestinationKey());
+        Assert.assertEquals(mimetype, request.getValue().getNewObjectMetadata().getContentType());
+        Assert.assertEquals("UTF-8''is-stored-here",
+                            request.getValue().getNewObjectMetadata().getUserMetaDataOf("important-information*"));
+    }
+
+    @Test
+    public void testCopyChecksumMismatch() throws Exception {
+        EasyMock.expect(sourceProvider.getBucketName(spaceId)).andReturn("source-bucket");
+        EasyMock.expect(destProvider.getBucketName(spaceId)).andReturn("dest-bucket");
+        EasyMock.expect(client.copyObject(EasyMock.isA(CopyObjectRequest.class)))
+                .andReturn(createCopyResult("other-checksum"));
+        client.deleteObject("dest-bucket", contentId);
+        EasyMock.expectLastCall();
+        replayAll();
+
+        try {
+            new ServerSideContentCopier().copy(createStoreClient("key", null, sourceProvider),
+                                               createStoreClient("key", null, destProvider),
+                                               spaceId, contentId, checksum, mimetype, properties);
+            Assert.fail("the checksum mismatch should fail the copy");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getMessage().contains("does not match"));
+        }
+    }
+
+    private CopyObjectResult createCopyResult(String etag) {
+        CopyObjectResult result = new CopyObjectResult();
+        result.setETag(etag);
+        return result;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.dup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.duracloud.mill.workman.TaskExecutionFailedException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Daniel Bernstein
+ */
+public class SharedSourceContentTest {
+
+    private ExecutorService executor;
+    private SharedSourceContent sharedSource;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+        sharedSource = new SharedSourceContent();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentProcessorsRetrieveOnce() throws Exception {
+        File file = new File("shared");
+        AtomicInteger retrievals = new AtomicInteger();
+        CountDownLatch retrieving = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<File>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(executor.submit(() -> sharedSource.getFile(() -> {
+                retrievals.incrementAndGet();
+                retrieving.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return file;
+            })));
+        }
+        assertTrue(retrieving.await(5, TimeUnit.SECONDS));
+        release.countDown();
+
+        for (Future<File> result : results) {
+            assertSame(file, result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, retrievals.get());
+    }
+
+    @Test
+    public void testWaitingProcessorRetriesFailedRetrieval() throws Exception {
+        File file = new File("shared");
+        CountDownLatch retrieving = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<File> failing = executor.submit(() -> sharedSource.getFile(() -> {
+            retrieving.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new TaskExecutionFailedException("checksum mismatch");
+        }));
+        assertTrue(retrieving.await(5, TimeUnit.SECONDS));
+        Future<File> waiting = executor.submit(() -> sharedSource.getFile(() -> file));
+        release.countDown();
+
+        try {
+            failing.get(5, TimeUnit.SECONDS);
+            fail("the processor whose retrieval failed should see the failure");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TaskExecutionFailedException);
+        }
+        assertSame(file, waiting.get(5, TimeUnit.SECONDS));
+        assertSame(file, sharedSource.getFile(() -> {
+            throw new TaskExecutionFailedException("the source should not be read again");
+        }));
+    }
+
+}
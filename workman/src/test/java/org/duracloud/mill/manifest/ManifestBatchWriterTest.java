@@ -0,0 +1,165 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.manifest;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.easymock.EasyMock;
+import org.easymock.EasyMockSupport;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+/**
+ * @author Daniel Bernstein
+ */
+public class ManifestBatchWriterTest extends EasyMockSupport {
+
+    private ManifestStore store;
+    private ManifestStore batchStore;
+    private AtomicInteger commits = new AtomicInteger();
+    private ManifestBatchWriter writer;
+    private ExecutorService executor;
+
+    private PlatformTransactionManager transactionManager = new PlatformTransactionManager() {
+        @Override
+        public TransactionStatus getTransaction(TransactionDefinition definition) {
+            return new SimpleTransactionStatus();
+        }
+
+        @Override
+        public void commit(TransactionStatus status) {
+            commits.incrementAndGet();
+        }
+
+        @Override
+        public void rollback(TransactionStatus status) {
+        }
+    };
+
+    @Before
+    public void setUp() {
+        store = createMock(ManifestStore.class);
+        //strict, so the order in which the updates are applied is verified
+        batchStore = createStrictMock(ManifestStore.class);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        if (writer != null) {
+            writer.destroy();
+        }
+        verifyAll();
+    }
+
+    @Test
+    public void testBatchAppliedInTimestampOrder() throws Exception {
+        Date added = new Date(1000);
+        Date updated = new Date(2000);
+        Date deleted = new Date(3000);
+
+        EasyMock.expect(batchStore.addUpdate("account", "1", "space", "content", "md5-1", "text/plain", "10",
+                                             added))
+                .andReturn(true);
+        EasyMock.expect(batchStore.addUpdate("account", "1", "space", "content", "md5-2", "text/plain", "20",
+                                             updated))
+                .andReturn(true);
+        EasyMock.expect(batchStore.flagAsDeleted("account", "1", "space", "content", deleted))
+                .andReturn(true);
+        replayAll();
+
+        writer = new ManifestBatchWriter(store, batchStore, transactionManager, 3, 2000);
+        List<ManifestBatchWriter.Update> updates = new ArrayList<>();
+        updates.add(ManifestBatchWriter.Update.flagAsDeleted("account", "1", "space", "content", deleted));
+        updates.add(ManifestBatchWriter.Update.addUpdate("account", "1", "space", "content", "md5-2",
+                                                         "text/plain", "20", updated));
+        updates.add(ManifestBatchWriter.Update.addUpdate("account", "1", "space", "content", "md5-1",
+                                                         "text/plain", "10", added));
+
+        List<Future<?>> results = new ArrayList<>();
+        for (ManifestBatchWriter.Update update : updates) {
+            results.add(executor.submit(() -> {
+                writer.write(update);
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get(5, TimeUnit.SECONDS);
+        }
+
+        Assert.assertEquals(1, writer.getBatchCount());
+        Assert.assertEquals(3, writer.getItemCount());
+        Assert.assertEquals(1, commits.get());
+    }
+
+    @Test
+    public void testFailedBatchWrittenPerUpdate() throws Exception {
+        Date added = new Date(1000);
+        Date deleted = new Date(2000);
+
+        //the batch's transaction is rolled back, then each update is applied
+        //in a transaction of its own
+        EasyMock.expect(batchStore.addUpdate("account", "1", "space", "content", "md5", "text/plain", "10",
+                                             added))
+                .andReturn(true);
+        EasyMock.expect(batchStore.flagAsDeleted("account", "1", "space", "content", deleted))
+                .andThrow(new ManifestItemWriteException("failed", new Exception()));
+        EasyMock.expect(store.addUpdate("account", "1", "space", "content", "md5", "text/plain", "10", added))
+                .andReturn(true);
+        EasyMock.expect(store.flagAsDeleted("account", "1", "space", "content", deleted))
+                .andReturn(true);
+        replayAll();
+
+        writer = new ManifestBatchWriter(store, batchStore, transactionManager, 2, 2000);
+        List<ManifestBatchWriter.Update> updates = new ArrayList<>();
+        updates.add(ManifestBatchWriter.Update.addUpdate("account", "1", "space", "content", "md5",
+                                                         "text/plain", "10", added));
+        updates.add(ManifestBatchWriter.Update.flagAsDeleted("account", "1", "space", "content", deleted));
+
+        List<Future<?>> results = new ArrayList<>();
+        for (ManifestBatchWriter.Update update : updates) {
+            results.add(executor.submit(() -> {
+                writer.write(update);
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get(5, TimeUnit.SECONDS);
+        }
+
+        Assert.assertEquals(1, writer.getFallbackCount());
+        Assert.assertEquals(0, commits.get());
+    }
+
+    @Test
+    public void testWriteAfterDestroy() throws Exception {
+        Date timestamp = new Date();
+        EasyMock.expect(store.flagAsDeleted("account", "1", "space", "content", timestamp))
+                .andReturn(true);
+        replayAll();
+
+        writer = new ManifestBatchWriter(store, batchStore, transactionManager, 10, 5);
+        writer.destroy();
+        writer.write(ManifestBatchWriter.Update.flagAsDeleted("account", "1", "space", "content", timestamp));
+        Assert.assertEquals(0, writer.getBatchCount());
+    }
+}
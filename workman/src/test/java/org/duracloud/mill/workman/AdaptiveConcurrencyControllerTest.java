@@ -0,0 +1,199 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import org.duracloud.common.queue.task.Task;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Daniel Bernstein
+ */
+public class AdaptiveConcurrencyControllerTest {
+
+    private TestWorkerPool pool;
+    private double cpuLoad;
+    private AdaptiveConcurrencyController controller;
+
+    @Before
+    public void setup() {
+        pool = new TestWorkerPool();
+        cpuLoad = 0.1;
+        controller = new AdaptiveConcurrencyController(pool, 2, 10) {
+            @Override
+            protected double getCpuLoad() {
+                return cpuLoad;
+            }
+        };
+        pool.setWorkerLimit(4);
+    }
+
+    @Test
+    public void testStartKeepsCurrentLimit() {
+        controller.setIntervalMs(60 * 1000);
+        try {
+            controller.start();
+            Assert.assertEquals(4, pool.getWorkerLimit());
+        } finally {
+            controller.stop();
+        }
+
+        pool.setWorkerLimit(20);
+        try {
+            controller.start();
+            Assert.assertEquals(10, pool.getWorkerLimit());
+        } finally {
+            controller.stop();
+        }
+    }
+
+    @Test
+    public void testIncreaseWhenSaturated() {
+        complete(Task.Type.DUP, 10, 1000, null);
+        pool.peak = 4;
+        Assert.assertEquals(5, controller.adjust());
+        Assert.assertEquals(5, pool.getWorkerLimit());
+    }
+
+    @Test
+    public void testHoldWhenNotSaturated() {
+        complete(Task.Type.DUP, 10, 1000, null);
+        pool.peak = 3;
+        Assert.assertEquals(4, controller.adjust());
+    }
+
+    @Test
+    public void testDecreaseWhenThrottled() {
+        pool.setWorkerLimit(8);
+        complete(Task.Type.DUP, 10, 1000, null);
+        complete(Task.Type.DUP, 1, 1000,
+                 new RuntimeException("wrapped", new RuntimeException(
+                     "Please reduce your request rate. (Service: Amazon S3; Status Code: 503; " +
+                     "Error Code: SlowDown)")));
+        pool.peak = 8;
+        Assert.assertEquals(6, controller.adjust());
+    }
+
+    @Test
+    public void testDecreaseOnFailureRate() {
+        complete(Task.Type.BIT, 5, 100, null);
+        complete(Task.Type.BIT, 5, 100, new RuntimeException("failed"));
+        pool.peak = 4;
+        Assert.assertEquals(3, controller.adjust());
+    }
+
+    @Test
+    public void testDecreaseOnCpu() {
+        cpuLoad = 0.95;
+        complete(Task.Type.AUDIT, 10, 100, null);
+        pool.peak = 4;
+        Assert.assertEquals(3, controller.adjust());
+    }
+
+    @Test
+    public void testDecreaseOnLatency() {
+        buildBaseline(Task.Type.AUDIT, 100);
+
+        complete(Task.Type.AUDIT, 10, 500, null);
+        pool.peak = 4;
+        Assert.assertEquals(3, controller.adjust());
+    }
+
+    @Test
+    public void testLatencyIgnoredUntilBaselineBuilt() {
+        complete(Task.Type.AUDIT, 10, 100, null);
+        controller.adjust();
+
+        complete(Task.Type.AUDIT, 10, 500, null);
+        pool.peak = 4;
+        Assert.assertEquals(5, controller.adjust());
+    }
+
+    @Test
+    public void testFastIntervalDoesNotResetBaseline() {
+        buildBaseline(Task.Type.AUDIT, 100);
+
+        complete(Task.Type.AUDIT, 10, 20, null);
+        controller.adjust();
+
+        complete(Task.Type.AUDIT, 10, 150, null);
+        pool.peak = 4;
+        Assert.assertEquals(5, controller.adjust());
+    }
+
+    @Test
+    public void testLatencyIgnoredForFewOrSizeDependentTasks() {
+        buildBaseline(Task.Type.AUDIT, 100);
+        buildBaseline(Task.Type.DUP, 100);
+
+        complete(Task.Type.AUDIT, AdaptiveConcurrencyController.MIN_INTERVAL_SAMPLES - 1, 1000, null);
+        complete(Task.Type.DUP, 10, 1000, null);
+        pool.peak = 4;
+        Assert.assertEquals(5, controller.adjust());
+    }
+
+    @Test
+    public void testBounds() {
+        cpuLoad = 0.95;
+        pool.setWorkerLimit(2);
+        Assert.assertEquals(2, controller.adjust());
+
+        cpuLoad = 0.1;
+        pool.setWorkerLimit(10);
+        pool.peak = 10;
+        Assert.assertEquals(10, controller.adjust());
+    }
+
+    @Test
+    public void testIsThrottle() {
+        Assert.assertTrue(AdaptiveConcurrencyController.isThrottle(new RuntimeException("Rate Exceeded: Throttling")));
+        Assert.assertFalse(AdaptiveConcurrencyController.isThrottle(new RuntimeException("content-503 missing")));
+        Assert.assertFalse(AdaptiveConcurrencyController.isThrottle(new RuntimeException()));
+    }
+
+    private void buildBaseline(Task.Type type, long elapsedMs) {
+        int intervals = AdaptiveConcurrencyController.MIN_BASELINE_SAMPLES /
+                        AdaptiveConcurrencyController.MIN_INTERVAL_SAMPLES;
+        for (int i = 0; i < intervals; i++) {
+            complete(type, AdaptiveConcurrencyController.MIN_INTERVAL_SAMPLES, elapsedMs, null);
+            controller.adjust();
+        }
+        pool.setWorkerLimit(4);
+    }
+
+    private void complete(Task.Type type, int count, long elapsedMs, Throwable failure) {
+        Task task = new Task();
+        task.setType(type);
+        for (int i = 0; i < count; i++) {
+            controller.taskCompleted(task, elapsedMs, failure);
+        }
+    }
+
+    private static class TestWorkerPool implements WorkerPool {
+        private int limit;
+        private int peak;
+
+        @Override
+        public int getWorkerLimit() {
+            return limit;
+        }
+
+        @Override
+        public void setWorkerLimit(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public int getAndResetPeakRunningWorkers() {
+            int result = peak;
+            peak = 0;
+            return result;
+        }
+    }
+}
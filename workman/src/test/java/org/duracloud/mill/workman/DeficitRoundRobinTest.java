@@ -0,0 +1,69 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Daniel Bernstein
+ */
+public class DeficitRoundRobinTest {
+
+    @Test
+    public void testBackloggedLanesGetWeightedShares() {
+        DeficitRoundRobin scheduler = new DeficitRoundRobin(new int[] {3, 1});
+        int[] served = new int[2];
+        for (int i = 0; i < 400; i++) {
+            served[scheduler.next(lane -> lane)]++;
+        }
+        Assert.assertEquals(300, served[0]);
+        Assert.assertEquals(100, served[1]);
+        Assert.assertEquals(300, scheduler.getDispatchedCount(0));
+        Assert.assertEquals(100, scheduler.getDispatchedCount(1));
+    }
+
+    @Test
+    public void testIdleLaneLeavesItsShareToOthers() {
+        DeficitRoundRobin scheduler = new DeficitRoundRobin(new int[] {3, 1, 1});
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(Integer.valueOf(2), scheduler.next(lane -> lane == 2 ? lane : null));
+        }
+
+        //the idle lanes have not banked any credit while they were idle
+        int[] served = new int[3];
+        for (int i = 0; i < 50; i++) {
+            served[scheduler.next(lane -> lane)]++;
+        }
+        Assert.assertEquals(30, served[0]);
+        Assert.assertEquals(10, served[1]);
+        Assert.assertEquals(10, served[2]);
+    }
+
+    @Test
+    public void testNothingToDispatch() {
+        DeficitRoundRobin scheduler = new DeficitRoundRobin(new int[] {2, 1});
+        Assert.assertNull(scheduler.next(lane -> null));
+    }
+
+    @Test
+    public void testParseWeights() {
+        Assert.assertNull(DeficitRoundRobin.parseWeights(" ", 2));
+        Assert.assertArrayEquals(new int[] {8, 2, 1}, DeficitRoundRobin.parseWeights("8, 2,1", 3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseWeightsCountMismatch() {
+        DeficitRoundRobin.parseWeights("8,2", 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroWeight() {
+        new DeficitRoundRobin(new int[] {1, 0});
+    }
+}
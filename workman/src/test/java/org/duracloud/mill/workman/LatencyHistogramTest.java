@@ -0,0 +1,66 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Daniel Bernstein
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+        Assert.assertEquals(0, histogram.getCountAtOrBelow(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPercentilesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10000; i++) {
+            histogram.record(i * 100);
+        }
+
+        Assert.assertEquals(10000, histogram.getCount());
+        Assert.assertEquals(1000000, histogram.getMax());
+        Assert.assertEquals(5000500000L, histogram.getSum());
+        assertWithinPrecision(500000, histogram.getValueAtPercentile(50));
+        assertWithinPrecision(990000, histogram.getValueAtPercentile(99));
+        Assert.assertEquals(1000000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 16; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(7, histogram.getValueAtPercentile(50));
+        Assert.assertEquals(8, histogram.getCountAtOrBelow(7));
+    }
+
+    @Test
+    public void testOutOfRangeValuesAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        Assert.assertEquals(2, histogram.getCount());
+        Assert.assertEquals(LatencyHistogram.MAX_VALUE, histogram.getMax());
+        Assert.assertEquals(1, histogram.getCountAtOrBelow(0));
+        Assert.assertEquals(2, histogram.getCountAtOrBelow(LatencyHistogram.MAX_VALUE));
+    }
+
+    private void assertWithinPrecision(long expected, long actual) {
+        Assert.assertTrue(actual + " not within 1/16 of " + expected,
+                          Math.abs(actual - expected) <= expected / 16);
+    }
+}
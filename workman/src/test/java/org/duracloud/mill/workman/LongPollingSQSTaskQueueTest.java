@@ -0,0 +1,186 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageResult;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageSystemAttributeName;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import org.duracloud.common.queue.TimeoutException;
+import org.duracloud.common.queue.task.Task;
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+import org.easymock.EasyMockRunner;
+import org.easymock.EasyMockSupport;
+import org.easymock.Mock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author Daniel Bernstein
+ */
+@RunWith(EasyMockRunner.class)
+public class LongPollingSQSTaskQueueTest extends EasyMockSupport {
+
+    private static final String QUEUE_NAME = "queue";
+    private static final String QUEUE_URL = "http://sqs/queue";
+
+    @Mock
+    private AmazonSQS sqsClient;
+
+    @Before
+    public void setup() {
+        expect(sqsClient.getQueueUrl(isA(GetQueueUrlRequest.class))).andReturn(
+            new GetQueueUrlResult().withQueueUrl(QUEUE_URL)).anyTimes();
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("VisibilityTimeout", "300");
+        expect(sqsClient.getQueueAttributes(isA(GetQueueAttributesRequest.class)))
+            .andReturn(new GetQueueAttributesResult().withAttributes(attributes)).anyTimes();
+    }
+
+    @After
+    public void tearDown() {
+        verifyAll();
+    }
+
+    @Test
+    public void testTake() throws Exception {
+        Capture<ReceiveMessageRequest> request = Capture.newInstance();
+        Message message = new Message().withMessageId("msg-id")
+                                       .withReceiptHandle("receipt-handle")
+                                       .withBody("type=NOOP");
+        expect(sqsClient.receiveMessage(capture(request)))
+            .andReturn(new ReceiveMessageResult().withMessages(message));
+        replayAll();
+
+        LongPollingSQSTaskQueue queue = new LongPollingSQSTaskQueue(sqsClient, QUEUE_NAME);
+        Set<Task> tasks = queue.take(25);
+
+        Assert.assertEquals(1, tasks.size());
+        Task task = tasks.iterator().next();
+        Assert.assertEquals(Integer.valueOf(300), task.getVisibilityTimeout());
+        Assert.assertEquals(Integer.valueOf(LongPollingSQSTaskQueue.DEFAULT_WAIT_TIME_SECONDS),
+                            request.getValue().getWaitTimeSeconds());
+        Assert.assertEquals(Integer.valueOf(10), request.getValue().getMaxNumberOfMessages());
+        Assert.assertEquals(QUEUE_URL, request.getValue().getQueueUrl());
+        Assert.assertEquals(Arrays.asList(MessageSystemAttributeName.ApproximateReceiveCount.toString()),
+                            request.getValue().getMessageSystemAttributeNames());
+        Assert.assertTrue(queue.blocksOnEmpty());
+    }
+
+    @Test
+    public void testExtendVisibilityTimeouts() throws Exception {
+        Capture<ChangeMessageVisibilityBatchRequest> request = Capture.newInstance(CaptureType.ALL);
+        expect(sqsClient.changeMessageVisibilityBatch(capture(request)))
+            .andReturn(new ChangeMessageVisibilityBatchResult()).once();
+        expect(sqsClient.changeMessageVisibilityBatch(capture(request)))
+            .andReturn(new ChangeMessageVisibilityBatchResult().withFailed(
+                new BatchResultErrorEntry().withId("0").withCode("ReceiptHandleIsInvalid"))).once();
+        replayAll();
+
+        List<Task> tasks = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            Task task = new Task();
+            task.addProperty("RECEIPT_HANDLE", "handle-" + i);
+            task.setVisibilityTimeout(300);
+            tasks.add(task);
+        }
+
+        LongPollingSQSTaskQueue queue = new LongPollingSQSTaskQueue(sqsClient, QUEUE_NAME);
+        List<Task> failed = queue.extendVisibilityTimeouts(tasks);
+
+        Assert.assertEquals(2, request.getValues().size());
+        Assert.assertEquals(10, request.getValues().get(0).getEntries().size());
+        Assert.assertEquals(2, request.getValues().get(1).getEntries().size());
+        Assert.assertEquals(Integer.valueOf(300),
+                            request.getValues().get(0).getEntries().get(0).getVisibilityTimeout());
+        Assert.assertEquals(1, failed.size());
+    }
+
+    @Test
+    public void testRequeueWithDelay() throws Exception {
+        Capture<SendMessageRequest> send = Capture.newInstance();
+        Capture<DeleteMessageRequest> delete = Capture.newInstance();
+        expect(sqsClient.sendMessage(capture(send))).andReturn(new SendMessageResult());
+        expect(sqsClient.deleteMessage(capture(delete))).andReturn(new DeleteMessageResult());
+        replayAll();
+
+        Task task = new Task();
+        task.setType(Task.Type.NOOP);
+        task.addProperty("RECEIPT_HANDLE", "receipt-handle");
+
+        LongPollingSQSTaskQueue queue = new LongPollingSQSTaskQueue(sqsClient, QUEUE_NAME);
+        queue.requeue(task, 5000);
+
+        Assert.assertEquals(1, task.getAttempts());
+        Assert.assertEquals(Integer.valueOf(LongPollingSQSTaskQueue.MAX_DELAY_SECONDS),
+                            send.getValue().getDelaySeconds());
+        Assert.assertTrue(send.getValue().getMessageBody().contains("attempts=1"));
+        Assert.assertEquals("receipt-handle", delete.getValue().getReceiptHandle());
+    }
+
+    @Test
+    public void testPark() throws Exception {
+        Capture<SendMessageRequest> send = Capture.newInstance();
+        expect(sqsClient.sendMessage(capture(send))).andReturn(new SendMessageResult());
+        expect(sqsClient.deleteMessage(isA(DeleteMessageRequest.class))).andReturn(new DeleteMessageResult());
+        replayAll();
+
+        Task task = new Task();
+        task.setType(Task.Type.NOOP);
+        task.addProperty("RECEIPT_HANDLE", "receipt-handle");
+
+        LongPollingSQSTaskQueue queue = new LongPollingSQSTaskQueue(sqsClient, QUEUE_NAME);
+        queue.park(task, 60);
+
+        Assert.assertEquals(0, task.getAttempts());
+        Assert.assertEquals(Integer.valueOf(60), send.getValue().getDelaySeconds());
+    }
+
+    @Test
+    public void testTakeTimeout() throws Exception {
+        expect(sqsClient.receiveMessage(isA(ReceiveMessageRequest.class)))
+            .andReturn(new ReceiveMessageResult());
+        replayAll();
+
+        LongPollingSQSTaskQueue queue = new LongPollingSQSTaskQueue(sqsClient, QUEUE_NAME, 1);
+        try {
+            queue.take();
+            Assert.fail("take should have timed out");
+        } catch (TimeoutException e) {
+            //expected
+        }
+    }
+
+}
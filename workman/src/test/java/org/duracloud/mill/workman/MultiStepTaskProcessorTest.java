@@ -7,11 +7,22 @@
  */
 package org.duracloud.mill.workman;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.duracloud.common.queue.task.Task;
 import org.easymock.EasyMock;
 import org.easymock.EasyMockRunner;
 import org.easymock.EasyMockSupport;
 import org.easymock.Mock;
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -67,4 +78,151 @@ public class MultiStepTaskProcessorTest extends EasyMockSupport {
         processor.execute();
 
     }
+
+    @Test
+    public void testStepListener() throws TaskExecutionFailedException {
+        ProcessorStepListener listener = createMock(ProcessorStepListener.class);
+        step1.execute();
+        EasyMock.expectLastCall().once();
+        listener.stepCompleted(EasyMock.eq(Task.Type.AUDIT), EasyMock.same(step1),
+                               EasyMock.anyLong(), EasyMock.eq(true));
+        EasyMock.expectLastCall().once();
+        step2.execute();
+        EasyMock.expectLastCall().andThrow(new TaskExecutionFailedException("failed"));
+        listener.stepCompleted(EasyMock.eq(Task.Type.AUDIT), EasyMock.same(step2),
+                               EasyMock.anyLong(), EasyMock.eq(false));
+        EasyMock.expectLastCall().once();
+
+        replayAll();
+
+        processor = new MultiStepTaskProcessor(Task.Type.AUDIT, listener);
+        processor.addTaskProcessor(step1);
+        processor.addTaskProcessor(step2);
+
+        try {
+            processor.execute();
+            Assert.fail("step failure should propagate");
+        } catch (TaskExecutionFailedException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testIndependentStepsRunConcurrently() throws Exception {
+        replayAll();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            CountDownLatch bothStarted = new CountDownLatch(2);
+            TaskProcessor first = () -> awaitOther(bothStarted);
+            TaskProcessor second = () -> awaitOther(bothStarted);
+            List<String> ran = new CopyOnWriteArrayList<>();
+            TaskProcessor third = () -> ran.add("third");
+
+            Task task = createTask();
+            processor = new MultiStepTaskProcessor(task, null, executor);
+            processor.addTaskProcessor(first, Collections.emptyList());
+            processor.addTaskProcessor(second, Collections.emptyList());
+            processor.addTaskProcessor(third, Arrays.asList(first, second));
+            processor.execute();
+
+            Assert.assertEquals(Collections.singletonList("third"), ran);
+            Assert.assertEquals("0,1,2", task.getProperty(MultiStepTaskProcessor.COMPLETED_STEPS_PROPERTY));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailureSkipsDependentsAndRetrySkipsCompleted() throws Exception {
+        replayAll();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            List<String> ran = new CopyOnWriteArrayList<>();
+            boolean[] fail = {true};
+            //the failing step waits for the independent one, which would
+            //otherwise be skipped if it had not yet started
+            CountDownLatch independentDone = new CountDownLatch(1);
+            TaskProcessor independent = () -> {
+                ran.add("independent");
+                independentDone.countDown();
+            };
+            TaskProcessor failing = () -> {
+                ran.add("failing");
+                if (fail[0]) {
+                    try {
+                        independentDone.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new TaskExecutionFailedException("failed");
+                }
+            };
+            TaskProcessor dependent = () -> ran.add("dependent");
+
+            Task task = createTask();
+            processor = new MultiStepTaskProcessor(task, null, executor);
+            processor.addTaskProcessor(independent, Collections.emptyList());
+            processor.addTaskProcessor(failing, Collections.emptyList());
+            processor.addTaskProcessor(dependent, Collections.singletonList(failing));
+
+            try {
+                processor.execute();
+                Assert.fail("step failure should propagate");
+            } catch (TaskExecutionFailedException e) {
+                Assert.assertEquals("failed", e.getMessage());
+            }
+            Assert.assertFalse(ran.contains("dependent"));
+            Assert.assertEquals("0", task.getProperty(MultiStepTaskProcessor.COMPLETED_STEPS_PROPERTY));
+
+            // the retried task skips the step which completed
+            ran.clear();
+            fail[0] = false;
+            processor.execute();
+            Assert.assertEquals(Arrays.asList("failing", "dependent"), ran);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFactoryDependencies() throws Exception {
+        TaskProcessorFactory factory1 = createMock(TaskProcessorFactory.class);
+        TaskProcessorFactory factory2 = createMock(TaskProcessorFactory.class);
+        TaskProcessorFactory unknown = createMock(TaskProcessorFactory.class);
+        Task task = createTask();
+        List<String> ran = new CopyOnWriteArrayList<>();
+        EasyMock.expect(factory1.create(task)).andReturn(() -> ran.add("1"));
+        EasyMock.expect(factory2.create(task)).andReturn(() -> ran.add("2"));
+        replayAll();
+
+        MultiStepTaskProcessorFactory factory = new MultiStepTaskProcessorFactory();
+        factory.addFactory(factory1, Collections.emptyList());
+        factory.addFactory(factory2, Collections.singletonList(factory1));
+        factory.create(task).execute();
+        Assert.assertEquals(Arrays.asList("1", "2"), ran);
+
+        try {
+            factory.addFactory(factory1, Collections.singletonList(unknown));
+            Assert.fail("unknown dependency should be rejected");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    private Task createTask() {
+        Task task = new Task();
+        task.setType(Task.Type.AUDIT);
+        return task;
+    }
+
+    private void awaitOther(CountDownLatch bothStarted) throws TaskExecutionFailedException {
+        bothStarted.countDown();
+        try {
+            if (!bothStarted.await(5, TimeUnit.SECONDS)) {
+                throw new TaskExecutionFailedException("steps did not run concurrently");
+            }
+        } catch (InterruptedException e) {
+            throw new TaskExecutionFailedException("interrupted", e);
+        }
+    }
 }
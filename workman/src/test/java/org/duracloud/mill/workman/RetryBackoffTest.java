@@ -0,0 +1,53 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Daniel Bernstein
+ */
+public class RetryBackoffTest {
+
+    @Test
+    public void testDelayDoublesWithinJitter() {
+        RetryBackoff backoff = new RetryBackoff(30, 900, new Random(1));
+        for (int i = 0; i < 100; i++) {
+            assertBetween(15, 30, backoff.getDelaySeconds(0));
+            assertBetween(30, 60, backoff.getDelaySeconds(1));
+            assertBetween(60, 120, backoff.getDelaySeconds(2));
+        }
+    }
+
+    @Test
+    public void testDelayIsCapped() {
+        RetryBackoff backoff = new RetryBackoff(30, 900, new Random(1));
+        for (int i = 0; i < 100; i++) {
+            assertBetween(450, 900, backoff.getDelaySeconds(10));
+            assertBetween(450, 900, backoff.getDelaySeconds(Integer.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void testJitterSpreadsDelays() {
+        RetryBackoff backoff = new RetryBackoff(30, 900, new Random(1));
+        int first = backoff.getDelaySeconds(3);
+        boolean differs = false;
+        for (int i = 0; i < 20 && !differs; i++) {
+            differs = backoff.getDelaySeconds(3) != first;
+        }
+        Assert.assertTrue(differs);
+    }
+
+    private void assertBetween(int min, int max, int value) {
+        Assert.assertTrue(value + " not in [" + min + "," + max + "]", value >= min && value <= max);
+    }
+}
@@ -41,4 +41,30 @@ public class RootTaskProcessorFactoryTest {
         EasyMock.verify(taskProcessor, bad, good);
     }
 
+    @Test
+    public void testTypedDispatch() throws TaskProcessorCreationFailedException {
+        TaskProcessor taskProcessor = EasyMock.createMock(TaskProcessor.class);
+        //the untyped factory must not be consulted for a task of a registered type
+        TaskProcessorFactory untyped = EasyMock.createMock(TaskProcessorFactory.class);
+        TaskProcessorFactory dup = EasyMock.createMock(TaskProcessorFactory.class);
+        EasyMock.expect(dup.create(EasyMock.isA(Task.class))).andReturn(taskProcessor);
+        EasyMock.replay(taskProcessor, untyped, dup);
+
+        RootTaskProcessorFactory taskProcessorFactory = new RootTaskProcessorFactory();
+        taskProcessorFactory.addTaskProcessorFactory(untyped);
+        taskProcessorFactory.addTaskProcessorFactory(Task.Type.DUP, dup);
+        Task task = new Task();
+        task.setType(Task.Type.DUP);
+        Assert.assertTrue(taskProcessorFactory.isSupported(task));
+        Assert.assertEquals(taskProcessor, taskProcessorFactory.create(task));
+        EasyMock.verify(taskProcessor, untyped, dup);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDuplicateTypeRegistration() {
+        RootTaskProcessorFactory taskProcessorFactory = new RootTaskProcessorFactory();
+        taskProcessorFactory.addTaskProcessorFactory(Task.Type.DUP, EasyMock.createMock(TaskProcessorFactory.class));
+        taskProcessorFactory.addTaskProcessorFactory(Task.Type.DUP, EasyMock.createMock(TaskProcessorFactory.class));
+    }
+
 }
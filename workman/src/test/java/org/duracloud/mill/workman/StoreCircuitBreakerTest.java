@@ -0,0 +1,196 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+import com.amazonaws.AmazonServiceException;
+import org.duracloud.common.queue.task.Task;
+import org.duracloud.common.queue.task.TypedTask;
+import org.duracloud.mill.task.DuplicationTask;
+import org.duracloud.storage.error.ChecksumMismatchException;
+import org.duracloud.storage.error.NotFoundException;
+import org.duracloud.storage.error.StorageException;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Daniel Bernstein
+ */
+public class StoreCircuitBreakerTest {
+
+    private long now = 0;
+    private StoreCircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        breaker = new StoreCircuitBreaker(3, 60, new Random(0)) {
+            @Override
+            protected long now() {
+                return now;
+            }
+        };
+    }
+
+    private Task createTask(Task.Type type) {
+        Task task = new Task();
+        task.setType(type);
+        task.addProperty(TypedTask.ACCOUNT_PROP, "account");
+        task.addProperty(TypedTask.STORE_ID_PROP, "1");
+        task.addProperty(DuplicationTask.DEST_STORE_ID_PROP, "2");
+        return task;
+    }
+
+    private void fail(String key, int times) {
+        for (int i = 0; i < times; i++) {
+            breaker.failed(key);
+        }
+    }
+
+    @Test
+    public void testGetKey() {
+        assertEquals("account/1/2", breaker.getKey(createTask(Task.Type.DUP)));
+        assertEquals("account/1", breaker.getKey(createTask(Task.Type.BIT)));
+        assertNull(breaker.getKey(createTask(Task.Type.AUDIT)));
+
+        Task fanOut = createTask(Task.Type.DUP);
+        fanOut.addProperty(DuplicationTask.DEST_STORE_IDS_PROP, "2,3");
+        assertNull(breaker.getKey(fanOut));
+        fanOut.addProperty(DuplicationTask.DEST_STORE_IDS_PROP, "");
+        assertEquals("account/1/2", breaker.getKey(fanOut));
+
+        Task task = new Task();
+        task.setType(Task.Type.BIT);
+        assertNull(breaker.getKey(task));
+    }
+
+    @Test
+    public void testOpensAfterThreshold() {
+        fail("a", 2);
+        assertTrue(breaker.allow("a"));
+        breaker.failed("a");
+
+        assertEquals(StoreCircuitBreaker.State.OPEN, breaker.getState("a"));
+        assertFalse(breaker.allow("a"));
+        assertTrue(breaker.allow("b"));
+        assertEquals(1, breaker.getOpenCount());
+        assertEquals(1, breaker.getTripCount());
+        assertEquals(1, breaker.getParkedCount());
+    }
+
+    @Test
+    public void testSuccessResetsFailures() {
+        fail("a", 2);
+        breaker.succeeded("a");
+        fail("a", 2);
+        assertEquals(StoreCircuitBreaker.State.CLOSED, breaker.getState("a"));
+    }
+
+    @Test
+    public void testProbeCloses() {
+        fail("a", 3);
+        now = 60000;
+
+        assertTrue(breaker.allow("a"));
+        assertEquals(StoreCircuitBreaker.State.HALF_OPEN, breaker.getState("a"));
+        assertFalse(breaker.allow("a"));
+
+        breaker.succeeded("a");
+        assertEquals(StoreCircuitBreaker.State.CLOSED, breaker.getState("a"));
+        assertTrue(breaker.allow("a"));
+        assertEquals(0, breaker.getOpenCount());
+    }
+
+    @Test
+    public void testProbeFailureReopens() {
+        fail("a", 3);
+        now = 60000;
+        assertTrue(breaker.allow("a"));
+
+        breaker.failed("a");
+        assertEquals(StoreCircuitBreaker.State.OPEN, breaker.getState("a"));
+        assertFalse(breaker.allow("a"));
+        assertEquals(2, breaker.getTripCount());
+    }
+
+    @Test
+    public void testStaleProbeReplaced() {
+        fail("a", 3);
+        now = 60000;
+        assertTrue(breaker.allow("a"));
+        now = 119999;
+        assertFalse(breaker.allow("a"));
+        now = 120000;
+        assertTrue(breaker.allow("a"));
+    }
+
+    @Test
+    public void testGetParkSeconds() {
+        fail("a", 3);
+        int seconds = breaker.getParkSeconds("a");
+        assertTrue("park seconds " + seconds, seconds >= 60 && seconds <= 75);
+
+        now = 55000;
+        seconds = breaker.getParkSeconds("a");
+        assertTrue("park seconds " + seconds, seconds >= 15 && seconds <= 18);
+    }
+
+    @Test
+    public void testIdleClosedCircuitsPruned() {
+        fail("a", 2);
+        fail("b", 3);
+        fail("c", 1);
+        breaker.succeeded("c");
+        assertEquals(3, breaker.getCircuitCount());
+
+        //pruned at most once every openSeconds
+        now = 59999;
+        fail("d", 1);
+        assertEquals(4, breaker.getCircuitCount());
+
+        //a has been idle long enough, c has no failures, d failed recently and
+        //b is open
+        now = 60000;
+        fail("d", 1);
+        assertEquals(2, breaker.getCircuitCount());
+        assertEquals(StoreCircuitBreaker.State.OPEN, breaker.getState("b"));
+        assertTrue(breaker.allow("a"));
+    }
+
+    @Test
+    public void testIsStoreFailure() {
+        assertTrue(StoreCircuitBreaker.isStoreFailure(new StorageException("unreachable")));
+        assertTrue(StoreCircuitBreaker.isStoreFailure(
+            new TaskExecutionFailedException("failed", new SocketTimeoutException("timed out"))));
+        assertTrue(StoreCircuitBreaker.isStoreFailure(createServiceException(503)));
+        assertTrue(StoreCircuitBreaker.isStoreFailure(
+            new StorageException("denied", createServiceException(403))));
+
+        assertFalse(StoreCircuitBreaker.isStoreFailure(new RuntimeException("bug")));
+        assertFalse(StoreCircuitBreaker.isStoreFailure(
+            new TaskExecutionFailedException("failed", new NotFoundException("missing"))));
+        assertFalse(StoreCircuitBreaker.isStoreFailure(
+            new ChecksumMismatchException("mismatch", false)));
+        assertFalse(StoreCircuitBreaker.isStoreFailure(createServiceException(400)));
+        //the response status is decisive
+        assertFalse(StoreCircuitBreaker.isStoreFailure(
+            new StorageException("not found", createServiceException(404))));
+    }
+
+    private AmazonServiceException createServiceException(int status) {
+        AmazonServiceException e = new AmazonServiceException("status " + status);
+        e.setStatusCode(status);
+        return e;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.duracloud.common.queue.TaskException;
+import org.duracloud.common.queue.local.LocalTaskQueue;
+import org.duracloud.common.queue.task.Task;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Daniel Bernstein
+ */
+public class TaskAcknowledgerTest {
+
+    private TaskAcknowledger acknowledger;
+
+    @After
+    public void tearDown() {
+        if (acknowledger != null) {
+            acknowledger.destroy();
+        }
+    }
+
+    @Test
+    public void testBatchesBySize() throws Exception {
+        RecordingQueue queue = new RecordingQueue(0);
+        //long flush interval: only full batches go out before destroy()
+        acknowledger = new TaskAcknowledger(60 * 1000);
+        for (int i = 0; i < 12; i++) {
+            acknowledger.acknowledge(createTask(i), queue);
+        }
+        Thread.sleep(500);
+        Assert.assertEquals(Collections.singletonList(10), queue.getBatchSizes());
+        Assert.assertEquals(2, acknowledger.getPendingCount());
+
+        acknowledger.destroy();
+        Assert.assertEquals(List.of(10, 2), queue.getBatchSizes());
+        Assert.assertEquals(0, acknowledger.getPendingCount());
+        Assert.assertEquals(12, acknowledger.getDeletedCount());
+        acknowledger = null;
+    }
+
+    @Test
+    public void testFlushesAfterInterval() throws Exception {
+        RecordingQueue queue = new RecordingQueue(0);
+        acknowledger = new TaskAcknowledger(50);
+        acknowledger.acknowledge(createTask(1), queue);
+        acknowledger.acknowledge(createTask(2), queue);
+        Thread.sleep(500);
+        Assert.assertEquals(Collections.singletonList(2), queue.getBatchSizes());
+        Assert.assertEquals(0, acknowledger.getPendingCount());
+        Assert.assertEquals(2, acknowledger.getDeletedCount());
+    }
+
+    @Test
+    public void testEqualTasksAreDeletedSeparately() throws Exception {
+        RecordingQueue queue = new RecordingQueue(0);
+        acknowledger = new TaskAcknowledger(50);
+        Task task = createTask(1);
+        acknowledger.acknowledge(task, queue);
+        acknowledger.acknowledge(task, queue);
+        Thread.sleep(500);
+        Assert.assertEquals(List.of(1, 1), queue.getBatchSizes());
+        Assert.assertEquals(2, acknowledger.getDeletedCount());
+    }
+
+    @Test
+    public void testRetriesFailedDelete() throws Exception {
+        RecordingQueue queue = new RecordingQueue(1);
+        acknowledger = new TaskAcknowledger(50);
+        AtomicInteger settled = new AtomicInteger();
+        acknowledger.acknowledge(createTask(1), queue, settled::incrementAndGet);
+        Thread.sleep(500);
+        Assert.assertEquals(1, acknowledger.getPendingCount());
+        Assert.assertEquals(0, acknowledger.getDeletedCount());
+        Assert.assertEquals(0, settled.get());
+
+        //first retry comes after one second
+        Thread.sleep(1000);
+        Assert.assertEquals(0, acknowledger.getPendingCount());
+        Assert.assertEquals(1, acknowledger.getDeletedCount());
+        Assert.assertEquals(1, settled.get());
+        Assert.assertEquals(0, acknowledger.getFailedCount());
+        Assert.assertEquals(List.of(1, 1), queue.getBatchSizes());
+    }
+
+    private Task createTask(int id) {
+        Task task = new Task();
+        task.setType(Task.Type.NOOP);
+        task.addProperty("id", String.valueOf(id));
+        return task;
+    }
+
+    private static class RecordingQueue extends LocalTaskQueue {
+        private List<Integer> batchSizes = new ArrayList<>();
+        private int failures;
+
+        RecordingQueue(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public synchronized void deleteTasks(Set<Task> tasks) throws TaskException {
+            batchSizes.add(tasks.size());
+            if (failures > 0) {
+                failures--;
+                throw new TaskException("failed");
+            }
+        }
+
+        synchronized List<Integer> getBatchSizes() {
+            return new ArrayList<>(batchSizes);
+        }
+    }
+}
@@ -12,14 +12,18 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.isA;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.duracloud.common.queue.TaskQueue;
 import org.duracloud.common.queue.task.Task;
 import org.easymock.EasyMock;
 import org.easymock.IAnswer;
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -32,6 +36,7 @@ public class TaskWorkerImplTest {
     private TaskQueue deadLetterQueue;
     private TaskProcessor processor;
     private TaskProcessorFactory factory;
+    private List<TaskWorkerListener> listeners = new ArrayList<>();
 
     @Before
     public void setUp() throws Exception {
@@ -72,8 +77,9 @@ public class TaskWorkerImplTest {
 
         queue.extendVisibilityTimeout(EasyMock.isA(Task.class));
         EasyMock.expectLastCall().times(2, 4);
-        queue.deleteTask(EasyMock.isA(Task.class));
+        queue.deleteTasks(EasyMock.isA(Set.class));
         EasyMock.expectLastCall().once();
+        expect(queue.getName()).andReturn("queue").anyTimes();
         expect(task.getAttempts()).andReturn(1);
 
         replay();
@@ -84,8 +90,8 @@ public class TaskWorkerImplTest {
         Thread.sleep(2000);
     }
 
-    private ScheduledThreadPoolExecutor createScheduledThreadPool() {
-        return new ScheduledThreadPoolExecutor(5);
+    private VisibilityTimeoutSweeper createSweeper() {
+        return new VisibilityTimeoutSweeper(100);
     }
 
     private void runWithProcessorException() throws Exception {
@@ -93,6 +99,11 @@ public class TaskWorkerImplTest {
         EasyMock.expectLastCall().andThrow(new TaskExecutionFailedException());
         EasyMock.expect(task.getProperties())
                 .andReturn(new HashMap<String, String>());
+        EasyMock.expect(task.getProperty(TaskWorkerImpl.RETRY_HISTORY_PROPERTY))
+                .andReturn("0:1000:30:TaskExecutionFailedException");
+        task.addProperty(eq(TaskWorkerImpl.RETRY_HISTORY_PROPERTY),
+                         EasyMock.startsWith("0:1000:30:TaskExecutionFailedException,"));
+        expectLastCall().once();
         replay();
         TaskWorkerImpl w = createTaskWorkerImpl();
         w.init();
@@ -106,7 +117,9 @@ public class TaskWorkerImplTest {
                                               factory,
                                               queue,
                                               deadLetterQueue,
-                                              createScheduledThreadPool());
+                                              createSweeper(),
+                                              new TaskAcknowledger(10));
+        w.setListeners(listeners);
         return w;
     }
 
@@ -118,13 +131,60 @@ public class TaskWorkerImplTest {
         runWithProcessorException();
     }
 
+    @Test
+    public void testListenerNotifiedOfFailure() throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        listeners.add(new TaskWorkerListener() {
+            @Override
+            public void taskCompleted(Task completed, long elapsedMs, Throwable t) {
+                Assert.assertSame(task, completed);
+                failure.set(t);
+            }
+        });
+        EasyMock.expect(task.getAttempts()).andReturn(0).times(1);
+        queue.requeue(EasyMock.isA(Task.class));
+        EasyMock.expectLastCall().once();
+        runWithProcessorException();
+        Assert.assertTrue(failure.get() instanceof TaskExecutionFailedException);
+    }
+
+    @Test
+    public void testAbandonWhileRunning() throws Exception {
+        final AtomicReference<TaskWorkerImpl> worker = new AtomicReference<>();
+        processor.execute();
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                //the grace period expires while the task is being processed
+                worker.get().abandon();
+                return null;
+            }
+        });
+
+        //the task is released rather than deleted
+        task.setVisibilityTimeout(0);
+        expectLastCall().once();
+        queue.extendVisibilityTimeout(task);
+        expectLastCall().once();
+        expect(queue.getName()).andReturn("queue").anyTimes();
+        expect(task.getAttempts()).andReturn(1);
+
+        replay();
+        TaskWorkerImpl w = createTaskWorkerImpl();
+        worker.set(w);
+        w.init();
+        w.run();
+        //a second abandon has no effect
+        w.abandon();
+    }
+
     @Test
     public void testRunWithProcessorExceptionLastAttempt() throws Exception {
         expect(task.getAttempts()).andReturn(4).times(1);
-        queue.deleteTask(EasyMock.isA(Task.class));
-        expect(deadLetterQueue.getName()).andReturn("queue");
-
+        queue.deleteTasks(EasyMock.isA(Set.class));
         expectLastCall().once();
+        expect(queue.getName()).andReturn("queue").anyTimes();
+        expect(deadLetterQueue.getName()).andReturn("queue");
         deadLetterQueue.put(EasyMock.isA(Task.class));
         expectLastCall().once();
         task.addProperty(eq("error"), isA(String.class));
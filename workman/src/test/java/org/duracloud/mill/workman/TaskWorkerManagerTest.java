@@ -8,8 +8,11 @@
 package org.duracloud.mill.workman;
 
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.duracloud.common.queue.TaskQueue;
 import org.duracloud.common.queue.TimeoutException;
@@ -51,6 +54,10 @@ public class TaskWorkerManagerTest extends EasyMockSupport {
     @After
     public void tearDown() {
         verifyAll();
+        System.clearProperty(TaskWorkerManager.PREFETCH_SIZE_KEY);
+        System.clearProperty(TaskWorkerManager.TASK_TYPE_MAX_WORKERS_KEY);
+        System.clearProperty(TaskWorkerManager.QUEUE_WEIGHTS_KEY);
+        System.clearProperty(TaskWorkerManager.SHUTDOWN_GRACE_PERIOD_KEY);
     }
 
     @Test
@@ -84,6 +91,362 @@ public class TaskWorkerManagerTest extends EasyMockSupport {
         manager.destroy();
     }
 
+    @Test
+    public void testPrefetch() throws Exception {
+        int prefetch = 3;
+        final CountDownLatch latch = new CountDownLatch(prefetch);
+
+        Set<Task> tasks = new HashSet<>();
+        for (int i = 0; i < prefetch; i++) {
+            Task task = new Task();
+            task.addProperty("id", i + "");
+            task.setVisibilityTimeout(600);
+            tasks.add(task);
+        }
+
+        EasyMock.expect(highPriorityQueue.take(prefetch)).andReturn(tasks).once();
+        EasyMock.expect(highPriorityQueue.take(prefetch)).andThrow(new TimeoutException()).anyTimes();
+        EasyMock.expect(highPriorityQueue.getName()).andReturn("high").anyTimes();
+        EasyMock.expect(highPriorityQueue.size()).andReturn(0).anyTimes();
+        EasyMock.expect(lowPriorityQueue.take(prefetch)).andThrow(new TimeoutException()).anyTimes();
+        EasyMock.expect(lowPriorityQueue.getName()).andReturn("low").anyTimes();
+        EasyMock.expect(lowPriorityQueue.size()).andReturn(0).anyTimes();
+        EasyMock.expect(deadLetterQueue.getName()).andReturn("dead").anyTimes();
+        EasyMock.expect(deadLetterQueue.size()).andReturn(0).anyTimes();
+
+        EasyMock.expect(factory.create(EasyMock.isA(Task.class), EasyMock.eq(highPriorityQueue)))
+                .andReturn(new TaskWorker() {
+                    @Override
+                    public void run() {
+                        latch.countDown();
+                    }
+                }).times(prefetch);
+
+        replayAll();
+
+        System.setProperty(TaskWorkerManager.MAX_WORKER_PROPERTY_KEY, prefetch + "");
+        System.setProperty(TaskWorkerManager.PREFETCH_SIZE_KEY, prefetch + "");
+
+        TaskWorkerManager manager = new TaskWorkerManager(Arrays.asList(highPriorityQueue, lowPriorityQueue),
+                                                          deadLetterQueue,
+                                                          factory);
+        manager.init();
+
+        Assert.assertTrue(latch.await(6000, TimeUnit.MILLISECONDS));
+
+        manager.destroy();
+    }
+
+    @Test
+    public void testTaskTypeMaxWorkers() throws Exception {
+        int workers = 4;
+        int dupCount = 3;
+        final CountDownLatch latch = new CountDownLatch(workers);
+        final AtomicInteger runningDups = new AtomicInteger();
+        final AtomicInteger maxRunningDups = new AtomicInteger();
+
+        Set<Task> tasks = new HashSet<>();
+        for (int i = 0; i < workers; i++) {
+            Task task = new Task();
+            task.setType(i < dupCount ? Task.Type.DUP : Task.Type.AUDIT);
+            task.addProperty("id", i + "");
+            task.setVisibilityTimeout(600);
+            tasks.add(task);
+        }
+
+        EasyMock.expect(highPriorityQueue.take(workers)).andReturn(tasks).once();
+        EasyMock.expect(highPriorityQueue.take(workers)).andThrow(new TimeoutException()).anyTimes();
+        EasyMock.expect(highPriorityQueue.getName()).andReturn("high").anyTimes();
+        EasyMock.expect(highPriorityQueue.size()).andReturn(0).anyTimes();
+        EasyMock.expect(lowPriorityQueue.take(workers)).andThrow(new TimeoutException()).anyTimes();
+        EasyMock.expect(lowPriorityQueue.getName()).andReturn("low").anyTimes();
+        EasyMock.expect(lowPriorityQueue.size()).andReturn(0).anyTimes();
+        EasyMock.expect(deadLetterQueue.getName()).andReturn("dead").anyTimes();
+        EasyMock.expect(deadLetterQueue.size()).andReturn(0).anyTimes();
+
+        for (final Task task : tasks) {
+            EasyMock.expect(factory.create(task, highPriorityQueue)).andReturn(new TaskWorker() {
+                @Override
+                public void run() {
+                    if (task.getType() == Task.Type.DUP) {
+                        maxRunningDups.accumulateAndGet(runningDups.incrementAndGet(), Math::max);
+                        try {
+                            Thread.sleep(200);
+                        } catch (InterruptedException e) {
+                            // Exit sleep on interruption
+                        }
+                        runningDups.decrementAndGet();
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+
+        replayAll();
+
+        System.setProperty(TaskWorkerManager.MAX_WORKER_PROPERTY_KEY, workers + "");
+        System.setProperty(TaskWorkerManager.PREFETCH_SIZE_KEY, workers + "");
+        System.setProperty(TaskWorkerManager.TASK_TYPE_MAX_WORKERS_KEY, "DUP:1");
+
+        TaskWorkerManager manager = new TaskWorkerManager(Arrays.asList(highPriorityQueue, lowPriorityQueue),
+                                                          deadLetterQueue,
+                                                          factory);
+        manager.init();
+
+        Assert.assertTrue(latch.await(6000, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, maxRunningDups.get());
+        //each held back task is counted once, however often it was polled
+        Assert.assertEquals(dupCount - 1, manager.getLane(Task.Type.DUP).getDeferredCount());
+
+        manager.destroy();
+    }
+
+    @Test
+    public void testQueueWeights() throws Exception {
+        int total = 40;
+        final CountDownLatch latch = new CountDownLatch(total);
+        final AtomicInteger highCount = new AtomicInteger();
+        final AtomicInteger lowCount = new AtomicInteger();
+
+        //both queues always have tasks waiting
+        configureBackloggedQueue(highPriorityQueue, "high", highCount, latch);
+        configureBackloggedQueue(lowPriorityQueue, "low", lowCount, latch);
+        EasyMock.expect(deadLetterQueue.getName()).andReturn("dead").anyTimes();
+        EasyMock.expect(deadLetterQueue.size()).andReturn(0).anyTimes();
+
+        replayAll();
+
+        System.setProperty(TaskWorkerManager.MAX_WORKER_PROPERTY_KEY, "1");
+        System.setProperty(TaskWorkerManager.QUEUE_WEIGHTS_KEY, "3,1");
+
+        TaskWorkerManager manager = new TaskWorkerManager(Arrays.asList(highPriorityQueue, lowPriorityQueue),
+                                                          deadLetterQueue,
+                                                          factory);
+        manager.init();
+
+        Assert.assertTrue(latch.await(6000, TimeUnit.MILLISECONDS));
+        manager.destroy();
+
+        //the low priority queue gets about a quarter of the workers rather
+        //than being starved by the high priority queue
+        Assert.assertTrue("low=" + lowCount.get(), lowCount.get() >= total / 4 - 2);
+        Assert.assertTrue("high=" + highCount.get(), highCount.get() >= total / 2);
+    }
+
+    private void configureBackloggedQueue(final TaskQueue queue,
+                                          String name,
+                                          final AtomicInteger count,
+                                          final CountDownLatch latch) throws Exception {
+        EasyMock.expect(queue.getName()).andReturn(name).anyTimes();
+        EasyMock.expect(queue.size()).andReturn(100).anyTimes();
+        EasyMock.expect(queue.take()).andStubAnswer(new IAnswer<Task>() {
+            @Override
+            public Task answer() throws Throwable {
+                return new Task();
+            }
+        });
+        EasyMock.expect(factory.create(EasyMock.isA(Task.class), EasyMock.same(queue)))
+                .andStubAnswer(new IAnswer<TaskWorker>() {
+                    @Override
+                    public TaskWorker answer() throws Throwable {
+                        return new TaskWorker() {
+                            @Override
+                            public void run() {
+                                //give the fetchers time to refill their buffers
+                                try {
+                                    Thread.sleep(20);
+                                } catch (InterruptedException e) {
+                                    // Exit sleep on interruption
+                                }
+                                if (latch.getCount() > 0) {
+                                    count.incrementAndGet();
+                                }
+                                latch.countDown();
+                            }
+                        };
+                    }
+                });
+        //buffered tasks are released back to the queue on shutdown
+        queue.extendVisibilityTimeout(EasyMock.isA(Task.class));
+        EasyMock.expectLastCall().anyTimes();
+    }
+
+    @Test
+    public void testDrainAbandonsWorkersAfterGracePeriod() throws Exception {
+        final CountDownLatch running = new CountDownLatch(1);
+        final AtomicInteger abandoned = new AtomicInteger();
+        final AtomicInteger interrupted = new AtomicInteger();
+        Task task = new Task();
+
+        EasyMock.expect(highPriorityQueue.take()).andReturn(task).once();
+        EasyMock.expect(highPriorityQueue.take()).andThrow(new TimeoutException()).anyTimes();
+        EasyMock.expect(highPriorityQueue.getName()).andReturn("high").anyTimes();
+        EasyMock.expect(highPriorityQueue.size()).andReturn(0).anyTimes();
+        EasyMock.expect(lowPriorityQueue.take()).andThrow(new TimeoutException()).anyTimes();
+        EasyMock.expect(lowPriorityQueue.getName()).andReturn("low").anyTimes();
+        EasyMock.expect(lowPriorityQueue.size()).andReturn(0).anyTimes();
+        EasyMock.expect(deadLetterQueue.getName()).andReturn("dead").anyTimes();
+        EasyMock.expect(deadLetterQueue.size()).andReturn(0).anyTimes();
+
+        EasyMock.expect(factory.create(task, highPriorityQueue)).andReturn(new TaskWorker() {
+            @Override
+            public void run() {
+                running.countDown();
+                try {
+                    Thread.sleep(60 * 1000);
+                } catch (InterruptedException e) {
+                    interrupted.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void abandon() {
+                abandoned.incrementAndGet();
+            }
+        });
+
+        replayAll();
+
+        System.setProperty(TaskWorkerManager.MAX_WORKER_PROPERTY_KEY, "2");
+        System.setProperty(TaskWorkerManager.SHUTDOWN_GRACE_PERIOD_KEY, "1");
+
+        TaskWorkerManager manager = new TaskWorkerManager(Arrays.asList(highPriorityQueue, lowPriorityQueue),
+                                                          deadLetterQueue,
+                                                          factory);
+        manager.init();
+        Assert.assertTrue(running.await(6000, TimeUnit.MILLISECONDS));
+
+        long start = System.currentTimeMillis();
+        manager.destroy();
+        Assert.assertTrue(System.currentTimeMillis() - start < 10 * 1000);
+        Assert.assertEquals(1, abandoned.get());
+        Assert.assertEquals(1, interrupted.get());
+    }
+
+    @Test
+    public void testSetWorkerLimit() throws Exception {
+        for (TaskQueue queue : Arrays.asList(highPriorityQueue, lowPriorityQueue)) {
+            EasyMock.expect(queue.take()).andThrow(new TimeoutException()).anyTimes();
+            EasyMock.expect(queue.getName()).andReturn("test").anyTimes();
+            EasyMock.expect(queue.size()).andReturn(0).anyTimes();
+        }
+        EasyMock.expect(deadLetterQueue.getName()).andReturn("dead").anyTimes();
+        EasyMock.expect(deadLetterQueue.size()).andReturn(0).anyTimes();
+        replayAll();
+
+        System.setProperty(TaskWorkerManager.MAX_WORKER_PROPERTY_KEY, "4");
+        TaskWorkerManager manager = new TaskWorkerManager(Arrays.asList(highPriorityQueue, lowPriorityQueue),
+                                                          deadLetterQueue,
+                                                          factory);
+        manager.init();
+        Assert.assertEquals(4, manager.getWorkerLimit());
+
+        manager.setWorkerLimit(2);
+        Assert.assertEquals(2, manager.getWorkerLimit());
+        Assert.assertEquals(2, manager.getMaxWorkers());
+
+        manager.setWorkerLimit(6);
+        Assert.assertEquals(6, manager.getWorkerLimit());
+        Assert.assertEquals(6, manager.getMaxWorkers());
+
+        manager.destroy();
+    }
+
+    @Test
+    public void testBufferedTaskReleasedWhenExtensionFails() throws Exception {
+        final CountDownLatch released = new CountDownLatch(1);
+        final AtomicInteger created = new AtomicInteger();
+
+        for (int i = 0; i < 2; i++) {
+            Task task = new Task();
+            task.addProperty("id", i + "");
+            task.setVisibilityTimeout(1);
+            EasyMock.expect(highPriorityQueue.take()).andReturn(task).once();
+        }
+        EasyMock.expect(highPriorityQueue.take()).andThrow(new TimeoutException()).anyTimes();
+        EasyMock.expect(highPriorityQueue.getName()).andReturn("high").anyTimes();
+        EasyMock.expect(highPriorityQueue.size()).andReturn(0).anyTimes();
+        //the second task waits for the first to finish, long enough to need
+        //its visibility timeout extended, which fails
+        highPriorityQueue.extendVisibilityTimeout(EasyMock.isA(Task.class));
+        EasyMock.expectLastCall().andThrow(new RuntimeException("throttled")).once();
+        highPriorityQueue.extendVisibilityTimeout(EasyMock.isA(Task.class));
+        EasyMock.expectLastCall().andAnswer(() -> {
+            Task task = (Task) EasyMock.getCurrentArguments()[0];
+            Assert.assertEquals(Integer.valueOf(0), task.getVisibilityTimeout());
+            released.countDown();
+            return null;
+        }).once();
+        EasyMock.expect(lowPriorityQueue.take()).andThrow(new TimeoutException()).anyTimes();
+        EasyMock.expect(lowPriorityQueue.getName()).andReturn("low").anyTimes();
+        EasyMock.expect(lowPriorityQueue.size()).andReturn(0).anyTimes();
+        EasyMock.expect(deadLetterQueue.getName()).andReturn("dead").anyTimes();
+        EasyMock.expect(deadLetterQueue.size()).andReturn(0).anyTimes();
+
+        EasyMock.expect(factory.create(EasyMock.isA(Task.class), EasyMock.eq(highPriorityQueue)))
+                .andReturn(new TaskWorker() {
+                    @Override
+                    public void run() {
+                        created.incrementAndGet();
+                        try {
+                            Thread.sleep(500);
+                        } catch (InterruptedException e) {
+                            // Exit sleep on interruption
+                        }
+                    }
+                }).once();
+
+        replayAll();
+
+        System.setProperty(TaskWorkerManager.MAX_WORKER_PROPERTY_KEY, "1");
+        //with queue weights, the next task is taken while the first runs
+        System.setProperty(TaskWorkerManager.QUEUE_WEIGHTS_KEY, "1,1");
+        TaskWorkerManager manager = new TaskWorkerManager(Arrays.asList(highPriorityQueue, lowPriorityQueue),
+                                                          deadLetterQueue,
+                                                          factory);
+        manager.init();
+
+        Assert.assertTrue(released.await(5000, TimeUnit.MILLISECONDS));
+        manager.destroy();
+        Assert.assertEquals(1, created.get());
+    }
+
+    @Test
+    public void testLongPollingQueueNotBackedOff() throws Exception {
+        LongPollingQueue queue = createMock(LongPollingQueue.class);
+        final CountDownLatch latch = new CountDownLatch(3);
+        EasyMock.expect(queue.blocksOnEmpty()).andReturn(true).anyTimes();
+        EasyMock.expect(queue.take()).andStubAnswer(() -> {
+            //stands in for the wait on the queue's side
+            Thread.sleep(10);
+            latch.countDown();
+            throw new TimeoutException();
+        });
+        EasyMock.expect(queue.getName()).andReturn("long-polling").anyTimes();
+        EasyMock.expect(queue.size()).andReturn(0).anyTimes();
+        EasyMock.expect(deadLetterQueue.getName()).andReturn("dead").anyTimes();
+        EasyMock.expect(deadLetterQueue.size()).andReturn(0).anyTimes();
+        replayAll();
+
+        System.setProperty(TaskWorkerManager.MAX_WORKER_PROPERTY_KEY, "2");
+        TaskWorkerManager manager = new TaskWorkerManager(Arrays.asList((TaskQueue) queue),
+                                                          deadLetterQueue,
+                                                          factory);
+        manager.init();
+
+        //an empty queue which does not long poll is not taken from again for
+        //DEFAULT_MIN_WAIT_BEFORE_TAKE
+        Assert.assertTrue(latch.await(5000, TimeUnit.MILLISECONDS));
+
+        manager.destroy();
+    }
+
+    /*
+     * A queue which may wrap another, whose take() waits for tasks
+     */
+    private interface LongPollingQueue extends TaskQueue, LongPollingTaskQueue {
+    }
+
     private void configureQueue(int times,
                                 final CountDownLatch latch,
                                 Task task,
@@ -0,0 +1,144 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.duracloud.common.queue.TaskQueue;
+import org.duracloud.common.queue.task.Task;
+import org.easymock.EasyMock;
+import org.easymock.EasyMockRunner;
+import org.easymock.EasyMockSupport;
+import org.easymock.Mock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author Daniel Bernstein
+ */
+@RunWith(EasyMockRunner.class)
+public class VisibilityTimeoutSweeperTest extends EasyMockSupport {
+
+    @Mock
+    private TaskQueue queue;
+
+    private VisibilityTimeoutSweeper sweeper;
+
+    @After
+    public void tearDown() {
+        verifyAll();
+        if (sweeper != null) {
+            sweeper.destroy();
+        }
+    }
+
+    @Test
+    public void testExtendAndDeregister() throws Exception {
+        Task task = createTask(1);
+        queue.extendVisibilityTimeout(task);
+        EasyMock.expectLastCall().times(2, 3);
+        replayAll();
+
+        sweeper = new VisibilityTimeoutSweeper(50);
+        VisibilityTimeoutSweeper.Registration registration = sweeper.register(task, queue);
+        Assert.assertEquals(1, sweeper.getRegisteredCount());
+        Thread.sleep(1400);
+        sweeper.deregister(registration);
+        Assert.assertEquals(0, sweeper.getRegisteredCount());
+        //no further extensions after deregistration
+        Thread.sleep(1000);
+    }
+
+    @Test
+    public void testIgnoresTasksWithoutVisibilityTimeout() {
+        replayAll();
+        sweeper = new VisibilityTimeoutSweeper(50);
+        Assert.assertNull(sweeper.register(createTask(0), queue));
+        Assert.assertEquals(0, sweeper.getRegisteredCount());
+    }
+
+    @Test
+    public void testBatchGroupsTasksNearingExpiry() throws Exception {
+        replayAll();
+        BatchQueue batchQueue = new BatchQueue();
+        //swept by hand
+        sweeper = new VisibilityTimeoutSweeper(60 * 60 * 1000);
+
+        //timeout is 4s: tasks are due after 2s and eligible after 1s
+        Task first = createTask(4);
+        sweeper.register(first, batchQueue);
+        Thread.sleep(900);
+        Task second = createTask(4);
+        sweeper.register(second, batchQueue);
+        Thread.sleep(600);
+        Task third = createTask(4);
+        sweeper.register(third, batchQueue);
+        Thread.sleep(600);
+
+        //first is due, second is nearing expiry and third is not yet eligible
+        sweeper.sweep();
+
+        Assert.assertEquals(1, batchQueue.batches.size());
+        Set<Task> expected = new HashSet<>();
+        expected.add(first);
+        expected.add(second);
+        Assert.assertEquals(expected, new HashSet<>(batchQueue.batches.get(0)));
+    }
+
+    @Test
+    public void testFailedTaskChangedDuringSweep() throws Exception {
+        replayAll();
+        BatchQueue batchQueue = new BatchQueue();
+        sweeper = new VisibilityTimeoutSweeper(60 * 60 * 1000);
+
+        Task task = createTask(2);
+        sweeper.register(task, batchQueue);
+        Thread.sleep(1100);
+
+        //the worker changes the task while its extension fails
+        batchQueue.fail = true;
+        sweeper.sweep();
+        Assert.assertEquals(1, batchQueue.batches.size());
+
+        //the task is still due, so is extended again
+        batchQueue.fail = false;
+        sweeper.sweep();
+        Assert.assertEquals(2, batchQueue.batches.size());
+    }
+
+    private Task createTask(int visibilityTimeout) {
+        Task task = new Task();
+        task.addProperty("id", String.valueOf(System.nanoTime()));
+        task.setVisibilityTimeout(visibilityTimeout);
+        return task;
+    }
+
+    private static class BatchQueue extends org.duracloud.common.queue.local.LocalTaskQueue
+        implements BatchVisibilityTimeoutExtender {
+        private CopyOnWriteArrayList<List<Task>> batches = new CopyOnWriteArrayList<>();
+        private volatile boolean fail = false;
+
+        @Override
+        public List<Task> extendVisibilityTimeouts(List<Task> tasks) {
+            batches.add(tasks);
+            if (fail) {
+                for (Task task : tasks) {
+                    task.addProperty("step", "next");
+                }
+                return tasks;
+            }
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Daniel Bernstein
+ */
+public class WorkerExecutorsTest {
+
+    @Test
+    public void testPool() {
+        ExecutorService executor = WorkerExecutors.create(null, 3);
+        Assert.assertTrue(executor instanceof ThreadPoolExecutor);
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+        Assert.assertEquals(3, pool.getMaximumPoolSize());
+
+        WorkerExecutors.resize(executor, 5);
+        Assert.assertEquals(5, pool.getCorePoolSize());
+        Assert.assertEquals(5, pool.getMaximumPoolSize());
+
+        WorkerExecutors.resize(executor, 2);
+        Assert.assertEquals(2, pool.getCorePoolSize());
+        Assert.assertEquals(2, pool.getMaximumPoolSize());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testVirtual() throws Exception {
+        int tasks = 50;
+        ExecutorService executor = WorkerExecutors.create(" Virtual ", 1);
+        final CountDownLatch started = new CountDownLatch(tasks);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < tasks; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        // exit on interruption
+                    }
+                }
+            });
+        }
+
+        //a thread per task: all tasks run at once regardless of max workers
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMode() {
+        WorkerExecutors.create("fork-join", 1);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.util.Map;
+
+import org.duracloud.common.queue.task.Task;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Daniel Bernstein
+ */
+public class WorkerLaneTest {
+
+    @Test
+    public void testParse() {
+        Map<Task.Type, WorkerLane> lanes = WorkerLane.parse(" dup:3, BIT:20 ", 10);
+        Assert.assertEquals(2, lanes.size());
+        Assert.assertEquals(3, lanes.get(Task.Type.DUP).getMaxWorkers());
+        Assert.assertEquals(10, lanes.get(Task.Type.BIT).getMaxWorkers());
+        Assert.assertNull(lanes.get(Task.Type.AUDIT));
+    }
+
+    @Test
+    public void testParseBlank() {
+        Assert.assertTrue(WorkerLane.parse(null, 10).isEmpty());
+        Assert.assertTrue(WorkerLane.parse("", 10).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalid() {
+        WorkerLane.parse("DUP", 10);
+    }
+
+    @Test
+    public void testAcquireRelease() {
+        WorkerLane lane = new WorkerLane(Task.Type.DUP, 2);
+        Assert.assertTrue(lane.tryAcquire());
+        Assert.assertTrue(lane.tryAcquire());
+        Assert.assertFalse(lane.tryAcquire());
+        Assert.assertEquals(2, lane.getRunningCount());
+        Assert.assertEquals(0, lane.getDeferredCount());
+        lane.defer();
+        Assert.assertEquals(1, lane.getDeferredCount());
+
+        lane.release();
+        Assert.assertEquals(1, lane.getRunningCount());
+        Assert.assertEquals(1, lane.getCompletedCount());
+        Assert.assertTrue(lane.tryAcquire());
+    }
+
+    @Test
+    public void testCancel() {
+        WorkerLane lane = new WorkerLane(Task.Type.DUP, 1);
+        Assert.assertTrue(lane.tryAcquire());
+        lane.cancel();
+        Assert.assertEquals(0, lane.getRunningCount());
+        Assert.assertEquals(0, lane.getCompletedCount());
+        Assert.assertTrue(lane.tryAcquire());
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree and available online at
+ *
+ *     http://duracloud.org/license/
+ */
+package org.duracloud.mill.workman;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.duracloud.common.queue.task.Task;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Daniel Bernstein
+ */
+public class WorkmanMetricsTest {
+
+    @Test
+    public void testTaskCounts() throws Exception {
+        WorkmanMetrics metrics = new WorkmanMetrics();
+        Task dup = createTask(Task.Type.DUP);
+        metrics.taskCompleted(dup, 200, null);
+        metrics.taskRequeued(dup, 30);
+        metrics.taskCompleted(dup, 400, new RuntimeException());
+        metrics.taskDeadLettered(dup);
+        metrics.taskCompleted(dup, 600, new RuntimeException());
+
+        Map<String, Double> values = metrics.getValues();
+        Assert.assertEquals(3, values.get("task_duration_count.DUP"), 0);
+        Assert.assertEquals(1, values.get("tasks_succeeded.DUP"), 0);
+        Assert.assertEquals(2, values.get("tasks_failed.DUP"), 0);
+        Assert.assertEquals(1, values.get("tasks_requeued.DUP"), 0);
+        Assert.assertEquals(1, values.get("tasks_dead_lettered.DUP"), 0);
+        Assert.assertEquals(600, values.get("task_duration_max_ms.DUP"), 0);
+        Assert.assertNull("untouched task types are not reported", values.get("task_duration_count.BIT"));
+
+        String text = toPrometheus(metrics);
+        Assert.assertTrue(text, text.contains(
+            "workman_task_duration_seconds_bucket{task_type=\"DUP\",le=\"0.25\"} 1\n"));
+        Assert.assertTrue(text, text.contains(
+            "workman_task_duration_seconds_bucket{task_type=\"DUP\",le=\"+Inf\"} 3\n"));
+        Assert.assertTrue(text, text.contains("workman_task_duration_seconds_sum{task_type=\"DUP\"} 1.2\n"));
+        Assert.assertTrue(text, text.contains(
+            "workman_tasks_completed_total{task_type=\"DUP\",result=\"failure\"} 2\n"));
+        Assert.assertTrue(text, text.contains("workman_tasks_dead_lettered_total{task_type=\"DUP\"} 1\n"));
+    }
+
+    @Test
+    public void testStepsAndGauges() throws Exception {
+        WorkmanMetrics metrics = new WorkmanMetrics();
+        TaskProcessor step = new TaskProcessor() {
+            @Override
+            public void execute() {
+            }
+        };
+        metrics.stepCompleted(Task.Type.AUDIT, step, 2000000, true);
+        metrics.stepCompleted(Task.Type.AUDIT, step, 4000000, false);
+        metrics.addQueueGauge("workman_queue_depth", "depth", "high", () -> 5);
+        metrics.addQueueGauge("workman_buffered_tasks", "buffered", "high", () -> 1);
+        metrics.addQueueGauge("workman_queue_depth", "depth", "low", () -> 7);
+
+        String name = step.getClass().getSimpleName();
+        Map<String, Double> values = metrics.getValues();
+        Assert.assertEquals(2, values.get("task_step_duration_count.AUDIT." + name), 0);
+        Assert.assertEquals(1, values.get("task_step_failures.AUDIT." + name), 0);
+        Assert.assertEquals(7, values.get("queue_depth.low"), 0);
+
+        String text = toPrometheus(metrics);
+        Assert.assertTrue(text, text.contains("workman_task_step_failures_total{task_type=\"AUDIT\",step=\"" +
+                                              name + "\"} 1\n"));
+        Assert.assertTrue(text, text.contains("# TYPE workman_queue_depth gauge\n" +
+                                              "workman_queue_depth{queue=\"high\"} 5\n" +
+                                              "workman_queue_depth{queue=\"low\"} 7\n"));
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        WorkmanMetrics metrics = new WorkmanMetrics();
+        metrics.addCounter("workman_cache_hits_total", "hits", () -> 4);
+        metrics.addLabeledCounter("workman_storage_calls_total", "calls", "limiter", "S3", () -> 9);
+
+        Map<String, Double> values = metrics.getValues();
+        Assert.assertEquals(4, values.get("cache_hits"), 0);
+        Assert.assertEquals(9, values.get("storage_calls.S3"), 0);
+
+        String text = toPrometheus(metrics);
+        Assert.assertTrue(text, text.contains("# TYPE workman_cache_hits_total counter\n" +
+                                              "workman_cache_hits_total 4\n"));
+        Assert.assertTrue(text, text.contains("# TYPE workman_storage_calls_total counter\n" +
+                                              "workman_storage_calls_total{limiter=\"S3\"} 9\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCounterName() {
+        new WorkmanMetrics().addCounter("workman_cache_hits", "hits", () -> 4);
+    }
+
+    @Test
+    public void testHttpEndpoint() throws Exception {
+        WorkmanMetrics metrics = new WorkmanMetrics();
+        metrics.addGauge("workman_running_workers", "running", () -> 3);
+        MetricsHttpServer server = new MetricsHttpServer(metrics, 0);
+        server.start();
+        try {
+            //listens on the loopback interface by default
+            URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), server.getPort(),
+                              MetricsHttpServer.PATH);
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            Assert.assertEquals(200, connection.getResponseCode());
+            Assert.assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"));
+            try (InputStream in = connection.getInputStream()) {
+                String body = IOUtils.toString(in, StandardCharsets.UTF_8);
+                Assert.assertTrue(body, body.contains("workman_running_workers 3\n"));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private Task createTask(Task.Type type) {
+        Task task = new Task();
+        task.setType(type);
+        return task;
+    }
+
+    private String toPrometheus(WorkmanMetrics metrics) throws IOException {
+        StringWriter writer = new StringWriter();
+        metrics.writePrometheus(writer);
+        return writer.toString();
+    }
+}